@@ -0,0 +1,201 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * The base of the active queue management queues. The normal data is dropped
+ * early by the algorithm of the subclass when it is added or retrieved, the
+ * prioritized data is never dropped early. When the queue is full, the normal
+ * data is dropped from the tail as in {@link ItemLimitedQueue}.
+ *
+ * The sojourn times are measured with the time line bound to the current
+ * thread ({@link Timeline#nowInUs()}), so the queue should be used in the
+ * events of a run. The random drops use a seeded generator, so the runs are
+ * reproducible.
+ *
+ * @author Jiachen Chen
+ * @param <T>
+ */
+public abstract class ActiveQueue<T> implements PrioritizedQueue<T> {
+
+    private static final Consumer<Object> IGNORE = v -> {
+    };
+
+    private final int capacityInItems;
+    // the items with the time they are added
+    private final RingBuffer<T> normalQueue = new RingBuffer<>(1), priorityQueue = new RingBuffer<>(1);
+    protected final Random random;
+    private long emptySinceInUs = Long.MIN_VALUE;
+    private long lastSojournInUs = 0;
+    private long earlyDropCount = 0;
+
+    protected ActiveQueue(int capacityInItems, long seed) {
+        if (capacityInItems <= 0) {
+            throw new IllegalArgumentException("Capacity should be > 0, capacity=" + capacityInItems);
+        }
+        this.capacityInItems = capacityInItems;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Decides if a normal data should be dropped when it is added, the queue
+     * is not full.
+     *
+     * @param nowInUs the current time
+     * @return true if the data should be dropped
+     */
+    protected boolean dropOnEnqueue(long nowInUs) {
+        return false;
+    }
+
+    /**
+     * Retrieves a normal data, the prioritized queue is empty. By default, the
+     * data at the head of the normal queue is retrieved.
+     *
+     * @param nowInUs the current time
+     * @param consumer called on each entry dropped, see
+     * {@link #drop(java.lang.Object, java.util.function.Consumer)}
+     * @return the data, null if the normal queue is empty
+     */
+    protected T deQueueNormal(long nowInUs, Consumer<? super T> consumer) {
+        return pollNormal(nowInUs);
+    }
+
+    /**
+     * Removes the data at the head of the normal queue, and updates the last
+     * sojourn time.
+     *
+     * @param nowInUs the current time
+     * @return the data, null if the normal queue is empty
+     */
+    protected final T pollNormal(long nowInUs) {
+        if (normalQueue.size() == 0) {
+            return null;
+        }
+        lastSojournInUs = nowInUs - normalQueue.peekValue(0);
+        T ret = normalQueue.poll();
+        if (getSize() == 0) {
+            emptySinceInUs = nowInUs;
+        }
+        return ret;
+    }
+
+    /**
+     * Drops a data early.
+     *
+     * @param val the data
+     * @param consumer called on the data
+     */
+    protected final void drop(T val, Consumer<? super T> consumer) {
+        earlyDropCount++;
+        consumer.accept(val);
+    }
+
+    @Override
+    public void enQueue(T val, boolean prioritized) {
+        enQueue(val, prioritized, IGNORE);
+    }
+
+    @Override
+    public void enQueue(T val, boolean prioritized, Consumer<? super T> consumer) {
+        long now = Timeline.nowInUs();
+        if (getSize() < capacityInItems) {
+            if (prioritized) {
+                priorityQueue.offer(val, now);
+            } else if (dropOnEnqueue(now)) {
+                drop(val, consumer);
+            } else {
+                normalQueue.offer(val, now);
+            }
+            return;
+        }
+        // if the target is not prioritized, and we don't have space, discard it
+        // if we have drained the normal queue, discard the prioritized data
+        if (!prioritized || normalQueue.size() == 0) {
+            consumer.accept(val);
+            return;
+        }
+        consumer.accept(normalQueue.pollLast());
+        priorityQueue.offer(val, now);
+    }
+
+    @Override
+    public T deQueue() {
+        return deQueue(IGNORE);
+    }
+
+    @Override
+    public T deQueue(Consumer<? super T> consumer) {
+        long now = Timeline.nowInUs();
+        if (priorityQueue.size() == 0) {
+            return deQueueNormal(now, consumer);
+        }
+        T ret = priorityQueue.poll();
+        if (getSize() == 0) {
+            emptySinceInUs = now;
+        }
+        return ret;
+    }
+
+    @Override
+    public void clear(Consumer<? super T> consumer) {
+        stream().forEach(consumer);
+        clear();
+    }
+
+    @Override
+    public void clear() {
+        priorityQueue.clear();
+        normalQueue.clear();
+        emptySinceInUs = Timeline.nowInUs();
+    }
+
+    @Override
+    public int getSize() {
+        return priorityQueue.size() + normalQueue.size();
+    }
+
+    public int getNormalSize() {
+        return normalQueue.size();
+    }
+
+    @Override
+    public Stream<T> stream() {
+        return Stream.concat(priorityQueue.stream(), normalQueue.stream());
+    }
+
+    public int getCapacityInItems() {
+        return capacityInItems;
+    }
+
+    /**
+     * Gets the time the queue became empty.
+     *
+     * @return the time, Long.MIN_VALUE if the queue was never emptied
+     */
+    public long getEmptySinceInUs() {
+        return emptySinceInUs;
+    }
+
+    /**
+     * Gets the sojourn time of the last normal data retrieved or dropped at
+     * the head.
+     *
+     * @return the sojourn time
+     */
+    public long getLastSojournInUs() {
+        return lastSojournInUs;
+    }
+
+    /**
+     * Gets the number of data dropped by the algorithm, not including the
+     * data dropped when the queue is full.
+     *
+     * @return the number of data
+     */
+    public long getEarlyDropCount() {
+        return earlyDropCount;
+    }
+}
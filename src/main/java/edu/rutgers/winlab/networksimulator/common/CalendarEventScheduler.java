@@ -0,0 +1,228 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.util.Arrays;
+
+/**
+ * Event scheduler using a calendar queue (R. Brown, 1988). O(1) amortized
+ * for add and poll when the bucket width matches the event density.
+ *
+ * The events are hashed by time into buckets of a fixed width, each bucket is
+ * a sorted linked list. The number of buckets doubles (halves) when the queue
+ * grows (shrinks), and the bucket width is re-estimated from the earliest
+ * events at the same time.
+ *
+ * @author Jiachen Chen
+ */
+public class CalendarEventScheduler implements EventScheduler {
+
+    private static final int MIN_BUCKETS = 16;
+    private static final int SAMPLE_SIZE = 25;
+    private static final long DEFAULT_WIDTH = Timeline.MS;
+
+    private TimelineEvent[] heads, tails;
+    private int mask;
+    private long width;
+    private int size = 0;
+    // the bucket to start searching from, and the start time of its current window
+    // invariant: all the events in the queue are not earlier than bucketStart
+    private int current = 0;
+    private long bucketStart = 0;
+    private boolean resizeEnabled = true;
+
+    public CalendarEventScheduler() {
+        this(MIN_BUCKETS, DEFAULT_WIDTH);
+    }
+
+    public CalendarEventScheduler(int initialBuckets, long initialWidthInUs) {
+        if (initialWidthInUs <= 0) {
+            throw new IllegalArgumentException("Bucket width should be > 0, width=" + initialWidthInUs);
+        }
+        init(Math.max(MIN_BUCKETS, Integer.highestOneBit(Math.max(1, initialBuckets - 1)) << 1), initialWidthInUs);
+    }
+
+    private void init(int buckets, long width) {
+        heads = new TimelineEvent[buckets];
+        tails = new TimelineEvent[buckets];
+        mask = buckets - 1;
+        this.width = width;
+        size = 0;
+    }
+
+    public int getBucketCount() {
+        return heads.length;
+    }
+
+    public long getBucketWidthInUs() {
+        return width;
+    }
+
+    private int bucketOf(long timeInUs) {
+        return (int) (Math.floorDiv(timeInUs, width) & mask);
+    }
+
+    private void moveTo(long timeInUs) {
+        current = bucketOf(timeInUs);
+        bucketStart = timeInUs - Math.floorMod(timeInUs, width);
+    }
+
+    @Override
+    public void add(TimelineEvent e) {
+        if (size == 0 || e.timeInUs < bucketStart) {
+            moveTo(e.timeInUs);
+        }
+        insert(e);
+        if (resizeEnabled && size > 2 * heads.length) {
+            resize(heads.length * 2);
+        }
+    }
+
+    private void insert(TimelineEvent e) {
+        int i = bucketOf(e.timeInUs);
+        TimelineEvent tail = tails[i];
+        size++;
+        if (tail == null) {
+            e.next = null;
+            heads[i] = tails[i] = e;
+            return;
+        }
+        // most of the events are appended (same time, larger serial)
+        if (e.compareTo(tail) >= 0) {
+            e.next = null;
+            tail.next = e;
+            tails[i] = e;
+            return;
+        }
+        TimelineEvent p = heads[i];
+        if (e.compareTo(p) < 0) {
+            e.next = p;
+            heads[i] = e;
+            return;
+        }
+        while (p.next.compareTo(e) < 0) {
+            p = p.next;
+        }
+        e.next = p.next;
+        p.next = e;
+    }
+
+    // find the earliest event, and move the current bucket to it.
+    private TimelineEvent locate() {
+        if (size == 0) {
+            return null;
+        }
+        int i = current;
+        long start = bucketStart;
+        for (int n = 0; n <= mask; n++) {
+            TimelineEvent h = heads[i];
+            if (h != null && h.timeInUs - start < width) {
+                current = i;
+                bucketStart = start;
+                return h;
+            }
+            i = (i + 1) & mask;
+            start += width;
+        }
+        // a whole year without event, search directly
+        TimelineEvent min = null;
+        for (TimelineEvent h : heads) {
+            if (h != null && (min == null || h.compareTo(min) < 0)) {
+                min = h;
+            }
+        }
+        moveTo(min.timeInUs);
+        return min;
+    }
+
+    private TimelineEvent removeFirst() {
+        TimelineEvent h = locate();
+        if (h == null) {
+            return null;
+        }
+        if ((heads[current] = h.next) == null) {
+            tails[current] = null;
+        }
+        h.next = null;
+        size--;
+        return h;
+    }
+
+    @Override
+    public TimelineEvent poll() {
+        TimelineEvent h = removeFirst();
+        if (resizeEnabled && heads.length > MIN_BUCKETS && size < heads.length / 2) {
+            resize(heads.length / 2);
+        }
+        return h;
+    }
+
+    @Override
+    public TimelineEvent peek() {
+        return locate();
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(heads, null);
+        Arrays.fill(tails, null);
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private void resize(int newBuckets) {
+        resizeEnabled = false;
+        // the earliest events are used to estimate the new width
+        TimelineEvent[] sample = new TimelineEvent[Math.min(size, SAMPLE_SIZE)];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = removeFirst();
+        }
+        long newWidth = estimateWidth(sample);
+        TimelineEvent[] oldHeads = heads;
+        init(newBuckets, newWidth);
+        for (TimelineEvent e : sample) {
+            insert(e);
+        }
+        // keep the order inside each old bucket, so that events with the same time are appended
+        for (TimelineEvent h : oldHeads) {
+            while (h != null) {
+                TimelineEvent next = h.next;
+                insert(h);
+                h = next;
+            }
+        }
+        if (sample.length > 0) {
+            moveTo(sample[0].timeInUs);
+        }
+        resizeEnabled = true;
+    }
+
+    private long estimateWidth(TimelineEvent[] sample) {
+        long total = 0;
+        int count = 0;
+        for (int i = 1; i < sample.length; i++) {
+            long sep = sample[i].timeInUs - sample[i - 1].timeInUs;
+            if (sep > 0) {
+                total += sep;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return width;
+        }
+        // ignore the separations that are too large
+        long avg = total / count;
+        total = 0;
+        count = 0;
+        for (int i = 1; i < sample.length; i++) {
+            long sep = sample[i].timeInUs - sample[i - 1].timeInUs;
+            if (sep > 0 && sep <= 2 * avg) {
+                total += sep;
+                count++;
+            }
+        }
+        return count == 0 ? Math.max(1, 3 * avg) : Math.max(1, 3 * total / count);
+    }
+}
@@ -0,0 +1,113 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.util.function.Consumer;
+
+/**
+ * Controlled delay (RFC 8289). When the sojourn time of the normal data stays
+ * above the target for an interval, the queue enters the dropping state and
+ * drops the data at the head, with the interval between the drops shrinking
+ * with the square root of the number of drops, until the sojourn time falls
+ * below the target. The data is not dropped if at most one data is left in
+ * the queue.
+ *
+ * @author Jiachen Chen
+ * @param <T>
+ */
+public class CoDelQueue<T> extends ActiveQueue<T> {
+
+    public static final long DEFAULT_TARGET_IN_US = 5 * Timeline.MS;
+    public static final long DEFAULT_INTERVAL_IN_US = 100 * Timeline.MS;
+
+    private final long targetInUs, intervalInUs;
+    private long firstAboveTimeInUs = 0, dropNextInUs = 0;
+    private int count = 0, lastCount = 0;
+    private boolean dropping = false;
+    // set by the last pollHead, if the sojourn time stays above the target for an interval
+    private boolean okToDrop = false;
+
+    public CoDelQueue(int capacityInItems) {
+        this(capacityInItems, DEFAULT_TARGET_IN_US, DEFAULT_INTERVAL_IN_US);
+    }
+
+    /**
+     * Creates a queue.
+     *
+     * @param capacityInItems the maximum number of items
+     * @param targetInUs the acceptable standing sojourn time
+     * @param intervalInUs the time the sojourn time may stay above the target
+     */
+    public CoDelQueue(int capacityInItems, long targetInUs, long intervalInUs) {
+        super(capacityInItems, 0);
+        if (targetInUs <= 0 || intervalInUs <= 0) {
+            throw new IllegalArgumentException(String.format("Should be > 0, target=%d, interval=%d", targetInUs, intervalInUs));
+        }
+        this.targetInUs = targetInUs;
+        this.intervalInUs = intervalInUs;
+    }
+
+    // dodequeue in RFC 8289
+    private T pollHead(long nowInUs) {
+        T ret = pollNormal(nowInUs);
+        okToDrop = false;
+        if (ret == null) {
+            firstAboveTimeInUs = 0;
+        } else if (getLastSojournInUs() < targetInUs || getNormalSize() <= 1) {
+            firstAboveTimeInUs = 0;
+        } else if (firstAboveTimeInUs == 0) {
+            firstAboveTimeInUs = nowInUs + intervalInUs;
+        } else if (nowInUs >= firstAboveTimeInUs) {
+            okToDrop = true;
+        }
+        return ret;
+    }
+
+    private long controlLaw(long timeInUs) {
+        return timeInUs + (long) (intervalInUs / Math.sqrt(count));
+    }
+
+    @Override
+    protected T deQueueNormal(long nowInUs, Consumer<? super T> consumer) {
+        T ret = pollHead(nowInUs);
+        if (ret == null) {
+            dropping = false;
+            return null;
+        }
+        if (dropping) {
+            if (!okToDrop) {
+                dropping = false;
+            }
+            while (dropping && nowInUs >= dropNextInUs) {
+                drop(ret, consumer);
+                count++;
+                ret = pollHead(nowInUs);
+                if (ret == null || !okToDrop) {
+                    dropping = false;
+                } else {
+                    dropNextInUs = controlLaw(dropNextInUs);
+                }
+            }
+        } else if (okToDrop) {
+            drop(ret, consumer);
+            ret = pollHead(nowInUs);
+            dropping = true;
+            // restart from the previous drop rate if the dropping state was left recently
+            int delta = count - lastCount;
+            count = delta > 1 && nowInUs - dropNextInUs < 16 * intervalInUs ? delta : 1;
+            dropNextInUs = controlLaw(nowInUs);
+            lastCount = count;
+        }
+        return ret;
+    }
+
+    public boolean isDropping() {
+        return dropping;
+    }
+
+    public long getTargetInUs() {
+        return targetInUs;
+    }
+
+    public long getIntervalInUs() {
+        return intervalInUs;
+    }
+}
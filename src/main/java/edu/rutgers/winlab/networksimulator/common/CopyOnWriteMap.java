@@ -0,0 +1,135 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+/**
+ * A hash map that can be shared by the forks of a simulation (see
+ * {@link #share()}). The shared entries are copied when one of the sharers
+ * modifies the map for the first time, so that a large read-mostly table costs
+ * memory only once until the forks diverge.
+ *
+ * The keys and values of a shared map should not reference the nodes of a
+ * simulation, since the nodes are different in each fork. Mutable values are
+ * copied with the value copier, and should only be modified through
+ * {@link #getForUpdate(java.lang.Object)}.
+ *
+ * @author Jiachen Chen
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class CopyOnWriteMap<K, V> implements Serializable {
+
+    private final UnaryOperator<V> valueCopier;
+    private HashMap<K, V> map;
+    // true if the map may be used by another sharer, always false when restored
+    private transient boolean shared = false;
+
+    /**
+     * Creates a map with immutable values.
+     */
+    public CopyOnWriteMap() {
+        this((UnaryOperator<V> & Serializable) v -> v);
+    }
+
+    /**
+     * Creates a map.
+     *
+     * @param valueCopier copies a mutable value, should be serializable
+     */
+    public CopyOnWriteMap(UnaryOperator<V> valueCopier) {
+        this(valueCopier, new HashMap<>());
+    }
+
+    private CopyOnWriteMap(UnaryOperator<V> valueCopier, HashMap<K, V> map) {
+        this.valueCopier = valueCopier;
+        this.map = map;
+    }
+
+    /**
+     * Creates a map that shares the entries with this map. Both maps copy the
+     * entries before they are modified.
+     *
+     * @return the new map
+     */
+    public CopyOnWriteMap<K, V> share() {
+        shared = true;
+        CopyOnWriteMap<K, V> ret = new CopyOnWriteMap<>(valueCopier, map);
+        ret.shared = true;
+        return ret;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    private HashMap<K, V> forWrite() {
+        if (shared) {
+            HashMap<K, V> copy = new HashMap<>((int) (map.size() / 0.75f) + 1);
+            map.forEach((k, v) -> copy.put(k, valueCopier.apply(v)));
+            map = copy;
+            shared = false;
+        }
+        return map;
+    }
+
+    public V get(K key) {
+        return map.get(key);
+    }
+
+    /**
+     * Gets a value that is going to be modified.
+     *
+     * @param key the key
+     * @return the value, owned by this map, null if the key is not found.
+     */
+    public V getForUpdate(K key) {
+        return forWrite().get(key);
+    }
+
+    public boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public V put(K key, V value) {
+        return forWrite().put(key, value);
+    }
+
+    public V putIfAbsent(K key, V value) {
+        return forWrite().putIfAbsent(key, value);
+    }
+
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        return forWrite().computeIfAbsent(key, mappingFunction);
+    }
+
+    public V remove(K key) {
+        return shared && !map.containsKey(key) ? null : forWrite().remove(key);
+    }
+
+    public void clear() {
+        if (shared) {
+            map = new HashMap<>();
+            shared = false;
+        } else {
+            map.clear();
+        }
+    }
+
+    public void forEach(BiConsumer<? super K, ? super V> consumer) {
+        map.forEach(consumer);
+    }
+
+    public Stream<Entry<K, V>> entryStream() {
+        return map.entrySet().stream();
+    }
+}
@@ -1,11 +1,13 @@
 package edu.rutgers.winlab.networksimulator.common;
 
+import java.io.Serializable;
+
 /**
  * Represents any data that can be transmitted in the network.
  *
  * @author Jiachen Chen
  */
-public interface Data {
+public interface Data extends Serializable {
 
     public static int BIT = 1;
     public static int K_BIT = 1000 * BIT;
@@ -14,5 +16,16 @@ public interface Data {
     public static int K_BYTE = 1024 * BYTE;
     public static int M_BYTE = 1024 * K_BYTE;
 
+    public static int UNTYPED = -1;
+
     public int getSizeInBits();
+
+    /**
+     * Gets the type of the data, e.g., to count the dropped data by type.
+     *
+     * @return the type, {@link #UNTYPED} if the data has no type
+     */
+    public default int getType() {
+        return UNTYPED;
+    }
 }
@@ -0,0 +1,121 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.io.Serializable;
+import java.lang.invoke.SerializedLambda;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Running hash over the events executed by a {@link Timeline} (see
+ * {@link Timeline#setDigest(EventDigest)}), to verify that two runs (e.g.,
+ * with different schedulers or in parallel) execute the same events in the
+ * same order.
+ *
+ * Each event is hashed from its time, the type of its handler, its value and
+ * the key of its payload (the first parameter of a consumer event). The
+ * serials are not included, since a parallel run numbers the events
+ * differently. The type of a handler is named so that it does not depend on
+ * the class loading order: a serializable lambda or method reference (e.g.,
+ * an {@link EventHandler}) by its implementation method, another lambda (e.g.,
+ * the consumer of {@link Timeline#schedule(long, java.util.function.Consumer, Object...)})
+ * by the class that defines it, and a class by its name.
+ *
+ * @author Jiachen Chen
+ */
+public class EventDigest {
+
+    // the hash of the name of each handler type, see getTypeName(Object)
+    private static final ConcurrentHashMap<Class<?>, Long> TYPE_HASHES = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the name of the type of a handler, see {@link EventDigest}.
+     *
+     * @param handler the event handler or consumer
+     * @return the name of the type
+     */
+    public static String getTypeName(Object handler) {
+        Class<?> type = handler.getClass();
+        String name = type.getName();
+        int lambda = name.indexOf("$$Lambda");
+        if (lambda < 0) {
+            return name;
+        }
+        if (handler instanceof Serializable) {
+            try {
+                Method writeReplace = type.getDeclaredMethod("writeReplace");
+                writeReplace.setAccessible(true);
+                SerializedLambda l = (SerializedLambda) writeReplace.invoke(handler);
+                return l.getImplClass().replace('/', '.') + "::" + l.getImplMethodName() + l.getImplMethodSignature();
+            } catch (ReflectiveOperationException | ClassCastException | SecurityException ex) {
+                // named by the class that defines it
+            }
+        }
+        return name.substring(0, lambda);
+    }
+
+    /**
+     * Mixes the bits of a value (the finalizer of MurmurHash3).
+     *
+     * @param x the value
+     * @return the mixed value
+     */
+    public static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    private final ToLongFunction<Object> keyFunction;
+    private long value = 0;
+    private long count = 0;
+
+    public EventDigest() {
+        this(p -> 0);
+    }
+
+    /**
+     * Creates a digest.
+     *
+     * @param keyFunction gets the key of a payload (may be null), should be
+     * thread safe in parallel runs.
+     */
+    public EventDigest(ToLongFunction<Object> keyFunction) {
+        this.keyFunction = keyFunction;
+    }
+
+    // the hash of an event, called before the event is executed
+    long hash(TimelineEvent e) {
+        long h = mix(e.timeInUs);
+        Object handler = e.getHandler();
+        h = mix(h + TYPE_HASHES.computeIfAbsent(handler.getClass(), c -> mix(getTypeName(handler).hashCode())));
+        h = mix(h + e.value);
+        return mix(h + keyFunction.applyAsLong(e.getPayload()));
+    }
+
+    // adds the hash of the next event in the execution order
+    void add(long eventHash) {
+        value = mix(value * 31 + eventHash);
+        count++;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void reset() {
+        value = count = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x/%d", value, count);
+    }
+}
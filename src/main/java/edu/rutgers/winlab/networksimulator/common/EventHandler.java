@@ -0,0 +1,42 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.io.Serializable;
+
+/**
+ * Handles an event with a typed payload and a long value. The handlers are
+ * usually created once and reused, so that scheduling an event does not
+ * allocate.
+ *
+ * @author Jiachen Chen
+ * @param <T> the type of the payload
+ */
+@FunctionalInterface
+public interface EventHandler<T> extends Serializable {
+
+    public void handle(T payload, long value);
+
+    /**
+     * Gets the category of an event, the events of a handler are profiled by
+     * category (see {@link EventProfiler}), so that, e.g., the work on
+     * different types of packets are not merged.
+     *
+     * @param payload the payload of the event
+     * @return the category, the class of the payload by default, null if the
+     * payload is null
+     */
+    public default Object category(T payload) {
+        return payload == null ? null : payload.getClass();
+    }
+
+    /**
+     * Gets the owner of an event, e.g., the node or the link that handles it,
+     * reported by {@link EventWatchdog}. A handler bound to an owner should
+     * override this method.
+     *
+     * @param payload the payload of the event
+     * @return the owner of the payload if it is {@link Owned}, otherwise null
+     */
+    public default Object owner(T payload) {
+        return payload instanceof Owned ? ((Owned) payload).getOwner() : null;
+    }
+}
@@ -0,0 +1,215 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads an event log written by {@link EventRecorder}. The records are
+ * accessed by index without loading the file, and can be located by time with
+ * binary search, since the events are recorded in time order.
+ *
+ * @author Jiachen Chen
+ */
+public class EventLog implements Closeable {
+
+    /**
+     * A record in the log.
+     */
+    public static final class Entry {
+
+        private final long index;
+        private final long timeInUs;
+        private final long serial;
+        private final long value;
+        private final int handlerId;
+        private final int payloadId;
+
+        private Entry(long index, long timeInUs, long serial, long value, int handlerId, int payloadId) {
+            this.index = index;
+            this.timeInUs = timeInUs;
+            this.serial = serial;
+            this.value = value;
+            this.handlerId = handlerId;
+            this.payloadId = payloadId;
+        }
+
+        public long getIndex() {
+            return index;
+        }
+
+        public long getTimeInUs() {
+            return timeInUs;
+        }
+
+        public long getSerial() {
+            return serial;
+        }
+
+        public long getValue() {
+            return value;
+        }
+
+        public int getHandlerId() {
+            return handlerId;
+        }
+
+        public int getPayloadId() {
+            return payloadId;
+        }
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] regions;
+    private final List<String> handlers;
+    private final long count;
+
+    public EventLog(Path file) {
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, EventRecorder.HEADER_SIZE);
+            if (header.getInt(0) != EventRecorder.MAGIC || header.getInt(4) != EventRecorder.VERSION) {
+                throw new IllegalArgumentException(String.format("%s is not an event log of version %d", file, EventRecorder.VERSION));
+            }
+            handlers = Files.readAllLines(file.resolveSibling(file.getFileName() + EventRecorder.HANDLERS_SUFFIX), StandardCharsets.UTF_8);
+            long recorded = header.getLong(8);
+            long capacity = (channel.size() - EventRecorder.HEADER_SIZE) / EventRecorder.RECORD_SIZE;
+            // the recorder was not closed, the count in the header covers the full regions.
+            // otherwise, the tail of the last region is empty
+            count = capacity > recorded ? findEnd(recorded, capacity) : recorded;
+            long bytes = count * EventRecorder.RECORD_SIZE;
+            regions = new MappedByteBuffer[(int) ((bytes + EventRecorder.REGION_SIZE - 1) / EventRecorder.REGION_SIZE)];
+            for (int i = 0; i < regions.length; i++) {
+                long start = (long) i * EventRecorder.REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, EventRecorder.HEADER_SIZE + start,
+                        Math.min(EventRecorder.REGION_SIZE, bytes - start));
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // the records are written in order, the end is the first empty record in the zero-filled tail
+    private long findEnd(long recorded, long capacity) throws IOException {
+        // only the first record can be all zeros (serial 0), it was written if a handler was
+        long low = Math.max(recorded, 1), high = capacity;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (isEmpty(mid)) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low == 1 && recorded == 0 && isEmpty(0) && handlers.isEmpty() ? 0 : low;
+    }
+
+    private boolean isEmpty(long index) throws IOException {
+        MappedByteBuffer record = channel.map(FileChannel.MapMode.READ_ONLY,
+                EventRecorder.HEADER_SIZE + index * EventRecorder.RECORD_SIZE, EventRecorder.RECORD_SIZE);
+        for (int i = 0; i < EventRecorder.RECORD_SIZE; i += 8) {
+            if (record.getLong(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long size() {
+        return count;
+    }
+
+    public String getHandlerName(int handlerId) {
+        return handlers.get(handlerId);
+    }
+
+    public int getHandlerCount() {
+        return handlers.size();
+    }
+
+    private MappedByteBuffer region(long index) {
+        return regions[(int) (index * EventRecorder.RECORD_SIZE / EventRecorder.REGION_SIZE)];
+    }
+
+    private int offset(long index) {
+        return (int) (index * EventRecorder.RECORD_SIZE % EventRecorder.REGION_SIZE);
+    }
+
+    public long getTimeInUs(long index) {
+        return region(index).getLong(offset(index));
+    }
+
+    public Entry get(long index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException(String.format("Index should be in [0, %d), index=%d", count, index));
+        }
+        MappedByteBuffer region = region(index);
+        int offset = offset(index);
+        return new Entry(index, region.getLong(offset), region.getLong(offset + 8), region.getLong(offset + 16),
+                region.getInt(offset + 24), region.getInt(offset + 28));
+    }
+
+    /**
+     * Finds the first record not earlier than the time.
+     *
+     * @param timeInUs the time
+     * @return the index of the record, {@link #size()} if all the records are
+     * earlier than the time.
+     */
+    public long seek(long timeInUs) {
+        long low = 0, high = count;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (getTimeInUs(mid) < timeInUs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Visits the records in the time range.
+     *
+     * @param fromInUs the start of the range (inclusive)
+     * @param toInUs the end of the range (exclusive)
+     * @param consumer the consumer of the records
+     */
+    public void forEach(long fromInUs, long toInUs, Consumer<? super Entry> consumer) {
+        for (long i = seek(fromInUs); i < count && getTimeInUs(i) < toInUs; i++) {
+            consumer.accept(get(i));
+        }
+    }
+
+    /**
+     * Writes the records in the time range as a tab separated table.
+     *
+     * @param fromInUs the start of the range (inclusive)
+     * @param toInUs the end of the range (exclusive)
+     * @param ps the stream to write to
+     */
+    public void writeTable(long fromInUs, long toInUs, PrintStream ps) {
+        ps.println("Index\tTime\tSerial\tHandler\tPayload\tValue");
+        forEach(fromInUs, toInUs, e -> ps.printf("%d\t%d\t%d\t%s\t%d\t%d%n", e.index, e.timeInUs, e.serial,
+                getHandlerName(e.handlerId), e.payloadId, e.value));
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
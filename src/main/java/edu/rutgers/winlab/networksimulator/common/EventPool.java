@@ -0,0 +1,45 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+/**
+ * Recycles the executed {@link TimelineEvent}s that are not returned to the
+ * caller. Not thread safe, each time line (partition) has its own pool.
+ *
+ * @author Jiachen Chen
+ */
+final class EventPool {
+
+    // keeps at most this number of free events after a burst
+    private static final int MAX_SIZE = 1 << 14;
+
+    private TimelineEvent head = null;
+    private int size = 0;
+
+    private TimelineEvent get() {
+        TimelineEvent e = head;
+        if (e == null) {
+            e = new TimelineEvent();
+            e.recyclable = true;
+            return e;
+        }
+        head = e.next;
+        e.next = null;
+        size--;
+        return e;
+    }
+
+    <T> TimelineEvent get(long serial, long timeInUs, EventHandler<? super T> handler, T payload, long value) {
+        return get().set(serial, timeInUs, handler, payload, value);
+    }
+
+    void recycle(TimelineEvent e) {
+        if (!e.recyclable) {
+            return;
+        }
+        e.clear();
+        if (size < MAX_SIZE) {
+            e.next = head;
+            head = e;
+            size++;
+        }
+    }
+}
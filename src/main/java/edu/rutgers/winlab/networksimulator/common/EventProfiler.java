@@ -0,0 +1,208 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Profiles the events executed by a {@link Timeline} (see
+ * {@link Timeline#setProfiler(EventProfiler)}), grouped by the class of the
+ * event handler and the category of the event
+ * ({@link EventHandler#category(Object)}, the class of the payload by
+ * default). Each lambda or method reference in the code has its own class,
+ * named after the class that defines it.
+ *
+ * All the events are counted. The wall clock time is measured on one out of
+ * every 2^k events and scaled by the event counts, so that the profiler is
+ * cheap enough to be left on. The peak number of pending events is checked
+ * after each event.
+ *
+ * @author Jiachen Chen
+ */
+public class EventProfiler {
+
+    /**
+     * The statistics of the events with the same handler class and category.
+     */
+    public static final class HandlerProfile {
+
+        private final Class<?> handlerClass;
+        private final Object category;
+        private long count = 0;
+        private long sampledCount = 0;
+        private long sampledNanos = 0;
+
+        private HandlerProfile(Class<?> handlerClass, Object category) {
+            this.handlerClass = handlerClass;
+            this.category = category;
+        }
+
+        public Class<?> getHandlerClass() {
+            return handlerClass;
+        }
+
+        public Object getCategory() {
+            return category;
+        }
+
+        /**
+         * Gets the name of the handler, the class name without the package and
+         * the hidden class suffix, followed by the category in brackets, if
+         * any.
+         *
+         * @return the name of the handler
+         */
+        public String getName() {
+            String name = handlerName(handlerClass);
+            if (category == null) {
+                return name;
+            }
+            return name + "[" + (category instanceof Class ? handlerName((Class<?>) category) : category) + "]";
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSampledCount() {
+            return sampledCount;
+        }
+
+        /**
+         * Gets the estimated wall clock time spent in the handler.
+         *
+         * @return the estimated time in nanoseconds, 0 if no event is sampled.
+         */
+        public long getEstimatedNanos() {
+            return sampledCount == 0 ? 0 : (long) ((double) sampledNanos * count / sampledCount);
+        }
+    }
+
+    // the class name without the package and the hidden class suffix
+    static String handlerName(Class<?> handlerClass) {
+        String name = handlerClass.getName();
+        int slash = name.indexOf('/');
+        if (slash >= 0) {
+            name = name.substring(0, slash);
+        }
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    // handler class -> category -> profile
+    private final HashMap<Class<?>, HashMap<Object, HandlerProfile>> profiles = new HashMap<>();
+    private final long sampleMask;
+    private long events = 0;
+    private long firstTimeInUs = Long.MIN_VALUE, lastTimeInUs = Long.MIN_VALUE;
+    private int peakPending = 0;
+    // the handlers and categories of consecutive events are usually the same
+    private HandlerProfile last = null;
+
+    /**
+     * Creates a profiler that measures one out of every 16 events.
+     */
+    public EventProfiler() {
+        this(4);
+    }
+
+    /**
+     * Creates a profiler.
+     *
+     * @param sampleBits measures one out of every 2^sampleBits events, 0 to
+     * measure all the events.
+     */
+    public EventProfiler(int sampleBits) {
+        if (sampleBits < 0 || sampleBits > 30) {
+            throw new IllegalArgumentException("Sample bits should be in [0, 30], bits=" + sampleBits);
+        }
+        this.sampleMask = (1L << sampleBits) - 1;
+    }
+
+    // returns true if the execution of the event should be timed
+    boolean beforeEvent(long timeInUs) {
+        if (firstTimeInUs == Long.MIN_VALUE) {
+            firstTimeInUs = timeInUs;
+        }
+        lastTimeInUs = timeInUs;
+        return (events++ & sampleMask) == 0;
+    }
+
+    void afterEvent(Class<?> handlerClass, Object category, long nanos, int pending) {
+        HandlerProfile p = last;
+        if (p == null || p.handlerClass != handlerClass || !Objects.equals(p.category, category)) {
+            p = last = profiles.computeIfAbsent(handlerClass, c -> new HashMap<>())
+                    .computeIfAbsent(category, c -> new HandlerProfile(handlerClass, c));
+        }
+        p.count++;
+        if (nanos >= 0) {
+            p.sampledCount++;
+            p.sampledNanos += nanos;
+        }
+        if (pending > peakPending) {
+            peakPending = pending;
+        }
+    }
+
+    public long getEventCount() {
+        return events;
+    }
+
+    public int getPeakPending() {
+        return peakPending;
+    }
+
+    /**
+     * Gets the simulated time between the first and the last profiled events.
+     *
+     * @return the simulated time in us, 0 if no event is profiled.
+     */
+    public long getSimulatedTimeInUs() {
+        return events == 0 ? 0 : lastTimeInUs - firstTimeInUs;
+    }
+
+    public void forEachHandler(Consumer<? super HandlerProfile> consumer) {
+        profiles.values().forEach(m -> m.values().forEach(consumer));
+    }
+
+    public Stream<HandlerProfile> handlerStream() {
+        return profiles.values().stream().flatMap(m -> m.values().stream());
+    }
+
+    /**
+     * Writes the statistics as a tab separated table, sorted by the estimated
+     * time. The events per simulated second are not available if all the
+     * events happen at the same time.
+     *
+     * @param ps the stream to write to
+     */
+    public void writeTable(PrintStream ps) {
+        long simulated = getSimulatedTimeInUs();
+        ps.println("Handler\tEvents\tSampled\tEstimatedMs\tEventsPerSimSecond");
+        ArrayList<HandlerProfile> sorted = new ArrayList<>();
+        forEachHandler(sorted::add);
+        sorted.sort(Comparator.comparingLong(HandlerProfile::getEstimatedNanos).reversed()
+                .thenComparing(HandlerProfile::getName));
+        sorted.forEach(p -> ps.printf("%s\t%d\t%d\t%.3f\t%s%n", p.getName(), p.count, p.sampledCount,
+                p.getEstimatedNanos() / 1e6, eventsPerSecond(p.count, simulated)));
+        ps.printf("Total\t%d\t\t\t%s%n", events, eventsPerSecond(events, simulated));
+        ps.printf("PeakPending\t%d%n", peakPending);
+    }
+
+    private static String eventsPerSecond(long count, long simulatedInUs) {
+        return simulatedInUs == 0 ? "-" : String.format("%.1f", (double) count * Timeline.SECOND / simulatedInUs);
+    }
+
+    /**
+     * Clears the statistics.
+     */
+    public void reset() {
+        profiles.clear();
+        last = null;
+        events = 0;
+        firstTimeInUs = lastTimeInUs = Long.MIN_VALUE;
+        peakPending = 0;
+    }
+}
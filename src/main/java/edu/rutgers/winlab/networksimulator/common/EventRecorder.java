@@ -0,0 +1,132 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.function.ToIntFunction;
+
+/**
+ * Records the events executed by a {@link Timeline} (see
+ * {@link Timeline#setRecorder(EventRecorder)}) into a memory-mapped
+ * append-only file, which can be read with {@link EventLog}.
+ *
+ * The file starts with a header of {@link #HEADER_SIZE} bytes (magic,
+ * version, record count), followed by records of {@link #RECORD_SIZE} bytes:
+ * time, serial, value (longs), handler id and payload id (ints). The handler
+ * ids are the indexes of the handler class names in a text file next to the
+ * log (with suffix {@link #HANDLERS_SUFFIX}). The payload id is extracted from
+ * the payload of a typed event or the first parameter of a consumer event,
+ * -1 by default.
+ *
+ * The record count in the header is written when a region is full and when
+ * the recorder is closed. The file is not truncated (it is still mapped), the
+ * tail of the last region is zero-filled. If the recorder is not closed (e.g.,
+ * the process is killed), {@link EventLog} finds the end of the records in the
+ * last region.
+ *
+ * @author Jiachen Chen
+ */
+public class EventRecorder implements Closeable {
+
+    public static final int MAGIC = 0x544c4552;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 32;
+    public static final String HANDLERS_SUFFIX = ".handlers";
+    // the size of a mapped region, a multiple of the record size
+    static final int REGION_SIZE = RECORD_SIZE << 21;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final PrintStream handlers;
+    private final ToIntFunction<Object> payloadId;
+    private final HashMap<Class<?>, Integer> handlerIds = new HashMap<>();
+    private Class<?> lastClass = null;
+    private int lastId = -1;
+    private MappedByteBuffer region;
+    private long regionStart = HEADER_SIZE;
+    private long count = 0;
+
+    public EventRecorder(Path file) {
+        this(file, p -> -1);
+    }
+
+    /**
+     * Creates a recorder, the file is overwritten.
+     *
+     * @param file the log file
+     * @param payloadId extracts the id of a payload (may be null)
+     */
+    public EventRecorder(Path file, ToIntFunction<Object> payloadId) {
+        this.payloadId = payloadId;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            handlers = new PrintStream(file.resolveSibling(file.getFileName() + HANDLERS_SUFFIX).toFile(), "UTF-8");
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putLong(8, 0);
+            region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, REGION_SIZE);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    void record(TimelineEvent e) {
+        int offset = (int) (count * RECORD_SIZE - (regionStart - HEADER_SIZE));
+        if (offset == REGION_SIZE) {
+            regionStart += REGION_SIZE;
+            offset = 0;
+            // the full regions survive a crash
+            header.putLong(8, count);
+            try {
+                region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, REGION_SIZE);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        Class<?> handlerClass = e.getHandlerClass();
+        if (handlerClass != lastClass) {
+            lastClass = handlerClass;
+            lastId = handlerIds.computeIfAbsent(handlerClass, c -> {
+                handlers.println(c.getName());
+                handlers.flush();
+                return handlerIds.size();
+            });
+        }
+        region.putLong(offset, e.timeInUs);
+        region.putLong(offset + 8, e.serial);
+        region.putLong(offset + 16, e.value);
+        region.putInt(offset + 24, lastId);
+        region.putInt(offset + 28, payloadId.applyAsInt(e.getPayload()));
+        count++;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Writes the record count, and flushes the records to the file.
+     */
+    @Override
+    public void close() {
+        try {
+            region.force();
+            header.putLong(8, count);
+            header.force();
+            channel.close();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } finally {
+            handlers.close();
+        }
+    }
+}
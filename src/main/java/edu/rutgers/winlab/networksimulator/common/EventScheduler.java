@@ -0,0 +1,46 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.io.Serializable;
+
+/**
+ * The pending event set of a {@link Timeline}. Implementations must return
+ * the events in the order of {@link TimelineEvent#compareTo(TimelineEvent)},
+ * i.e., by time, and by serial when the time is the same.
+ *
+ * @author Jiachen Chen
+ */
+public interface EventScheduler extends Serializable {
+
+    /**
+     * Adds an event into the scheduler.
+     *
+     * @param e the event to be added
+     */
+    public void add(TimelineEvent e);
+
+    /**
+     * Retrieves and removes the earliest event.
+     *
+     * @return the earliest event, null if the scheduler is empty.
+     */
+    public TimelineEvent poll();
+
+    /**
+     * Retrieves the earliest event without removing it.
+     *
+     * @return the earliest event, null if the scheduler is empty.
+     */
+    public TimelineEvent peek();
+
+    /**
+     * Removes all the events in the scheduler.
+     */
+    public void clear();
+
+    /**
+     * Gets the number of events in the scheduler.
+     *
+     * @return the number of pending events.
+     */
+    public int size();
+}
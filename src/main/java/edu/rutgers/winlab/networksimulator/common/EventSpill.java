@@ -0,0 +1,468 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+/**
+ * Keeps the far-future events of a {@link Timeline} on disk (see
+ * {@link Timeline#setSpill(EventSpill)}), so that the heap holds only the
+ * events in the near future.
+ *
+ * The typed events (see
+ * {@link Timeline#schedule(long, EventHandler, Object, long)}) later than a
+ * horizon from now are collected in a buffer. A full buffer is sorted and
+ * written into a run file, which is memory-mapped and read back in order.
+ * When the time line approaches the events in the runs, they are merged back
+ * into the time line with their original serials, so the execution order is
+ * unchanged. A cancellable event is spilled as well, the handle returned to
+ * the caller stays in memory without its handler and payload, and is put back
+ * into the time line when the event is read back, so that it can still be
+ * cancelled. Consumer events are kept in memory.
+ *
+ * The payloads are serialized. The handlers, and the objects for which the
+ * copy predicate returns false (e.g., nodes and links), are not serialized,
+ * but kept in memory and referenced until the event is read back, so that the
+ * payload still refers to them. The payloads whose identity matters (e.g., a
+ * packet kept in a table until it arrives) should not be copied. An event
+ * that cannot be serialized is kept in memory.
+ *
+ * @author Jiachen Chen
+ */
+public class EventSpill implements Closeable {
+
+    public static final int DEFAULT_RUN_EVENTS = 1 << 16;
+    // the events in a block share the serialization handles, resets after this number of events
+    private static final int BLOCK_RESET_EVENTS = 256;
+    private static final Comparator<TimelineEvent> EVENT_ORDER = TimelineEvent::compareTo;
+
+    /**
+     * The default copy predicate: data, strings, boxed primitives, enums,
+     * arrays, tuples and collections are copied.
+     *
+     * @param obj the object
+     * @return true if the object is serialized with the event
+     */
+    public static boolean isValue(Object obj) {
+        return obj instanceof Data || obj instanceof String || obj instanceof Number
+                || obj instanceof Boolean || obj instanceof Character || obj instanceof Enum
+                || obj.getClass().isArray() || obj instanceof Tuple1 || obj instanceof Tuple2
+                || obj instanceof Tuple3 || obj instanceof Tuple4 || obj instanceof java.util.Collection
+                || obj instanceof java.util.Map;
+    }
+
+    // stands for an object kept in memory
+    private static final class Reference implements Serializable {
+
+        private final int id;
+
+        private Reference(int id) {
+            this.id = id;
+        }
+    }
+
+    // a sorted run of events in a file
+    private final class Run {
+
+        private final Path file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int remainingInBlock = 0;
+        private ObjectInputStream in = null;
+        private TimelineEvent head = null;
+
+        private Run(Path file) throws IOException {
+            this.file = file;
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            next();
+        }
+
+        // reads the next event into the head
+        @SuppressWarnings("unchecked")
+        private void next() throws IOException {
+            head = null;
+            while (remainingInBlock == 0) {
+                if (!buffer.hasRemaining()) {
+                    return;
+                }
+                remainingInBlock = buffer.getInt();
+                int length = buffer.getInt();
+                ByteBuffer block = buffer.slice();
+                ((Buffer) block).limit(length);
+                ((Buffer) buffer).position(buffer.position() + length);
+                in = new SpillInputStream(new ByteBufferInputStream(block));
+            }
+            remainingInBlock--;
+            long timeInUs = in.readLong(), serial = in.readLong(), value = in.readLong();
+            TimelineEvent e;
+            try {
+                // the handle of a cancellable event, null for other events
+                e = (TimelineEvent) in.readObject();
+                if (e == null) {
+                    e = new TimelineEvent();
+                    e.recyclable = true;
+                }
+                e.timeInUs = timeInUs;
+                e.serial = serial;
+                e.value = value;
+                e.handler = (EventHandler<Object>) in.readObject();
+                e.payload = in.readObject();
+            } catch (ClassNotFoundException ex) {
+                throw new IllegalStateException(ex);
+            }
+            head = e;
+        }
+
+        private void close() throws IOException {
+            channel.close();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+    }
+
+    private final class SpillOutputStream extends ObjectOutputStream {
+
+        // the references taken by the event being written
+        private final ArrayList<Integer> taken = new ArrayList<>();
+
+        private SpillOutputStream(OutputStream out) throws IOException {
+            super(out);
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) {
+            return obj instanceof Reference || copied.test(obj) ? obj : reference(obj);
+        }
+
+        // keeps the object in memory, e.g., a handler that may be a lambda
+        private Reference reference(Object obj) {
+            int id = take(obj);
+            taken.add(id);
+            return new Reference(id);
+        }
+    }
+
+    private final class SpillInputStream extends ObjectInputStream {
+
+        private SpillInputStream(InputStream in) throws IOException {
+            super(in);
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) throws ObjectStreamException {
+            return obj instanceof Reference ? release(((Reference) obj).id) : obj;
+        }
+    }
+
+    private final Path directory;
+    private final long horizonInUs;
+    private final Predicate<Object> copied;
+    private final int runEvents;
+    private final ArrayList<TimelineEvent> buffer = new ArrayList<>();
+    private final PriorityQueue<Run> runs = new PriorityQueue<>((r1, r2) -> r1.head.compareTo(r2.head));
+    // the objects referenced by the spilled events, and the number of references
+    private final IdentityHashMap<Object, Integer> referenceIds = new IdentityHashMap<>();
+    private final HashMap<Integer, Object> references = new HashMap<>();
+    private final HashMap<Integer, int[]> referenceCounts = new HashMap<>();
+    private int nextReferenceId = 0;
+    private int runCount = 0;
+    // the number of events in the buffer and the runs
+    private int size = 0;
+    private long spilledCount = 0, keptCount = 0;
+    // the earliest event in the buffer
+    private long bufferHeadInUs = Long.MAX_VALUE;
+
+    public EventSpill(Path directory, long horizonInUs) {
+        this(directory, horizonInUs, EventSpill::isValue, DEFAULT_RUN_EVENTS);
+    }
+
+    /**
+     * Creates a spill.
+     *
+     * @param directory the directory of the run files
+     * @param horizonInUs the events later than now + horizon are spilled
+     * @param copied returns true if an object is serialized with the event,
+     * otherwise the object is kept in memory
+     * @param runEvents the number of events in a run
+     */
+    public EventSpill(Path directory, long horizonInUs, Predicate<Object> copied, int runEvents) {
+        if (horizonInUs <= 0) {
+            throw new IllegalArgumentException("Horizon should be > 0, horizon=" + horizonInUs);
+        }
+        if (runEvents <= 0) {
+            throw new IllegalArgumentException("Run events should be > 0, events=" + runEvents);
+        }
+        this.directory = directory;
+        this.horizonInUs = horizonInUs;
+        this.copied = copied;
+        this.runEvents = runEvents;
+    }
+
+    public long getHorizonInUs() {
+        return horizonInUs;
+    }
+
+    /**
+     * Gets the number of events out of the time line, in the buffer or in
+     * the runs.
+     *
+     * @return the number of events
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of events written into the runs.
+     *
+     * @return the number of events
+     */
+    public long getSpilledCount() {
+        return spilledCount;
+    }
+
+    /**
+     * Gets the number of events that cannot be serialized, and are kept in
+     * memory.
+     *
+     * @return the number of events
+     */
+    public long getKeptCount() {
+        return keptCount;
+    }
+
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Gets the number of objects referenced by the spilled events.
+     *
+     * @return the number of objects
+     */
+    public int getReferenceCount() {
+        return references.size();
+    }
+
+    // the time of the earliest event out of the time line
+    long headTimeInUs() {
+        Run r = runs.peek();
+        return r == null ? bufferHeadInUs : Math.min(bufferHeadInUs, r.head.timeInUs);
+    }
+
+    // adds an event if it is beyond the horizon
+    boolean add(Timeline timeline, TimelineEvent e, long nowInUs) {
+        if (e.consumer != null || nowInUs == Long.MIN_VALUE || e.timeInUs - nowInUs <= horizonInUs) {
+            return false;
+        }
+        buffer.add(e);
+        size++;
+        bufferHeadInUs = Math.min(bufferHeadInUs, e.timeInUs);
+        if (buffer.size() >= runEvents) {
+            flush(timeline);
+        }
+        return true;
+    }
+
+    // writes the buffer into a run
+    private void flush(Timeline timeline) {
+        buffer.sort(EVENT_ORDER);
+        Path file = directory.resolve(String.format("spill-%d-%d.bin", System.identityHashCode(this), runCount++));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            int i = 0;
+            while (i < buffer.size()) {
+                i = writeBlock(timeline, out, i);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        buffer.clear();
+        bufferHeadInUs = Long.MAX_VALUE;
+        try {
+            Run r = new Run(file);
+            if (r.head == null) {
+                r.close();
+            } else {
+                runs.add(r);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // writes the events from the index until an event cannot be serialized, returns the next index
+    private int writeBlock(Timeline timeline, DataOutputStream file, int from) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SpillOutputStream out = new SpillOutputStream(bytes);
+        out.flush();
+        int mark = bytes.size(), count = 0, i = from;
+        for (; i < buffer.size(); i++) {
+            TimelineEvent e = buffer.get(i);
+            try {
+                out.writeLong(e.timeInUs);
+                out.writeLong(e.serial);
+                out.writeLong(e.value);
+                out.writeObject(e.recyclable ? null : out.reference(e));
+                out.writeObject(out.reference(e.handler));
+                out.writeObject(e.payload);
+                out.flush();
+            } catch (IOException ex) {
+                // not serializable, keep it in memory and start a new block
+                out.taken.forEach(this::release);
+                size--;
+                keptCount++;
+                timeline.addInMemory(e);
+                i++;
+                break;
+            }
+            out.taken.clear();
+            mark = bytes.size();
+            count++;
+            spilledCount++;
+            if (e.recyclable) {
+                timeline.recycle(e);
+            } else {
+                // the handle is kept until the event is read back
+                e.handler = null;
+                e.payload = null;
+            }
+            if (count % BLOCK_RESET_EVENTS == 0) {
+                out.reset();
+                out.flush();
+                mark = bytes.size();
+            }
+        }
+        if (count > 0) {
+            file.writeInt(count);
+            file.writeInt(mark);
+            file.write(bytes.toByteArray(), 0, mark);
+        }
+        return i;
+    }
+
+    // moves the events not later than the time back into the time line
+    void reload(Timeline timeline, long timeInUs) {
+        if (bufferHeadInUs <= timeInUs) {
+            long head = Long.MAX_VALUE;
+            int j = 0;
+            for (int i = 0; i < buffer.size(); i++) {
+                TimelineEvent e = buffer.get(i);
+                if (e.timeInUs <= timeInUs) {
+                    size--;
+                    timeline.addInMemory(e);
+                } else {
+                    head = Math.min(head, e.timeInUs);
+                    buffer.set(j++, e);
+                }
+            }
+            buffer.subList(j, buffer.size()).clear();
+            bufferHeadInUs = head;
+        }
+        Run r;
+        try {
+            while ((r = runs.peek()) != null && r.head.timeInUs <= timeInUs) {
+                runs.poll();
+                size--;
+                timeline.addInMemory(r.head);
+                r.next();
+                if (r.head == null) {
+                    r.close();
+                } else {
+                    runs.add(r);
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private int take(Object obj) {
+        Integer id = referenceIds.get(obj);
+        if (id == null) {
+            referenceIds.put(obj, id = nextReferenceId++);
+            references.put(id, obj);
+            referenceCounts.put(id, new int[1]);
+        }
+        referenceCounts.get(id)[0]++;
+        return id;
+    }
+
+    private Object release(int id) {
+        Object ret = references.get(id);
+        if (--referenceCounts.get(id)[0] == 0) {
+            referenceIds.remove(ret);
+            references.remove(id);
+            referenceCounts.remove(id);
+        }
+        return ret;
+    }
+
+    /**
+     * Deletes the run files. The events still in the spill are lost, they
+     * should be reloaded first (see {@link Timeline#setSpill(EventSpill)}).
+     */
+    @Override
+    public void close() {
+        try {
+            for (Run r : runs) {
+                r.close();
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        runs.clear();
+        buffer.clear();
+        references.clear();
+        referenceIds.clear();
+        referenceCounts.clear();
+        size = 0;
+    }
+}
@@ -0,0 +1,239 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.function.Function;
+
+/**
+ * Watches the sequential runs of a {@link Timeline} (see
+ * {@link Timeline#setWatchdog(EventWatchdog)}) for event storms, e.g., a flood
+ * loop caused by a stale FIB. A run is stopped when one of the limits is
+ * exceeded:
+ * <ul>
+ * <li>the number of pending events,</li>
+ * <li>the number of events executed in a simulated millisecond,</li>
+ * <li>the wall clock time without simulated time progress.</li>
+ * </ul>
+ * The pending events are kept, so that the time line can be inspected (or
+ * checkpointed) after the run stops. When a limit is exceeded, the watchdog
+ * writes a report of the top handler types, owners (e.g., nodes) and payload
+ * types (e.g., packet types) among the recently executed and the pending
+ * events.
+ *
+ * A limit &lt;= 0 disables the check.
+ *
+ * @author Jiachen Chen
+ */
+public class EventWatchdog {
+
+    // the number of recently executed events kept for the report
+    public static final int RECENT_EVENTS = 4096;
+    // the number of rows of each table in the report
+    public static final int REPORT_ROWS = 10;
+    // check the wall clock once every 1024 events
+    private static final long CLOCK_CHECK_MASK = (1 << 10) - 1;
+
+    private final int maxPending;
+    private final int maxEventsPerSimMs;
+    private final long maxStallNanos;
+    private final Function<Object, String> ownerOf;
+    private final Function<Object, String> typeOf;
+    private PrintStream reportStream = System.err;
+
+    // recently executed events, in a ring
+    private final Class<?>[] recentHandlers = new Class<?>[RECENT_EVENTS];
+    private final Object[] recentOwners = new Object[RECENT_EVENTS];
+    private final Object[] recentPayloads = new Object[RECENT_EVENTS];
+    private long events = 0;
+    private long currentMs = Long.MIN_VALUE;
+    private int eventsInMs = 0;
+    private long lastProgressTimeInUs = Long.MIN_VALUE;
+    private long lastProgressNanos = 0;
+    private String reason = null;
+    private List<String> report = null;
+
+    /**
+     * Creates a watchdog that reports the payload types only.
+     *
+     * @param maxPending the maximum number of pending events
+     * @param maxEventsPerSimMs the maximum number of events executed in a
+     * simulated millisecond
+     * @param maxStallMs the maximum wall clock time (in ms) without simulated
+     * time progress
+     */
+    public EventWatchdog(int maxPending, int maxEventsPerSimMs, long maxStallMs) {
+        this(maxPending, maxEventsPerSimMs, maxStallMs, o -> "-", EventWatchdog::typeName);
+    }
+
+    /**
+     * Creates a watchdog.
+     *
+     * @param maxPending the maximum number of pending events
+     * @param maxEventsPerSimMs the maximum number of events executed in a
+     * simulated millisecond
+     * @param maxStallMs the maximum wall clock time (in ms) without simulated
+     * time progress
+     * @param ownerOf gets the name of the owner of an event (see
+     * {@link EventHandler#owner(Object)}, may be null)
+     * @param typeOf gets the type of a payload (may be null)
+     */
+    public EventWatchdog(int maxPending, int maxEventsPerSimMs, long maxStallMs,
+            Function<Object, String> ownerOf, Function<Object, String> typeOf) {
+        this.maxPending = maxPending;
+        this.maxEventsPerSimMs = maxEventsPerSimMs;
+        this.maxStallNanos = maxStallMs * 1000000;
+        this.ownerOf = ownerOf;
+        this.typeOf = typeOf;
+    }
+
+    /**
+     * The default type of a payload: its class name without the package.
+     *
+     * @param payload the payload
+     * @return the type
+     */
+    public static String typeName(Object payload) {
+        return payload == null ? "-" : EventProfiler.handlerName(payload.getClass());
+    }
+
+    public PrintStream getReportStream() {
+        return reportStream;
+    }
+
+    /**
+     * Sets the stream the report is written to when a limit is exceeded.
+     *
+     * @param reportStream the stream, null to keep the report only (see
+     * {@link #writeReport(java.io.PrintStream)})
+     */
+    public void setReportStream(PrintStream reportStream) {
+        this.reportStream = reportStream;
+    }
+
+    // called before the first event of a run
+    void beforeRun() {
+        lastProgressNanos = System.nanoTime();
+    }
+
+    // called after an event is executed, returns false if the run should stop
+    boolean afterEvent(Timeline timeline, TimelineEvent e) {
+        int slot = (int) (events % RECENT_EVENTS);
+        recentHandlers[slot] = e.getHandlerClass();
+        recentOwners[slot] = e.getOwner();
+        recentPayloads[slot] = e.getPayload();
+        events++;
+
+        long ms = e.timeInUs / Timeline.MS;
+        if (ms != currentMs) {
+            currentMs = ms;
+            eventsInMs = 0;
+        }
+        if (maxEventsPerSimMs > 0 && ++eventsInMs > maxEventsPerSimMs) {
+            return trip(timeline, String.format("More than %d events in simulated ms %d", maxEventsPerSimMs, ms));
+        }
+        if (maxPending > 0 && timeline.size() > maxPending) {
+            return trip(timeline, String.format("More than %d pending events", maxPending));
+        }
+        if ((events & CLOCK_CHECK_MASK) == 0) {
+            long nanos = System.nanoTime();
+            if (e.timeInUs != lastProgressTimeInUs) {
+                lastProgressTimeInUs = e.timeInUs;
+                lastProgressNanos = nanos;
+            } else if (maxStallNanos > 0 && nanos - lastProgressNanos > maxStallNanos) {
+                return trip(timeline, String.format("No simulated time progress in %d ms at %d us",
+                        maxStallNanos / 1000000, e.timeInUs));
+            }
+        }
+        return true;
+    }
+
+    private boolean trip(Timeline timeline, String reason) {
+        this.reason = reason;
+        List<TimelineEvent> pending = timeline.removeEvents();
+        try {
+            HashMap<String, long[]> handlers = new HashMap<>(), owners = new HashMap<>(), types = new HashMap<>();
+            int recent = (int) Math.min(events, RECENT_EVENTS);
+            for (int i = 0; i < recent; i++) {
+                count(handlers, EventProfiler.handlerName(recentHandlers[i]), 0);
+                count(owners, ownerOf.apply(recentOwners[i]), 0);
+                count(types, typeOf.apply(recentPayloads[i]), 0);
+            }
+            for (TimelineEvent e : pending) {
+                Object payload = e.getPayload();
+                count(handlers, EventProfiler.handlerName(e.getHandlerClass()), 1);
+                count(owners, ownerOf.apply(e.getOwner()), 1);
+                count(types, typeOf.apply(payload), 1);
+            }
+            report = new ArrayList<>();
+            report.add("Watchdog\t" + reason);
+            report.add(String.format("Time\t%d\tPending\t%d\tExecuted\t%d", timeline.now(), pending.size(), events));
+            addTable("Handler", handlers);
+            addTable("Owner", owners);
+            addTable("Type", types);
+        } finally {
+            timeline.restoreEvents(pending);
+        }
+        if (reportStream != null) {
+            writeReport(reportStream);
+        }
+        return false;
+    }
+
+    private static void count(HashMap<String, long[]> counts, String key, int column) {
+        counts.computeIfAbsent(key, k -> new long[2])[column]++;
+    }
+
+    private void addTable(String title, HashMap<String, long[]> counts) {
+        report.add(title + "\tRecent\tPending");
+        ArrayList<Entry<String, long[]>> sorted = new ArrayList<>(counts.entrySet());
+        sorted.sort(Comparator.comparingLong((Entry<String, long[]> e) -> e.getValue()[0] + e.getValue()[1]).reversed()
+                .thenComparing(Entry::getKey));
+        sorted.stream().limit(REPORT_ROWS).forEach(e -> report.add(String.format("%s\t%d\t%d", e.getKey(), e.getValue()[0], e.getValue()[1])));
+    }
+
+    public boolean isTripped() {
+        return reason != null;
+    }
+
+    /**
+     * Gets the limit that stopped the run.
+     *
+     * @return the reason, null if no limit is exceeded.
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Writes the report of the stopped run as tab separated tables.
+     *
+     * @param ps the stream to write to
+     */
+    public void writeReport(PrintStream ps) {
+        if (report == null) {
+            ps.println("Watchdog\t-");
+        } else {
+            report.forEach(ps::println);
+        }
+    }
+
+    /**
+     * Clears the state, e.g., before resuming a stopped run after the storm is
+     * handled.
+     */
+    public void reset() {
+        Arrays.fill(recentHandlers, null);
+        Arrays.fill(recentOwners, null);
+        Arrays.fill(recentPayloads, null);
+        events = 0;
+        currentMs = lastProgressTimeInUs = Long.MIN_VALUE;
+        eventsInMs = 0;
+        reason = null;
+        report = null;
+    }
+}
@@ -0,0 +1,254 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+
+/**
+ * A queue with N classes of data, served by weight. The classifier puts each
+ * data into a class, each class is a {@link RingBufferQueue} with its own
+ * budget (in bits). Within a class, the prioritized data is served first and
+ * evicts the normal data when the class is full, as in
+ * {@link SizeLimitedQueue}.
+ *
+ * The classes are served by one of the disciplines:
+ * <ul>
+ * <li>{@link Discipline#DRR}: deficit round robin, a class can send
+ * weight * quantum bits in each round.</li>
+ * <li>{@link Discipline#WFQ}: self-clocked weighted fair queuing, the class
+ * with the smallest virtual finish time (size / weight after the previous
+ * finish time of the class) is served first.</li>
+ * </ul>
+ * A class with data is never starved by the bursts of the other classes.
+ *
+ * @author Jiachen Chen
+ * @param <T>
+ */
+public class FairQueue<T> implements PrioritizedQueue<T> {
+
+    public static enum Discipline {
+        DRR, WFQ
+    }
+
+    private final Discipline discipline;
+    private final ToIntFunction<? super T> classifier;
+    private final int[] weights;
+    private final long quantumInBits;
+    private final RingBufferQueue<T>[] classes;
+    private int size = 0;
+
+    // DRR, the classes with data in a ring, the deficit is added when a class reaches the head
+    private final int[] activeClasses;
+    private final boolean[] active;
+    private final long[] deficits;
+    private int activeHead = 0, activeCount = 0;
+    private boolean headFresh = true;
+
+    // WFQ, the virtual finish time of the data at the head of each class, NaN if not yet computed
+    private final double[] headFinishTimes, lastFinishTimes;
+    private double virtualTime = 0;
+
+    /**
+     * Creates a queue.
+     *
+     * @param discipline the discipline that serves the classes
+     * @param classifier gets the class (0 to N-1) of a data, should be
+     * serializable
+     * @param contentSizeConverter gets the size of a data, called once per
+     * data
+     * @param weights the weights of the classes
+     * @param capacitiesInBits the budgets of the classes
+     * @param quantumInBits the bits a class with weight 1 can send in a DRR
+     * round, usually the size of the largest data
+     */
+    @SuppressWarnings("unchecked")
+    public FairQueue(Discipline discipline, ToIntFunction<? super T> classifier, Function<? super T, Integer> contentSizeConverter,
+            int[] weights, long[] capacitiesInBits, long quantumInBits) {
+        if (weights.length == 0 || weights.length != capacitiesInBits.length) {
+            throw new IllegalArgumentException(String.format("Should have the same number (> 0) of weights and capacities, weights=%d, capacities=%d",
+                    weights.length, capacitiesInBits.length));
+        }
+        if (Arrays.stream(weights).anyMatch(w -> w <= 0)) {
+            throw new IllegalArgumentException("Weights should be > 0, weights=" + Arrays.toString(weights));
+        }
+        if (quantumInBits <= 0) {
+            throw new IllegalArgumentException("Quantum should be > 0, quantum=" + quantumInBits);
+        }
+        this.discipline = discipline;
+        this.classifier = classifier;
+        this.weights = weights.clone();
+        this.quantumInBits = quantumInBits;
+        int n = weights.length;
+        classes = (RingBufferQueue<T>[]) new RingBufferQueue<?>[n];
+        for (int i = 0; i < n; i++) {
+            classes[i] = new RingBufferQueue<>(capacitiesInBits[i], contentSizeConverter);
+        }
+        activeClasses = new int[n];
+        active = new boolean[n];
+        deficits = new long[n];
+        headFinishTimes = new double[n];
+        Arrays.fill(headFinishTimes, Double.NaN);
+        lastFinishTimes = new double[n];
+    }
+
+    private int classOf(T val) {
+        int c = classifier.applyAsInt(val);
+        if (c < 0 || c >= classes.length) {
+            throw new IllegalArgumentException(String.format("Class should be in [0, %d), class=%d", classes.length, c));
+        }
+        return c;
+    }
+
+    @Override
+    public void enQueue(T val, boolean prioritized) {
+        int c = classOf(val);
+        RingBufferQueue<T> queue = classes[c];
+        int before = queue.getSize();
+        queue.enQueue(val, prioritized);
+        added(c, before, prioritized);
+    }
+
+    @Override
+    public void enQueue(T val, boolean prioritized, Consumer<? super T> consumer) {
+        int c = classOf(val);
+        RingBufferQueue<T> queue = classes[c];
+        int before = queue.getSize();
+        queue.enQueue(val, prioritized, consumer);
+        added(c, before, prioritized);
+    }
+
+    private void added(int c, int before, boolean prioritized) {
+        int after = classes[c].getSize();
+        size += after - before;
+        if (discipline == Discipline.DRR && before == 0 && after > 0 && !active[c]) {
+            active[c] = true;
+            activeClasses[(activeHead + activeCount) % activeClasses.length] = c;
+            if (activeCount++ == 0) {
+                headFresh = true;
+            }
+        }
+        if (prioritized) {
+            // the head may be replaced
+            headFinishTimes[c] = Double.NaN;
+        }
+    }
+
+    @Override
+    public T deQueue() {
+        if (size == 0) {
+            return null;
+        }
+        size--;
+        return discipline == Discipline.DRR ? deQueueDRR() : deQueueWFQ();
+    }
+
+    private T deQueueDRR() {
+        while (true) {
+            int c = activeClasses[activeHead];
+            RingBufferQueue<T> queue = classes[c];
+            if (headFresh) {
+                deficits[c] += quantumInBits * weights[c];
+                headFresh = false;
+            }
+            int sz = queue.peekSize();
+            if (sz <= deficits[c]) {
+                deficits[c] -= sz;
+                T ret = queue.deQueue();
+                if (queue.getSize() == 0) {
+                    // an empty class does not keep its deficit
+                    deficits[c] = 0;
+                    active[c] = false;
+                    activeHead = (activeHead + 1) % activeClasses.length;
+                    activeCount--;
+                    headFresh = true;
+                }
+                return ret;
+            }
+            // the next class in the round
+            activeClasses[(activeHead + activeCount) % activeClasses.length] = c;
+            activeHead = (activeHead + 1) % activeClasses.length;
+            headFresh = true;
+        }
+    }
+
+    private T deQueueWFQ() {
+        int best = -1;
+        for (int c = 0; c < classes.length; c++) {
+            if (classes[c].getSize() == 0) {
+                continue;
+            }
+            if (Double.isNaN(headFinishTimes[c])) {
+                headFinishTimes[c] = Math.max(virtualTime, lastFinishTimes[c]) + (double) classes[c].peekSize() / weights[c];
+            }
+            if (best < 0 || headFinishTimes[c] < headFinishTimes[best]) {
+                best = c;
+            }
+        }
+        virtualTime = lastFinishTimes[best] = headFinishTimes[best];
+        headFinishTimes[best] = Double.NaN;
+        return classes[best].deQueue();
+    }
+
+    @Override
+    public void clear(Consumer<? super T> consumer) {
+        for (RingBufferQueue<T> queue : classes) {
+            queue.clear(consumer);
+        }
+        clear();
+    }
+
+    @Override
+    public void clear() {
+        for (RingBufferQueue<T> queue : classes) {
+            queue.clear();
+        }
+        size = 0;
+        Arrays.fill(active, false);
+        Arrays.fill(deficits, 0);
+        activeHead = activeCount = 0;
+        headFresh = true;
+        Arrays.fill(headFinishTimes, Double.NaN);
+        Arrays.fill(lastFinishTimes, 0);
+        virtualTime = 0;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public Stream<T> stream() {
+        return Arrays.stream(classes).flatMap(RingBufferQueue::stream);
+    }
+
+    public Discipline getDiscipline() {
+        return discipline;
+    }
+
+    public int getClassCount() {
+        return classes.length;
+    }
+
+    public int getWeight(int c) {
+        return weights[c];
+    }
+
+    public int getClassSize(int c) {
+        return classes[c].getSize();
+    }
+
+    public long getClassSizeInBits(int c) {
+        return classes[c].getSizeInBits();
+    }
+
+    public long getClassCapacityInBits(int c) {
+        return classes[c].getCapacityInBits();
+    }
+
+    public long getQuantumInBits() {
+        return quantumInBits;
+    }
+}
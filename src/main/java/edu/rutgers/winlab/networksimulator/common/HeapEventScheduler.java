@@ -0,0 +1,39 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.util.PriorityQueue;
+
+/**
+ * Event scheduler backed by a binary heap. O(log n) for add and poll.
+ *
+ * @author Jiachen Chen
+ */
+public class HeapEventScheduler implements EventScheduler {
+
+    private final PriorityQueue<TimelineEvent> events = new PriorityQueue<>();
+
+    @Override
+    public void add(TimelineEvent e) {
+        events.add(e);
+    }
+
+    @Override
+    public TimelineEvent poll() {
+        return events.poll();
+    }
+
+    @Override
+    public TimelineEvent peek() {
+        return events.peek();
+    }
+
+    @Override
+    public void clear() {
+        events.clear();
+    }
+
+    @Override
+    public int size() {
+        return events.size();
+    }
+
+}
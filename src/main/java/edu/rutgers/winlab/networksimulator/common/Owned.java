@@ -0,0 +1,18 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+/**
+ * An object that belongs to an owner, e.g., a node or a link in a simulation.
+ * The owner of an event is found through its handler or its payload (see
+ * {@link EventHandler#owner(Object)}), and reported by {@link EventWatchdog}.
+ *
+ * @author Jiachen Chen
+ */
+public interface Owned {
+
+    /**
+     * Gets the owner of the object.
+     *
+     * @return the owner, itself if the object is an owner, null if not known
+     */
+    public Object getOwner();
+}
@@ -0,0 +1,427 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.util.Arrays;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.function.Consumer;
+
+/**
+ * Conservative (YAWNS-style) parallel execution of a {@link Timeline}.
+ *
+ * The events are split into partitions (logical processes), each with its own
+ * event list and thread. The partitions execute the events in windows
+ * [start, start + lookahead) in parallel, and synchronize at the end of each
+ * window. An event can only be scheduled into another partition if it is
+ * later than the current window.
+ *
+ * The events pending when the run starts, and the events they create are
+ * global events. They are executed alone when all the partitions are
+ * synchronized at their time, so that they can access any partition.
+ *
+ * The order of the events is identical to the sequential run. Events with the
+ * same time are ordered by the global rank of their creating event in the
+ * sequential order, and then the order they are created. Inside a window, a
+ * partition ranks its events locally (the relative order of the events of a
+ * partition is the same as the sequential order). At the end of each window,
+ * the events executed by all the partitions are merged to get their global
+ * ranks, and the events created for the later windows are re-numbered.
+ *
+ * @author Jiachen Chen
+ */
+final class ParallelExecutor {
+
+    // serial of an event created during the run: rank of the creator | index in the created events
+    private static final int CHILD_BITS = 24;
+    private static final long CHILD_MASK = (1L << CHILD_BITS) - 1;
+
+    private final Timeline timeline;
+    private final Partition[] partitions;
+    private final Partition global;
+    private final long lookaheadInUs;
+    private final EventDigest digest;
+    private final ThreadLocal<Partition> current = new ThreadLocal<>();
+    private final CyclicBarrier startBarrier, endBarrier;
+    private long initialSize = 0;
+    // global rank of the last executed event, and its value when the current window started
+    private long base, windowBase;
+    // time of the first and the last event that can be executed in the current window
+    private long windowStart = Long.MIN_VALUE, windowLast = Long.MIN_VALUE;
+    private boolean sequential = false;
+    private boolean finished = false;
+    private Throwable failure = null;
+
+    ParallelExecutor(Timeline timeline, int partitionCount, long lookaheadInUs) {
+        if (partitionCount <= 0) {
+            throw new IllegalArgumentException("Partition count should be > 0, count=" + partitionCount);
+        }
+        if (lookaheadInUs <= 0) {
+            throw new IllegalArgumentException("Lookahead should be > 0, lookahead=" + lookaheadInUs);
+        }
+        this.timeline = timeline;
+        this.lookaheadInUs = lookaheadInUs;
+        digest = timeline.getDigest();
+        partitions = new Partition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition(i);
+        }
+        global = new Partition(partitionCount);
+        startBarrier = new CyclicBarrier(partitionCount, this::startWindow);
+        endBarrier = new CyclicBarrier(partitionCount, this::finishWindow);
+    }
+
+    /**
+     * Adds a global event that was pending before the run, in order.
+     *
+     * @param e the event
+     */
+    void addInitial(TimelineEvent e) {
+        e.serial = initialSize++;
+        global.scheduler.add(e);
+    }
+
+    TimelineEvent schedule(long timeInUs, Consumer<Object[]> e, Object[] params) {
+        Partition p = getCurrent();
+        return p.add(p, new TimelineEvent(p.nextSerial(timeInUs), timeInUs, e, params));
+    }
+
+    <T> void schedule(long timeInUs, EventHandler<? super T> handler, T payload, long value) {
+        Partition p = getCurrent();
+        p.add(p, p.pool.get(p.nextSerial(timeInUs), timeInUs, handler, payload, value));
+    }
+
+    <T> TimelineEvent scheduleCancellable(long timeInUs, EventHandler<? super T> handler, T payload, long value) {
+        Partition p = getCurrent();
+        return p.add(p, new TimelineEvent().set(p.nextSerial(timeInUs), timeInUs, handler, payload, value));
+    }
+
+    TimelineEvent scheduleOn(int partition, long timeInUs, Consumer<Object[]> e, Object[] params) {
+        Partition p = getCurrent();
+        return p.add(partitions[partition], new TimelineEvent(p.nextSerial(timeInUs), timeInUs, e, params));
+    }
+
+    <T> void scheduleOn(int partition, long timeInUs, EventHandler<? super T> handler, T payload, long value) {
+        Partition p = getCurrent();
+        p.add(partitions[partition], p.pool.get(p.nextSerial(timeInUs), timeInUs, handler, payload, value));
+    }
+
+    long now() {
+        Partition p = current.get();
+        return p == null ? windowStart : p.now;
+    }
+
+    private Partition getCurrent() {
+        Partition p = current.get();
+        if (p == null) {
+            throw new IllegalStateException("Cannot schedule from a thread outside the parallel run.");
+        }
+        return p;
+    }
+
+    /**
+     * Runs all the events. The calling thread runs the first partition.
+     *
+     * @return the time of the last event
+     */
+    long execute() {
+        // the ranks of the events created in the run are larger than the initial events
+        base = (initialSize >>> CHILD_BITS) + 1;
+        Thread[] threads = new Thread[partitions.length - 1];
+        for (int i = 0; i < threads.length; i++) {
+            Partition p = partitions[i + 1];
+            threads[i] = new Thread(() -> work(p), "partition-" + p.index);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        work(partitions[0]);
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException ex) {
+                fail(ex);
+            }
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new IllegalStateException("Parallel run failed", failure);
+        }
+        long last = global.lastTime;
+        for (Partition p : partitions) {
+            last = Math.max(last, p.lastTime);
+        }
+        return last;
+    }
+
+    private void work(Partition p) {
+        current.set(p);
+        Timeline orig = Timeline.setCurrent(timeline);
+        try {
+            while (true) {
+                try {
+                    p.drainDeferred();
+                } catch (Throwable t) {
+                    fail(t);
+                }
+                if (!await(startBarrier) || finished) {
+                    break;
+                }
+                try {
+                    p.runWindow();
+                } catch (Throwable t) {
+                    fail(t);
+                }
+                if (!await(endBarrier)) {
+                    break;
+                }
+            }
+        } finally {
+            Timeline.setCurrent(orig);
+            current.remove();
+        }
+    }
+
+    private boolean await(CyclicBarrier barrier) {
+        try {
+            barrier.await();
+            return true;
+        } catch (InterruptedException | BrokenBarrierException ex) {
+            fail(ex);
+            return false;
+        }
+    }
+
+    private synchronized void fail(Throwable t) {
+        if (failure == null) {
+            failure = t;
+        }
+    }
+
+    private synchronized boolean isFailed() {
+        return failure != null;
+    }
+
+    // barrier action: run the global events, and find the next window
+    private void startWindow() {
+        if (isFailed()) {
+            finished = true;
+            return;
+        }
+        Partition orig = current.get();
+        try {
+            while (true) {
+                TimelineEvent first = global.scheduler.peek();
+                for (Partition p : partitions) {
+                    TimelineEvent e = p.scheduler.peek();
+                    if (e != null && (first == null || e.timeInUs < first.timeInUs)) {
+                        first = e;
+                    }
+                }
+                if (first == null) {
+                    finished = true;
+                    return;
+                }
+                long start = first.timeInUs;
+                TimelineEvent globalFirst = global.scheduler.peek();
+                if (globalFirst != null && globalFirst.timeInUs == start) {
+                    runSequential(start);
+                    continue;
+                }
+                windowStart = start;
+                windowLast = start > Long.MAX_VALUE - lookaheadInUs ? Long.MAX_VALUE : start + lookaheadInUs - 1;
+                if (globalFirst != null) {
+                    windowLast = Math.min(windowLast, globalFirst.timeInUs - 1);
+                }
+                windowBase = base;
+                return;
+            }
+        } catch (Throwable t) {
+            fail(t);
+            finished = true;
+        } finally {
+            current.set(orig);
+        }
+    }
+
+    // runs all the events at a time in sequential order
+    private void runSequential(long timeInUs) {
+        windowStart = timeInUs;
+        sequential = true;
+        try {
+            while (true) {
+                Partition next = global;
+                TimelineEvent first = global.scheduler.peek();
+                for (Partition p : partitions) {
+                    TimelineEvent e = p.scheduler.peek();
+                    if (e != null && (first == null || e.compareTo(first) < 0)) {
+                        first = e;
+                        next = p;
+                    }
+                }
+                if (first == null || first.timeInUs != timeInUs) {
+                    return;
+                }
+                next.scheduler.poll();
+                if (first.cancelled) {
+                    continue;
+                }
+                if (digest != null) {
+                    digest.add(digest.hash(first));
+                }
+                current.set(next);
+                next.execute(first, ++base);
+            }
+        } finally {
+            sequential = false;
+        }
+    }
+
+    // barrier action: merge the events executed by the partitions to get their global ranks
+    private void finishWindow() {
+        if (isFailed()) {
+            return;
+        }
+        for (Partition p : partitions) {
+            p.position = 0;
+            p.updateHead();
+        }
+        while (true) {
+            Partition next = null;
+            for (Partition p : partitions) {
+                if (p.position < p.executed && (next == null
+                        || p.headTime < next.headTime
+                        || (p.headTime == next.headTime && p.headSerial < next.headSerial))) {
+                    next = p;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            if (digest != null) {
+                digest.add(next.executedHashes[next.position]);
+            }
+            next.ranks[next.position++] = ++base;
+            next.updateHead();
+        }
+    }
+
+    private final class Partition {
+
+        private final int index;
+        private final EventScheduler scheduler = new CalendarEventScheduler();
+        private final EventPool pool = new EventPool();
+        private long now = Long.MIN_VALUE, lastTime = Long.MIN_VALUE;
+        // rank of the running event (local rank in a window), and the number of events it created
+        private long rank, children;
+        // times and serials of the events executed in the window, and their global ranks
+        private long[] executedTimes = new long[64], executedSerials = new long[64], ranks = new long[64];
+        // digest hashes of the events executed in the window
+        private long[] executedHashes = new long[64];
+        private int executed = 0;
+        // events created for later windows, chained by target partition
+        private final TimelineEvent[] deferredHeads, deferredTails;
+        // the merge position
+        private int position;
+        private long headTime, headSerial;
+
+        private Partition(int index) {
+            this.index = index;
+            deferredHeads = new TimelineEvent[partitions.length];
+            deferredTails = new TimelineEvent[partitions.length];
+        }
+
+        private void execute(TimelineEvent e, long rank) {
+            this.rank = rank;
+            children = 0;
+            now = lastTime = e.timeInUs;
+            e.fire();
+            pool.recycle(e);
+        }
+
+        private void runWindow() {
+            executed = 0;
+            TimelineEvent e;
+            while ((e = scheduler.peek()) != null && e.timeInUs <= windowLast) {
+                scheduler.poll();
+                if (e.cancelled) {
+                    continue;
+                }
+                if (executed == executedTimes.length) {
+                    int len = executed * 2;
+                    executedTimes = Arrays.copyOf(executedTimes, len);
+                    executedSerials = Arrays.copyOf(executedSerials, len);
+                    ranks = Arrays.copyOf(ranks, len);
+                    executedHashes = Arrays.copyOf(executedHashes, len);
+                }
+                executedTimes[executed] = e.timeInUs;
+                executedSerials[executed] = e.serial;
+                if (digest != null) {
+                    executedHashes[executed] = digest.hash(e);
+                }
+                executed++;
+                execute(e, windowBase + executed);
+            }
+        }
+
+        // serial of the next event created by the running event
+        private long nextSerial(long timeInUs) {
+            if (timeInUs < now) {
+                throw new IllegalArgumentException(String.format("Cannot add an event in the past, now=%d, add=%d", now, timeInUs));
+            }
+            if (children > CHILD_MASK) {
+                throw new IllegalStateException("Too many events created by one event, count=" + children);
+            }
+            return (rank << CHILD_BITS) | children++;
+        }
+
+        private TimelineEvent add(Partition target, TimelineEvent e) {
+            long timeInUs = e.timeInUs;
+            if (sequential) {
+                target.scheduler.add(e);
+            } else if (timeInUs <= windowLast) {
+                if (target != this) {
+                    throw new IllegalStateException(String.format("Event for another partition is within the lookahead, now=%d, add=%d, lookahead=%d", now, timeInUs, lookaheadInUs));
+                }
+                scheduler.add(e);
+            } else if (deferredTails[target.index] == null) {
+                deferredHeads[target.index] = deferredTails[target.index] = e;
+            } else {
+                deferredTails[target.index] = deferredTails[target.index].next = e;
+            }
+            return e;
+        }
+
+        // global serial of an executed event: the creator may be executed in the same window
+        private long resolve(long serial) {
+            long creator = serial >>> CHILD_BITS;
+            return creator > windowBase
+                    ? (ranks[(int) (creator - windowBase - 1)] << CHILD_BITS) | (serial & CHILD_MASK)
+                    : serial;
+        }
+
+        private void updateHead() {
+            if (position < executed) {
+                headTime = executedTimes[position];
+                headSerial = resolve(executedSerials[position]);
+            }
+        }
+
+        // moves the events created for this partition in the last window into the event list
+        private void drainDeferred() {
+            for (Partition source : partitions) {
+                TimelineEvent e = source.deferredHeads[index];
+                source.deferredHeads[index] = source.deferredTails[index] = null;
+                while (e != null) {
+                    TimelineEvent next = e.next;
+                    e.next = null;
+                    e.serial = source.resolve(e.serial);
+                    scheduler.add(e);
+                    e = next;
+                }
+            }
+        }
+    }
+}
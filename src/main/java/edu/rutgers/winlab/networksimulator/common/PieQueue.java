@@ -0,0 +1,131 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.util.function.Consumer;
+
+/**
+ * Proportional integral controller enhanced (RFC 8033). The drop probability
+ * is updated once every update interval from the queuing delay, which is the
+ * sojourn time of the last normal data retrieved (the timestamp variant of
+ * the RFC). A normal data is dropped with the probability when it is added,
+ * except during the burst allowance, when the delay is low, or when the
+ * queue holds less than 2 normal data.
+ *
+ * Instead of a timer, the probability is updated for the intervals passed
+ * when a data is added or retrieved.
+ *
+ * @author Jiachen Chen
+ * @param <T>
+ */
+public class PieQueue<T> extends ActiveQueue<T> {
+
+    public static final long DEFAULT_TARGET_IN_US = 15 * Timeline.MS;
+    public static final long DEFAULT_UPDATE_IN_US = 15 * Timeline.MS;
+    public static final long DEFAULT_MAX_BURST_IN_US = 150 * Timeline.MS;
+    // in Hz, the delays are in seconds
+    public static final double ALPHA = 0.125, BETA = 1.25;
+    private static final long MAX_DELAY_IN_US = 250 * Timeline.MS;
+
+    private final long targetInUs, updateInUs, maxBurstInUs;
+    private double dropProbability = 0;
+    private long delayOldInUs = 0;
+    private long burstAllowanceInUs;
+    private long nextUpdateInUs = Long.MIN_VALUE;
+
+    public PieQueue(int capacityInItems) {
+        this(capacityInItems, DEFAULT_TARGET_IN_US, DEFAULT_UPDATE_IN_US, DEFAULT_MAX_BURST_IN_US, 0);
+    }
+
+    /**
+     * Creates a queue.
+     *
+     * @param capacityInItems the maximum number of items
+     * @param targetInUs the target queuing delay
+     * @param updateInUs the interval between the updates of the probability
+     * @param maxBurstInUs the burst allowance
+     * @param seed the seed of the random drops
+     */
+    public PieQueue(int capacityInItems, long targetInUs, long updateInUs, long maxBurstInUs, long seed) {
+        super(capacityInItems, seed);
+        if (targetInUs <= 0 || updateInUs <= 0 || maxBurstInUs < 0) {
+            throw new IllegalArgumentException(String.format("Should be > 0, target=%d, update=%d, burst=%d",
+                    targetInUs, updateInUs, maxBurstInUs));
+        }
+        this.targetInUs = targetInUs;
+        this.updateInUs = updateInUs;
+        this.maxBurstInUs = maxBurstInUs;
+        this.burstAllowanceInUs = maxBurstInUs;
+    }
+
+    private void update(long nowInUs) {
+        if (nextUpdateInUs == Long.MIN_VALUE) {
+            nextUpdateInUs = nowInUs + updateInUs;
+            return;
+        }
+        while (nowInUs >= nextUpdateInUs) {
+            long delay = getNormalSize() == 0 ? 0 : getLastSojournInUs();
+            double p = dropProbability;
+            // auto-tuning, smaller steps when the probability is low
+            double scale = p < 0.000001 ? 1 / 2048.0 : p < 0.00001 ? 1 / 512.0 : p < 0.0001 ? 1 / 128.0
+                    : p < 0.001 ? 1 / 32.0 : p < 0.01 ? 1 / 8.0 : p < 0.1 ? 1 / 2.0 : 1;
+            double delta = scale * (ALPHA * (delay - targetInUs) + BETA * (delay - delayOldInUs)) / Timeline.SECOND;
+            if (delta > 0.02 && p >= 0.1) {
+                delta = 0.02;
+            }
+            p += delta;
+            if (delay == 0 && delayOldInUs == 0) {
+                p *= 0.98;
+            }
+            if (delay > MAX_DELAY_IN_US) {
+                p += 0.02;
+            }
+            dropProbability = Math.max(0, Math.min(1, p));
+            burstAllowanceInUs = Math.max(0, burstAllowanceInUs - updateInUs);
+            if (dropProbability == 0 && delay < targetInUs / 2 && delayOldInUs < targetInUs / 2) {
+                burstAllowanceInUs = maxBurstInUs;
+            }
+            delayOldInUs = delay;
+            nextUpdateInUs += updateInUs;
+            // idle, the state does not change in the rest of the intervals
+            if (dropProbability == 0 && delay == 0 && burstAllowanceInUs == maxBurstInUs && nowInUs >= nextUpdateInUs) {
+                nextUpdateInUs = nowInUs + updateInUs - (nowInUs - nextUpdateInUs) % updateInUs;
+            }
+        }
+    }
+
+    @Override
+    protected boolean dropOnEnqueue(long nowInUs) {
+        update(nowInUs);
+        if (burstAllowanceInUs > 0) {
+            return false;
+        }
+        if (delayOldInUs < targetInUs / 2 && dropProbability < 0.2) {
+            return false;
+        }
+        if (getNormalSize() < 2) {
+            return false;
+        }
+        return random.nextDouble() < dropProbability;
+    }
+
+    @Override
+    protected T deQueueNormal(long nowInUs, Consumer<? super T> consumer) {
+        update(nowInUs);
+        return pollNormal(nowInUs);
+    }
+
+    public double getDropProbability() {
+        return dropProbability;
+    }
+
+    public long getTargetInUs() {
+        return targetInUs;
+    }
+
+    public long getUpdateInUs() {
+        return updateInUs;
+    }
+
+    public long getMaxBurstInUs() {
+        return maxBurstInUs;
+    }
+}
@@ -1,5 +1,6 @@
 package edu.rutgers.winlab.networksimulator.common;
 
+import java.io.Serializable;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 
@@ -8,7 +9,7 @@ import java.util.stream.Stream;
  * @author Jiachen Chen
  * @param <T> Additional information with data
  */
-public interface PrioritizedQueue<T> {
+public interface PrioritizedQueue<T> extends Serializable {
 
     /**
      * Adds a data into the queue.
@@ -34,6 +35,17 @@ public interface PrioritizedQueue<T> {
      */
     public T deQueue();
 
+    /**
+     * Retrieves a data from the queue. An active queue may drop some data at
+     * the head of the queue before it returns one (see {@link ActiveQueue}).
+     *
+     * @param consumer called on each entry dropped
+     * @return the data at the head of the queue, null if queue is empty.
+     */
+    public default T deQueue(Consumer<? super T> consumer) {
+        return deQueue();
+    }
+
     /**
      * Clears all the items in the queue.
      *
@@ -53,6 +65,17 @@ public interface PrioritizedQueue<T> {
      */
     public int getSize();
 
+    /**
+     * Gets the sojourn time histogram of the queue (see {@link SojournQueue}).
+     * A queue that wraps another queue returns the histogram of the inner
+     * queue.
+     *
+     * @return the histogram, null if the sojourn times are not recorded
+     */
+    public default SojournQueue.Histogram getSojourn() {
+        return null;
+    }
+
     /**
      * Gets the stream of the queue.
      *
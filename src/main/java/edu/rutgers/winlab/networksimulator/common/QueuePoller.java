@@ -1,57 +1,239 @@
 package edu.rutgers.winlab.networksimulator.common;
 
+import java.io.Serializable;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
 /**
+ * Retrieves the data from a queue and hands it to one of k workers (1 by
+ * default). A worker retrieves the next data after the time returned by the
+ * data handler. The idle handler is called when all the workers are idle and
+ * the queue is empty. The busy time and the number of data served are kept
+ * per worker.
+ *
+ * In batch mode, when a data is done and no other event is due before the
+ * next data, the worker continues with the next data in the same event with
+ * the clock moved forward, instead of scheduling an event for each data. The
+ * data handler and the idle handler see the same times, only fewer events are
+ * executed.
  *
  * @author Jiachen Chen
  * @param <T>
  */
-public class QueuePoller<T> {
+public class QueuePoller<T> implements Owned, Serializable {
+
+    // value: the worker
+    private static final EventHandler<QueuePoller<?>> RUN_QUEUE = new RunQueue();
+
+    // profiled by the data the worker retrieves next, instead of by the poller
+    private static final class RunQueue implements EventHandler<QueuePoller<?>> {
+
+        @Override
+        public void handle(QueuePoller<?> poller, long value) {
+            poller.runQueue((int) value, poller.batch);
+        }
+
+        @Override
+        public Object category(QueuePoller<?> poller) {
+            return poller.nextCategory();
+        }
+    }
 
     private final Function<T, Long> dataHandler;
     private final PrioritizedQueue<T> queue;
-    private boolean busy = false;
     private final Consumer<? super QueuePoller<T>> idleHandler;
+    private final Timeline timeline;
+    private Consumer<? super T> dropHandler = null;
+    private Function<? super T, ?> categorizer = null;
+    private Object owner = null;
+    private boolean batch = false;
+    // per worker
+    private boolean[] busy = new boolean[1];
+    private long[] busySinceInUs = new long[1], busyTimeInUs = new long[1], served = new long[1];
+    private int busyWorkers = 0;
 
     public QueuePoller(Function<T, Long> dataHandler, PrioritizedQueue<T> queue, Consumer<? super QueuePoller<T>> idleHandler) {
+        this(Timeline.getCurrent(), dataHandler, queue, idleHandler);
+    }
+
+    public QueuePoller(Timeline timeline, Function<T, Long> dataHandler, PrioritizedQueue<T> queue, Consumer<? super QueuePoller<T>> idleHandler) {
+        this.timeline = timeline;
         this.dataHandler = dataHandler;
         this.queue = queue;
         this.idleHandler = idleHandler;
     }
 
+    public Timeline getTimeline() {
+        return timeline;
+    }
+
     public void enQueue(T val, boolean prioritized) {
         queue.enQueue(val, prioritized);
-        if (!busy) {
-            busy = true;
-            runQueue();
-        }
+        startWorker();
     }
 
     public void enQueue(T val, boolean prioritized, Consumer<T> consumer) {
         queue.enQueue(val, prioritized, consumer);
-        if (!busy) {
-            busy = true;
-            runQueue();
+        startWorker();
+    }
+
+    // starts an idle worker, if any
+    private void startWorker() {
+        if (busyWorkers == busy.length) {
+            return;
         }
+        int worker = 0;
+        while (busy[worker]) {
+            worker++;
+        }
+        busy[worker] = true;
+        busySinceInUs[worker] = timeline.now();
+        busyWorkers++;
+        // the caller continues after the data is handled, the clock cannot move
+        runQueue(worker, false);
     }
 
-    private void runQueue(Object... params) {
-        T val = queue.deQueue();
-        if (val == null) {
-            busy = false;
-            idleHandler.accept(this);
-        } else {
-            long now = Timeline.nowInUs();
+    private void runQueue(int worker, boolean inline) {
+        while (true) {
+            T val = dropHandler == null ? queue.deQueue() : queue.deQueue(dropHandler);
+            if (val == null) {
+                busy[worker] = false;
+                busyTimeInUs[worker] += timeline.now() - busySinceInUs[worker];
+                if (--busyWorkers == 0) {
+                    idleHandler.accept(this);
+                }
+                return;
+            }
+            served[worker]++;
+            long now = timeline.now();
             long v = dataHandler.apply(val);
-            Timeline.addEvent(now + v, this::runQueue);
+            if (!inline || !timeline.tryAdvance(now + v)) {
+                timeline.schedule(now + v, RUN_QUEUE, this, worker);
+                return;
+            }
+        }
+    }
+
+    public int getWorkers() {
+        return busy.length;
+    }
+
+    /**
+     * Sets the number of workers that handle the data in parallel. The busy
+     * time and the number of data served are reset.
+     *
+     * @param workers the number of workers
+     */
+    public void setWorkers(int workers) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("Workers should be > 0, workers=" + workers);
+        }
+        if (busyWorkers > 0) {
+            throw new IllegalStateException("Cannot change the workers of a busy poller.");
+        }
+        busy = new boolean[workers];
+        busySinceInUs = new long[workers];
+        busyTimeInUs = new long[workers];
+        served = new long[workers];
+    }
+
+    public int getBusyWorkers() {
+        return busyWorkers;
+    }
+
+    public boolean isWorkerBusy(int worker) {
+        return busy[worker];
+    }
+
+    /**
+     * Gets the time a worker has been busy, including the current busy period.
+     *
+     * @param worker the worker
+     * @return the busy time
+     */
+    public long getBusyTimeInUs(int worker) {
+        return busyTimeInUs[worker] + (busy[worker] ? timeline.now() - busySinceInUs[worker] : 0);
+    }
+
+    public long getServed(int worker) {
+        return served[worker];
+    }
+
+    public boolean isBatch() {
+        return batch;
+    }
+
+    /**
+     * Sets the batch mode, in which the queued data is handled back-to-back
+     * in one event when no other event is due in between.
+     *
+     * @param batch true to enable the batch mode
+     */
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
+    public Consumer<? super T> getDropHandler() {
+        return dropHandler;
+    }
+
+    /**
+     * Sets the consumer of the data dropped by the queue when the poller
+     * retrieves a data, see {@link PrioritizedQueue#deQueue(Consumer)}.
+     *
+     * @param dropHandler the consumer, null to ignore the dropped data
+     */
+    public void setDropHandler(Consumer<? super T> dropHandler) {
+        this.dropHandler = dropHandler;
+    }
+
+    @Override
+    public Object getOwner() {
+        return owner;
+    }
+
+    /**
+     * Sets the owner of the events of the poller (see {@link Owned}).
+     *
+     * @param owner the owner, e.g., the node that handles the data
+     */
+    public void setOwner(Object owner) {
+        this.owner = owner;
+    }
+
+    public Function<? super T, ?> getCategorizer() {
+        return categorizer;
+    }
+
+    /**
+     * Sets the category of the data in the profiler (see
+     * {@link EventProfiler}). The events that retrieve the data are profiled
+     * by the category of the data at the head of the queue.
+     *
+     * @param categorizer gets the category of a data, null to use the class
+     * of the data
+     */
+    public void setCategorizer(Function<? super T, ?> categorizer) {
+        this.categorizer = categorizer;
+    }
+
+    // the category of the data at the head of the queue, null if the queue is empty
+    private Object nextCategory() {
+        T val = queue.stream().findFirst().orElse(null);
+        if (val == null) {
+            return null;
         }
+        return categorizer == null ? val.getClass() : categorizer.apply(val);
     }
 
+    /**
+     * Checks if any of the workers is busy.
+     *
+     * @return true if a data is being handled
+     */
     public boolean isBusy() {
-        return busy;
+        return busyWorkers > 0;
     }
 
     public void clear() {
@@ -0,0 +1,117 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+/**
+ * Random early detection (Floyd and Jacobson, 1993). The average queue size
+ * (in items) is an exponentially weighted moving average updated on each
+ * arrival, and decayed by the idle time when the queue is empty. Between the
+ * minimum and the maximum threshold, a normal data is dropped with a
+ * probability that grows linearly to maxP, spread out by the number of data
+ * accepted since the last drop. Above the maximum threshold, all the normal
+ * data is dropped.
+ *
+ * @author Jiachen Chen
+ * @param <T>
+ */
+public class RedQueue<T> extends ActiveQueue<T> {
+
+    public static final double DEFAULT_MAX_P = 0.1;
+    public static final double DEFAULT_WEIGHT = 0.002;
+
+    private final double minThreshold, maxThreshold, maxP, weight;
+    private final long idleUnitInUs;
+    private double averageSize = 0;
+    // the number of data accepted since the last drop, -1 if below the minimum threshold
+    private int count = -1;
+
+    /**
+     * Creates a queue with the thresholds at 1/4 and 3/4 of the capacity.
+     *
+     * @param capacityInItems the maximum number of items
+     * @param idleUnitInUs the typical transmission time of a data, the
+     * average decays as if the queue received an empty sample for each unit
+     * of idle time
+     */
+    public RedQueue(int capacityInItems, long idleUnitInUs) {
+        this(capacityInItems, capacityInItems / 4.0, capacityInItems * 3 / 4.0, DEFAULT_MAX_P, DEFAULT_WEIGHT, idleUnitInUs, 0);
+    }
+
+    /**
+     * Creates a queue.
+     *
+     * @param capacityInItems the maximum number of items
+     * @param minThreshold the average size that starts the early drops
+     * @param maxThreshold the average size that drops all the normal data
+     * @param maxP the drop probability at the maximum threshold
+     * @param weight the weight of a new sample in the average
+     * @param idleUnitInUs the typical transmission time of a data
+     * @param seed the seed of the random drops
+     */
+    public RedQueue(int capacityInItems, double minThreshold, double maxThreshold, double maxP, double weight,
+            long idleUnitInUs, long seed) {
+        super(capacityInItems, seed);
+        if (minThreshold < 0 || maxThreshold <= minThreshold) {
+            throw new IllegalArgumentException(String.format("Should be 0 <= min < max, min=%f, max=%f", minThreshold, maxThreshold));
+        }
+        if (maxP <= 0 || maxP > 1 || weight <= 0 || weight > 1) {
+            throw new IllegalArgumentException(String.format("Should be in (0, 1], maxP=%f, weight=%f", maxP, weight));
+        }
+        if (idleUnitInUs <= 0) {
+            throw new IllegalArgumentException("Idle unit should be > 0, unit=" + idleUnitInUs);
+        }
+        this.minThreshold = minThreshold;
+        this.maxThreshold = maxThreshold;
+        this.maxP = maxP;
+        this.weight = weight;
+        this.idleUnitInUs = idleUnitInUs;
+    }
+
+    @Override
+    protected boolean dropOnEnqueue(long nowInUs) {
+        int size = getSize();
+        if (size == 0 && getEmptySinceInUs() != Long.MIN_VALUE) {
+            averageSize *= Math.pow(1 - weight, (double) (nowInUs - getEmptySinceInUs()) / idleUnitInUs);
+        } else {
+            averageSize += weight * (size - averageSize);
+        }
+        if (averageSize < minThreshold) {
+            count = -1;
+            return false;
+        }
+        if (averageSize >= maxThreshold) {
+            count = 0;
+            return true;
+        }
+        count++;
+        double pb = maxP * (averageSize - minThreshold) / (maxThreshold - minThreshold);
+        double pa = count * pb >= 1 ? 1 : pb / (1 - count * pb);
+        if (random.nextDouble() < pa) {
+            count = 0;
+            return true;
+        }
+        return false;
+    }
+
+    public double getAverageSize() {
+        return averageSize;
+    }
+
+    public double getMinThreshold() {
+        return minThreshold;
+    }
+
+    public double getMaxThreshold() {
+        return maxThreshold;
+    }
+
+    public double getMaxP() {
+        return maxP;
+    }
+
+    public double getWeight() {
+        return weight;
+    }
+
+    public long getIdleUnitInUs() {
+        return idleUnitInUs;
+    }
+}
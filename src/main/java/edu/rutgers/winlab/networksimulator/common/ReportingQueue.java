@@ -1,10 +1,20 @@
 package edu.rutgers.winlab.networksimulator.common;
 
+import java.io.Serializable;
+import java.util.Arrays;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 /**
+ * Reports the size changes of a queue. In the default mode, the size changed
+ * handler is called on each operation. In the aggregated mode, the
+ * time-weighted occupancy (mean, max and percentiles) of the queue is kept in
+ * constant memory, and reported once every sampling interval. A threshold
+ * handler can be called when the size crosses a threshold, with hysteresis.
+ *
+ * The time is the time line bound to the current thread
+ * ({@link Timeline#nowInUs()}).
  *
  * @author jiachen
  * @param <V>
@@ -15,19 +25,237 @@ public class ReportingQueue<V, T extends PrioritizedQueue<V>> implements Priorit
     private final String name;
     private final PrioritizedQueue<V> innerQueue;
     private final BiConsumer<String, Integer> sizeChangedHandler;
+    // aggregated mode
+    private final long sampleIntervalInUs;
+    private final BiConsumer<String, ? super Occupancy> sampleHandler;
+    private final Occupancy total, sample;
+    private long nextSampleInUs = Long.MIN_VALUE;
+    // threshold
+    private int highThreshold = Integer.MAX_VALUE, lowThreshold = Integer.MIN_VALUE;
+    private BiConsumer<String, Boolean> thresholdHandler = null;
+    private boolean aboveThreshold = false;
+
+    /**
+     * The time-weighted occupancy of a queue in a period. The sizes are kept in
+     * logarithmic buckets (0, 1, 2-3, 4-7, ...), the percentiles are
+     * interpolated in the buckets.
+     */
+    public static final class Occupancy implements Serializable {
+
+        private static final int BUCKETS = 33;
+
+        private final long[] bucketTimes = new long[BUCKETS];
+        private long startInUs, lastInUs;
+        private int size = 0, maxSize = 0;
+        private double weightedSum = 0;
+
+        private Occupancy(long startInUs) {
+            this.startInUs = this.lastInUs = startInUs;
+        }
+
+        private static int bucket(int size) {
+            return size <= 0 ? 0 : 32 - Integer.numberOfLeadingZeros(size);
+        }
+
+        private void advance(long nowInUs) {
+            long duration = nowInUs - lastInUs;
+            if (duration > 0) {
+                weightedSum += (double) size * duration;
+                bucketTimes[bucket(size)] += duration;
+                lastInUs = nowInUs;
+            }
+        }
+
+        private void setSize(int size) {
+            this.size = size;
+            maxSize = Math.max(maxSize, size);
+        }
+
+        private void restart(long startInUs) {
+            Arrays.fill(bucketTimes, 0);
+            this.startInUs = this.lastInUs = startInUs;
+            weightedSum = 0;
+            maxSize = size;
+        }
+
+        public long getStartInUs() {
+            return startInUs;
+        }
+
+        public long getEndInUs() {
+            return lastInUs;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        /**
+         * Gets the time-weighted mean size.
+         *
+         * @return the mean size, the current size if the period is empty
+         */
+        public double getMeanSize() {
+            return lastInUs == startInUs ? size : weightedSum / (lastInUs - startInUs);
+        }
+
+        /**
+         * Gets the size the queue is not above for a fraction of the time.
+         *
+         * @param fraction the fraction, in [0, 1]
+         * @return the size, interpolated in its bucket
+         */
+        public double getPercentile(double fraction) {
+            long duration = lastInUs - startInUs;
+            if (duration == 0) {
+                return size;
+            }
+            double target = fraction * duration;
+            long cumulated = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                if (bucketTimes[b] > 0 && cumulated + bucketTimes[b] >= target) {
+                    if (b == 0) {
+                        return 0;
+                    }
+                    double low = 1L << (b - 1), high = Math.min((1L << b) - 1, maxSize);
+                    return low + (high - low) * (target - cumulated) / bucketTimes[b];
+                }
+                cumulated += bucketTimes[b];
+            }
+            return maxSize;
+        }
+    }
 
     public ReportingQueue(String name, PrioritizedQueue<V> innerQueue, BiConsumer<String, Integer> sizeChangedHandler) {
         this.name = name;
         this.innerQueue = innerQueue;
         this.sizeChangedHandler = sizeChangedHandler;
+        this.sampleIntervalInUs = 0;
+        this.sampleHandler = null;
+        this.total = this.sample = null;
+    }
+
+    /**
+     * Creates a queue in the aggregated mode.
+     *
+     * @param name the name of the queue
+     * @param innerQueue the queue
+     * @param sampleIntervalInUs the sampling interval, the samples are
+     * aligned to the multiples of the interval
+     * @param sampleHandler called with the occupancy at the end of each
+     * sampling interval, the occupancy is reused after the call. A sample is
+     * reported at the first operation after its interval, see also
+     * {@link #flushSample()}. The occupancy starts at the first operation,
+     * and restarts when the clock is reset (a new run).
+     */
+    public ReportingQueue(String name, PrioritizedQueue<V> innerQueue, long sampleIntervalInUs,
+            BiConsumer<String, ? super Occupancy> sampleHandler) {
+        if (sampleIntervalInUs <= 0) {
+            throw new IllegalArgumentException("Sample interval should be > 0, interval=" + sampleIntervalInUs);
+        }
+        this.name = name;
+        this.innerQueue = innerQueue;
+        this.sizeChangedHandler = null;
+        this.sampleIntervalInUs = sampleIntervalInUs;
+        this.sampleHandler = sampleHandler;
+        this.total = new Occupancy(0);
+        this.sample = new Occupancy(0);
     }
 
     public String getName() {
         return name;
     }
-    
+
+    /**
+     * Sets the handler called when the size reaches the high threshold (with
+     * true), and when it falls back to the low threshold (with false).
+     *
+     * @param highThreshold the high threshold
+     * @param lowThreshold the low threshold, &lt; the high threshold
+     * @param thresholdHandler the handler, null to remove the handler
+     */
+    public void setThresholdHandler(int highThreshold, int lowThreshold, BiConsumer<String, Boolean> thresholdHandler) {
+        if (lowThreshold >= highThreshold) {
+            throw new IllegalArgumentException(String.format("Should be low < high, low=%d, high=%d", lowThreshold, highThreshold));
+        }
+        this.highThreshold = highThreshold;
+        this.lowThreshold = lowThreshold;
+        this.thresholdHandler = thresholdHandler;
+        this.aboveThreshold = innerQueue.getSize() >= highThreshold;
+    }
+
+    public boolean isAboveThreshold() {
+        return aboveThreshold;
+    }
+
     private void fireSizeChanged() {
-        sizeChangedHandler.accept(name, innerQueue.getSize());
+        int size = innerQueue.getSize();
+        if (sizeChangedHandler != null) {
+            sizeChangedHandler.accept(name, size);
+        }
+        if (total != null) {
+            advance(Timeline.nowInUs());
+            total.setSize(size);
+            sample.setSize(size);
+        }
+        if (thresholdHandler != null) {
+            if (!aboveThreshold && size >= highThreshold) {
+                aboveThreshold = true;
+                thresholdHandler.accept(name, true);
+            } else if (aboveThreshold && size <= lowThreshold) {
+                aboveThreshold = false;
+                thresholdHandler.accept(name, false);
+            }
+        }
+    }
+
+    // reports the samples that ended before now
+    private void advance(long nowInUs) {
+        if (nextSampleInUs == Long.MIN_VALUE || nowInUs < sample.lastInUs) {
+            total.restart(nowInUs);
+            sample.restart(nowInUs);
+            nextSampleInUs = Math.floorDiv(nowInUs, sampleIntervalInUs) * sampleIntervalInUs + sampleIntervalInUs;
+        }
+        while (nowInUs >= nextSampleInUs) {
+            sample.advance(nextSampleInUs);
+            total.advance(nextSampleInUs);
+            sampleHandler.accept(name, sample);
+            sample.restart(nextSampleInUs);
+            nextSampleInUs += sampleIntervalInUs;
+        }
+        sample.advance(nowInUs);
+        total.advance(nowInUs);
+    }
+
+    /**
+     * Reports the samples ended by now, and the current partial sample, e.g.,
+     * at the end of a run.
+     */
+    public void flushSample() {
+        if (total == null) {
+            throw new IllegalStateException("The queue is not in the aggregated mode.");
+        }
+        if (nextSampleInUs == Long.MIN_VALUE) {
+            return;
+        }
+        long now = Timeline.nowInUs();
+        advance(now);
+        if (sample.getEndInUs() > sample.getStartInUs()) {
+            sampleHandler.accept(name, sample);
+            sample.restart(now);
+        }
+    }
+
+    /**
+     * Gets the occupancy since the queue is created, in the aggregated mode.
+     *
+     * @return the occupancy, updated to the last operation
+     */
+    public Occupancy getOccupancy() {
+        if (total == null) {
+            throw new IllegalStateException("The queue is not in the aggregated mode.");
+        }
+        return total;
     }
 
     @Override
@@ -49,6 +277,13 @@ public class ReportingQueue<V, T extends PrioritizedQueue<V>> implements Priorit
         return ret;
     }
 
+    @Override
+    public V deQueue(Consumer<? super V> consumer) {
+        V ret = innerQueue.deQueue(consumer);
+        fireSizeChanged();
+        return ret;
+    }
+
     @Override
     public void clear(Consumer<? super V> consumer) {
         innerQueue.clear(consumer);
@@ -66,6 +301,11 @@ public class ReportingQueue<V, T extends PrioritizedQueue<V>> implements Priorit
         return innerQueue.getSize();
     }
 
+    @Override
+    public SojournQueue.Histogram getSojourn() {
+        return innerQueue.getSojourn();
+    }
+
     @Override
     public Stream<V> stream() {
         return innerQueue.stream();
@@ -0,0 +1,147 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * A growable ring of items in FIFO order. Each item has a fixed number of
+ * long values (e.g., its size, or the time it is added), kept in a primitive
+ * array beside the items, so that they are not boxed. The capacity is a power
+ * of 2 and is doubled when the ring is full.
+ *
+ * The indexes are relative to the head of the ring.
+ *
+ * @author Jiachen Chen
+ * @param <T>
+ */
+public final class RingBuffer<T> implements Serializable {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int columns;
+    private Object[] items = new Object[INITIAL_CAPACITY];
+    private long[] values;
+    private int head = 0, count = 0;
+
+    /**
+     * Creates a ring.
+     *
+     * @param columns the number of values of each item
+     */
+    public RingBuffer(int columns) {
+        if (columns <= 0) {
+            throw new IllegalArgumentException("Columns should be > 0, columns=" + columns);
+        }
+        this.columns = columns;
+        values = new long[INITIAL_CAPACITY * columns];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    // the slot of a new item at the tail
+    private int reserve() {
+        if (count == items.length) {
+            int length = items.length, first = length - head;
+            Object[] newItems = new Object[length << 1];
+            long[] newValues = new long[(length << 1) * columns];
+            System.arraycopy(items, head, newItems, 0, first);
+            System.arraycopy(items, 0, newItems, first, head);
+            System.arraycopy(values, head * columns, newValues, 0, first * columns);
+            System.arraycopy(values, 0, newValues, first * columns, head * columns);
+            items = newItems;
+            values = newValues;
+            head = 0;
+        }
+        return (head + count++) & (items.length - 1);
+    }
+
+    private int slot(int index) {
+        return (head + index) & (items.length - 1);
+    }
+
+    public void offer(T item, long value) {
+        int i = reserve();
+        items[i] = item;
+        values[i * columns] = value;
+    }
+
+    public void offer(T item, long value0, long value1) {
+        int i = reserve();
+        items[i] = item;
+        values[i * columns] = value0;
+        values[i * columns + 1] = value1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        return (T) items[slot(index)];
+    }
+
+    /**
+     * Replaces an item, the values are kept.
+     *
+     * @param index the index
+     * @param item the item
+     */
+    public void set(int index, T item) {
+        items[slot(index)] = item;
+    }
+
+    public long getValue(int index, int column) {
+        return values[slot(index) * columns + column];
+    }
+
+    public T peek() {
+        return count == 0 ? null : get(0);
+    }
+
+    public long peekValue(int column) {
+        return values[head * columns + column];
+    }
+
+    public long peekLastValue(int column) {
+        return getValue(count - 1, column);
+    }
+
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        T ret = (T) items[head];
+        items[head] = null;
+        head = (head + 1) & (items.length - 1);
+        count--;
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T pollLast() {
+        int i = slot(count - 1);
+        T ret = (T) items[i];
+        items[i] = null;
+        count--;
+        return ret;
+    }
+
+    public void forEach(Consumer<? super T> consumer) {
+        for (int i = 0; i < count; i++) {
+            consumer.accept(get(i));
+        }
+    }
+
+    public Stream<T> stream() {
+        return IntStream.range(0, count).mapToObj(this::get);
+    }
+
+    public void clear() {
+        Arrays.fill(items, null);
+        head = count = 0;
+    }
+}
@@ -0,0 +1,171 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * A queue on growable ring buffers, can replace {@link UnlimitedQueue},
+ * {@link ItemLimitedQueue} and {@link SizeLimitedQueue} with the same
+ * dropping behavior. The size of an item is converted once when it is added
+ * and kept in a primitive array, so that the converter is not called again
+ * when the item is removed or dropped.
+ *
+ * @author Jiachen Chen
+ * @param <T>
+ */
+public class RingBufferQueue<T> implements PrioritizedQueue<T> {
+
+    private static final Consumer<Object> IGNORE = v -> {
+    };
+
+    private final int capacityInItems;
+    private final long capacityInBits;
+    private final Function<? super T, Integer> contentSizeConverter;
+    // the items with their sizes
+    private final RingBuffer<T> normalQueue = new RingBuffer<>(1), priorityQueue = new RingBuffer<>(1);
+    private int size = 0;
+    private long sizeInBits = 0;
+
+    /**
+     * Creates a queue without limits, see {@link UnlimitedQueue}.
+     */
+    public RingBufferQueue() {
+        this(Integer.MAX_VALUE, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Creates a queue limited by the number of items, see
+     * {@link ItemLimitedQueue}.
+     *
+     * @param capacityInItems the maximum number of items
+     */
+    public RingBufferQueue(int capacityInItems) {
+        this(capacityInItems, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Creates a queue limited by the size of the items, see
+     * {@link SizeLimitedQueue}.
+     *
+     * @param capacityInBits the maximum size of the items
+     * @param contentSizeConverter gets the size of an item, called once per
+     * item
+     */
+    public RingBufferQueue(long capacityInBits, Function<? super T, Integer> contentSizeConverter) {
+        this(Integer.MAX_VALUE, capacityInBits, contentSizeConverter);
+    }
+
+    /**
+     * Creates a queue limited by both the number and the size of the items.
+     *
+     * @param capacityInItems the maximum number of items
+     * @param capacityInBits the maximum size of the items
+     * @param contentSizeConverter gets the size of an item, called once per
+     * item, null if the items have no size
+     */
+    public RingBufferQueue(int capacityInItems, long capacityInBits, Function<? super T, Integer> contentSizeConverter) {
+        if (capacityInItems <= 0) {
+            throw new IllegalArgumentException("Capacity should be > 0, capacity=" + capacityInItems);
+        }
+        if (capacityInBits < Long.MAX_VALUE && contentSizeConverter == null) {
+            throw new IllegalArgumentException("A size limited queue needs a content size converter");
+        }
+        this.capacityInItems = capacityInItems;
+        this.capacityInBits = capacityInBits;
+        this.contentSizeConverter = contentSizeConverter;
+    }
+
+    @Override
+    public void enQueue(T val, boolean prioritized) {
+        enQueue(val, prioritized, IGNORE);
+    }
+
+    @Override
+    public void enQueue(T val, boolean prioritized, Consumer<? super T> consumer) {
+        int sz = contentSizeConverter == null ? 0 : contentSizeConverter.apply(val);
+        long requiredSize = capacityInBits - sz;
+        // we have enough space to place the data
+        if (size < capacityInItems && sizeInBits <= requiredSize) {
+            (prioritized ? priorityQueue : normalQueue).offer(val, sz);
+            sizeInBits += sz;
+            size++;
+            return;
+        }
+        // if the target is not prioritized, and we don't have space, discard it
+        if (!prioritized) {
+            consumer.accept(val);
+            return;
+        }
+        // remove some normal data to fit the prioritized data in
+        while (size >= capacityInItems || sizeInBits > requiredSize) {
+            // now we have drained the normal queue, but we still cannot fit in
+            // the prioritized data, discard it and all the data in the normal queue
+            if (normalQueue.size() == 0) {
+                consumer.accept(val);
+                return;
+            }
+            sizeInBits -= normalQueue.peekLastValue(0);
+            size--;
+            consumer.accept(normalQueue.pollLast());
+        }
+        // now we have enough space to place the prioritized data
+        priorityQueue.offer(val, sz);
+        sizeInBits += sz;
+        size++;
+    }
+
+    @Override
+    public T deQueue() {
+        RingBuffer<T> queue = priorityQueue.size() > 0 ? priorityQueue : normalQueue;
+        if (queue.size() == 0) {
+            return null;
+        }
+        sizeInBits -= queue.peekValue(0);
+        size--;
+        return queue.poll();
+    }
+
+    @Override
+    public void clear(Consumer<? super T> consumer) {
+        priorityQueue.forEach(consumer);
+        normalQueue.forEach(consumer);
+        clear();
+    }
+
+    @Override
+    public void clear() {
+        priorityQueue.clear();
+        normalQueue.clear();
+        size = 0;
+        sizeInBits = 0;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public Stream<T> stream() {
+        return Stream.concat(priorityQueue.stream(), normalQueue.stream());
+    }
+
+    // the size of the data retrieved by the next deQueue, -1 if the queue is empty
+    int peekSize() {
+        RingBuffer<T> queue = priorityQueue.size() > 0 ? priorityQueue : normalQueue;
+        return queue.size() == 0 ? -1 : (int) queue.peekValue(0);
+    }
+
+    public int getCapacityInItems() {
+        return capacityInItems;
+    }
+
+    public long getCapacityInBits() {
+        return capacityInBits;
+    }
+
+    public long getSizeInBits() {
+        return sizeInBits;
+    }
+}
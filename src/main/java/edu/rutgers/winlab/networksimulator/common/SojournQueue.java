@@ -0,0 +1,272 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Records the sojourn time (the time from enQueue to deQueue) of each data
+ * in a queue. The data is stamped when it is added, the sojourn time is added
+ * into a histogram in constant memory when the data is retrieved. The data
+ * dropped or cleared by the queue is not recorded.
+ *
+ * The stamps are kept in two rings (prioritized and normal) in the order the
+ * data is added, so that stamping does not allocate. The data is identified by
+ * reference, a data added more than once is retrieved with its earliest stamp
+ * first. The time is the time line bound
+ * to the current thread ({@link Timeline#nowInUs()}).
+ *
+ * @author Jiachen Chen
+ * @param <V>
+ */
+public class SojournQueue<V> implements PrioritizedQueue<V> {
+
+    /**
+     * The histogram of the sojourn times. The times are kept in logarithmic
+     * buckets (0, 1, 2-3, 4-7, ... us), the percentiles are interpolated in
+     * the buckets.
+     */
+    public static final class Histogram implements Serializable {
+
+        private static final int BUCKETS = 64;
+
+        private final long[] counts = new long[BUCKETS];
+        private long count = 0, maxInUs = 0;
+        private double sumInUs = 0;
+
+        public static int bucket(long timeInUs) {
+            return timeInUs <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(timeInUs);
+        }
+
+        public static long getBucketLowInUs(int bucket) {
+            return bucket == 0 ? 0 : 1L << (bucket - 1);
+        }
+
+        public static long getBucketHighInUs(int bucket) {
+            return bucket == 0 ? 0 : bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+        }
+
+        public void add(long timeInUs) {
+            timeInUs = Math.max(0, timeInUs);
+            counts[bucket(timeInUs)]++;
+            count++;
+            sumInUs += timeInUs;
+            maxInUs = Math.max(maxInUs, timeInUs);
+        }
+
+        /**
+         * Adds the times in another histogram, e.g., to aggregate the queues
+         * of a router.
+         *
+         * @param another the histogram
+         */
+        public void addAll(Histogram another) {
+            for (int b = 0; b < BUCKETS; b++) {
+                counts[b] += another.counts[b];
+            }
+            count += another.count;
+            sumInUs += another.sumInUs;
+            maxInUs = Math.max(maxInUs, another.maxInUs);
+        }
+
+        public void clear() {
+            Arrays.fill(counts, 0);
+            count = maxInUs = 0;
+            sumInUs = 0;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getBucketCount(int bucket) {
+            return counts[bucket];
+        }
+
+        public int getBucketCount() {
+            return BUCKETS;
+        }
+
+        /**
+         * Visits the non-empty buckets in the order of the times.
+         *
+         * @param consumer called with the low and high time (inclusive) of the
+         * bucket, and the number of data in it
+         */
+        public void forEachBucket(TriConsumer<Long, Long, Long> consumer) {
+            for (int b = 0; b < BUCKETS; b++) {
+                if (counts[b] > 0) {
+                    consumer.accept(getBucketLowInUs(b), getBucketHighInUs(b), counts[b]);
+                }
+            }
+        }
+
+        public long getMaxInUs() {
+            return maxInUs;
+        }
+
+        /**
+         * Gets the mean sojourn time.
+         *
+         * @return the mean time, 0 if no data is recorded
+         */
+        public double getMeanInUs() {
+            return count == 0 ? 0 : sumInUs / count;
+        }
+
+        /**
+         * Gets the time that a fraction of the data does not stay longer than.
+         *
+         * @param fraction the fraction, in [0, 1]
+         * @return the time, interpolated in its bucket, 0 if no data is
+         * recorded
+         */
+        public double getPercentileInUs(double fraction) {
+            double target = fraction * count;
+            long cumulated = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                if (counts[b] > 0 && cumulated + counts[b] >= target) {
+                    if (b == 0) {
+                        return 0;
+                    }
+                    double low = getBucketLowInUs(b), high = Math.min(getBucketHighInUs(b), maxInUs);
+                    return low + (high - low) * (target - cumulated) / counts[b];
+                }
+                cumulated += counts[b];
+            }
+            return maxInUs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d,mean=%.1f,p50=%.1f,p99=%.1f,max=%d",
+                    count, getMeanInUs(), getPercentileInUs(0.5), getPercentileInUs(0.99), maxInUs);
+        }
+    }
+
+    private final PrioritizedQueue<V> innerQueue;
+    private final Histogram histogram = new Histogram();
+    // the data in the queue in the order they are added, with the time they are added
+    // the data removed from the middle of a ring are left as null
+    private final RingBuffer<V> prioritizedStamps = new RingBuffer<>(1), normalStamps = new RingBuffer<>(1);
+    // the data dropped on enQueue are at the tail of a ring, on deQueue at the head
+    private final Consumer<V> tailUnstamper = (Consumer<V> & Serializable) v -> unstamp(v, true),
+            headUnstamper = (Consumer<V> & Serializable) v -> unstamp(v, false);
+
+    public SojournQueue(PrioritizedQueue<V> innerQueue) {
+        this.innerQueue = innerQueue;
+    }
+
+    public Histogram getHistogram() {
+        return histogram;
+    }
+
+    @Override
+    public Histogram getSojourn() {
+        return histogram;
+    }
+
+    private void stamp(V val, boolean prioritized, long nowInUs) {
+        (prioritized ? prioritizedStamps : normalStamps).offer(val, nowInUs);
+    }
+
+    // removes the stamp at an index, returns the stamp
+    private static <V> long remove(RingBuffer<V> stamps, int index) {
+        long ret = stamps.getValue(index, 0);
+        stamps.set(index, null);
+        while (stamps.size() > 0 && stamps.peek() == null) {
+            stamps.poll();
+        }
+        while (stamps.size() > 0 && stamps.get(stamps.size() - 1) == null) {
+            stamps.pollLast();
+        }
+        return ret;
+    }
+
+    // the index of the earliest (latest if fromTail) stamp of a data, -1 if not found
+    private static <V> int find(RingBuffer<V> stamps, V val, boolean fromTail) {
+        int size = stamps.size();
+        for (int i = 0; i < size; i++) {
+            int index = fromTail ? size - 1 - i : i;
+            if (stamps.get(index) == val) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    // returns the stamp of the data, Long.MIN_VALUE if not stamped
+    private long unstamp(V val, boolean fromTail) {
+        int index = find(prioritizedStamps, val, fromTail);
+        if (index >= 0) {
+            return remove(prioritizedStamps, index);
+        }
+        index = find(normalStamps, val, fromTail);
+        return index >= 0 ? remove(normalStamps, index) : Long.MIN_VALUE;
+    }
+
+    private V retrieved(V val) {
+        if (val != null) {
+            long stamp = unstamp(val, false);
+            if (stamp != Long.MIN_VALUE) {
+                histogram.add(Timeline.nowInUs() - stamp);
+            }
+        }
+        return val;
+    }
+
+    @Override
+    public void enQueue(V val, boolean prioritized) {
+        // stamped first, the data itself may be dropped
+        stamp(val, prioritized, Timeline.nowInUs());
+        innerQueue.enQueue(val, prioritized, tailUnstamper);
+    }
+
+    @Override
+    public void enQueue(V val, boolean prioritized, Consumer<? super V> consumer) {
+        stamp(val, prioritized, Timeline.nowInUs());
+        innerQueue.enQueue(val, prioritized, v -> {
+            unstamp(v, true);
+            consumer.accept(v);
+        });
+    }
+
+    @Override
+    public V deQueue() {
+        // an active queue may drop data silently
+        return retrieved(innerQueue.deQueue(headUnstamper));
+    }
+
+    @Override
+    public V deQueue(Consumer<? super V> consumer) {
+        return retrieved(innerQueue.deQueue(v -> {
+            unstamp(v, false);
+            consumer.accept(v);
+        }));
+    }
+
+    @Override
+    public void clear(Consumer<? super V> consumer) {
+        innerQueue.clear(consumer);
+        prioritizedStamps.clear();
+        normalStamps.clear();
+    }
+
+    @Override
+    public void clear() {
+        innerQueue.clear();
+        prioritizedStamps.clear();
+        normalStamps.clear();
+    }
+
+    @Override
+    public int getSize() {
+        return innerQueue.getSize();
+    }
+
+    @Override
+    public Stream<V> stream() {
+        return innerQueue.stream();
+    }
+}
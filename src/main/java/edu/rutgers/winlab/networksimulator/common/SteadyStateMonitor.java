@@ -0,0 +1,458 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Measures the steady state of a run on a {@link Timeline} with batch means.
+ * The run is divided into batches of a fixed simulated duration, the value of
+ * a metric in each batch is:
+ * <ul>
+ * <li>the mean of the observations (e.g., delivery latency), see
+ * {@link #addObservation(String)},</li>
+ * <li>the time-weighted mean of a level (e.g., a queue size), see
+ * {@link #addLevel(String)} and {@link #queueSizeHandler()},</li>
+ * <li>the increase of a counter per second (e.g., the bits sent on the
+ * links), see {@link #addCounter(String, LongSupplier)}.</li>
+ * </ul>
+ *
+ * The batches in the warm-up period are discarded. The warm-up is either a
+ * fixed duration, or detected with the MSER rule: it ends at the first batch
+ * boundary where the MSER truncation point of every metric is in the first
+ * quarter of its batches, i.e., the recent batches look stationary. The
+ * warm-up handler is called when the warm-up ends, e.g., to reset other
+ * statistics.
+ *
+ * If a metric has a precision target, the run is stopped (see
+ * {@link Timeline#stop()}) once the confidence intervals of all such metrics
+ * are tight enough.
+ *
+ * The monitor adds an event at each batch boundary, and stops adding them when
+ * no other event is pending. Its events are background events (see
+ * {@link Timeline#addBackgroundEvents(int)}), so that multiple monitors on a
+ * time line do not keep each other running.
+ *
+ * @author Jiachen Chen
+ */
+public class SteadyStateMonitor {
+
+    public static final int DEFAULT_MIN_BATCHES = 10;
+
+    /**
+     * A metric measured in batches.
+     */
+    public static final class Metric {
+
+        private final SteadyStateMonitor monitor;
+        private final String name;
+        // null if not a counter
+        private final LongSupplier counter;
+        private final boolean timeWeighted;
+        private final ArrayList<Double> batchMeans = new ArrayList<>();
+        private double relativePrecision = 0;
+        // the current batch
+        private double sum = 0;
+        private long count = 0;
+        private double level = 0;
+        private long levelSince;
+        private long counterStart;
+        // the batches before are in the warm-up
+        private int firstBatch = 0;
+
+        private Metric(SteadyStateMonitor monitor, String name, LongSupplier counter, boolean timeWeighted) {
+            this.monitor = monitor;
+            this.name = name;
+            this.counter = counter;
+            this.timeWeighted = timeWeighted;
+            levelSince = monitor.batchStart;
+            counterStart = counter == null ? 0 : counter.getAsLong();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Adds an observation in the current batch.
+         *
+         * @param value the value
+         */
+        public void record(double value) {
+            if (timeWeighted || counter != null) {
+                throw new IllegalStateException(String.format("Metric %s is not an observation.", name));
+            }
+            sum += value;
+            count++;
+        }
+
+        /**
+         * Changes the level from now on.
+         *
+         * @param value the new level
+         */
+        public void update(double value) {
+            if (!timeWeighted) {
+                throw new IllegalStateException(String.format("Metric %s is not a level.", name));
+            }
+            long now = monitor.timeline.now();
+            sum += level * (now - levelSince);
+            level = value;
+            levelSince = now;
+        }
+
+        // closes the current batch at the time
+        private void closeBatch(long time) {
+            double mean;
+            if (counter != null) {
+                long value = counter.getAsLong();
+                mean = (double) (value - counterStart) * Timeline.SECOND / monitor.batchDurationInUs;
+                counterStart = value;
+            } else if (timeWeighted) {
+                mean = (sum + level * (time - levelSince)) / monitor.batchDurationInUs;
+                levelSince = time;
+            } else {
+                // an empty batch has no mean
+                mean = count == 0 ? Double.NaN : sum / count;
+            }
+            if (!Double.isNaN(mean)) {
+                batchMeans.add(mean);
+            }
+            sum = 0;
+            count = 0;
+        }
+
+        public double getRelativePrecision() {
+            return relativePrecision;
+        }
+
+        /**
+         * Sets the precision target of the metric.
+         *
+         * @param relativePrecision the maximum half width of the confidence
+         * interval relative to the mean, 0 if the metric does not decide when
+         * the run stops.
+         */
+        public void setRelativePrecision(double relativePrecision) {
+            if (relativePrecision < 0) {
+                throw new IllegalArgumentException("Relative precision should be >= 0, precision=" + relativePrecision);
+            }
+            this.relativePrecision = relativePrecision;
+        }
+
+        /**
+         * Gets the number of batches after the warm-up.
+         *
+         * @return the number of batches
+         */
+        public int getBatchCount() {
+            return batchMeans.size() - firstBatch;
+        }
+
+        public double getMean() {
+            return mean(firstBatch);
+        }
+
+        private double mean(int from) {
+            double s = 0;
+            for (int i = from; i < batchMeans.size(); i++) {
+                s += batchMeans.get(i);
+            }
+            return s / (batchMeans.size() - from);
+        }
+
+        /**
+         * Gets the half width of the confidence interval of the mean.
+         *
+         * @return the half width, NaN if there are less than 2 batches.
+         */
+        public double getHalfWidth() {
+            int n = getBatchCount();
+            if (n < 2) {
+                return Double.NaN;
+            }
+            double mean = getMean(), s = 0;
+            for (int i = firstBatch; i < batchMeans.size(); i++) {
+                double d = batchMeans.get(i) - mean;
+                s += d * d;
+            }
+            return studentQuantile(monitor.confidence, n - 1) * Math.sqrt(s / (n - 1) / n);
+        }
+
+        // the half width is within the precision target
+        private boolean isPrecise() {
+            if (getBatchCount() < monitor.minBatches) {
+                return false;
+            }
+            double halfWidth = getHalfWidth(), mean = Math.abs(getMean());
+            return halfWidth <= relativePrecision * mean || halfWidth == 0;
+        }
+
+        // the MSER truncation point of the batches
+        private int truncationPoint() {
+            int n = batchMeans.size(), best = 0;
+            double bestValue = Double.MAX_VALUE;
+            for (int d = 0; d <= n / 2; d++) {
+                double mean = mean(d), s = 0;
+                for (int i = d; i < n; i++) {
+                    double diff = batchMeans.get(i) - mean;
+                    s += diff * diff;
+                }
+                double value = s / ((double) (n - d) * (n - d));
+                if (value < bestValue) {
+                    bestValue = value;
+                    best = d;
+                }
+            }
+            return best;
+        }
+
+        public void forEachBatchMean(Consumer<? super Double> consumer) {
+            batchMeans.subList(firstBatch, batchMeans.size()).forEach(consumer);
+        }
+
+        public Stream<Double> batchMeanStream() {
+            return batchMeans.subList(firstBatch, batchMeans.size()).stream();
+        }
+    }
+
+    private static final EventHandler<SteadyStateMonitor> CLOSE_BATCH = (m, value) -> m.closeBatch();
+
+    /**
+     * Gets the quantile of the Student's t distribution used in the two-sided
+     * confidence interval, with the normal quantile and the Cornish-Fisher
+     * expansion.
+     *
+     * @param confidence the confidence level, in (0, 1)
+     * @param degrees the degrees of freedom, &gt; 0
+     * @return the quantile
+     */
+    public static double studentQuantile(double confidence, int degrees) {
+        // Abramowitz and Stegun 26.2.23, the upper tail p = (1 - confidence) / 2
+        double t = Math.sqrt(-2 * Math.log((1 - confidence) / 2));
+        double z = t - (2.515517 + 0.802853 * t + 0.010328 * t * t)
+                / (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+        double z3 = z * z * z, z5 = z3 * z * z, v = degrees;
+        return z + (z3 + z) / (4 * v) + (5 * z5 + 16 * z3 + 3 * z) / (96 * v * v)
+                + (3 * z5 * z * z + 19 * z5 + 17 * z3 - 15 * z) / (384 * v * v * v);
+    }
+
+    private final Timeline timeline;
+    private final long batchDurationInUs;
+    private final LinkedHashMap<String, Metric> metrics = new LinkedHashMap<>();
+    private double confidence = 0.95;
+    private int minBatches = DEFAULT_MIN_BATCHES;
+    // negative for automatic detection
+    private long warmUpInUs = -1;
+    private long warmUpEndInUs = Long.MIN_VALUE;
+    private Consumer<? super SteadyStateMonitor> warmUpHandler = m -> {
+    };
+    private long batchStart;
+    private int batches = 0;
+    private boolean running = false;
+    private boolean converged = false;
+
+    /**
+     * Creates a monitor that starts at the current time (or 0 if the time line
+     * is not started).
+     *
+     * @param timeline the time line
+     * @param batchDurationInUs the simulated duration of a batch
+     */
+    public SteadyStateMonitor(Timeline timeline, long batchDurationInUs) {
+        if (batchDurationInUs <= 0) {
+            throw new IllegalArgumentException("Batch duration should be > 0, duration=" + batchDurationInUs);
+        }
+        this.timeline = timeline;
+        this.batchDurationInUs = batchDurationInUs;
+        this.batchStart = Math.max(timeline.now(), 0);
+    }
+
+    public long getBatchDurationInUs() {
+        return batchDurationInUs;
+    }
+
+    private Metric addMetric(String name, LongSupplier counter, boolean timeWeighted) {
+        if (metrics.containsKey(name)) {
+            throw new IllegalArgumentException(String.format("Metric %s already exists.", name));
+        }
+        Metric m = new Metric(this, name, counter, timeWeighted);
+        metrics.put(name, m);
+        return m;
+    }
+
+    public Metric addObservation(String name) {
+        return addMetric(name, null, false);
+    }
+
+    public Metric addLevel(String name) {
+        return addMetric(name, null, true);
+    }
+
+    public Metric addCounter(String name, LongSupplier counter) {
+        return addMetric(name, counter, false);
+    }
+
+    public Metric getMetric(String name) {
+        return metrics.get(name);
+    }
+
+    public void forEachMetric(Consumer<? super Metric> consumer) {
+        metrics.values().forEach(consumer);
+    }
+
+    public Stream<Metric> metricStream() {
+        return metrics.values().stream();
+    }
+
+    /**
+     * Gets a size changed handler for {@link ReportingQueue}, the size of
+     * each queue is a level metric named after the queue.
+     *
+     * @return the handler
+     */
+    public BiConsumer<String, Integer> queueSizeHandler() {
+        return (name, size) -> {
+            Metric m = metrics.get(name);
+            if (m == null) {
+                m = addLevel(name);
+            }
+            m.update(size);
+        };
+    }
+
+    public double getConfidence() {
+        return confidence;
+    }
+
+    public void setConfidence(double confidence) {
+        if (confidence <= 0 || confidence >= 1) {
+            throw new IllegalArgumentException("Confidence should be in (0, 1), confidence=" + confidence);
+        }
+        this.confidence = confidence;
+    }
+
+    public int getMinBatches() {
+        return minBatches;
+    }
+
+    /**
+     * Sets the minimum number of batches after the warm-up, before the
+     * precision is checked, and before the warm-up is detected.
+     *
+     * @param minBatches the minimum number of batches, &gt;= 2
+     */
+    public void setMinBatches(int minBatches) {
+        if (minBatches < 2) {
+            throw new IllegalArgumentException("Min batches should be >= 2, batches=" + minBatches);
+        }
+        this.minBatches = minBatches;
+    }
+
+    /**
+     * Sets a fixed warm-up period.
+     *
+     * @param warmUpInUs the duration since the start of the monitor, rounded
+     * up to a batch boundary, negative to detect the warm-up automatically
+     * (default).
+     */
+    public void setWarmUpInUs(long warmUpInUs) {
+        this.warmUpInUs = warmUpInUs;
+    }
+
+    public void setWarmUpHandler(Consumer<? super SteadyStateMonitor> warmUpHandler) {
+        this.warmUpHandler = warmUpHandler;
+    }
+
+    public boolean isWarmedUp() {
+        return warmUpEndInUs != Long.MIN_VALUE;
+    }
+
+    /**
+     * Gets the end of the warm-up.
+     *
+     * @return the time, Long.MIN_VALUE if the warm-up has not ended.
+     */
+    public long getWarmUpEndInUs() {
+        return warmUpEndInUs;
+    }
+
+    /**
+     * Checks if the run is stopped because the metrics are precise enough.
+     *
+     * @return true if all the precision targets are met
+     */
+    public boolean isConverged() {
+        return converged;
+    }
+
+    /**
+     * Starts closing the batches, the first batch ends one batch duration
+     * after the start of the monitor.
+     */
+    public void start() {
+        if (!running) {
+            running = true;
+            scheduleCloseBatch(batchStart + batchDurationInUs);
+        }
+    }
+
+    private void scheduleCloseBatch(long time) {
+        timeline.addBackgroundEvents(1);
+        timeline.schedule(time, CLOSE_BATCH, this, 0);
+    }
+
+    private void closeBatch() {
+        timeline.addBackgroundEvents(-1);
+        long time = timeline.now();
+        metrics.values().forEach(m -> m.closeBatch(time));
+        batches++;
+        batchStart = time;
+        if (!isWarmedUp()) {
+            checkWarmUp(time);
+        }
+        if (isWarmedUp() && metrics.values().stream().anyMatch(m -> m.relativePrecision > 0)
+                && metrics.values().stream().filter(m -> m.relativePrecision > 0).allMatch(Metric::isPrecise)) {
+            converged = true;
+            running = false;
+            timeline.stop();
+            return;
+        }
+        // other events are pending
+        if (timeline.foregroundSize() > 0) {
+            scheduleCloseBatch(time + batchDurationInUs);
+        } else {
+            running = false;
+        }
+    }
+
+    private void checkWarmUp(long time) {
+        if (warmUpInUs >= 0) {
+            if ((long) batches * batchDurationInUs < warmUpInUs) {
+                return;
+            }
+        } else if (batches < minBatches || !metrics.values().stream().allMatch(m -> m.batchMeans.size() >= minBatches
+                && m.truncationPoint() <= m.batchMeans.size() / 4)) {
+            return;
+        }
+        // the statistics are reset
+        metrics.values().forEach(m -> m.firstBatch = m.batchMeans.size());
+        warmUpEndInUs = time;
+        warmUpHandler.accept(this);
+    }
+
+    /**
+     * Writes the statistics of the metrics as a tab separated table.
+     *
+     * @param ps the stream to write to
+     */
+    public void writeTable(PrintStream ps) {
+        ps.println("Metric\tBatches\tMean\tHalfWidth");
+        metrics.values().forEach(m -> ps.printf("%s\t%d\t%.6g\t%.6g%n", m.name, m.getBatchCount(), m.getMean(), m.getHalfWidth()));
+        ps.printf("WarmUpEnd\t%s%n", isWarmedUp() ? Long.toString(warmUpEndInUs) : "-");
+    }
+}
@@ -0,0 +1,40 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Order independent digest of a set of outputs (e.g., the deliveries of a
+ * run). Each output is hashed from its parts, and the hashes are summed, so
+ * that the outputs can be added from different threads.
+ *
+ * @author Jiachen Chen
+ */
+public class SummaryDigest implements Serializable {
+
+    private final LongAdder value = new LongAdder();
+    private final LongAdder count = new LongAdder();
+
+    public void add(long timeInUs, long source, long key) {
+        value.add(EventDigest.mix(EventDigest.mix(EventDigest.mix(timeInUs) + source) + key));
+        count.increment();
+    }
+
+    public long getValue() {
+        return value.sum();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public void reset() {
+        value.reset();
+        count.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x/%d", getValue(), getCount());
+    }
+}
@@ -1,15 +1,33 @@
 package edu.rutgers.winlab.networksimulator.common;
 
-import java.util.PriorityQueue;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Consumer;
 
 /**
- * Basic time line implementation. Using Priority queue as inner data structure.
- * Keeps the adding order.
+ * Basic time line implementation. The pending events are kept in an
+ * {@link EventScheduler} (a calendar queue by default). Keeps the adding order.
+ *
+ * Each time line is an independent simulation clock. The static methods
+ * operate on the time line bound to the current thread (see
+ * {@link #setCurrent(Timeline)}), or the default time line if no time line is
+ * bound, so that independent simulations can run on different threads.
+ *
+ * Events at least one tick (about 1 second) later than now are kept in a
+ * {@link TimingWheel} until their tick comes. The events added with a consumer
+ * (and {@link #scheduleCancellable}) return a handle that can be cancelled.
+ *
+ * A paused time line can be serialized with its pending events, whose
+ * handlers and parameters should be serializable. The profiler, recorder,
+ * digest and watchdog are not kept.
  *
  * @author Jiachen Chen
  */
-public class Timeline {
+public class Timeline implements Serializable {
 
     public static final long MS_IN_SECOND = 1000;
     public static final long US_IN_MS = 1000;
@@ -22,80 +40,762 @@ public class Timeline {
     public static final long DAY = 24 * HOUR;
 
     private static final Timeline TIMELINE = new Timeline();
+    private static final ThreadLocal<Timeline> CURRENT = new ThreadLocal<>();
 
+    /**
+     * Gets the process-wide default time line.
+     *
+     * @return the default time line
+     */
     public static Timeline getDefault() {
         return TIMELINE;
     }
 
-    public static void addEvent(long timeInUs, Consumer<Object[]> e, Object... params) {
-        getDefault().innerAddEvent(timeInUs, e, params);
+    /**
+     * Gets the time line bound to the current thread.
+     *
+     * @return the bound time line, the default time line if none is bound.
+     */
+    public static Timeline getCurrent() {
+        Timeline t = CURRENT.get();
+        return t == null ? TIMELINE : t;
+    }
+
+    /**
+     * Binds a time line to the current thread.
+     *
+     * @param timeline the time line to bind, null to unbind.
+     * @return the time line previously bound, null if none.
+     */
+    public static Timeline setCurrent(Timeline timeline) {
+        Timeline ret = CURRENT.get();
+        if (timeline == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(timeline);
+        }
+        return ret;
+    }
+
+    public static TimelineEvent addEvent(long timeInUs, Consumer<Object[]> e, Object... params) {
+        return getCurrent().schedule(timeInUs, e, params);
+    }
+
+    public static <T> void addEvent(long timeInUs, EventHandler<? super T> handler, T payload, long value) {
+        getCurrent().schedule(timeInUs, handler, payload, value);
     }
 
     public static long run() {
-        return getDefault().innerRun();
+        return getCurrent().execute();
+    }
+
+    public static int runUntil(long timeInUs) {
+        return getCurrent().executeUntil(timeInUs);
+    }
+
+    public static int runEvents(int count) {
+        return getCurrent().executeEvents(count);
+    }
+
+    public static long runAll() {
+        return getCurrent().executeAll();
     }
 
     public static long nowInUs() {
-        return getDefault().innerNowInUs();
+        return getCurrent().now();
     }
 
     public static int getSize() {
-        return getDefault().innerGetSize();
+        return getCurrent().size();
+    }
+
+    public static EventScheduler getScheduler() {
+        return getCurrent().getEventScheduler();
     }
 
-    private Timeline() {
+    public static void setScheduler(EventScheduler scheduler) {
+        getCurrent().setEventScheduler(scheduler);
     }
 
-    private final PriorityQueue<TimelineEvent> events = new PriorityQueue<>();
+    private EventScheduler scheduler;
     private long now = Long.MIN_VALUE;
     private long serial = 0;
+    // the serial of the running (or the last) event of the sequential runs,
+    // the next serial if the clock is moved without an event
+    private long runningSerial = -1;
+    // the pending periodic events that do not keep the simulation going
+    private int backgroundEvents = 0;
+    private transient EventPool pool = new EventPool();
+    private final TimingWheel wheel = new TimingWheel();
+    // not null during a parallel run
+    private transient ParallelExecutor parallel = null;
+    private transient EventProfiler profiler = null;
+    private transient EventRecorder recorder = null;
+    private transient EventDigest digest = null;
+    private transient EventWatchdog watchdog = null;
+    private transient EventSpill spill = null;
+    // stop the sequential run after the current event
+    private transient boolean stopping = false;
+    // the last run is stopped before its bounds
+    private transient boolean stopped = false;
+    // any of the profiler, recorder, digest and watchdog is set
+    private transient boolean observed = false;
+    // the latest time the clock can be advanced to by the running event, see tryAdvance
+    private transient long advanceLimitInUs = Long.MIN_VALUE;
 
-    private void innerAddEvent(long timeInUs, Consumer<Object[]> e, Object... params) {
+    public Timeline() {
+        this(new CalendarEventScheduler());
+    }
+
+    public Timeline(EventScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Schedules an event with a consumer.
+     *
+     * @param timeInUs the time of the event
+     * @param e the consumer
+     * @param params the parameters passed to the consumer
+     * @return the event, can be cancelled before it is executed
+     */
+    public TimelineEvent schedule(long timeInUs, Consumer<Object[]> e, Object... params) {
+        if (parallel != null) {
+            return parallel.schedule(timeInUs, e, params);
+        }
+        checkTime(timeInUs);
+        return add(new TimelineEvent(serial++, timeInUs, e, params));
+    }
+
+    /**
+     * Schedules an event with a typed handler. The event is recycled after it
+     * is executed, scheduling with a reused handler does not allocate.
+     *
+     * @param <T> the type of the payload
+     * @param timeInUs the time of the event
+     * @param handler the event handler
+     * @param payload the payload passed to the handler
+     * @param value the value passed to the handler
+     */
+    public <T> void schedule(long timeInUs, EventHandler<? super T> handler, T payload, long value) {
+        if (parallel != null) {
+            parallel.schedule(timeInUs, handler, payload, value);
+            return;
+        }
+        checkTime(timeInUs);
+        add(pool.get(serial++, timeInUs, handler, payload, value));
+    }
+
+    /**
+     * Schedules an event with a typed handler, and returns the event so that
+     * it can be cancelled. The event is not recycled. Suitable for timers that
+     * usually end up cancelled.
+     *
+     * @param <T> the type of the payload
+     * @param timeInUs the time of the event
+     * @param handler the event handler
+     * @param payload the payload passed to the handler
+     * @param value the value passed to the handler
+     * @return the event
+     */
+    public <T> TimelineEvent scheduleCancellable(long timeInUs, EventHandler<? super T> handler, T payload, long value) {
+        if (parallel != null) {
+            return parallel.scheduleCancellable(timeInUs, handler, payload, value);
+        }
+        checkTime(timeInUs);
+        return add(new TimelineEvent().set(serial++, timeInUs, handler, payload, value));
+    }
+
+    /**
+     * Reserves the serial of an event that is scheduled later with
+     * {@link #scheduleReserved(long, long, EventHandler, Object, long)}. The
+     * event is ordered among the events at the same time as if it was
+     * scheduled now, e.g., to keep only the head of a FIFO of events in the
+     * time line.
+     *
+     * @return the serial
+     */
+    public long reserveSerial() {
+        if (parallel != null) {
+            throw new IllegalStateException("Cannot reserve a serial in a parallel run.");
+        }
+        return serial++;
+    }
+
+    /**
+     * Schedules an event with a typed handler and a reserved serial, see
+     * {@link #reserveSerial()}.
+     *
+     * @param <T> the type of the payload
+     * @param serial the reserved serial
+     * @param timeInUs the time of the event
+     * @param handler the event handler
+     * @param payload the payload passed to the handler
+     * @param value the value passed to the handler
+     */
+    public <T> void scheduleReserved(long serial, long timeInUs, EventHandler<? super T> handler, T payload, long value) {
+        if (parallel != null) {
+            throw new IllegalStateException("Cannot schedule with a reserved serial in a parallel run.");
+        }
+        if (serial >= this.serial) {
+            throw new IllegalArgumentException(String.format("The serial is not reserved, serial=%d, next=%d", serial, this.serial));
+        }
+        checkTime(timeInUs);
+        add(pool.get(serial, timeInUs, handler, payload, value));
+    }
 
+    /**
+     * Schedules an event with a typed handler and a reserved serial, and
+     * returns the event so that it can be cancelled, see
+     * {@link #reserveSerial()} and
+     * {@link #scheduleCancellable(long, EventHandler, Object, long)}. E.g., to
+     * schedule a cancelled event again in its original order.
+     *
+     * @param <T> the type of the payload
+     * @param serial the reserved serial
+     * @param timeInUs the time of the event
+     * @param handler the event handler
+     * @param payload the payload passed to the handler
+     * @param value the value passed to the handler
+     * @return the event
+     */
+    public <T> TimelineEvent scheduleReservedCancellable(long serial, long timeInUs, EventHandler<? super T> handler, T payload, long value) {
+        if (parallel != null) {
+            throw new IllegalStateException("Cannot schedule with a reserved serial in a parallel run.");
+        }
+        if (serial >= this.serial) {
+            throw new IllegalArgumentException(String.format("The serial is not reserved, serial=%d, next=%d", serial, this.serial));
+        }
+        checkTime(timeInUs);
+        return add(new TimelineEvent().set(serial, timeInUs, handler, payload, value));
+    }
+
+    /**
+     * Checks if an event with the time and the serial would have been
+     * executed by now, i.e., it is ordered before the running event (or the
+     * last event if the time line is paused). The events of a finished run are
+     * all passed.
+     *
+     * @param timeInUs the time of the event
+     * @param serial the serial of the event
+     * @return true if the event would have been executed
+     */
+    public boolean isPassed(long timeInUs, long serial) {
+        if (parallel != null) {
+            throw new IllegalStateException("Cannot compare with the running event in a parallel run.");
+        }
+        return now == Long.MIN_VALUE || timeInUs < now || timeInUs == now && serial <= runningSerial;
+    }
+
+    /**
+     * Checks if the time line is running in parallel, see
+     * {@link #executeParallel(int, long)}.
+     *
+     * @return true during a parallel run
+     */
+    public boolean isParallel() {
+        return parallel != null;
+    }
+
+    private TimelineEvent add(TimelineEvent e) {
+        if (spill == null || !spill.add(this, e, now)) {
+            addInMemory(e);
+        }
+        return e;
+    }
+
+    // adds an event into the wheel or the scheduler, also used by the spill to add back the events
+    void addInMemory(TimelineEvent e) {
+        if (!wheel.add(e, now)) {
+            scheduler.add(e);
+        }
+    }
+
+    // used by the spill to recycle the events written to the disk
+    void recycle(TimelineEvent e) {
+        pool.recycle(e);
+    }
+
+    // the next event to execute, the due events in the wheel are moved into the scheduler first
+    private TimelineEvent peekNext() {
+        while (true) {
+            TimelineEvent e = scheduler.peek();
+            if (wheel.size() > 0
+                    && (e == null ? wheel.promoteNext(scheduler) : wheel.promoteUntil(e.timeInUs, scheduler))) {
+                continue;
+            }
+            if (spill != null && spill.size() > 0 && reloadSpill(e)) {
+                continue;
+            }
+            if (e == null || !e.cancelled) {
+                return e;
+            }
+            scheduler.poll();
+        }
+    }
+
+    // moves the spilled events up to a horizon after the head back, returns false if none is due
+    private boolean reloadSpill(TimelineEvent head) {
+        long spillHead = spill.headTimeInUs();
+        if (head != null && spillHead > head.timeInUs) {
+            return false;
+        }
+        long bound = head == null ? spillHead : head.timeInUs;
+        long horizon = spill.getHorizonInUs();
+        spill.reload(this, bound > Long.MAX_VALUE - horizon ? Long.MAX_VALUE : bound + horizon);
+        return true;
+    }
+
+    private void checkTime(long timeInUs) {
         if (timeInUs < now) {
             throw new IllegalArgumentException(String.format("Cannot add an event in the past, now=%d, add=%d", now, timeInUs));
         }
-        events.add(new TimelineEvent(serial++, timeInUs, e, params));
     }
 
-    private long innerRun() {
-        TimelineEvent e;
-        while ((e = events.poll()) != null) {
-            now = e.timeInUs;
-            e.consumer.accept((Object[]) e.params);
+    /**
+     * Schedules an event in a partition. During a parallel run, the event is
+     * executed by the partition, it should not be earlier than the current
+     * window if the partition is not the current one. Otherwise, same as
+     * {@link #schedule(long, java.util.function.Consumer, java.lang.Object...)}.
+     *
+     * @param partition the partition that executes the event
+     * @param timeInUs the time of the event
+     * @param e the event handler
+     * @param params the parameters of the event
+     */
+    public TimelineEvent scheduleOn(int partition, long timeInUs, Consumer<Object[]> e, Object... params) {
+        return parallel != null
+                ? parallel.scheduleOn(partition, timeInUs, e, params)
+                : schedule(timeInUs, e, params);
+    }
+
+    public <T> void scheduleOn(int partition, long timeInUs, EventHandler<? super T> handler, T payload, long value) {
+        if (parallel != null) {
+            parallel.scheduleOn(partition, timeInUs, handler, payload, value);
+        } else {
+            schedule(timeInUs, handler, payload, value);
+        }
+    }
+
+    /**
+     * Runs all the events in the time line, and resets the clock. The time
+     * line is bound to the current thread during the run.
+     *
+     * @return the time of the last event.
+     */
+    public long execute() {
+        long time = executeAll();
+        // keep the clock if the run is stopped
+        if (!stopped) {
+            now = Long.MIN_VALUE;
         }
-        long time = now;
-        now = Long.MIN_VALUE;
         return time;
     }
 
-    private long innerNowInUs() {
+    /**
+     * Runs all the events in the time line. The clock stays at the time of the
+     * last event, the run can be resumed after more events are added.
+     *
+     * @return the time of the last event, the current time if no event is
+     * executed.
+     */
+    public long executeAll() {
+        executeBounded(Long.MAX_VALUE, Integer.MAX_VALUE);
         return now;
     }
 
-    private int innerGetSize() {
-        return events.size();
+    /**
+     * Runs the events not later than the time. The clock is moved to the time
+     * afterwards, the run can be resumed later.
+     *
+     * @param timeInUs the time, should not be earlier than now
+     * @return the number of events executed
+     */
+    public int executeUntil(long timeInUs) {
+        checkTime(timeInUs);
+        int ret = executeBounded(timeInUs, Integer.MAX_VALUE);
+        if (!stopped) {
+            now = timeInUs;
+            runningSerial = serial;
+        }
+        return ret;
     }
 
-    private class TimelineEvent implements Comparable<TimelineEvent> {
+    /**
+     * Runs at most count events. The clock stays at the time of the last
+     * event, the run can be resumed later.
+     *
+     * @param count the maximum number of events to execute
+     * @return the number of events executed
+     */
+    public int executeEvents(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Event count should be >= 0, count=" + count);
+        }
+        return executeBounded(Long.MAX_VALUE, count);
+    }
 
-        public final long serial;
-        public final long timeInUs;
-        public final Consumer<Object[]> consumer;
-        public final Object[] params;
+    private int executeBounded(long timeInUs, int count) {
+        if (parallel != null) {
+            throw new IllegalStateException("The time line is running in parallel.");
+        }
+        Timeline orig = setCurrent(this);
+        int executed = 0;
+        stopped = stopping = false;
+        if (watchdog != null) {
+            watchdog.beforeRun();
+        }
+        // a run bounded by the number of events counts each event
+        advanceLimitInUs = count == Integer.MAX_VALUE ? timeInUs : Long.MIN_VALUE;
+        try {
+            TimelineEvent e;
+            while (executed < count && (e = peekNext()) != null && e.timeInUs <= timeInUs) {
+                scheduler.poll();
+                now = e.timeInUs;
+                runningSerial = e.serial;
+                executed++;
+                if (!observed) {
+                    e.fire();
+                } else {
+                    fireObserved(e);
+                    if (watchdog != null && !watchdog.afterEvent(this, e)) {
+                        stopping = true;
+                    }
+                }
+                pool.recycle(e);
+                if (stopping) {
+                    stopping = false;
+                    stopped = true;
+                    break;
+                }
+            }
+        } finally {
+            advanceLimitInUs = Long.MIN_VALUE;
+            setCurrent(orig);
+        }
+        return executed;
+    }
+
+    /**
+     * Moves the clock forward inside the running event, as if the event ended
+     * and a new event started at the time. Used by the running event to
+     * handle its own follow-up work inline instead of scheduling it.
+     *
+     * The clock is moved only if no other event could run before or at the
+     * time, so that the order and the timing of the events do not change. It
+     * is not moved during a parallel run, a run bounded by the number of
+     * events, when the events are observed, or after {@link #stop()}.
+     *
+     * @param timeInUs the time, not earlier than now
+     * @return true if the clock is moved, otherwise the caller should
+     * schedule an event at the time
+     */
+    boolean tryAdvance(long timeInUs) {
+        if (parallel != null || observed || stopping || timeInUs > advanceLimitInUs || timeInUs < now) {
+            return false;
+        }
+        TimelineEvent e = peekNext();
+        if (e != null && e.timeInUs <= timeInUs) {
+            return false;
+        }
+        now = timeInUs;
+        runningSerial = serial;
+        return true;
+    }
+
+    private void fireObserved(TimelineEvent e) {
+        if (digest != null) {
+            digest.add(digest.hash(e));
+        }
+        if (recorder != null) {
+            recorder.record(e);
+        }
+        if (profiler == null) {
+            e.fire();
+            return;
+        }
+        // taken before the event is fired, the handler may change the payload
+        Class<?> handlerClass = e.getHandlerClass();
+        Object category = e.getCategory();
+        if (profiler.beforeEvent(e.timeInUs)) {
+            long start = System.nanoTime();
+            e.fire();
+            profiler.afterEvent(handlerClass, category, System.nanoTime() - start, size());
+        } else {
+            e.fire();
+            profiler.afterEvent(handlerClass, category, -1, size());
+        }
+    }
+
+    /**
+     * Resets the clock of a time line paused by {@link #executeAll()},
+     * {@link #executeUntil(long)} or {@link #executeEvents(int)}.
+     */
+    public void resetClock() {
+        if (peekNext() != null) {
+            throw new IllegalStateException(String.format("Cannot reset the clock with %d pending events.", size()));
+        }
+        now = Long.MIN_VALUE;
+    }
+
+    /**
+     * Runs all the events in the time line with conservative parallel
+     * execution, the order of the events is identical to {@link #execute()}.
+     *
+     * The pending events (and the events they create) are executed when the
+     * partitions are synchronized. Other events are executed by the partition
+     * that creates them, or the partition specified in
+     * {@link #scheduleOn(int, long, java.util.function.Consumer, java.lang.Object...)}.
+     * The event handlers of different partitions run concurrently, they should
+     * only share the states that are not modified during the run.
+     *
+     * @param partitions the number of partitions (threads)
+     * @param lookaheadInUs the minimum time between an event and the event it
+     * schedules in another partition
+     * @return the time of the last event.
+     */
+    public long executeParallel(int partitions, long lookaheadInUs) {
+        if (parallel != null) {
+            throw new IllegalStateException("The time line is already running in parallel.");
+        }
+        ParallelExecutor executor = new ParallelExecutor(this, partitions, lookaheadInUs);
+        if (spill != null) {
+            spill.reload(this, Long.MAX_VALUE);
+        }
+        wheel.promoteAll(scheduler);
+        TimelineEvent e;
+        while ((e = scheduler.poll()) != null) {
+            if (!e.cancelled) {
+                executor.addInitial(e);
+            }
+        }
+        Timeline orig = setCurrent(this);
+        parallel = executor;
+        try {
+            return executor.execute();
+        } finally {
+            parallel = null;
+            setCurrent(orig);
+            now = Long.MIN_VALUE;
+        }
+    }
+
+    public long now() {
+        return parallel == null ? now : parallel.now();
+    }
+
+    /**
+     * Gets the number of pending events, including the cancelled events that
+     * are not yet removed.
+     *
+     * @return the number of pending events
+     */
+    public int size() {
+        return scheduler.size() + wheel.size() + (spill == null ? 0 : spill.size());
+    }
+
+    /**
+     * Counts the pending events of a periodic task (e.g.,
+     * {@link SteadyStateMonitor}) that reschedules itself while other events
+     * are pending. The task adds 1 when it schedules an event, and -1 when the
+     * event is executed.
+     *
+     * @param delta the change of the number of such events
+     */
+    public void addBackgroundEvents(int delta) {
+        backgroundEvents += delta;
+    }
+
+    /**
+     * Gets the number of pending events excluding the background events, see
+     * {@link #addBackgroundEvents(int)}. A periodic task should stop when it
+     * is 0, so that multiple tasks do not keep each other running.
+     *
+     * @return the number of pending events
+     */
+    public int foregroundSize() {
+        return size() - backgroundEvents;
+    }
+
+    public EventProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Sets the profiler of the sequential runs, the events executed in
+     * parallel runs are not profiled.
+     *
+     * @param profiler the profiler, null to disable profiling
+     */
+    public void setProfiler(EventProfiler profiler) {
+        this.profiler = profiler;
+        updateObserved();
+    }
+
+    public EventRecorder getRecorder() {
+        return recorder;
+    }
 
-        public TimelineEvent(long serial, long timeInUs, Consumer<Object[]> consumer, Object... params) {
-            this.serial = serial;
-            this.timeInUs = timeInUs;
-            this.consumer = consumer;
-            this.params = params;
+    /**
+     * Sets the recorder of the sequential runs, the events executed in
+     * parallel runs are not recorded.
+     *
+     * @param recorder the recorder, null to stop recording
+     */
+    public void setRecorder(EventRecorder recorder) {
+        this.recorder = recorder;
+        updateObserved();
+    }
+
+    public EventDigest getDigest() {
+        return digest;
+    }
+
+    /**
+     * Sets the digest of the executed events, the events executed in parallel
+     * runs are added in the sequential order.
+     *
+     * @param digest the digest, null to stop digesting
+     */
+    public void setDigest(EventDigest digest) {
+        this.digest = digest;
+        updateObserved();
+    }
+
+    /**
+     * Stops the sequential run after the current event, called from an event
+     * handler. The pending events and the clock are kept, the run can be
+     * resumed later.
+     */
+    public void stop() {
+        if (parallel != null) {
+            throw new IllegalStateException("Cannot stop a parallel run.");
+        }
+        stopping = true;
+    }
+
+    /**
+     * Checks if the last sequential run is stopped by {@link #stop()} or the
+     * watchdog.
+     *
+     * @return true if the run is stopped before its bounds
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    public EventWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    /**
+     * Sets the watchdog of the sequential runs. A run stopped by the watchdog
+     * keeps its pending events and clock, see {@link EventWatchdog}.
+     *
+     * @param watchdog the watchdog, null to disable it
+     */
+    public void setWatchdog(EventWatchdog watchdog) {
+        this.watchdog = watchdog;
+        updateObserved();
+    }
+
+    public EventSpill getSpill() {
+        return spill;
+    }
+
+    /**
+     * Sets the spill of the far-future events (see {@link EventSpill}). The
+     * events in the previous spill are moved back into the memory, the
+     * previous spill is not closed. A parallel run moves all the spilled
+     * events back into the memory.
+     *
+     * @param spill the spill, null to keep all the events in memory
+     */
+    public void setSpill(EventSpill spill) {
+        if (this.spill != null) {
+            this.spill.reload(this, Long.MAX_VALUE);
+        }
+        this.spill = spill;
+    }
+
+    private void updateObserved() {
+        observed = profiler != null || recorder != null || digest != null || watchdog != null;
+    }
+
+    /**
+     * Removes all the pending events that are not cancelled, e.g., to
+     * serialize them after the objects they refer to. The events can be added
+     * back with {@link #restoreEvents(java.util.List)}.
+     *
+     * @return the pending events in order
+     */
+    public List<TimelineEvent> removeEvents() {
+        if (parallel != null) {
+            throw new IllegalStateException("The time line is running in parallel.");
+        }
+        if (spill != null) {
+            spill.reload(this, Long.MAX_VALUE);
+        }
+        wheel.promoteAll(scheduler);
+        ArrayList<TimelineEvent> events = new ArrayList<>(scheduler.size());
+        TimelineEvent e;
+        while ((e = scheduler.poll()) != null) {
+            if (!e.cancelled) {
+                events.add(e);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Adds back the events removed by {@link #removeEvents()}.
+     *
+     * @param events the events
+     */
+    public void restoreEvents(List<TimelineEvent> events) {
+        events.forEach(e -> {
+            checkTime(e.timeInUs);
+            add(e);
+        });
+    }
+
+    // the pending events are written one by one in order, instead of in the structures of the scheduler
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        List<TimelineEvent> events = removeEvents();
+        try {
+            out.defaultWriteObject();
+            out.writeInt(events.size());
+            for (TimelineEvent event : events) {
+                out.writeObject(event);
+            }
+        } finally {
+            restoreEvents(events);
         }
+    }
 
-        @Override
-        public int compareTo(TimelineEvent o) {
-            int ret = Long.compare(timeInUs, o.timeInUs);
-            return ret == 0 ? (Long.compare(serial, o.serial)) : ret;
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        pool = new EventPool();
+        for (int i = in.readInt(); i > 0; i--) {
+            add((TimelineEvent) in.readObject());
         }
+    }
 
+    public EventScheduler getEventScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Replaces the event scheduler of the time line. The pending events are
+     * moved into the new scheduler.
+     *
+     * @param newScheduler the new scheduler
+     */
+    public void setEventScheduler(EventScheduler newScheduler) {
+        TimelineEvent e;
+        while ((e = scheduler.poll()) != null) {
+            newScheduler.add(e);
+        }
+        scheduler = newScheduler;
     }
 }
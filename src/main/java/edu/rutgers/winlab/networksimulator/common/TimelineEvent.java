@@ -0,0 +1,138 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.io.Serializable;
+import java.util.function.Consumer;
+
+/**
+ * An event pending on a {@link Timeline}. Events are ordered by time, and
+ * events with the same time are ordered by their serial (adding order).
+ *
+ * An event either has a consumer and its parameters, or a typed handler with
+ * a payload and a long value. The events returned to the caller can be
+ * cancelled, a cancelled event is dropped when it reaches the head of the time
+ * line. Other events are recycled by the time line after they are executed
+ * (see {@link EventPool}).
+ *
+ * @author Jiachen Chen
+ */
+public final class TimelineEvent implements Comparable<TimelineEvent>, Serializable {
+
+    // not final, a parallel run re-numbers the events it defers (see ParallelExecutor)
+    long serial;
+    long timeInUs;
+    Consumer<Object[]> consumer;
+    Object[] params;
+    EventHandler<Object> handler;
+    Object payload;
+    long value;
+    boolean cancelled = false;
+    // not returned to the caller, can be reused after executed
+    boolean recyclable = false;
+    // used by the schedulers to chain the events without extra allocation
+    transient TimelineEvent next;
+
+    TimelineEvent() {
+    }
+
+    TimelineEvent(long serial, long timeInUs, Consumer<Object[]> consumer, Object... params) {
+        set(serial, timeInUs, consumer, params);
+    }
+
+    final TimelineEvent set(long serial, long timeInUs, Consumer<Object[]> consumer, Object[] params) {
+        this.serial = serial;
+        this.timeInUs = timeInUs;
+        this.consumer = consumer;
+        this.params = params;
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    final <T> TimelineEvent set(long serial, long timeInUs, EventHandler<? super T> handler, T payload, long value) {
+        this.serial = serial;
+        this.timeInUs = timeInUs;
+        this.handler = (EventHandler<Object>) handler;
+        this.payload = payload;
+        this.value = value;
+        return this;
+    }
+
+    void fire() {
+        if (consumer != null) {
+            consumer.accept(params);
+        } else {
+            handler.handle(payload, value);
+        }
+    }
+
+    // the payload of a typed event, or the first parameter of a consumer event
+    Object getPayload() {
+        return consumer != null ? (params.length == 0 ? null : params[0]) : payload;
+    }
+
+    // the category of the event in the profiler (see EventHandler#category(Object))
+    Object getCategory() {
+        if (consumer != null) {
+            Object p = getPayload();
+            return p == null ? null : p.getClass();
+        }
+        return handler.category(payload);
+    }
+
+    // the owner of the event (see EventHandler#owner(Object)), null if not known
+    Object getOwner() {
+        if (consumer != null) {
+            Object p = getPayload();
+            return p instanceof Owned ? ((Owned) p).getOwner() : null;
+        }
+        return handler.owner(payload);
+    }
+
+    // the handler of a typed event, or the consumer of a consumer event
+    Object getHandler() {
+        return consumer != null ? consumer : handler;
+    }
+
+    Class<?> getHandlerClass() {
+        return getHandler().getClass();
+    }
+
+    /**
+     * Cancels the event. Cancelling an event that is already executed has no
+     * effect.
+     *
+     * @return true if the event was not cancelled before.
+     */
+    public boolean cancel() {
+        boolean ret = !cancelled;
+        cancelled = true;
+        return ret;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // releases the references, so that the event can be reused
+    void clear() {
+        consumer = null;
+        params = null;
+        handler = null;
+        payload = null;
+        next = null;
+    }
+
+    public long getSerial() {
+        return serial;
+    }
+
+    public long getTimeInUs() {
+        return timeInUs;
+    }
+
+    @Override
+    public int compareTo(TimelineEvent o) {
+        int ret = Long.compare(timeInUs, o.timeInUs);
+        return ret == 0 ? (Long.compare(serial, o.serial)) : ret;
+    }
+
+}
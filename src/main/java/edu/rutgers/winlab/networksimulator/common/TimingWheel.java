@@ -0,0 +1,170 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.io.Serializable;
+
+/**
+ * Hierarchical timing wheel holding the far-future events of a
+ * {@link Timeline}, so that they do not stay in the event scheduler.
+ *
+ * The time is divided into ticks of 2^20 us (about 1 second). Each level has
+ * 64 slots, a slot on level i covers 64^i ticks. An event is kept on the
+ * lowest level whose slots cover both the event and the current tick, and is
+ * cascaded to the lower levels when the current tick enters its slot. Events
+ * beyond the top level are kept in an overflow list. The events of a tick are
+ * promoted into the event scheduler before any event in the tick is executed,
+ * cancelled events are dropped without entering the scheduler.
+ *
+ * @author Jiachen Chen
+ */
+final class TimingWheel implements Serializable {
+
+    static final int TICK_BITS = 20;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private static final long MAX_TICK = Long.MAX_VALUE >> TICK_BITS;
+
+    private final TimelineEvent[][] slots = new TimelineEvent[LEVELS][SLOTS];
+    private final int[] counts = new int[LEVELS];
+    private TimelineEvent overflow = null;
+    // the next tick to be promoted, all the events in the wheel are not earlier than it
+    private long tick = Long.MIN_VALUE;
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds an event if it is at least one tick after the tick of now.
+     *
+     * @param e the event
+     * @param nowInUs the current time
+     * @return true if the event is added into the wheel
+     */
+    boolean add(TimelineEvent e, long nowInUs) {
+        long t = e.timeInUs >> TICK_BITS;
+        long nowTick = nowInUs >> TICK_BITS;
+        if (nowInUs == Long.MIN_VALUE || t <= nowTick + 1) {
+            return false;
+        }
+        if (size == 0) {
+            tick = nowTick + 1;
+        } else if (t < tick) {
+            return false;
+        }
+        place(e, t);
+        size++;
+        return true;
+    }
+
+    private void place(TimelineEvent e, long t) {
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = SLOT_BITS * (level + 1);
+            if ((t >> shift) == (tick >> shift)) {
+                int slot = (int) (t >> (SLOT_BITS * level)) & (SLOTS - 1);
+                e.next = slots[level][slot];
+                slots[level][slot] = e;
+                counts[level]++;
+                return;
+            }
+        }
+        e.next = overflow;
+        overflow = e;
+    }
+
+    /**
+     * Moves all the events not later than the tick of the time into the
+     * scheduler.
+     *
+     * @param timeInUs the time
+     * @param scheduler the scheduler
+     * @return true if any event is moved
+     */
+    boolean promoteUntil(long timeInUs, EventScheduler scheduler) {
+        long target = timeInUs >> TICK_BITS;
+        return target >= tick && advance(target, scheduler, false);
+    }
+
+    /**
+     * Moves the events of the earliest tick with events into the scheduler.
+     *
+     * @param scheduler the scheduler
+     * @return true if any event is moved or dropped
+     */
+    boolean promoteNext(EventScheduler scheduler) {
+        int orig = size;
+        advance(MAX_TICK, scheduler, true);
+        return size != orig;
+    }
+
+    void promoteAll(EventScheduler scheduler) {
+        advance(MAX_TICK, scheduler, false);
+    }
+
+    private boolean advance(long target, EventScheduler scheduler, boolean untilPromoted) {
+        boolean promoted = false;
+        while (size > 0 && tick <= target && !(untilPromoted && promoted)) {
+            enter();
+            int slot = (int) tick & (SLOTS - 1);
+            TimelineEvent e = slots[0][slot];
+            slots[0][slot] = null;
+            while (e != null) {
+                TimelineEvent next = e.next;
+                e.next = null;
+                counts[0]--;
+                size--;
+                if (!e.cancelled) {
+                    scheduler.add(e);
+                    promoted = true;
+                }
+                e = next;
+            }
+            tick = nextTick(target);
+        }
+        return promoted;
+    }
+
+    // cascades the slots that the current tick enters, from the top level
+    private void enter() {
+        if ((tick & ((1L << (SLOT_BITS * LEVELS)) - 1)) == 0 && overflow != null) {
+            TimelineEvent e = overflow;
+            overflow = null;
+            cascade(e);
+        }
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((tick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                int slot = (int) (tick >> (SLOT_BITS * level)) & (SLOTS - 1);
+                TimelineEvent e = slots[level][slot];
+                slots[level][slot] = null;
+                for (TimelineEvent p = e; p != null; p = p.next) {
+                    counts[level]--;
+                }
+                cascade(e);
+            }
+        }
+    }
+
+    private void cascade(TimelineEvent e) {
+        while (e != null) {
+            TimelineEvent next = e.next;
+            if (e.cancelled) {
+                e.next = null;
+                size--;
+            } else {
+                place(e, e.timeInUs >> TICK_BITS);
+            }
+            e = next;
+        }
+    }
+
+    // the next tick to visit, skipping the empty lower levels
+    private long nextTick(long target) {
+        long next = tick + 1;
+        for (int level = 0; level < LEVELS && counts[level] == 0; level++) {
+            int shift = SLOT_BITS * (level + 1);
+            next = ((tick >> shift) + 1) << shift;
+        }
+        return next > target ? target + 1 : next;
+    }
+}
@@ -1,5 +1,6 @@
 package edu.rutgers.winlab.networksimulator.common;
 
+import java.io.Serializable;
 import java.util.Objects;
 
 /**
@@ -9,7 +10,7 @@ import java.util.Objects;
  * @param <T2>
  * @param <T3>
  */
-public interface TriConsumer<T1, T2, T3> {
+public interface TriConsumer<T1, T2, T3> extends Serializable {
 
     public void accept(T1 t1, T2 t2, T3 t3);
 
@@ -1,5 +1,6 @@
 package edu.rutgers.winlab.networksimulator.common;
 
+import java.io.Serializable;
 import java.util.Objects;
 import java.util.function.BiFunction;
 
@@ -8,7 +9,7 @@ import java.util.function.BiFunction;
  * @author Jiachen Chen
  * @param <T>
  */
-public class Tuple1<T> {
+public class Tuple1<T> implements Serializable {
 
     private T v1;
 
@@ -1,5 +1,6 @@
 package edu.rutgers.winlab.networksimulator.common;
 
+import java.io.Serializable;
 import java.util.Objects;
 
 /**
@@ -8,7 +9,7 @@ import java.util.Objects;
  * @param <T1>
  * @param <T2>
  */
-public class Tuple2<T1, T2> {
+public class Tuple2<T1, T2> implements Serializable {
 
     private T1 v1;
     private T2 v2;
@@ -1,5 +1,6 @@
 package edu.rutgers.winlab.networksimulator.common;
 
+import java.io.Serializable;
 import java.util.Objects;
 
 /**
@@ -9,7 +10,7 @@ import java.util.Objects;
  * @param <T2>
  * @param <T3>
  */
-public class Tuple3<T1, T2, T3> {
+public class Tuple3<T1, T2, T3> implements Serializable {
 
     private T1 v1;
     private T2 v2;
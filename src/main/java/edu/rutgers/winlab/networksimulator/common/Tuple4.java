@@ -1,5 +1,6 @@
 package edu.rutgers.winlab.networksimulator.common;
 
+import java.io.Serializable;
 import java.util.Objects;
 
 /**
@@ -10,7 +11,7 @@ import java.util.Objects;
  * @param <T3>
  * @param <T4>
  */
-public class Tuple4<T1, T2, T3, T4> {
+public class Tuple4<T1, T2, T3, T4> implements Serializable {
 
     private T1 v1;
     private T2 v2;
@@ -0,0 +1,170 @@
+package edu.rutgers.winlab.networksimulator.network;
+
+import edu.rutgers.winlab.networksimulator.common.Data;
+import edu.rutgers.winlab.networksimulator.common.TriConsumer;
+import edu.rutgers.winlab.networksimulator.common.Tuple4;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Counts the data dropped by a node or a link, by the reason of the drop and
+ * the type of the data ({@link Data#getType()}). The counters are kept in
+ * primitive arrays, a type takes a row when it is first dropped, so that
+ * counting a drop does not allocate.
+ *
+ * @author Jiachen Chen
+ */
+public final class DropCounter implements Serializable {
+
+    public static enum Reason {
+        /**
+         * The queue is full, or the data is dropped by an active queue.
+         */
+        OVERFLOW,
+        /**
+         * The data is pushed out of a full queue by a prioritized data.
+         */
+        PUSH_OUT,
+        /**
+         * The link is disconnected when the data is in the queue, in flight,
+         * or is put into the queue.
+         */
+        ABORT,
+        /**
+         * The destination is removed from a broadcast link when the data is in
+         * flight.
+         */
+        MEMBER_REMOVED
+    }
+
+    private static final Reason[] REASONS = Reason.values();
+
+    // the types in the order they are first dropped, the counters of type i and reason r are at i * REASONS.length + r
+    private int[] types = new int[4];
+    private int typeCount = 0;
+    private long[] packets = new long[4 * REASONS.length], bits = new long[4 * REASONS.length];
+
+    private int rowOf(int type) {
+        for (int i = 0; i < typeCount; i++) {
+            if (types[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void add(Reason reason, Data d) {
+        add(reason, d.getType(), 1, d.getSizeInBits());
+    }
+
+    public void add(Reason reason, int type, long packets, long bits) {
+        int row = rowOf(type);
+        if (row < 0) {
+            if (typeCount == types.length) {
+                types = Arrays.copyOf(types, typeCount * 2);
+                this.packets = Arrays.copyOf(this.packets, types.length * REASONS.length);
+                this.bits = Arrays.copyOf(this.bits, types.length * REASONS.length);
+            }
+            row = typeCount++;
+            types[row] = type;
+        }
+        int i = row * REASONS.length + reason.ordinal();
+        this.packets[i] += packets;
+        this.bits[i] += bits;
+    }
+
+    /**
+     * Adds the drops counted by another counter, e.g., to aggregate the links
+     * of a node.
+     *
+     * @param another the counter
+     */
+    public void addAll(DropCounter another) {
+        for (int row = 0; row < another.typeCount; row++) {
+            for (Reason reason : REASONS) {
+                int i = row * REASONS.length + reason.ordinal();
+                if (another.packets[i] > 0) {
+                    add(reason, another.types[row], another.packets[i], another.bits[i]);
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(packets, 0);
+        Arrays.fill(bits, 0);
+        typeCount = 0;
+    }
+
+    public long getPackets(Reason reason, int type) {
+        int row = rowOf(type);
+        return row < 0 ? 0 : packets[row * REASONS.length + reason.ordinal()];
+    }
+
+    public long getBits(Reason reason, int type) {
+        int row = rowOf(type);
+        return row < 0 ? 0 : bits[row * REASONS.length + reason.ordinal()];
+    }
+
+    public long getPackets(Reason reason) {
+        long ret = 0;
+        for (int row = 0; row < typeCount; row++) {
+            ret += packets[row * REASONS.length + reason.ordinal()];
+        }
+        return ret;
+    }
+
+    public long getBits(Reason reason) {
+        long ret = 0;
+        for (int row = 0; row < typeCount; row++) {
+            ret += bits[row * REASONS.length + reason.ordinal()];
+        }
+        return ret;
+    }
+
+    public long getPackets() {
+        return Arrays.stream(packets, 0, typeCount * REASONS.length).sum();
+    }
+
+    public long getBits() {
+        return Arrays.stream(bits, 0, typeCount * REASONS.length).sum();
+    }
+
+    /**
+     * Visits the non-empty counters of a reason, in the order the types are
+     * first dropped.
+     *
+     * @param reason the reason
+     * @param consumer called with the type, the number of data and the bits
+     * dropped
+     */
+    public void forEach(Reason reason, TriConsumer<? super Integer, ? super Long, ? super Long> consumer) {
+        for (int row = 0; row < typeCount; row++) {
+            int i = row * REASONS.length + reason.ordinal();
+            if (packets[i] > 0) {
+                consumer.accept(types[row], packets[i], bits[i]);
+            }
+        }
+    }
+
+    /**
+     * Gets the non-empty counters, by type and then by reason.
+     *
+     * @return the reasons, types, numbers of data and bits dropped
+     */
+    public Stream<Tuple4<Reason, Integer, Long, Long>> stream() {
+        return IntStream.range(0, typeCount * REASONS.length)
+                .filter(i -> packets[i] > 0)
+                .mapToObj(i -> new Tuple4<>(REASONS[i % REASONS.length], types[i / REASONS.length], packets[i], bits[i]));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        stream().forEach(t -> sb.append(sb.length() == 0 ? "" : ",").append(t.getV1()).append('/').append(t.getV2())
+                .append('=').append(t.getV3()).append(':').append(t.getV4()));
+        return sb.toString();
+    }
+}
@@ -1,24 +1,42 @@
 package edu.rutgers.winlab.networksimulator.network;
 
 import edu.rutgers.winlab.networksimulator.common.Data;
+import edu.rutgers.winlab.networksimulator.common.EventHandler;
+import edu.rutgers.winlab.networksimulator.common.Owned;
 import edu.rutgers.winlab.networksimulator.common.PrioritizedQueue;
 import edu.rutgers.winlab.networksimulator.common.QueuePoller;
+import edu.rutgers.winlab.networksimulator.common.RingBuffer;
+import edu.rutgers.winlab.networksimulator.common.SojournQueue;
 import edu.rutgers.winlab.networksimulator.common.Timeline;
 import edu.rutgers.winlab.networksimulator.common.Tuple2;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
  * Represents a physical node in the network
  *
+ * Nodes and links are serializable with their simulation, the handlers added
+ * from outside (e.g., idle handlers) should be serializable as well. The
+ * states that refer to other nodes are transient, and written after all the
+ * nodes of the simulation, see {@link #writeReferences(ObjectOutputStream)}.
+ *
  * @author Jiachen Chen
  */
-public abstract class Node {
+public abstract class Node implements Owned, Serializable {
 
     // 1kbps = 1,000 bits per 1,000 s = 1 bit per ms
     public static final int BW_IN_KBPS = (int) (Data.K_BIT / Timeline.MS_IN_SECOND);
@@ -46,37 +64,113 @@ public abstract class Node {
         l.enQueue(d, prioritized);
     }
 
+    private static final EventHandler<AbstractLink> FIRE_IDLE_EVENT = (l, value) -> l.fireIdleEvent();
+
+    private final Simulation simulation;
+    private final Timeline timeline;
     private final String name;
-    private final HashMap<Node, UnicastLink> unicastLinks = new HashMap<>();
-    private final HashMap<String, BroadcastLink> broadcastLinks = new HashMap<>();
-    private final QueuePoller<Tuple2<Node, Data>> incomingQueue;
-    // bits discarded due to incoming queue overflow
-    // key: source node, value: bits discarded from the source
-    private final HashMap<Node, Long> bitsDiscarded = new HashMap<>();
+    // dense in the simulation, from 0
+    private final int id;
+    // the links and the incoming queue refer to other nodes, see writeReferences
+    private transient HashMap<Node, UnicastLink> unicastLinks = new HashMap<>();
+    // the unicast links by index, in the order they are created. a disconnected link
+    // leaves its slot empty, so that the indexes cached by the routing tables stay valid
+    private transient UnicastLink[] adjacency = new UnicastLink[4];
+    private int adjacencySize = 0;
+    private transient HashMap<String, BroadcastLink> broadcastLinks = new HashMap<>();
+    private transient QueuePoller<Tuple2<Node, Data>> incomingQueue;
+    // null if the incoming queue does not record the sojourn times
+    private final SojournQueue.Histogram incomingSojourn;
+    // bits discarded due to incoming queue overflow, by the id of the source node
+    private long[] bitsDiscarded = new long[0];
+    private final DropCounter drops = new DropCounter();
+    // the data being put into the incoming queue, a drop of any other data is a push-out
+    private transient Tuple2<Node, Data> incoming;
+    private final Consumer<Tuple2<Node, Data>> bitsDiscardedAdder = (Consumer<Tuple2<Node, Data>> & Serializable) this::addBitsDiscarded;
+    // data dropped by an active queue (e.g., CoDel) when it is retrieved
+    private final Consumer<Tuple2<Node, Data>> overflowAdder = (Consumer<Tuple2<Node, Data>> & Serializable) t -> addBitsDiscarded(DropCounter.Reason.OVERFLOW, t);
+    // the partition that handles the node in a parallel run
+    private int partition = 0;
 
     public Node(String name, PrioritizedQueue<Tuple2<Node, Data>> incomingQueue) {
+        this(Simulation.getCurrent(), name, incomingQueue);
+    }
+
+    public Node(Simulation simulation, String name, PrioritizedQueue<Tuple2<Node, Data>> incomingQueue) {
+        this.simulation = simulation;
+        this.timeline = simulation.getTimeline();
         this.name = name;
-        this.incomingQueue = new QueuePoller<>(this::handleData, incomingQueue, t -> {
-        });
+        this.incomingQueue = new QueuePoller<>(timeline,
+                (Function<Tuple2<Node, Data>, Long> & Serializable) this::handleData, incomingQueue,
+                (Consumer<QueuePoller<Tuple2<Node, Data>>> & Serializable) t -> {
+                });
+        this.incomingQueue.setOwner(this);
+        this.incomingQueue.setDropHandler(overflowAdder);
+        // profiled by the data, not by the sender
+        this.incomingQueue.setCategorizer((Function<Tuple2<Node, Data>, Object> & Serializable) t -> t.getV2().getClass());
+        this.incomingSojourn = incomingQueue.getSojourn();
+        this.id = simulation.addNode(this);
     }
 
     public String getName() {
         return name;
     }
 
+    @Override
+    public Object getOwner() {
+        return this;
+    }
+
+    /**
+     * Gets the id of the node, the nodes of a simulation are numbered from 0
+     * in the order they are created, see {@link Simulation#getNode(int)}.
+     *
+     * @return the id
+     */
+    public int getId() {
+        return id;
+    }
+
+    public Simulation getSimulation() {
+        return simulation;
+    }
+
+    public Timeline getTimeline() {
+        return timeline;
+    }
+
+    public int getPartition() {
+        return partition;
+    }
+
+    void setPartition(int partition) {
+        this.partition = partition;
+    }
+
     public void forEachUnicastLink(Consumer<? super UnicastLink> consumer) {
-        unicastLinks.values().forEach(consumer);
+        for (int i = 0; i < adjacencySize; i++) {
+            if (adjacency[i] != null) {
+                consumer.accept(adjacency[i]);
+            }
+        }
     }
 
     public Stream<UnicastLink> unicastLinkStream() {
-        return unicastLinks.values().stream();
+        return Arrays.stream(adjacency, 0, adjacencySize).filter(Objects::nonNull);
     }
 
     public UnicastLink unicastLink(Node another, int bwInBitsPerMs, long delayInUs, PrioritizedQueue<Data> queue) {
         if (isUnicastLinkedWith(another)) {
             throw new IllegalArgumentException(String.format("%s is already linked to %s.", name, another.name));
         }
-        UnicastLink ret = new UnicastLink(another, bwInBitsPerMs, delayInUs, queue);
+        if (another.simulation != simulation) {
+            throw new IllegalArgumentException(String.format("%s and %s are in different simulations.", name, another.name));
+        }
+        if (adjacencySize == adjacency.length) {
+            adjacency = Arrays.copyOf(adjacency, adjacencySize * 2);
+        }
+        UnicastLink ret = new UnicastLink(another, bwInBitsPerMs, delayInUs, queue, adjacencySize);
+        adjacency[adjacencySize++] = ret;
         unicastLinks.put(another, ret);
         return ret;
     }
@@ -88,9 +182,36 @@ public abstract class Node {
         return unicastLinks.get(another);
     }
 
+    /**
+     * Gets the index of the link to a neighbor, which can be cached to send
+     * the data with {@link #sendUnicastData(int, Data, boolean)} without
+     * looking up the neighbor. The index stays valid until the link is
+     * disconnected, a new link to the same neighbor gets a new index.
+     *
+     * @param another the neighbor
+     * @return the index
+     */
+    public int getUnicastLinkIndex(Node another) {
+        return getUnicastLink(another).getIndex();
+    }
+
+    /**
+     * Gets a link by its index, see {@link #getUnicastLinkIndex(Node)}.
+     *
+     * @param index the index
+     * @return the link, null if it is disconnected
+     */
+    public UnicastLink getUnicastLink(int index) {
+        if (index < 0 || index >= adjacencySize) {
+            throw new IllegalArgumentException(String.format("Link index should be in [0, %d), index=%d", adjacencySize, index));
+        }
+        return adjacency[index];
+    }
+
     public UnicastLink unicastDisconnect(Node another) {
         UnicastLink l = unicastLinks.remove(another);
         if (l != null) {
+            adjacency[l.getIndex()] = null;
             l.abort();
         }
         return l;
@@ -108,6 +229,56 @@ public abstract class Node {
         sendData(l, d, prioritized);
     }
 
+    /**
+     * Sends the data on a link by its index, see
+     * {@link #getUnicastLinkIndex(Node)}.
+     *
+     * @param linkIndex the index of the link
+     * @param d the data
+     * @param prioritized if the data is prioritized in the link queue
+     */
+    protected void sendUnicastData(int linkIndex, Data d, boolean prioritized) {
+        sendData(getLinkedAt(linkIndex), d, prioritized);
+    }
+
+    /**
+     * Sends the data on a link by its index after a delay, see
+     * {@link #sendUnicastData(Node, Data, boolean, long)}.
+     *
+     * @param linkIndex the index of the link
+     * @param d the data
+     * @param prioritized if the data is prioritized in the link queue
+     * @param delayInUs the delay before the data is put into the link queue
+     */
+    protected void sendUnicastData(int linkIndex, Data d, boolean prioritized, long delayInUs) {
+        getLinkedAt(linkIndex).enQueue(d, prioritized, delayInUs);
+    }
+
+    private UnicastLink getLinkedAt(int linkIndex) {
+        UnicastLink l = getUnicastLink(linkIndex);
+        if (l == null) {
+            throw new IllegalArgumentException(String.format("%s: link %d is disconnected", name, linkIndex));
+        }
+        return l;
+    }
+
+    /**
+     * Sends the data to a neighbor after a delay. The link is looked up when
+     * the method is called.
+     *
+     * @param destination the neighbor
+     * @param d the data
+     * @param prioritized if the data is prioritized in the link queue
+     * @param delayInUs the delay before the data is put into the link queue
+     */
+    protected void sendUnicastData(Node destination, Data d, boolean prioritized, long delayInUs) {
+        UnicastLink l = unicastLinks.get(destination);
+        if (l == null) {
+            throw new IllegalArgumentException(String.format("%s is not linked with %s", name, destination.name));
+        }
+        l.enQueue(d, prioritized, delayInUs);
+    }
+
     public boolean createBroadcastChannel(String name, int bwBitsPerMS, long delayInUS, PrioritizedQueue<Data> queue) {
         if (broadcastLinks.containsKey(name)) {
             return false;
@@ -140,34 +311,242 @@ public abstract class Node {
     protected abstract long handleData(Tuple2<Node, Data> t);
 
     public void forEachBitsDiscarded(BiConsumer<? super Node, ? super Long> c) {
-        bitsDiscarded.forEach((n, v) -> c.accept(n, v));
+        for (int id = 0; id < bitsDiscarded.length; id++) {
+            if (bitsDiscarded[id] > 0) {
+                c.accept(simulation.getNode(id), bitsDiscarded[id]);
+            }
+        }
     }
 
     public Stream<Tuple2<Node, Long>> bitsDiscardedStream() {
-        return bitsDiscarded.entrySet().stream().map(e -> new Tuple2<>(e.getKey(), e.getValue()));
+        return IntStream.range(0, bitsDiscarded.length)
+                .filter(id -> bitsDiscarded[id] > 0)
+                .mapToObj(id -> new Tuple2<>(simulation.getNode(id), bitsDiscarded[id]));
+    }
+
+    /**
+     * Gets the data discarded by the incoming queue, by reason and type.
+     *
+     * @return the counter
+     */
+    public DropCounter getDrops() {
+        return drops;
+    }
+
+    /**
+     * Visits the drop counters of the node (named by the node) and its links
+     * (named as in {@link #forEachSojourn(BiConsumer)}).
+     *
+     * @param consumer called with the name and the counter
+     */
+    public void forEachDrops(BiConsumer<? super String, ? super DropCounter> consumer) {
+        consumer.accept(name, drops);
+        forEachUnicastLink(l -> consumer.accept(name + "->" + l.getDestination().getName(), l.getDrops()));
+        broadcastLinks.forEach((channel, l) -> consumer.accept(name + "/" + channel, l.getDrops()));
+    }
+
+    public Stream<Tuple2<String, DropCounter>> dropsStream() {
+        ArrayList<Tuple2<String, DropCounter>> ret = new ArrayList<>();
+        forEachDrops((n, d) -> ret.add(new Tuple2<>(n, d)));
+        return ret.stream();
     }
 
     private void addBitsDiscarded(Tuple2<Node, Data> t) {
-        bitsDiscarded.merge(t.getV1(), (long) t.getV2().getSizeInBits(), Long::sum);
+        addBitsDiscarded(t == incoming ? DropCounter.Reason.OVERFLOW : DropCounter.Reason.PUSH_OUT, t);
+    }
+
+    private void addBitsDiscarded(DropCounter.Reason reason, Tuple2<Node, Data> t) {
+        int id = t.getV1().id;
+        if (id >= bitsDiscarded.length) {
+            bitsDiscarded = Arrays.copyOf(bitsDiscarded, Math.max(id + 1, simulation.getNodeCount()));
+        }
+        bitsDiscarded[id] += t.getV2().getSizeInBits();
+        drops.add(reason, t.getV2());
+    }
+
+    public boolean isBatch() {
+        return incomingQueue.isBatch();
+    }
+
+    /**
+     * Sets the batch mode of the incoming queue, see
+     * {@link QueuePoller#setBatch(boolean)}, e.g., for a router draining a
+     * backlog.
+     *
+     * @param batch true to enable the batch mode
+     */
+    public void setBatch(boolean batch) {
+        incomingQueue.setBatch(batch);
+    }
+
+    public int getWorkers() {
+        return incomingQueue.getWorkers();
+    }
+
+    /**
+     * Sets the number of workers that handle the incoming data in parallel,
+     * e.g., the cores of a router.
+     *
+     * @param workers the number of workers
+     */
+    public void setWorkers(int workers) {
+        incomingQueue.setWorkers(workers);
+    }
+
+    public long getBusyTimeInUs(int worker) {
+        return incomingQueue.getBusyTimeInUs(worker);
+    }
+
+    public long getServed(int worker) {
+        return incomingQueue.getServed(worker);
+    }
+
+    public SojournQueue.Histogram getIncomingSojourn() {
+        return incomingSojourn;
+    }
+
+    /**
+     * Visits the sojourn time histograms of the queues of the node, e.g., at
+     * the end of a run. The queues are named as: the node name for the
+     * incoming queue, "node->neighbor" for a unicast link, and "node/channel"
+     * for a broadcast link. Only the queues that record the sojourn times
+     * (see {@link PrioritizedQueue#getSojourn()}) are visited.
+     *
+     * @param consumer called with the name of the queue and its histogram
+     */
+    public void forEachSojourn(BiConsumer<? super String, ? super SojournQueue.Histogram> consumer) {
+        if (incomingSojourn != null) {
+            consumer.accept(name, incomingSojourn);
+        }
+        forEachUnicastLink(l -> {
+            if (l.getSojourn() != null) {
+                consumer.accept(name + "->" + l.getDestination().name, l.getSojourn());
+            }
+        });
+        broadcastLinks.forEach((channel, l) -> {
+            if (l.getSojourn() != null) {
+                consumer.accept(name + "/" + channel, l.getSojourn());
+            }
+        });
+    }
+
+    public Stream<Tuple2<String, SojournQueue.Histogram>> sojournStream() {
+        ArrayList<Tuple2<String, SojournQueue.Histogram>> ret = new ArrayList<>();
+        forEachSojourn((n, h) -> ret.add(new Tuple2<>(n, h)));
+        return ret.stream();
     }
 
     protected void enqueueIncomingData(Node source, Data d, boolean prioritized) {
-        incomingQueue.enQueue(new Tuple2<>(source, d), prioritized, this::addBitsDiscarded);
+        incoming = new Tuple2<>(source, d);
+        incomingQueue.enQueue(incoming, prioritized, bitsDiscardedAdder);
+        incoming = null;
+    }
+
+    /**
+     * Writes the states of the node that refer to other nodes: the links and
+     * the incoming queue. The simulation writes all its nodes first, then the
+     * references of each node, so that writing a node does not recurse into
+     * its neighbors. A subclass keeps its states that refer to other nodes
+     * (e.g., routing tables) transient, and writes them after calling this
+     * method.
+     *
+     * @param out the stream
+     * @throws IOException if a state cannot be written
+     */
+    protected void writeReferences(ObjectOutputStream out) throws IOException {
+        out.writeObject(unicastLinks);
+        out.writeObject(adjacency);
+        out.writeObject(broadcastLinks);
+        out.writeObject(incomingQueue);
+    }
+
+    /**
+     * Reads the states written by {@link #writeReferences(ObjectOutputStream)},
+     * after all the nodes of the simulation are read.
+     *
+     * @param in the stream
+     * @throws IOException if a state cannot be read
+     * @throws ClassNotFoundException if the class of a state is missing
+     */
+    @SuppressWarnings("unchecked")
+    protected void readReferences(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        unicastLinks = (HashMap<Node, UnicastLink>) in.readObject();
+        adjacency = (UnicastLink[]) in.readObject();
+        broadcastLinks = (HashMap<String, BroadcastLink>) in.readObject();
+        incomingQueue = (QueuePoller<Tuple2<Node, Data>>) in.readObject();
     }
 
-    public abstract class AbstractLink {
+    public abstract class AbstractLink implements Owned, Serializable {
 
         private final int bwBitsPerMS;
         private final long delayInUS;
         private final QueuePoller<Data> queuePoller;
+        private final SojournQueue.Histogram sojourn;
         private long bitsSent = 0, bitsDiscarded = 0;
+        // discarded on arrival, updated by the partition of the destination in a parallel run
+        private long bitsDiscardedOnArrival = 0;
+        private final DropCounter drops = new DropCounter();
+        // updated by the partition of the destination in a parallel run
+        private final DropCounter dropsOnArrival = new DropCounter();
+        // the data being put into the queue, a drop of any other data is a push-out
+        private transient Data enQueuing;
         private boolean connected = true;
         private final ArrayList<Consumer<? super AbstractLink>> idleHandlers = new ArrayList<>();
+        // the data in flight in the order of arrival, with the arrival times and the
+        // reserved serials of the arrival events. only the head arrival is in the time line.
+        // the data is written by the simulation after the nodes
+        private final RingBuffer<Data> inFlight = new RingBuffer<>(2);
+        // the head of the data in flight, or a data scheduled alone in a parallel run.
+        // in a sequential run the payload may be a copy reloaded from the spill
+        private final EventHandler<Data> dataArrival = new EventHandler<Data>() {
+            @Override
+            public void handle(Data d, long value) {
+                if (inFlight.size() > 0 && (!timeline.isParallel() || inFlight.peek() == d)) {
+                    arriveHead();
+                } else {
+                    processDataArrival(d);
+                }
+            }
+
+            @Override
+            public Object owner(Data d) {
+                return AbstractLink.this;
+            }
+        };
+        private final Consumer<Data> enQueueDropAdder = (Consumer<Data> & Serializable) this::addEnQueueDrop;
+        private final Consumer<Data> overflowAdder = (Consumer<Data> & Serializable) d -> addDiscardedPacket(DropCounter.Reason.OVERFLOW, d);
+        private final Consumer<Data> abortAdder = (Consumer<Data> & Serializable) d -> addDiscardedPacket(DropCounter.Reason.ABORT, d);
+        // value: 1 if prioritized
+        private final EventHandler<Data> delayedEnQueue = new EventHandler<Data>() {
+            @Override
+            public void handle(Data d, long prioritized) {
+                if (connected) {
+                    enQueue(d, prioritized != 0);
+                } else {
+                    addDiscardedPacket(DropCounter.Reason.ABORT, d);
+                }
+            }
+
+            @Override
+            public Object owner(Data d) {
+                return AbstractLink.this;
+            }
+        };
 
         public AbstractLink(int bwBitsPerMS, long delayInUS, PrioritizedQueue<Data> queue) {
             this.bwBitsPerMS = bwBitsPerMS;
             this.delayInUS = delayInUS;
-            queuePoller = new QueuePoller<>(this::handleData, queue, this::delayFireIdleEvent);
+            queuePoller = new QueuePoller<>(timeline, (Function<Data, Long> & Serializable) this::handleData, queue,
+                    (Consumer<QueuePoller<Data>> & Serializable) this::delayFireIdleEvent);
+            // dropped by an active queue
+            queuePoller.setDropHandler(overflowAdder);
+            queuePoller.setOwner(this);
+            sojourn = queue.getSojourn();
+        }
+
+        @Override
+        public Object getOwner() {
+            return this;
         }
 
         protected abstract long handleData(Data d);
@@ -189,24 +568,74 @@ public abstract class Node {
         }
 
         public long getBitsDiscarded() {
-            return bitsDiscarded;
+            return bitsDiscarded + bitsDiscardedOnArrival;
+        }
+
+        /**
+         * Gets the data discarded by the link, by reason and type.
+         *
+         * @return a copy of the counter
+         */
+        public DropCounter getDrops() {
+            DropCounter ret = new DropCounter();
+            ret.addAll(drops);
+            ret.addAll(dropsOnArrival);
+            return ret;
+        }
+
+        /**
+         * Gets the sojourn time histogram of the link queue.
+         *
+         * @return the histogram, null if the queue does not record the
+         * sojourn times
+         */
+        public SojournQueue.Histogram getSojourn() {
+            return sojourn;
         }
 
         public boolean isBusy() {
             return queuePoller.isBusy();
         }
 
+        public boolean isBatch() {
+            return queuePoller.isBatch();
+        }
+
+        /**
+         * Sets the batch mode of the link queue, see
+         * {@link QueuePoller#setBatch(boolean)}.
+         *
+         * @param batch true to enable the batch mode
+         */
+        public void setBatch(boolean batch) {
+            queuePoller.setBatch(batch);
+        }
+
         public boolean isConnected() {
             return connected;
         }
 
         public void enQueue(Data data, boolean prioritized) {
-            queuePoller.enQueue(data, prioritized, this::addDiscardedPacket);
+            enQueuing = data;
+            queuePoller.enQueue(data, prioritized, enQueueDropAdder);
+            enQueuing = null;
+        }
+
+        /**
+         * Puts the data into the queue after a delay. The data is discarded if
+         * the link is disconnected by then.
+         *
+         * @param data the data
+         * @param prioritized if the data is prioritized
+         * @param delayInUs the delay
+         */
+        public void enQueue(Data data, boolean prioritized, long delayInUs) {
+            timeline.schedule(timeline.now() + delayInUs, delayedEnQueue, data, prioritized ? 1 : 0);
         }
 
         public void abort() {
             connected = false;
-            queuePoller.clear(this::addDiscardedPacket);
+            queuePoller.clear(abortAdder);
         }
 
         public boolean addIdleHandler(Consumer<? super AbstractLink> e) {
@@ -221,19 +650,107 @@ public abstract class Node {
             return Node.getTransmitTimeInUs(data.getSizeInBits(), bwBitsPerMS);
         }
 
-        protected void addDiscardedPacket(Data d) {
+        protected void addDiscardedPacket(DropCounter.Reason reason, Data d) {
             bitsDiscarded += d.getSizeInBits();
+            drops.add(reason, d);
+        }
+
+        protected void addDiscardedPackets(DropCounter packets) {
+            bitsDiscarded += packets.getBits();
+            drops.addAll(packets);
+        }
+
+        protected void addDiscardedPacketOnArrival(DropCounter.Reason reason, Data d) {
+            bitsDiscardedOnArrival += d.getSizeInBits();
+            dropsOnArrival.add(reason, d);
+        }
+
+        private void addEnQueueDrop(Data d) {
+            addDiscardedPacket(d == enQueuing ? DropCounter.Reason.OVERFLOW : DropCounter.Reason.PUSH_OUT, d);
         }
 
         protected void addSentPacket(Data d) {
             bitsSent += d.getSizeInBits();
         }
 
+        /**
+         * Puts the data in flight, it arrives at the time. The arrivals of a
+         * link are in FIFO order, so that only the first arrival is scheduled
+         * in the time line, and the next one is scheduled when it arrives.
+         * The order of the arrivals among the other events is kept as if each
+         * arrival was scheduled now. In a parallel run, each arrival is
+         * scheduled in the partition.
+         *
+         * @param d the data
+         * @param arrivalInUs the arrival time, not earlier than the last one
+         * @param partition the partition that handles the arrival in a
+         * parallel run
+         */
+        protected void sendInFlight(Data d, long arrivalInUs, int partition) {
+            if (timeline.isParallel()) {
+                timeline.scheduleOn(partition, arrivalInUs, dataArrival, d, 0);
+                return;
+            }
+            inFlight.offer(d, arrivalInUs, timeline.reserveSerial());
+            if (inFlight.size() == 1) {
+                timeline.scheduleReserved(inFlight.peekValue(1), arrivalInUs, dataArrival, d, 0);
+            }
+        }
+
+        private void arriveHead() {
+            Data d = inFlight.poll();
+            if (inFlight.size() > 0) {
+                Data next = inFlight.peek();
+                long time = inFlight.peekValue(0);
+                if (timeline.isParallel()) {
+                    // left from a sequential run, executed as global events
+                    timeline.schedule(time, dataArrival, next, 0);
+                } else {
+                    timeline.scheduleReserved(inFlight.peekValue(1), time, dataArrival, next, 0);
+                }
+            }
+            processDataArrival(d);
+        }
+
+        // removes the data in flight (in the order of arrival) from the ring, keeping their slots
+        Data[] takeInFlightData() {
+            Data[] ret = new Data[inFlight.size()];
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = inFlight.get(i);
+                inFlight.set(i, null);
+            }
+            return ret;
+        }
+
+        void restoreInFlightData(Data[] data) {
+            for (int i = 0; i < data.length; i++) {
+                inFlight.set(i, data[i]);
+            }
+        }
+
+        /**
+         * Gets the number of data in flight that are not scheduled alone (in
+         * a parallel run).
+         *
+         * @return the number of data
+         */
+        public int getInFlightCount() {
+            return inFlight.size();
+        }
+
+        /**
+         * Handles a data put in flight with
+         * {@link #sendInFlight(Data, long, int)} when it arrives.
+         *
+         * @param d the data
+         */
+        protected abstract void processDataArrival(Data d);
+
         private void delayFireIdleEvent(Object... params) {
-            Timeline.addEvent(Timeline.nowInUs() + delayInUS, this::fireIdleEvent);
+            timeline.schedule(timeline.now() + delayInUS, FIRE_IDLE_EVENT, this, 0);
         }
 
-        private void fireIdleEvent(Object... params) {
+        private void fireIdleEvent() {
             idleHandlers.forEach(idleHandler -> idleHandler.accept(this));
         }
     }
@@ -241,31 +758,38 @@ public abstract class Node {
     public class UnicastLink extends AbstractLink {
 
         private final Node destination;
+        // in the links of the source
+        private final int index;
 
-        public UnicastLink(Node destination, int bwBitsPerMS, long delayInUS, PrioritizedQueue<Data> queue) {
+        public UnicastLink(Node destination, int bwBitsPerMS, long delayInUS, PrioritizedQueue<Data> queue, int index) {
             super(bwBitsPerMS, delayInUS, queue);
             this.destination = destination;
+            this.index = index;
         }
 
         public Node getDestination() {
             return destination;
         }
 
-        // ps[0]: data
-        private void processDataArrival(Object... ps) {
-            Data dt = (Data) ps[0];
+        public int getIndex() {
+            return index;
+        }
+
+        @Override
+        protected void processDataArrival(Data dt) {
             if (isConnected()) {
                 destination.enqueueIncomingData(Node.this, dt, false);
                 addSentPacket(dt);
             } else {
-                addDiscardedPacket(dt);
+                addDiscardedPacketOnArrival(DropCounter.Reason.ABORT, dt);
             }
         }
 
         @Override
         protected long handleData(Data data) {
             long transmitTimeInUs = getTransmitTimeInUs(data);
-            Timeline.addEvent(Timeline.nowInUs() + transmitTimeInUs + getDelayInUS(), this::processDataArrival, data);
+            // the arrival is handled by the partition of the destination
+            sendInFlight(data, timeline.now() + transmitTimeInUs + getDelayInUS(), destination.partition);
             return transmitTimeInUs;
         }
     }
@@ -273,50 +797,114 @@ public abstract class Node {
     public class BroadcastLink extends AbstractLink {
 
         private final HashSet<Node> destinations = new HashSet<>();
-        private final HashMap<Data, HashSet<Node>> packetsInFlight = new HashMap<>();
+        // the destinations when the data is sent, shared by the data sent until the destinations change
+        private Snapshot current = null;
+        // the snapshots of the data in flight, in the order of arrival
+        private final ArrayDeque<Snapshot> snapshotsInFlight = new ArrayDeque<>();
 
         public BroadcastLink(int bwBitsPerMS, long delayInUS, PrioritizedQueue<Data> queue) {
             super(bwBitsPerMS, delayInUS, queue);
         }
 
         public boolean addNode(Node n) {
-            return destinations.add(n);
+            boolean added = destinations.add(n);
+            if (added) {
+                current = null;
+            }
+            return added;
+        }
+
+        public Stream<Node> destinationStream() {
+            return destinations.stream();
         }
 
         public boolean removeNode(Node n, boolean needDiscardDataInFlight) {
             boolean removed = destinations.remove(n);
-            if (removed && needDiscardDataInFlight) {
-                packetsInFlight.forEach((d, ns) -> {
-                    if (ns.remove(n)) {
-                        addDiscardedPacket(d);
-                    }
-                });
+            if (removed) {
+                current = null;
+                if (needDiscardDataInFlight) {
+                    // counted now, skipped when the data arrives
+                    snapshotsInFlight.forEach(snapshot -> {
+                        if (snapshot.remove(n)) {
+                            addDiscardedPackets(snapshot.inFlight);
+                        }
+                    });
+                }
             }
             return removed;
         }
 
-        private void processDataArrival(Object... ps) {
-            Data dt = (Data) ps[0];
-            HashSet<Node> packetDestinations = packetsInFlight.remove(dt);
-            if (isConnected()) {
-                packetDestinations.forEach(destination -> {
+        @Override
+        protected void processDataArrival(Data dt) {
+            Snapshot snapshot = snapshotsInFlight.peek();
+            if (--snapshot.dataInFlight == 0) {
+                snapshotsInFlight.poll();
+            }
+            snapshot.inFlight.add(DropCounter.Reason.MEMBER_REMOVED, dt.getType(), -1, -dt.getSizeInBits());
+            boolean connected = isConnected();
+            snapshot.members.forEach(destination -> {
+                if (snapshot.removed != null && snapshot.removed.contains(destination)) {
+                    return;
+                }
+                if (connected) {
                     destination.enqueueIncomingData(Node.this, dt, false);
                     addSentPacket(dt);
-                });
-            } else {
-                packetDestinations.forEach(destination -> {
-                    addDiscardedPacket(dt);
-                });
-            }
+                } else {
+                    addDiscardedPacket(DropCounter.Reason.ABORT, dt);
+                }
+            });
         }
 
         @Override
         protected long handleData(Data data) {
             long transmitTimeInUs = getTransmitTimeInUs(data);
-            packetsInFlight.put(data, new HashSet<>(destinations));
-            Timeline.addEvent(Timeline.nowInUs() + transmitTimeInUs + getDelayInUS(), this::processDataArrival, data);
+            if (current == null) {
+                current = new Snapshot(destinations);
+            }
+            if (snapshotsInFlight.peekLast() != current) {
+                snapshotsInFlight.add(current);
+            }
+            current.dataInFlight++;
+            current.inFlight.add(DropCounter.Reason.MEMBER_REMOVED, data);
+            // the arrival is handled by the partition of the source
+            sendInFlight(data, timeline.now() + transmitTimeInUs + getDelayInUS(), partition);
             return transmitTimeInUs;
         }
 
+        /**
+         * Gets the number of snapshots of the destinations shared by the data
+         * in flight.
+         *
+         * @return the number of snapshots
+         */
+        public int getSnapshotsInFlight() {
+            return snapshotsInFlight.size();
+        }
+    }
+
+    // the destinations of a broadcast link at a time, never changed after it is created. the
+    // nodes removed from the link with their data in flight discarded are kept as a delta
+    private static final class Snapshot implements Serializable {
+
+        private final HashSet<Node> members;
+        private HashSet<Node> removed = null;
+        private int dataInFlight = 0;
+        // the data in flight, as the drops of a member removed from the link
+        private final DropCounter inFlight = new DropCounter();
+
+        private Snapshot(HashSet<Node> members) {
+            this.members = new HashSet<>(members);
+        }
+
+        // returns true if the node was a member
+        private boolean remove(Node n) {
+            if (!members.contains(n)) {
+                return false;
+            }
+            if (removed == null) {
+                removed = new HashSet<>();
+            }
+            return removed.add(n);
+        }
     }
 }
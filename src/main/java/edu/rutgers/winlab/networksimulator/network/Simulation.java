@@ -0,0 +1,576 @@
+package edu.rutgers.winlab.networksimulator.network;
+
+import edu.rutgers.winlab.networksimulator.common.Data;
+import edu.rutgers.winlab.networksimulator.common.EventDigest;
+import edu.rutgers.winlab.networksimulator.common.EventHandler;
+import edu.rutgers.winlab.networksimulator.common.EventSpill;
+import edu.rutgers.winlab.networksimulator.common.EventWatchdog;
+import edu.rutgers.winlab.networksimulator.common.SojournQueue;
+import edu.rutgers.winlab.networksimulator.common.SteadyStateMonitor;
+import edu.rutgers.winlab.networksimulator.common.SummaryDigest;
+import edu.rutgers.winlab.networksimulator.common.Timeline;
+import edu.rutgers.winlab.networksimulator.common.TimelineEvent;
+import edu.rutgers.winlab.networksimulator.common.Tuple2;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+
+/**
+ * The context of a simulation. Owns a time line, nodes (and their links,
+ * queues) created in the context are bound to it.
+ *
+ * Independent simulations can run concurrently on different threads, as long
+ * as each simulation is only accessed by one thread at a time.
+ *
+ * A paused simulation can be saved to a file, restored later (in another JVM)
+ * or copied in memory, see {@link SimulationCheckpoint}.
+ *
+ * @author Jiachen Chen
+ */
+public class Simulation implements Serializable {
+
+    private static final Simulation DEFAULT = new Simulation(Timeline.getDefault());
+    private static final ThreadLocal<Simulation> CURRENT = new ThreadLocal<>();
+
+    /**
+     * Gets the default simulation, which owns the default time line.
+     *
+     * @return the default simulation
+     */
+    public static Simulation getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Gets the simulation bound to the current thread.
+     *
+     * @return the bound simulation, the default simulation if none is bound.
+     */
+    public static Simulation getCurrent() {
+        Simulation s = CURRENT.get();
+        return s == null ? DEFAULT : s;
+    }
+
+    /**
+     * Gets the name of the owner of an event for {@link EventWatchdog}, see
+     * {@link EventHandler#owner(Object)}.
+     *
+     * @param owner the owner of the event, e.g., a node or a link
+     * @return the name of the node (or link), "-" if the owner is not known
+     */
+    public static String ownerName(Object owner) {
+        if (owner instanceof Node) {
+            return ((Node) owner).getName();
+        }
+        if (owner instanceof Node.UnicastLink) {
+            Node.UnicastLink l = (Node.UnicastLink) owner;
+            return l.getSource().getName() + "->" + l.getDestination().getName();
+        }
+        return owner instanceof Node.AbstractLink ? ((Node.AbstractLink) owner).getSource().getName() + "->*" : "-";
+    }
+
+    /**
+     * Gets the packet type of an event payload for {@link EventWatchdog}.
+     *
+     * @param payload the payload
+     * @return the class name of the data (or the data in a tuple), "-" if the
+     * payload is not data.
+     */
+    public static String packetType(Object payload) {
+        if (payload instanceof Tuple2 && ((Tuple2<?, ?>) payload).getV2() instanceof Data) {
+            payload = ((Tuple2<?, ?>) payload).getV2();
+        }
+        return payload instanceof Data ? EventWatchdog.typeName(payload) : "-";
+    }
+
+    /**
+     * Gets the key of an event payload for {@link EventDigest}: the names of
+     * the nodes, the source and destination of the links, and the type and
+     * size of the data.
+     *
+     * @param payload the payload
+     * @return the key
+     */
+    public static long digestKey(Object payload) {
+        if (payload instanceof Node) {
+            return ((Node) payload).getName().hashCode();
+        }
+        if (payload instanceof Node.UnicastLink) {
+            Node.UnicastLink l = (Node.UnicastLink) payload;
+            return 31L * l.getSource().getName().hashCode() + l.getDestination().getName().hashCode();
+        }
+        if (payload instanceof Node.AbstractLink) {
+            return ((Node.AbstractLink) payload).getSource().getName().hashCode();
+        }
+        if (payload instanceof Tuple2) {
+            Tuple2<?, ?> t = (Tuple2<?, ?>) payload;
+            return 31L * digestKey(t.getV1()) + digestKey(t.getV2());
+        }
+        if (payload instanceof Data) {
+            return 31L * payload.getClass().getName().hashCode() + ((Data) payload).getSizeInBits();
+        }
+        if (payload instanceof Number) {
+            return ((Number) payload).longValue();
+        }
+        return payload instanceof String ? payload.hashCode() : 0;
+    }
+
+    private final Timeline timeline;
+    // written by writeObject, one node at a time
+    private transient ArrayList<Node> nodes = new ArrayList<>();
+    private final SummaryDigest deliveryDigest = new SummaryDigest();
+
+    public Simulation() {
+        this(new Timeline());
+    }
+
+    public Simulation(Timeline timeline) {
+        this.timeline = timeline;
+    }
+
+    // the nodes are written in two passes, so that writing a node does not
+    // recurse into its neighbors (the links, FIBs and subscription tables
+    // refer to other nodes), and the depth of the stream does not grow with
+    // the topology: first each node without the states that refer to other
+    // nodes, then these states of each node (see Node#writeReferences), in
+    // which the other nodes are back references.
+    //
+    // the pending events are written after the nodes: the handlers of the
+    // events may be lambdas kept in the nodes, which cannot be resolved while
+    // the nodes they capture are being read. the data in flight on the links
+    // is also written after the nodes: a data may refer to a node (e.g., an
+    // NA), which cannot be hashed while the node is being read. the events
+    // and the data are written one at a time, instead of in a list.
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        List<TimelineEvent> events = timeline.removeEvents();
+        ArrayList<Tuple2<Node.AbstractLink, Data[]>> inFlight = new ArrayList<>();
+        nodes.forEach(n -> Stream.concat(n.unicastLinkStream(), n.broadcastLinkStream().map(Entry::getValue))
+                .filter(l -> l.getInFlightCount() > 0)
+                .forEach(l -> inFlight.add(new Tuple2<>(l, l.takeInFlightData()))));
+        try {
+            out.defaultWriteObject();
+            out.writeInt(nodes.size());
+            for (Node n : nodes) {
+                out.writeObject(n);
+            }
+            for (Node n : nodes) {
+                n.writeReferences(out);
+            }
+            out.writeInt(inFlight.size());
+            for (Tuple2<Node.AbstractLink, Data[]> t : inFlight) {
+                out.writeObject(t.getV1());
+                out.writeObject(t.getV2());
+            }
+            out.writeInt(events.size());
+            for (TimelineEvent e : events) {
+                out.writeObject(e);
+            }
+        } finally {
+            inFlight.forEach(t -> t.getV1().restoreInFlightData(t.getV2()));
+            timeline.restoreEvents(events);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int count = in.readInt();
+        nodes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            nodes.add((Node) in.readObject());
+        }
+        for (Node n : nodes) {
+            n.readReferences(in);
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            Node.AbstractLink l = (Node.AbstractLink) in.readObject();
+            l.restoreInFlightData((Data[]) in.readObject());
+        }
+        ArrayList<TimelineEvent> events = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            events.add((TimelineEvent) in.readObject());
+        }
+        timeline.restoreEvents(events);
+    }
+
+    public Timeline getTimeline() {
+        return timeline;
+    }
+
+    // returns the id of the node
+    int addNode(Node n) {
+        nodes.add(n);
+        return nodes.size() - 1;
+    }
+
+    /**
+     * Gets a node by its id, see {@link Node#getId()}.
+     *
+     * @param id the id
+     * @return the node
+     */
+    public Node getNode(int id) {
+        if (id < 0 || id >= nodes.size()) {
+            throw new IllegalArgumentException(String.format("Node id should be in [0, %d), id=%d", nodes.size(), id));
+        }
+        return nodes.get(id);
+    }
+
+    public void forEachNode(Consumer<? super Node> consumer) {
+        nodes.forEach(consumer);
+    }
+
+    public Stream<Node> nodeStream() {
+        return nodes.stream();
+    }
+
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    /**
+     * Visits the sojourn time histograms of the queues of all the nodes, see
+     * {@link Node#forEachSojourn(BiConsumer)}.
+     *
+     * @param consumer called with the name of the queue and its histogram
+     */
+    public void forEachSojourn(BiConsumer<? super String, ? super SojournQueue.Histogram> consumer) {
+        nodes.forEach(n -> n.forEachSojourn(consumer));
+    }
+
+    public Stream<Tuple2<String, SojournQueue.Histogram>> sojournStream() {
+        return nodes.stream().flatMap(Node::sojournStream);
+    }
+
+    /**
+     * Visits the drop counters of all the nodes and their links, see
+     * {@link Node#forEachDrops(BiConsumer)}.
+     *
+     * @param consumer called with the name of the node or link and its counter
+     */
+    public void forEachDrops(BiConsumer<? super String, ? super DropCounter> consumer) {
+        nodes.forEach(n -> n.forEachDrops(consumer));
+    }
+
+    public Stream<Tuple2<String, DropCounter>> dropsStream() {
+        return nodes.stream().flatMap(Node::dropsStream);
+    }
+
+    /**
+     * Gets the bits sent on all the links of the nodes, e.g., as a counter of
+     * {@link SteadyStateMonitor}.
+     *
+     * @return the bits sent
+     */
+    public long getBitsSent() {
+        long ret = 0;
+        for (Node n : nodes) {
+            ret += n.unicastLinkStream().mapToLong(Node.AbstractLink::getBitsSent).sum();
+            ret += n.broadcastLinkStream().mapToLong(e -> e.getValue().getBitsSent()).sum();
+        }
+        return ret;
+    }
+
+    /**
+     * Starts digesting the events executed in the time line, see
+     * {@link #digestKey(java.lang.Object)}.
+     *
+     * @return the digest
+     */
+    public EventDigest startEventDigest() {
+        EventDigest digest = new EventDigest(Simulation::digestKey);
+        timeline.setDigest(digest);
+        return digest;
+    }
+
+    /**
+     * Starts watching the sequential runs for event storms, the owners in the
+     * report are the nodes (see {@link #ownerName(Object)}), the
+     * types are the packet types.
+     *
+     * @param maxPending the maximum number of pending events
+     * @param maxEventsPerSimMs the maximum number of events executed in a
+     * simulated millisecond
+     * @param maxStallMs the maximum wall clock time (in ms) without simulated
+     * time progress
+     * @return the watchdog
+     * @see EventWatchdog
+     */
+    public EventWatchdog startWatchdog(int maxPending, int maxEventsPerSimMs, long maxStallMs) {
+        EventWatchdog watchdog = new EventWatchdog(maxPending, maxEventsPerSimMs, maxStallMs,
+                Simulation::ownerName, Simulation::packetType);
+        timeline.setWatchdog(watchdog);
+        return watchdog;
+    }
+
+    /**
+     * Starts keeping the events later than a horizon from now on the disk, for
+     * runs with a very long horizon (e.g., periodic announcements scheduled
+     * far ahead). The packets and other values in the payloads are copied, the
+     * nodes, links and handlers are kept in memory.
+     *
+     * The data in flight and the destinations of a broadcast are kept by the
+     * link, so that an arrival reloaded with a copy of the packet is still
+     * delivered with the original, to the destinations when it was sent.
+     *
+     * @param directory the directory of the run files
+     * @param horizonInUs the events later than now + horizon are spilled
+     * @return the spill, should be closed after the run
+     * @see EventSpill
+     */
+    public EventSpill startSpill(Path directory, long horizonInUs) {
+        EventSpill spill = new EventSpill(directory, horizonInUs);
+        timeline.setSpill(spill);
+        return spill;
+    }
+
+    /**
+     * Gets the digest of the data delivered to the applications, which does
+     * not depend on the order of the deliveries.
+     *
+     * @return the delivery digest
+     */
+    public SummaryDigest getDeliveryDigest() {
+        return deliveryDigest;
+    }
+
+    /**
+     * Adds a delivery to the delivery digest, at the current time. Can be
+     * called from the partitions of a parallel run.
+     *
+     * @param receiver the node that delivers the data
+     * @param key the key of the data
+     */
+    public void recordDelivery(Node receiver, long key) {
+        deliveryDigest.add(timeline.now(), receiver.getName().hashCode(), key);
+    }
+
+    /**
+     * Runs the code with the simulation (and its time line) bound to the
+     * current thread. Nodes created in the code are bound to the simulation,
+     * static methods of {@link Timeline} operate on the simulation's time line.
+     *
+     * @param r the code to run
+     */
+    public void execute(Runnable r) {
+        call(() -> {
+            r.run();
+            return null;
+        });
+    }
+
+    /**
+     * Runs the code with the simulation (and its time line) bound to the
+     * current thread.
+     *
+     * @param <T> the return type
+     * @param s the code to run
+     * @return the return value of the code
+     */
+    public <T> T call(Supplier<T> s) {
+        Simulation origSimulation = CURRENT.get();
+        Timeline origTimeline = Timeline.setCurrent(timeline);
+        CURRENT.set(this);
+        try {
+            return s.get();
+        } finally {
+            if (origSimulation == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(origSimulation);
+            }
+            Timeline.setCurrent(origTimeline);
+        }
+    }
+
+    /**
+     * Runs all the events in the time line of the simulation.
+     *
+     * @return the time of the last event
+     */
+    public long run() {
+        return call(timeline::execute);
+    }
+
+    /**
+     * Runs the events not later than the time, the simulation can be resumed
+     * afterwards.
+     *
+     * @param timeInUs the time
+     * @return the number of events executed
+     * @see Timeline#executeUntil(long)
+     */
+    public int runUntil(long timeInUs) {
+        return call(() -> timeline.executeUntil(timeInUs));
+    }
+
+    /**
+     * Runs at most count events, the simulation can be resumed afterwards.
+     *
+     * @param count the maximum number of events
+     * @return the number of events executed
+     * @see Timeline#executeEvents(int)
+     */
+    public int runEvents(int count) {
+        return call(() -> timeline.executeEvents(count));
+    }
+
+    /**
+     * Runs all the events and keeps the clock, the simulation can be resumed
+     * after more events are added.
+     *
+     * @return the time of the last event
+     * @see Timeline#executeAll()
+     */
+    public long runAll() {
+        return call(timeline::executeAll);
+    }
+
+    /**
+     * Runs all the events in parallel, with one partition per processor.
+     *
+     * @return the time of the last event
+     * @see #runParallel(int)
+     */
+    public long runParallel() {
+        return runParallel(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Runs all the events in parallel. The nodes are partitioned into
+     * connected groups of similar sizes. Nodes connected by broadcast links or
+     * links without delay are in the same partition.
+     *
+     * @param partitions the number of partitions
+     * @return the time of the last event
+     * @see #runParallel(int, java.util.function.ToIntFunction)
+     */
+    public long runParallel(int partitions) {
+        int[] assignment = partition(partitions);
+        return runParallel(partitions, n -> assignment[n.getId()]);
+    }
+
+    /**
+     * Runs all the events with conservative parallel execution, the results
+     * are identical to {@link #run()}.
+     *
+     * Each partition handles the data arrivals of its nodes and the events
+     * they schedule. The events pending when the run starts (and the events
+     * they schedule until the data reaches a link) are executed when all the
+     * partitions are synchronized, topology changes and the interactions with
+     * multiple nodes should be done in these events.
+     *
+     * The minimum delay of the links between partitions is used as lookahead.
+     * Nodes sharing a broadcast link should be in the same partition. Links
+     * added during the run should not have smaller delays.
+     *
+     * @param partitions the number of partitions
+     * @param partitioner gets the partition of a node, in [0, partitions)
+     * @return the time of the last event
+     */
+    public long runParallel(int partitions, ToIntFunction<? super Node> partitioner) {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("Partition count should be > 0, count=" + partitions);
+        }
+        try {
+            for (Node n : nodes) {
+                int p = partitioner.applyAsInt(n);
+                if (p < 0 || p >= partitions) {
+                    throw new IllegalArgumentException(String.format("Partition of %s should be in [0, %d), partition=%d", n.getName(), partitions, p));
+                }
+                n.setPartition(p);
+            }
+            long lookahead = nodes.stream().flatMap(Node::unicastLinkStream)
+                    .filter(l -> l.getDestination().getPartition() != l.getSource().getPartition())
+                    .mapToLong(Node.UnicastLink::getDelayInUS)
+                    .min().orElse(Long.MAX_VALUE);
+            if (lookahead <= 0) {
+                throw new IllegalArgumentException("Nodes linked without delay should be in the same partition.");
+            }
+            for (Node n : nodes) {
+                n.forEachBroadcastLink((name, l) -> l.destinationStream()
+                        .filter(d -> d.getPartition() != n.getPartition())
+                        .findAny().ifPresent(d -> {
+                            throw new IllegalArgumentException(String.format("%s and %s share broadcast link %s, they should be in the same partition.", n.getName(), d.getName(), name));
+                        }));
+            }
+            return call(() -> timeline.executeParallel(partitions, lookahead));
+        } finally {
+            nodes.forEach(n -> n.setPartition(0));
+        }
+    }
+
+    // groups of nodes that should be in the same partition, assigned in BFS order.
+    // returns the partitions by node id
+    private int[] partition(int partitions) {
+        int[] group = new int[nodes.size()];
+        for (int i = 0; i < group.length; i++) {
+            group[i] = i;
+        }
+        for (Node n : nodes) {
+            int i = n.getId();
+            n.forEachUnicastLink(l -> {
+                if (l.getDelayInUS() <= 0) {
+                    union(group, i, l.getDestination().getId());
+                }
+            });
+            n.forEachBroadcastLink((name, l) -> l.destinationStream().forEach(d -> union(group, i, d.getId())));
+        }
+        int[] groupSize = new int[group.length];
+        for (int i = 0; i < group.length; i++) {
+            groupSize[find(group, i)]++;
+        }
+        int[] groupPartition = new int[group.length];
+        boolean[] visited = new boolean[group.length];
+        int assigned = 0;
+        int[] ret = new int[nodes.size()];
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        for (Node start : nodes) {
+            if (visited[start.getId()]) {
+                continue;
+            }
+            visited[start.getId()] = true;
+            queue.add(start);
+            while (!queue.isEmpty()) {
+                Node n = queue.poll();
+                int g = find(group, n.getId());
+                if (groupSize[g] > 0) {
+                    // first node of the group
+                    groupPartition[g] = (int) ((long) assigned * partitions / nodes.size());
+                    assigned += groupSize[g];
+                    groupSize[g] = 0;
+                }
+                ret[n.getId()] = groupPartition[g];
+                n.forEachUnicastLink(l -> {
+                    int d = l.getDestination().getId();
+                    if (!visited[d]) {
+                        visited[d] = true;
+                        queue.add(l.getDestination());
+                    }
+                });
+            }
+        }
+        return ret;
+    }
+
+    private static int find(int[] group, int i) {
+        while (group[i] != i) {
+            i = group[i] = group[group[i]];
+        }
+        return i;
+    }
+
+    private static void union(int[] group, int i, int j) {
+        group[find(group, i)] = find(group, j);
+    }
+}
@@ -0,0 +1,167 @@
+package edu.rutgers.winlab.networksimulator.network;
+
+import edu.rutgers.winlab.networksimulator.common.CopyOnWriteMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Saves a paused {@link Simulation} to a file and restores it later (in
+ * another JVM), or copies it in memory (forks), so that different what-if
+ * branches can be continued from the same point.
+ *
+ * A simulation is saved with its nodes, links and their queues, the states of
+ * the nodes (FIBs, NRS caches, GNRS storage, subscription and RP tables, ...)
+ * and the pending events. Each node writes the states that refer to other
+ * nodes itself, see {@link Node#writeReferences(java.io.ObjectOutputStream)}.
+ * The handlers added from outside (data consumers, subscribers, pending
+ * events) should be serializable. Static settings (e.g.,
+ * MFRouter.durationNrsReIssue) are not saved.
+ *
+ * @author Jiachen Chen
+ */
+public final class SimulationCheckpoint {
+
+    // stands for a shared map in a fork image
+    private static final class SharedMapRef implements Serializable {
+
+        private final int index;
+
+        private SharedMapRef(int index) {
+            this.index = index;
+        }
+    }
+
+    // writes the shared maps as references
+    private static final class ForkOutputStream extends ObjectOutputStream {
+
+        private final ArrayList<CopyOnWriteMap<?, ?>> sharedMaps;
+
+        private ForkOutputStream(OutputStream out, ArrayList<CopyOnWriteMap<?, ?>> sharedMaps) throws IOException {
+            super(out);
+            this.sharedMaps = sharedMaps;
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) {
+            if (obj instanceof CopyOnWriteMap) {
+                sharedMaps.add((CopyOnWriteMap<?, ?>) obj);
+                return new SharedMapRef(sharedMaps.size() - 1);
+            }
+            return obj;
+        }
+    }
+
+    // resolves the references with maps sharing the entries of the originals
+    private static final class ForkInputStream extends ObjectInputStream {
+
+        private final ArrayList<CopyOnWriteMap<?, ?>> sharedMaps;
+
+        private ForkInputStream(InputStream in, ArrayList<CopyOnWriteMap<?, ?>> sharedMaps) throws IOException {
+            super(in);
+            this.sharedMaps = sharedMaps;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) {
+            return obj instanceof SharedMapRef ? sharedMaps.get(((SharedMapRef) obj).index).share() : obj;
+        }
+    }
+
+    private SimulationCheckpoint() {
+    }
+
+    /**
+     * Saves a simulation to a file. The simulation should be paused (see
+     * {@link Simulation#runUntil(long)}).
+     *
+     * @param simulation the simulation
+     * @param file the checkpoint file, overwritten if exists
+     * @throws IOException if the file cannot be written, or a state is not
+     * serializable
+     */
+    public static void save(Simulation simulation, Path file) throws IOException {
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(file))))) {
+            out.writeObject(simulation);
+        }
+    }
+
+    /**
+     * Restores a simulation saved by {@link #save(Simulation, Path)}.
+     *
+     * @param file the checkpoint file
+     * @return the restored simulation, with its own time line
+     * @throws IOException if the file cannot be read
+     * @throws ClassNotFoundException if a class in the checkpoint is missing
+     */
+    public static Simulation restore(Path file) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            return (Simulation) in.readObject();
+        }
+    }
+
+    /**
+     * Forks a simulation, see {@link #fork(Simulation, int)}.
+     *
+     * @param simulation the simulation
+     * @return the fork
+     * @throws IOException if a state is not serializable
+     */
+    public static Simulation fork(Simulation simulation) throws IOException {
+        return fork(simulation, 1).get(0);
+    }
+
+    /**
+     * Copies a paused simulation in memory, each fork can run on its own
+     * thread.
+     *
+     * Each fork has its own time line, nodes, queues and tables, with the
+     * states and pending events at the time of the fork. Read-mostly tables
+     * that do not reference the nodes (see {@link CopyOnWriteMap}, e.g., the
+     * RP graphs) are shared by the simulation and its forks until they are
+     * modified. The profiler, recorder and event digest of the time line are
+     * not copied.
+     *
+     * @param simulation the simulation
+     * @param count the number of forks
+     * @return the forks
+     * @throws IOException if a state is not serializable
+     */
+    public static List<Simulation> fork(Simulation simulation, int count) throws IOException {
+        if (count < 0) {
+            throw new IllegalArgumentException("Fork count should be >= 0, count=" + count);
+        }
+        ArrayList<CopyOnWriteMap<?, ?>> sharedMaps = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ForkOutputStream(bytes, sharedMaps)) {
+            out.writeObject(simulation);
+        }
+        byte[] image = bytes.toByteArray();
+        ArrayList<Simulation> ret = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                try (ObjectInputStream in = new ForkInputStream(new ByteArrayInputStream(image), sharedMaps)) {
+                    ret.add((Simulation) in.readObject());
+                }
+            }
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return ret;
+    }
+}
@@ -10,6 +10,9 @@ import edu.rutgers.winlab.networksimulator.network.mf.packets.MFHopPacketGNRSAss
 import edu.rutgers.winlab.networksimulator.network.mf.packets.MFHopPacketGNRSRequest;
 import edu.rutgers.winlab.networksimulator.network.mf.packets.MFHopPacketGNRSResponse;
 import edu.rutgers.winlab.networksimulator.network.mf.packets.NA;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.AbstractMap;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -26,7 +29,8 @@ public class MFGNRS extends MFRouter {
 
     public static final long REQUEST_PROCESSING_TIME = 1 * Timeline.MS;
     public static final long ASSOCIATION_PROCESSING_TIME = 1 * Timeline.MS;
-    private final HashMap<GUID, Tuple2<HashSet<NA>, Integer>> storage = new HashMap<>();
+    // refers to other nodes, see writeReferences
+    private transient HashMap<GUID, Tuple2<HashSet<NA>, Integer>> storage = new HashMap<>();
 
     public MFGNRS(String name, PrioritizedQueue<Tuple2<Node, Data>> incomingQueue) {
         super(name, incomingQueue);
@@ -86,11 +90,22 @@ public class MFGNRS extends MFRouter {
         if (packet.isBroadcastResult()) {
             NA[] ret = new NA[tmp.getV1().size()];
             tmp.getV1().toArray(ret);
-            Timeline.addEvent(Timeline.nowInUs() + ASSOCIATION_PROCESSING_TIME, p -> {
-                forEachUnicastLink(l -> sendData(l, (Data) p[0], true));
-            }, new MFHopPacketGNRSResponse(guid, null, ret, tmp.getV2()));
+            floodData(new MFHopPacketGNRSResponse(guid, null, ret, tmp.getV2()), ASSOCIATION_PROCESSING_TIME);
         }
         return ASSOCIATION_PROCESSING_TIME;
     }
 
+    @Override
+    protected void writeReferences(ObjectOutputStream out) throws IOException {
+        super.writeReferences(out);
+        out.writeObject(storage);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void readReferences(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        super.readReferences(in);
+        storage = (HashMap<GUID, Tuple2<HashSet<NA>, Integer>>) in.readObject();
+    }
+
 }
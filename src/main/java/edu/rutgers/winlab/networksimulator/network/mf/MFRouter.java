@@ -1,8 +1,10 @@
 package edu.rutgers.winlab.networksimulator.network.mf;
 
 import edu.rutgers.winlab.networksimulator.common.Data;
+import edu.rutgers.winlab.networksimulator.common.EventHandler;
 import edu.rutgers.winlab.networksimulator.common.PrioritizedQueue;
 import edu.rutgers.winlab.networksimulator.common.Timeline;
+import edu.rutgers.winlab.networksimulator.common.TimelineEvent;
 import edu.rutgers.winlab.networksimulator.common.Tuple2;
 import edu.rutgers.winlab.networksimulator.common.Tuple3;
 import edu.rutgers.winlab.networksimulator.network.Node;
@@ -15,6 +17,12 @@ import edu.rutgers.winlab.networksimulator.network.mf.packets.MFHopPacketGNRSAss
 import edu.rutgers.winlab.networksimulator.network.mf.packets.MFHopPacketGNRSRequest;
 import edu.rutgers.winlab.networksimulator.network.mf.packets.MFApplicationPacketData;
 import edu.rutgers.winlab.networksimulator.network.mf.packets.NA;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map.Entry;
@@ -36,13 +44,65 @@ public class MFRouter extends Node {
     public static final long DURATION_HANDLE_OTHER = 50 * Timeline.US;
     public static long durationNrsCacheExpire = 3600 * 24 * Timeline.SECOND;
     public static long durationNrsReIssue = 3600 * 24 * Timeline.SECOND;
+    // cancel the reissue timers of the resolved GUIDs, false to keep them as no-ops
+    public static boolean cancelNrsReIssue = true;
 
     private final NA na;
-    private final NA gnrsNa;
-    private final HashMap<NA, Tuple2<Node, Long>> fib = new HashMap<>();
-    private final HashMap<GUID, BiConsumer<? super MFRouter, ? super MFApplicationPacket>> dataConsumers = new HashMap<>();
-    private final HashMap<GUID, Tuple3<NA[], Integer, Long>> nrsCache = new HashMap<>();
-    private final HashMap<GUID, HashSet<Tuple2<MFApplicationPacket, Node>>> nrsPending = new HashMap<>();
+    // the gnrs na and the tables refer to other nodes, see writeReferences
+    private transient NA gnrsNa;
+    private transient HashMap<NA, Tuple2<Node, Long>> fib = new HashMap<>();
+    // the link index of the next hop (+1, 0 if not cached) of each target, by the id of the node of the na
+    private int[] nextHopLinks = new int[0];
+    private transient HashMap<GUID, BiConsumer<? super MFRouter, ? super MFApplicationPacket>> dataConsumers = new HashMap<>();
+    private transient HashMap<GUID, Tuple3<NA[], Integer, Long>> nrsCache = new HashMap<>();
+    private transient HashMap<GUID, HashSet<Tuple2<MFApplicationPacket, Node>>> nrsPending = new HashMap<>();
+    // the reissue timers of the GUIDs, cancelled (parked) while the GUID is not pending
+    private final HashMap<GUID, ArrayList<ReIssueTimer>> reIssueTimers = new HashMap<>();
+    private final EventHandler<Data> floodData = new EventHandler<Data>() {
+        @Override
+        public void handle(Data d, long value) {
+            forEachUnicastLink(l -> sendData(l, d, true));
+        }
+
+        @Override
+        public Object owner(Data d) {
+            return MFRouter.this;
+        }
+    };
+    // the packet with the consumer that listened when it arrived
+    private final EventHandler<Tuple2<MFApplicationPacket, BiConsumer<? super MFRouter, ? super MFApplicationPacket>>> deliverData
+            = new EventHandler<Tuple2<MFApplicationPacket, BiConsumer<? super MFRouter, ? super MFApplicationPacket>>>() {
+        @Override
+        public void handle(Tuple2<MFApplicationPacket, BiConsumer<? super MFRouter, ? super MFApplicationPacket>> t, long value) {
+            getSimulation().recordDelivery(MFRouter.this, deliveryKey(t.getV1()));
+            t.getV2().accept(MFRouter.this, t.getV1());
+        }
+
+        @Override
+        public Object owner(Tuple2<MFApplicationPacket, BiConsumer<? super MFRouter, ? super MFApplicationPacket>> t) {
+            return MFRouter.this;
+        }
+
+        @Override
+        public Object category(Tuple2<MFApplicationPacket, BiConsumer<? super MFRouter, ? super MFApplicationPacket>> t) {
+            return t.getV1().getClass();
+        }
+    };
+    private final EventHandler<GUID> reIssueGNRSRequest = new EventHandler<GUID>() {
+        @Override
+        public void handle(GUID guid, long value) {
+            // value is the serial of a tracked timer, or -1
+            if (value >= 0) {
+                removeReIssueTimer(guid, value);
+            }
+            handleReIssueGNRSRequest(guid);
+        }
+
+        @Override
+        public Object owner(GUID guid) {
+            return MFRouter.this;
+        }
+    };
 
     public MFRouter(String name, PrioritizedQueue<Tuple2<Node, Data>> incomingQueue, NA gnrsNa) {
         super(name, incomingQueue);
@@ -80,10 +140,34 @@ public class MFRouter extends Node {
 
     public final void clearFib() {
         fib.clear();
+        Arrays.fill(nextHopLinks, 0);
     }
     
     public final void setFib(NA na, Tuple2<Node, Long> nextHop) {
         fib.put(na, nextHop);
+        uncacheNextHop(na);
+    }
+
+    private void uncacheNextHop(NA na) {
+        int id = na.getNode().getId();
+        if (id < nextHopLinks.length) {
+            nextHopLinks[id] = 0;
+        }
+    }
+
+    // resolved from the fib on the first use, and again if the link is disconnected
+    private int getNextHopLink(NA target) {
+        int id = target.getNode().getId();
+        if (id < nextHopLinks.length && nextHopLinks[id] > 0 && getUnicastLink(nextHopLinks[id] - 1) != null) {
+            return nextHopLinks[id] - 1;
+        }
+        //next hop should not be null
+        int link = getUnicastLinkIndex(fib.get(target).getV1());
+        if (id >= nextHopLinks.length) {
+            nextHopLinks = Arrays.copyOf(nextHopLinks, Math.max(id + 1, getSimulation().getNodeCount()));
+        }
+        nextHopLinks[id] = link + 1;
+        return link;
     }
 
     public final Stream<Entry<GUID, Tuple3<NA[], Integer, Long>>> nrsCacheStream() {
@@ -91,7 +175,7 @@ public class MFRouter extends Node {
     }
 
     public final Stream<Entry<GUID, Tuple3<NA[], Integer, Long>>> activeNrsCacheStream() {
-        long now = Timeline.nowInUs();
+        long now = getTimeline().now();
         return nrsCache.entrySet().stream().filter(e -> e.getValue().getV3() >= now);
     }
 
@@ -121,7 +205,8 @@ public class MFRouter extends Node {
 
     public final void announceNA() {
         fib.put(na, new Tuple2<>(this, 0L));
-        MFHopPacketLSA announce = new MFHopPacketLSA(na, Timeline.nowInUs());
+        uncacheNextHop(na);
+        MFHopPacketLSA announce = new MFHopPacketLSA(na, getTimeline().now());
         forEachUnicastLink(l -> sendData(l, announce, true));
     }
 
@@ -134,17 +219,24 @@ public class MFRouter extends Node {
             enqueueIncomingData(this, data, false);
             return;
         }
-        Tuple2<Node, Long> nextHop = fib.get(target);
-        //next hop should not be null
+        int link = getNextHopLink(target);
         if (delay == 0) {
-            sendUnicastData(nextHop.getV1(), data, prioritized);
+            sendUnicastData(link, data, prioritized);
         } else {
-            Timeline.addEvent(Timeline.nowInUs() + delay, prams -> {
-                sendUnicastData((Node) prams[0], (Data) prams[1], (Boolean) prams[2]);
-            }, nextHop.getV1(), data, prioritized);
+            sendUnicastData(link, data, prioritized, delay);
         }
     }
 
+    /**
+     * Sends the data to all the neighbors after a delay.
+     *
+     * @param data the data
+     * @param delay the delay
+     */
+    protected void floodData(Data data, long delay) {
+        getTimeline().schedule(getTimeline().now() + delay, floodData, data, 0);
+    }
+
     @Override
     protected long handleData(Tuple2<Node, Data> t) {
         Node source = t.getV1();
@@ -165,7 +257,7 @@ public class MFRouter extends Node {
     }
 
     private boolean updateNRSCacheIfActiveOrPending(GUID guid, NA[] nas, int version) {
-        Long now = Timeline.nowInUs();
+        Long now = getTimeline().now();
         Tuple3<NA[], Integer, Long> tuple = nrsCache.get(guid);
 //        if (tuple != null // I should have the entry, otherwise, I'll not have the pending
 //                && version >= tuple.getV2() // I have it and its version is OK
@@ -185,7 +277,7 @@ public class MFRouter extends Node {
     }
 
     private boolean forceUpdateNRSCache(GUID guid, NA[] nas, int version) {
-        Long now = Timeline.nowInUs();
+        Long now = getTimeline().now();
         Tuple3<NA[], Integer, Long> tuple = nrsCache.get(guid);
         if (tuple == null) { // I don't have it, add
             nrsCache.put(guid, new Tuple3<>(nas, version, now + durationNrsCacheExpire));
@@ -199,7 +291,7 @@ public class MFRouter extends Node {
     }
 
     protected void setLocalNRSCache(GUID guid, NA[] nas) {
-        Long now = Timeline.nowInUs();
+        Long now = getTimeline().now();
         Tuple3<NA[], Integer, Long> tuple = nrsCache.get(guid);
         if (tuple == null) { // I don't have it, add
             nrsCache.put(guid, new Tuple3<>(nas, 0, now + durationNrsCacheExpire));
@@ -218,6 +310,7 @@ public class MFRouter extends Node {
         if (packets == null) {
             return;
         }
+        parkReIssueTimers(guid);
         NA dataDst;
         if (nas.length == 1) { // only 1 NA, use that directly
             dataDst = nas[0];
@@ -251,9 +344,7 @@ public class MFRouter extends Node {
                 triggerSendApplicationPacket(guid, nas);
             }
             // flood the announcement to other nodes. but how??
-            Timeline.addEvent(Timeline.nowInUs() + DURATION_HANDLE_NA_FORWARDING, p -> {
-                forEachUnicastLink(l -> Node.sendData(l, (Data) p[0], true));
-            }, packet);
+            floodData(packet, DURATION_HANDLE_NA_FORWARDING);
         } else {
             if (dst != getNa()) {
                 // update if active or pending
@@ -269,13 +360,13 @@ public class MFRouter extends Node {
                     ret += DURATION_HANDLE_GNRS_RESPONSE;
                     if (nas.length == 0) {
                         // reissue after a timeout
-                        Timeline.addEvent(Timeline.nowInUs() + durationNrsReIssue, this::handleReIssueGNRSRequest, guid);
+                        scheduleReIssueGNRSRequest(guid);
                     } else {
                         triggerSendApplicationPacket(guid, nas);
                     }
                 } else {
                     // reissue after a timeout
-                    Timeline.addEvent(Timeline.nowInUs() + durationNrsReIssue, this::handleReIssueGNRSRequest, guid);
+                    scheduleReIssueGNRSRequest(guid);
                 }
             }
         }
@@ -283,8 +374,76 @@ public class MFRouter extends Node {
         return ret;
     }
 
-    protected void handleReIssueGNRSRequest(Object... params) {
-        GUID guid = (GUID) params[0];
+    // every timer fires, the handler checks if the GUID is still pending.
+    // the timers are cancelled while the GUID is not pending (the handler
+    // would do nothing), and scheduled again with their original serials if
+    // the GUID is pending again before they expire, so that the order of the
+    // other events stays the same
+    private void scheduleReIssueGNRSRequest(GUID guid) {
+        Timeline timeline = getTimeline();
+        long timeInUs = timeline.now() + durationNrsReIssue;
+        if (!cancelNrsReIssue || timeline.isParallel()) {
+            timeline.schedule(timeInUs, reIssueGNRSRequest, guid, -1);
+            return;
+        }
+        ReIssueTimer timer = new ReIssueTimer(timeInUs, timeline.reserveSerial());
+        if (nrsPending.containsKey(guid)) {
+            timer.event = timeline.scheduleReservedCancellable(timer.serial, timeInUs, reIssueGNRSRequest, guid, timer.serial);
+        }
+        reIssueTimers.computeIfAbsent(guid, g -> new ArrayList<>()).add(timer);
+    }
+
+    private void removeReIssueTimer(GUID guid, long serial) {
+        ArrayList<ReIssueTimer> timers = reIssueTimers.get(guid);
+        if (timers == null) {
+            return;
+        }
+        timers.removeIf(t -> t.serial == serial);
+        if (timers.isEmpty()) {
+            reIssueTimers.remove(guid);
+        }
+    }
+
+    // the GUID is no longer pending
+    private void parkReIssueTimers(GUID guid) {
+        ArrayList<ReIssueTimer> timers = reIssueTimers.get(guid);
+        // the events are already handed to the partitions in a parallel run
+        if (timers == null || getTimeline().isParallel()) {
+            return;
+        }
+        timers.forEach(t -> {
+            if (t.event != null) {
+                t.event.cancel();
+                t.event = null;
+            }
+        });
+    }
+
+    // the GUID is pending again
+    private void resumeReIssueTimers(GUID guid) {
+        ArrayList<ReIssueTimer> timers = reIssueTimers.get(guid);
+        if (timers == null) {
+            return;
+        }
+        Timeline timeline = getTimeline();
+        if (timeline.isParallel()) {
+            reIssueTimers.remove(guid);
+            timers.stream()
+                    .filter(t -> t.event == null && t.timeInUs > timeline.now())
+                    .forEach(t -> timeline.schedule(t.timeInUs, reIssueGNRSRequest, guid, -1));
+            return;
+        }
+        timers.removeIf(t -> t.event == null && timeline.isPassed(t.timeInUs, t.serial));
+        if (timers.isEmpty()) {
+            reIssueTimers.remove(guid);
+            return;
+        }
+        timers.stream()
+                .filter(t -> t.event == null)
+                .forEach(t -> t.event = timeline.scheduleReservedCancellable(t.serial, t.timeInUs, reIssueGNRSRequest, guid, t.serial));
+    }
+
+    protected void handleReIssueGNRSRequest(GUID guid) {
         // Check if there is still pending GUID
         if (!nrsPending.containsKey(guid)) {
             return;
@@ -306,24 +465,28 @@ public class MFRouter extends Node {
     protected long handleMFLSA(Node src, MFHopPacketLSA packet) {
         NA target = packet.getNa();
         if (!fib.containsKey(target)) {
-            long duration = Timeline.nowInUs() - packet.getSendTime();
+            long duration = getTimeline().now() - packet.getSendTime();
             fib.put(target, new Tuple2<>(src, duration));
-            Timeline.addEvent(Timeline.nowInUs() + DURATION_HANDLE_LSA, ps -> {
-                forEachUnicastLink(l -> sendData(l, (Data) ps[0], true));
-            }, packet);
+            uncacheNextHop(target);
+            floodData(packet, DURATION_HANDLE_LSA);
         }
         return DURATION_HANDLE_LSA;
     }
 
+    // the key of an application packet in the delivery digest
+    protected static long deliveryKey(MFApplicationPacket packet) {
+        long key = 31L * packet.getType() + packet.getSizeInBits();
+        key = 31 * key + (packet.getSrc() == null ? 0 : packet.getSrc().getRepresentation());
+        return 31 * key + (packet.getDst() == null ? 0 : packet.getDst().getRepresentation());
+    }
+
     @SuppressWarnings("unchecked")
     protected long handleMFApplication(Node src, MFApplicationPacket packet) {
         if (packet.getDstNA() == null || packet.getDstNA() == this.getNa()) {
             BiConsumer<? super MFRouter, ? super MFApplicationPacket> consumer = dataConsumers.get(packet.getDst());
             if (consumer != null) { // if the application is listening, forward
-                Timeline.addEvent(Timeline.nowInUs() + DURATION_HANDLE_DATA_FORWARD_TO_APPLICATION, p
-                        -> ((BiConsumer<? super MFRouter, ? super MFApplicationPacket>) p[0])
-                                .accept((MFRouter) p[1], (MFApplicationPacket) p[2]),
-                        consumer, this, packet);
+                getTimeline().schedule(getTimeline().now() + DURATION_HANDLE_DATA_FORWARD_TO_APPLICATION,
+                        deliverData, new Tuple2<>(packet, consumer), 0);
                 return DURATION_HANDLE_DATA_FORWARD_TO_APPLICATION;
             }
         } else { // not sent to me, not first hop either, simply forward
@@ -332,7 +495,7 @@ public class MFRouter extends Node {
         }
         // now packet.getDstNA is null, try to see what I have in NRS cache
         Tuple3<NA[], Integer, Long> tup = nrsCache.get(packet.getDst());
-        if (tup != null && tup.getV3() >= Timeline.nowInUs()) { // has the entry and active
+        if (tup != null && tup.getV3() >= getTimeline().now()) { // has the entry and active
             NA[] nas = tup.getV1();
             NA dataDst;
             if (nas.length == 1) { // only 1 NA, use that directly
@@ -358,6 +521,7 @@ public class MFRouter extends Node {
         HashSet<Tuple2<MFApplicationPacket, Node>> tmp = nrsPending.get(guid);
         if (tmp == null) {
             nrsPending.put(guid, tmp = new HashSet<>());
+            resumeReIssueTimers(guid);
             // I'm the first, issue request
             enqueueIncomingData(this, new MFHopPacketGNRSRequest(guid, na), false);
         }
@@ -374,4 +538,38 @@ public class MFRouter extends Node {
         super.enqueueIncomingData(source, d, prioritized);
     }
 
+    @Override
+    protected void writeReferences(ObjectOutputStream out) throws IOException {
+        super.writeReferences(out);
+        out.writeObject(gnrsNa);
+        out.writeObject(fib);
+        out.writeObject(dataConsumers);
+        out.writeObject(nrsCache);
+        out.writeObject(nrsPending);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void readReferences(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        super.readReferences(in);
+        gnrsNa = (NA) in.readObject();
+        fib = (HashMap<NA, Tuple2<Node, Long>>) in.readObject();
+        dataConsumers = (HashMap<GUID, BiConsumer<? super MFRouter, ? super MFApplicationPacket>>) in.readObject();
+        nrsCache = (HashMap<GUID, Tuple3<NA[], Integer, Long>>) in.readObject();
+        nrsPending = (HashMap<GUID, HashSet<Tuple2<MFApplicationPacket, Node>>>) in.readObject();
+    }
+
+    private static final class ReIssueTimer implements Serializable {
+
+        private final long timeInUs;
+        private final long serial;
+        // null if parked
+        private TimelineEvent event;
+
+        private ReIssueTimer(long timeInUs, long serial) {
+            this.timeInUs = timeInUs;
+            this.serial = serial;
+        }
+    }
+
 }
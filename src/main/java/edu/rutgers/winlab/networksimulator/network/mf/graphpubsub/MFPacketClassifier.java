@@ -0,0 +1,86 @@
+package edu.rutgers.winlab.networksimulator.network.mf.graphpubsub;
+
+import edu.rutgers.winlab.networksimulator.common.Data;
+import edu.rutgers.winlab.networksimulator.common.FairQueue;
+import edu.rutgers.winlab.networksimulator.network.mf.graphpubsub.packets.MFApplicationPacketMark1;
+import edu.rutgers.winlab.networksimulator.network.mf.graphpubsub.packets.MFApplicationPacketMark2;
+import edu.rutgers.winlab.networksimulator.network.mf.graphpubsub.packets.MFApplicationPacketNotifyRP;
+import edu.rutgers.winlab.networksimulator.network.mf.graphpubsub.packets.MFApplicationPacketSubscription;
+import edu.rutgers.winlab.networksimulator.network.mf.graphpubsub.packets.MFApplicationPacketUnSubscription;
+import edu.rutgers.winlab.networksimulator.network.mf.packets.MFHopPacket;
+import edu.rutgers.winlab.networksimulator.network.mf.packets.MFHopPacketGNRSAssociate;
+import edu.rutgers.winlab.networksimulator.network.mf.packets.MFHopPacketGNRSRequest;
+import edu.rutgers.winlab.networksimulator.network.mf.packets.MFHopPacketGNRSResponse;
+import edu.rutgers.winlab.networksimulator.network.mf.packets.MFHopPacketLSA;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.function.ToIntFunction;
+
+/**
+ * Classifies the packets by {@link MFHopPacket#getType()} for a
+ * {@link FairQueue}. By default, the classes are:
+ * <ul>
+ * <li>{@link #CLASS_CONTROL}: LSA and GNRS packets,</li>
+ * <li>{@link #CLASS_SUBSCRIPTION}: subscriptions, unsubscriptions and RP
+ * notifications,</li>
+ * <li>{@link #CLASS_MARK}: Mark1 and Mark2,</li>
+ * <li>{@link #CLASS_BULK}: publications, data and the other packets.</li>
+ * </ul>
+ *
+ * @author Jiachen Chen
+ */
+public class MFPacketClassifier implements ToIntFunction<Data>, Serializable {
+
+    public static final int CLASS_CONTROL = 0;
+    public static final int CLASS_SUBSCRIPTION = 1;
+    public static final int CLASS_MARK = 2;
+    public static final int CLASS_BULK = 3;
+    public static final int CLASS_COUNT = 4;
+
+    private final HashMap<Integer, Integer> classes = new HashMap<>();
+    private final int defaultClass;
+
+    public MFPacketClassifier() {
+        this(CLASS_BULK);
+        setClass(MFHopPacketLSA.MF_PACKET_TYPE_LSA, CLASS_CONTROL);
+        setClass(MFHopPacketGNRSRequest.MF_PACKET_TYPE_GNRS_REQUEST, CLASS_CONTROL);
+        setClass(MFHopPacketGNRSResponse.MF_PACKET_TYPE_GNRS_RESPONSE, CLASS_CONTROL);
+        setClass(MFHopPacketGNRSAssociate.MF_PACKET_TYPE_GNRS_ASSOCIATE, CLASS_CONTROL);
+        setClass(MFApplicationPacketSubscription.MF_PACKET_TYPE_SUBSCRIPTION, CLASS_SUBSCRIPTION);
+        setClass(MFApplicationPacketUnSubscription.MF_PACKET_TYPE_UNSUBSCRIPTION, CLASS_SUBSCRIPTION);
+        setClass(MFApplicationPacketNotifyRP.MF_PACKET_TYPE_NOTIFY_RP, CLASS_SUBSCRIPTION);
+        setClass(MFApplicationPacketMark1.MF_PACKET_TYPE_MARK_1, CLASS_MARK);
+        setClass(MFApplicationPacketMark2.MF_PACKET_TYPE_MARK_2, CLASS_MARK);
+    }
+
+    /**
+     * Creates a classifier without any type mapped.
+     *
+     * @param defaultClass the class of the unmapped types and the data that
+     * is not an MF packet
+     */
+    public MFPacketClassifier(int defaultClass) {
+        this.defaultClass = defaultClass;
+    }
+
+    /**
+     * Maps a packet type to a class.
+     *
+     * @param type the packet type
+     * @param c the class
+     * @return this classifier
+     */
+    public final MFPacketClassifier setClass(int type, int c) {
+        classes.put(type, c);
+        return this;
+    }
+
+    public int getDefaultClass() {
+        return defaultClass;
+    }
+
+    @Override
+    public int applyAsInt(Data d) {
+        return d instanceof MFHopPacket ? classes.getOrDefault(((MFHopPacket) d).getType(), defaultClass) : defaultClass;
+    }
+}
@@ -1,46 +1,74 @@
 package edu.rutgers.winlab.networksimulator.network.mf.graphpubsub;
 
+import edu.rutgers.winlab.networksimulator.common.CopyOnWriteMap;
+import edu.rutgers.winlab.networksimulator.common.EventHandler;
 import edu.rutgers.winlab.networksimulator.common.PrioritizedQueue;
 import edu.rutgers.winlab.networksimulator.common.QueuePoller;
+import edu.rutgers.winlab.networksimulator.common.SojournQueue;
 import edu.rutgers.winlab.networksimulator.common.Timeline;
 import edu.rutgers.winlab.networksimulator.common.TriConsumer;
+import edu.rutgers.winlab.networksimulator.network.Node;
 import edu.rutgers.winlab.networksimulator.network.mf.MFRouter;
 import edu.rutgers.winlab.networksimulator.network.mf.graphpubsub.packets.MFApplicationPacketPublication;
 import edu.rutgers.winlab.networksimulator.network.mf.graphpubsub.packets.SerialData;
 import edu.rutgers.winlab.networksimulator.network.mf.packets.GUID;
 import edu.rutgers.winlab.networksimulator.network.mf.packets.MFApplicationPacket;
 import edu.rutgers.winlab.networksimulator.network.mf.packets.NA;
+import java.io.Serializable;
 import java.util.ArrayDeque;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 import java.util.stream.Stream;
 
 /**
  *
  * @author Jiachen Chen
  */
-public class MFPubSubRP {
+public class MFPubSubRP implements Serializable {
 
     public static final long DURATION_LOOKUP_NAME_TABLE = 80 * Timeline.US;
     public static final long DURATION_PROCESS_PUBLICATION = 10 * Timeline.US;
 
+    private final Timeline timeline;
     private final QueuePoller<MFApplicationPacketPublication> incomingQueue;
     private final NA na;
+    private final SojournQueue.Histogram sojourn;
     private final Consumer<? super MFApplicationPacketPublication> sender;
     private final TriConsumer<? super GUID, ? super Boolean, BiConsumer<? super MFRouter, ? super MFApplicationPacket>> associator, deAssociator;
-    private final HashMap<GUID, HashSet<GUID>> graphTable = new HashMap<>();
+    // read-mostly, shared by the forks of the simulation
+    private final CopyOnWriteMap<GUID, HashSet<GUID>> graphTable = new CopyOnWriteMap<>((UnaryOperator<HashSet<GUID>> & Serializable) HashSet::new);
     private int incomingPublication = 0, outgoingUnicast = 0, outgoingMulticast = 0;
+    private final EventHandler<ArrayList<MFApplicationPacketPublication>> sendPublications;
 
-    public MFPubSubRP(PrioritizedQueue<MFApplicationPacketPublication> queue, NA na,
+    public MFPubSubRP(Timeline timeline, PrioritizedQueue<MFApplicationPacketPublication> queue, NA na,
             Consumer<? super MFApplicationPacketPublication> sender,
             TriConsumer<? super GUID, ? super Boolean, BiConsumer<? super MFRouter, ? super MFApplicationPacket>> associator,
             TriConsumer<? super GUID, ? super Boolean, BiConsumer<? super MFRouter, ? super MFApplicationPacket>> deAssociator) {
-        incomingQueue = new QueuePoller<>(this::handlePublication, queue, q -> {
-        });
+        this.timeline = timeline;
+        incomingQueue = new QueuePoller<>(timeline,
+                (Function<MFApplicationPacketPublication, Long> & Serializable) this::handlePublication, queue,
+                (Consumer<QueuePoller<MFApplicationPacketPublication>> & Serializable) q -> {
+                });
+        this.sojourn = queue.getSojourn();
         this.na = na;
+        // the events of the RP are reported as the events of its router
+        incomingQueue.setOwner(na.getNode());
         this.sender = sender;
+        sendPublications = new EventHandler<ArrayList<MFApplicationPacketPublication>>() {
+            @Override
+            public void handle(ArrayList<MFApplicationPacketPublication> ps, long value) {
+                ps.forEach(sender);
+            }
+
+            @Override
+            public Object owner(ArrayList<MFApplicationPacketPublication> ps) {
+                return na.getNode();
+            }
+        };
         this.associator = associator;
         this.deAssociator = deAssociator;
     }
@@ -49,12 +77,67 @@ public class MFPubSubRP {
         return na;
     }
 
+    public boolean isBatch() {
+        return incomingQueue.isBatch();
+    }
+
+    /**
+     * Sets the batch mode of the publication queue, see
+     * {@link QueuePoller#setBatch(boolean)}.
+     *
+     * @param batch true to enable the batch mode
+     */
+    public void setBatch(boolean batch) {
+        incomingQueue.setBatch(batch);
+    }
+
+    public int getWorkers() {
+        return incomingQueue.getWorkers();
+    }
+
+    /**
+     * Sets the number of workers that handle the publications in parallel.
+     *
+     * @param workers the number of workers
+     */
+    public void setWorkers(int workers) {
+        incomingQueue.setWorkers(workers);
+    }
+
+    public long getBusyTimeInUs(int worker) {
+        return incomingQueue.getBusyTimeInUs(worker);
+    }
+
+    public long getServed(int worker) {
+        return incomingQueue.getServed(worker);
+    }
+
+    /**
+     * Gets the sojourn time histogram of the publication queue.
+     *
+     * @return the histogram, null if the queue does not record the sojourn
+     * times
+     */
+    public SojournQueue.Histogram getSojourn() {
+        return sojourn;
+    }
+
     private void addPublicationToQueue(MFRouter router, MFApplicationPacket packet) {
         if (packet instanceof MFApplicationPacketPublication) {
             incomingQueue.enQueue((MFApplicationPacketPublication) packet, false);
         }
     }
-    private final BiConsumer<? super MFRouter, ? super MFApplicationPacket> addPublicationToQueueHandler = this::addPublicationToQueue;
+    private final BiConsumer<? super MFRouter, ? super MFApplicationPacket> addPublicationToQueueHandler = new PublicationEnqueuer();
+
+    // not a lambda: it is kept in the data consumers of the router, a serialized
+    // lambda cannot be resolved if it is reached again from the RP it captures
+    private final class PublicationEnqueuer implements BiConsumer<MFRouter, MFApplicationPacket>, Serializable {
+
+        @Override
+        public void accept(MFRouter router, MFApplicationPacket packet) {
+            addPublicationToQueue(router, packet);
+        }
+    }
 
     public boolean handleGUID(GUID guid) {
         HashSet<GUID> tmp = graphTable.putIfAbsent(guid, new HashSet<>());
@@ -66,19 +149,19 @@ public class MFPubSubRP {
     }
 
     public boolean addGraphRelationship(GUID parent, GUID child) {
-        return innerGetGUIDChildren(parent).add(child);
+        return innerGetGUIDChildren(parent, true).add(child);
     }
 
     public boolean removeGraphRelationship(GUID parent, GUID child) {
-        return innerGetGUIDChildren(parent).remove(child);
+        return innerGetGUIDChildren(parent, true).remove(child);
     }
 
     public Stream<GUID> getGUIDChildren(GUID parent) {
-        return innerGetGUIDChildren(parent).stream();
+        return innerGetGUIDChildren(parent, false).stream();
     }
 
     public void forEachChildGUID(GUID parent, Consumer<? super GUID> consumer) {
-        innerGetGUIDChildren(parent).forEach(consumer);
+        innerGetGUIDChildren(parent, false).forEach(consumer);
     }
 
     public HashSet<GUID> removeGUID(GUID guid) {
@@ -131,17 +214,15 @@ public class MFPubSubRP {
         outgoingUnicast += forward.size();
         long timeConsumed = bfsTime + (handle.size() + forward.size()) * DURATION_PROCESS_PUBLICATION;
 //        timeConsumed = 0;
-        Timeline.addEvent(Timeline.nowInUs() + timeConsumed, ps -> {
-            @SuppressWarnings("unchecked")
-            HashSet<GUID> h = (HashSet<GUID>) ps[0], f = (HashSet<GUID>) ps[1];
-            h.forEach(g -> sender.accept(p.copyWithNewDstGUIDAndSrcNa(g, na)));
-            f.forEach(g -> sender.accept(p.copyWithNewDstGUIDAndSrcNa(g, null)));
-        }, handle, forward);
+        ArrayList<MFApplicationPacketPublication> publications = new ArrayList<>(handle.size() + forward.size());
+        handle.forEach(g -> publications.add(p.copyWithNewDstGUIDAndSrcNa(g, na)));
+        forward.forEach(g -> publications.add(p.copyWithNewDstGUIDAndSrcNa(g, null)));
+        timeline.schedule(timeline.now() + timeConsumed, sendPublications, publications, 0);
         return timeConsumed;
     }
 
-    private HashSet<GUID> innerGetGUIDChildren(GUID parent) {
-        HashSet<GUID> tmp = graphTable.get(parent);
+    private HashSet<GUID> innerGetGUIDChildren(GUID parent, boolean update) {
+        HashSet<GUID> tmp = update ? graphTable.getForUpdate(parent) : graphTable.get(parent);
         if (tmp == null) {
             throw new IllegalArgumentException("RP does not serve GUID: " + parent.getRepresentation());
         }
@@ -1,7 +1,9 @@
 package edu.rutgers.winlab.networksimulator.network.mf.graphpubsub;
 
 import edu.rutgers.winlab.networksimulator.common.Data;
+import edu.rutgers.winlab.networksimulator.common.EventHandler;
 import edu.rutgers.winlab.networksimulator.common.PrioritizedQueue;
+import edu.rutgers.winlab.networksimulator.common.SojournQueue;
 import edu.rutgers.winlab.networksimulator.common.Timeline;
 import edu.rutgers.winlab.networksimulator.common.TriConsumer;
 import edu.rutgers.winlab.networksimulator.common.Tuple2;
@@ -17,6 +19,10 @@ import edu.rutgers.winlab.networksimulator.network.mf.graphpubsub.packets.Serial
 import edu.rutgers.winlab.networksimulator.network.mf.packets.GUID;
 import edu.rutgers.winlab.networksimulator.network.mf.packets.MFHopPacket;
 import edu.rutgers.winlab.networksimulator.network.mf.packets.NA;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.function.BiConsumer;
@@ -37,20 +43,97 @@ public class MFPubSubRouter extends MFRouter {
     public static final long DURATION_HANDLE_M1 = 1 * Timeline.MS;
     public static final long DURATION_HANDLE_M2 = 2 * Timeline.MS;
 
-    private final HashMap<GUID, HashMap<NA, HashSet<Node>>> subscriptionTable = new HashMap<>();
-    private final HashMap<GUID, HashSet<BiConsumer<? super MFPubSubRouter, ? super MFApplicationPacketPublication>>> applications = new HashMap<>();
-    private final MFPubSubRP rp;
+    // the tables and the rp (its queue) refer to other nodes, see writeReferences
+    private transient HashMap<GUID, HashMap<NA, HashSet<Node>>> subscriptionTable = new HashMap<>();
+    private transient HashMap<GUID, HashSet<BiConsumer<? super MFPubSubRouter, ? super MFApplicationPacketPublication>>> applications = new HashMap<>();
+    private transient MFPubSubRP rp;
     private long durationInitRP = DURATION_INIT_RP;
+    private final EventHandler<MFApplicationPacketMark1> sendMark1 = new EventHandler<MFApplicationPacketMark1>() {
+        @Override
+        public void handle(MFApplicationPacketMark1 m1, long value) {
+            enqueueIncomingData(MFPubSubRouter.this, m1, true);
+        }
+
+        @Override
+        public Object owner(MFApplicationPacketMark1 m1) {
+            return MFPubSubRouter.this;
+        }
+    };
+    private final EventHandler<MFApplicationPacketMark2> sendMark2 = new EventHandler<MFApplicationPacketMark2>() {
+        @Override
+        public void handle(MFApplicationPacketMark2 m2, long value) {
+            enqueueIncomingData(MFPubSubRouter.this, m2, true);
+            // if no subscribers, unsubscribe
+            if (!hasSubscribers(m2.getGUID(), m2.getDstNA())) {
+                enqueueIncomingData(MFPubSubRouter.this, new MFApplicationPacketUnSubscription(null, m2.getGUID(), m2.getDstNA()), true);
+            }
+        }
+
+        @Override
+        public Object owner(MFApplicationPacketMark2 m2) {
+            return MFPubSubRouter.this;
+        }
+    };
 
     public MFPubSubRouter(String name, PrioritizedQueue<Tuple2<Node, Data>> incomingQueue,
             NA gnrsNa, PrioritizedQueue<MFApplicationPacketPublication> rpQueue) {
         super(name, incomingQueue, gnrsNa);
-        rp = new MFPubSubRP(rpQueue, getNa(),
-                p -> this.enqueueIncomingData(this, p, false),
+        rp = new MFPubSubRP(getTimeline(), rpQueue, getNa(),
+                (Consumer<MFApplicationPacketPublication> & Serializable) p -> this.enqueueIncomingData(this, p, false),
                 this::registerDataConsumer,
                 this::deregisterDataConsumer);
     }
 
+    public boolean isRpBatch() {
+        return rp.isBatch();
+    }
+
+    /**
+     * Sets the batch mode of the RP, see {@link MFPubSubRP#setBatch(boolean)}.
+     *
+     * @param batch true to enable the batch mode
+     */
+    public void setRpBatch(boolean batch) {
+        rp.setBatch(batch);
+    }
+
+    public int getRpWorkers() {
+        return rp.getWorkers();
+    }
+
+    /**
+     * Sets the number of workers of the RP, see
+     * {@link MFPubSubRP#setWorkers(int)}.
+     *
+     * @param workers the number of workers
+     */
+    public void setRpWorkers(int workers) {
+        rp.setWorkers(workers);
+    }
+
+    public long getRpBusyTimeInUs(int worker) {
+        return rp.getBusyTimeInUs(worker);
+    }
+
+    public long getRpServed(int worker) {
+        return rp.getServed(worker);
+    }
+
+    /**
+     * Visits the sojourn time histograms of the queues, see
+     * {@link Node#forEachSojourn(BiConsumer)}. The RP queue is named as
+     * "router/RP".
+     *
+     * @param consumer called with the name of the queue and its histogram
+     */
+    @Override
+    public void forEachSojourn(BiConsumer<? super String, ? super SojournQueue.Histogram> consumer) {
+        super.forEachSojourn(consumer);
+        if (rp.getSojourn() != null) {
+            consumer.accept(getName() + "/RP", rp.getSojourn());
+        }
+    }
+
     public void forEachSubscriptionTable(TriConsumer<? super GUID, ? super NA, ? super Node> handler) {
         subscriptionTable.forEach((guid, tree) -> {
             tree.forEach((na, nodes) -> {
@@ -123,19 +206,9 @@ public class MFPubSubRouter extends MFRouter {
         // send subscription to target, subscribe to new RP
         enqueueIncomingData(this, new MFApplicationPacketSubscription(null, guid, target), true);
         // prepare M1 (target)
-        Timeline.addEvent(Timeline.nowInUs() + DURATION_SEND_M1, p -> {
-            enqueueIncomingData((Node) p[0], (Data) p[1], true);
-        }, this, new MFApplicationPacketMark1(guid, getNa(), target));
+        getTimeline().schedule(getTimeline().now() + DURATION_SEND_M1, sendMark1, new MFApplicationPacketMark1(guid, getNa(), target), 0);
         // prepare M2 (this NA)
-        Timeline.addEvent(Timeline.nowInUs() + DURATION_SEND_M2, p -> {
-            MFPubSubRouter r = (MFPubSubRouter) p[0];
-            MFApplicationPacketMark2 m2 = (MFApplicationPacketMark2) p[1];
-            enqueueIncomingData(r, m2, true);
-            // if no subscribers, unsubscribe
-            if (!r.hasSubscribers(m2.getGUID(), m2.getDstNA())) {
-                enqueueIncomingData((Node) p[0], new MFApplicationPacketUnSubscription(null, m2.getGUID(), m2.getDstNA()), true);
-            }
-        }, this, new MFApplicationPacketMark2(guid, getNa(), target));
+        getTimeline().schedule(getTimeline().now() + DURATION_SEND_M2, sendMark2, new MFApplicationPacketMark2(guid, getNa(), target), 0);
     }
 
     private boolean hasSubscribers(GUID guid, NA na) {
@@ -333,9 +406,29 @@ public class MFPubSubRouter extends MFRouter {
         // send it to applications
         HashSet<BiConsumer<? super MFPubSubRouter, ? super MFApplicationPacketPublication>> tmp = applications.get(packet.getDst());
         if (tmp != null) {
-            tmp.forEach(a -> a.accept(MFPubSubRouter.this, packet));
+            tmp.forEach(a -> {
+                getSimulation().recordDelivery(this, deliveryKey(packet));
+                a.accept(MFPubSubRouter.this, packet);
+            });
         }
         return DURATION_PUBLICATION_MULTICAST;
     }
 
+    @Override
+    protected void writeReferences(ObjectOutputStream out) throws IOException {
+        super.writeReferences(out);
+        out.writeObject(subscriptionTable);
+        out.writeObject(applications);
+        out.writeObject(rp);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void readReferences(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        super.readReferences(in);
+        subscriptionTable = (HashMap<GUID, HashMap<NA, HashSet<Node>>>) in.readObject();
+        applications = (HashMap<GUID, HashSet<BiConsumer<? super MFPubSubRouter, ? super MFApplicationPacketPublication>>>) in.readObject();
+        rp = (MFPubSubRP) in.readObject();
+    }
+
 }
@@ -7,14 +7,20 @@ import edu.rutgers.winlab.networksimulator.common.Tuple2;
 import edu.rutgers.winlab.networksimulator.common.Tuple3;
 import edu.rutgers.winlab.networksimulator.common.Tuple4;
 import edu.rutgers.winlab.networksimulator.network.Node;
+import edu.rutgers.winlab.networksimulator.network.Simulation;
 import edu.rutgers.winlab.networksimulator.network.mf.MFGNRS;
 import edu.rutgers.winlab.networksimulator.network.mf.MFRouter;
 import edu.rutgers.winlab.networksimulator.network.mf.graphpubsub.packets.MFApplicationPacketPublication;
 import edu.rutgers.winlab.networksimulator.network.mf.graphpubsub.packets.SerialData;
 import edu.rutgers.winlab.networksimulator.network.mf.packets.GUID;
+import java.io.BufferedReader;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.PrintStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -60,6 +66,9 @@ public class TraceReader {
             int bwInBitsPerMs,
             boolean addRouting)
             throws IOException {
+        // the routers are created in the same simulation as the GNRS
+        Simulation simulation = gnrs.getSimulation();
+        Timeline timeline = gnrs.getTimeline();
         HashMap<String, MFPubSubRouter> routers = new HashMap<>();
         Files.lines(Paths.get(linksFile)).forEach(l -> {
             String[] parts = l.split("\t");
@@ -68,11 +77,11 @@ public class TraceReader {
             long latency = Integer.parseInt(parts[2]) * Timeline.MS;
             MFPubSubRouter n1 = routers.get(n1Name);
             if (n1 == null) {
-                routers.put(n1Name, n1 = new MFPubSubRouter(n1Name, incomingQueueGenerator.apply(n1Name), gnrs.getNa(), rpQueueGenerator.apply(n1Name + "_RP")));
+                routers.put(n1Name, n1 = simulation.call(() -> new MFPubSubRouter(n1Name, incomingQueueGenerator.apply(n1Name), gnrs.getNa(), rpQueueGenerator.apply(n1Name + "_RP"))));
             }
             MFPubSubRouter n2 = routers.get(n2Name);
             if (n2 == null) {
-                routers.put(n2Name, n2 = new MFPubSubRouter(n2Name, incomingQueueGenerator.apply(n2Name), gnrs.getNa(), rpQueueGenerator.apply(n2Name + "_RP")));
+                routers.put(n2Name, n2 = simulation.call(() -> new MFPubSubRouter(n2Name, incomingQueueGenerator.apply(n2Name), gnrs.getNa(), rpQueueGenerator.apply(n2Name + "_RP"))));
             }
             Node.linkNodes(n1, n2, bwInBitsPerMs, latency,
                     linkQueueGenerator.apply(n1.getName() + "->" + n2.getName()),
@@ -84,13 +93,12 @@ public class TraceReader {
                 linkQueueGenerator.apply(gnrsRouter.getName() + "->" + gnrs.getName()),
                 linkQueueGenerator.apply(gnrs.getName() + "->" + gnrsRouter.getName()));
 
-        Timeline.addEvent(0, ps -> ((MFRouter) ps[0]).announceNA(), gnrs);
-        Timeline.run();
-
-        routers.forEach((n, r) -> {
-            Timeline.addEvent(0, ps -> ((MFRouter) ps[0]).announceNA(), r);
-            Timeline.run();
-        });
+        // flood the LSAs of all the routers in a single run
+        long start = Math.max(0, timeline.now());
+        timeline.schedule(start, ps -> ((MFRouter) ps[0]).announceNA(), gnrs);
+        routers.forEach((n, r) -> timeline.schedule(start, ps -> ((MFRouter) ps[0]).announceNA(), r));
+        timeline.executeAll();
+        timeline.resetClock();
 //
 //        HashMap<Node, Long> nodeLatencies = new HashMap<>();
 //
@@ -152,7 +160,8 @@ public class TraceReader {
             relationships.add(new Tuple2<>(child, parent));
         });
 
-        Timeline.addEvent(0, ps -> {
+        Timeline timeline = router.getTimeline();
+        timeline.schedule(0, ps -> {
             @SuppressWarnings("unchecked")
             HashSet<GUID> p0 = (HashSet<GUID>) ps[0];
             @SuppressWarnings("unchecked")
@@ -163,7 +172,7 @@ public class TraceReader {
             // traffic should flow from child category to parent category here
             p1.forEach(t -> p2.addGraphRelationship(t.getV1(), t.getV2()));
         }, guids, relationships, router);
-        long finish = Timeline.run();
+        long finish = timeline.execute();
         System.out.printf("putAllGUIDsOnOneRouter: %,d%n", finish);
     }
 
@@ -186,7 +195,8 @@ public class TraceReader {
             subscriptions.put(new Tuple2<>(guid, router), subscriberName);
         });
 
-        Timeline.addEvent(0, ps -> {
+        Timeline timeline = getTimeline(routers.values());
+        timeline.schedule(0, ps -> {
             @SuppressWarnings("unchecked")
             Collection<Tuple2<GUID, MFPubSubRouter>> p0 = (Collection<Tuple2<GUID, MFPubSubRouter>>) ps[0];
             @SuppressWarnings("unchecked")
@@ -195,7 +205,7 @@ public class TraceReader {
                 t.getV2().subscribe(t.getV1(), p1);
             });
         }, subscriptions.keySet(), publicationHandler);
-        long finish = Timeline.run();
+        long finish = timeline.execute();
         System.out.printf("Finish=%,d%n", finish);
     }
 
@@ -221,7 +231,8 @@ public class TraceReader {
             subscriptions.put(subscriberName, new Tuple2<>(guid, router));
         });
 
-        Timeline.addEvent(0, ps -> {
+        Timeline timeline = getTimeline(routers.values());
+        timeline.schedule(0, ps -> {
             @SuppressWarnings("unchecked")
             Collection<Tuple2<GUID, MFPubSubRouter>> p0 = (Collection<Tuple2<GUID, MFPubSubRouter>>) ps[0];
             @SuppressWarnings("unchecked")
@@ -232,7 +243,7 @@ public class TraceReader {
                 t.getV2().subscribe(toSubscribe, p1);
             });
         }, subscriptions.values(), publicationHandler);
-        long finish = Timeline.run();
+        long finish = timeline.execute();
         System.out.printf("Finish=%,d%n", finish);
         return subscriptions;
     }
@@ -265,15 +276,70 @@ public class TraceReader {
         });
     }
 
+    // a position in a trace file, the file is reopened by skipping the lines
+    // read when the simulation is restored (see SimulationCheckpoint#save)
+    private static final class TraceCursor implements Serializable {
+
+        private final String file;
+        private long lines = 0;
+        private transient BufferedReader reader;
+
+        private TraceCursor(String file) {
+            this.file = file;
+        }
+
+        // the next line, null at the end of the file
+        private String next() throws IOException {
+            if (reader == null) {
+                reader = Files.newBufferedReader(Paths.get(file));
+                for (long i = 0; i < lines; i++) {
+                    reader.readLine();
+                }
+            }
+            String ret = reader.readLine();
+            if (ret == null) {
+                reader.close();
+            } else {
+                lines++;
+            }
+            return ret;
+        }
+    }
+
+    // reads the publications one at a time, the event of a publication
+    // schedules the next one
+    private static final class PublicationReader implements Serializable {
+
+        private final TraceCursor cursor;
+        private final double timeMultiplication;
+        private final Function<GUID, MFPubSubRouter> pubGetter;
+        // null if the categories are published as they are
+        private final HashMap<GUID, GUID[]> catToHierarchicalMapping;
+        private Tuple3<Integer, Long, GUID> pub;
+
+        private PublicationReader(String publicationFile, double timeMultiplication,
+                Function<GUID, MFPubSubRouter> pubGetter, HashMap<GUID, GUID[]> catToHierarchicalMapping) {
+            this.cursor = new TraceCursor(publicationFile);
+            this.timeMultiplication = timeMultiplication;
+            this.pubGetter = pubGetter;
+            this.catToHierarchicalMapping = catToHierarchicalMapping;
+        }
+
+        private void scheduleNext() throws IOException {
+            String line = cursor.next();
+            if (line == null) {
+                return;
+            }
+            pub = readPublicationLine(line, timeMultiplication);
+            Timeline.addEvent(pub.getV2(), TraceReader::publish, this, 0);
+        }
+    }
+
     // publicationFile: pubId pubTime pubCatId
+    // the pubGetter should be serializable for SimulationCheckpoint#save
     public static void readPublications(String publicationFile, double timeMultiplication,
             Function<GUID, MFPubSubRouter> pubGetter) throws IOException {
-        Iterator<String> it = Files.lines(Paths.get(publicationFile)).iterator();
-        if (!it.hasNext()) {
-            return;
-        }
-        Tuple3<Integer, Long, GUID> pub = readPublicationLine(it.next(), timeMultiplication);
-        Timeline.addEvent(pub.getV2(), TraceReader::timelineRunner, pub, it, timeMultiplication, pubGetter);
+        new PublicationReader(publicationFile, timeMultiplication, pubGetter, null).scheduleNext();
     }
 
     // publicationFile: pubId pubTime pubCatId
@@ -286,55 +352,37 @@ public class TraceReader {
         return new Tuple3<>(pubId, pubTime, pubGUID);
     }
 
-    @SuppressWarnings("unchecked")
-    private static void timelineRunner(Object... params) {
-        Tuple3<Integer, Long, GUID> pub = (Tuple3<Integer, Long, GUID>) params[0];
-        Function<GUID, MFPubSubRouter> pubGetter = (Function<GUID, MFPubSubRouter>) params[3];
-        MFPubSubRouter router = pubGetter.apply(pub.getV3());
-        router.publish(null, pub.getV3(), new SerialData(pub.getV1(), 1000 * Data.BYTE));
+    private static void publish(PublicationReader reader, long value) {
+        Tuple3<Integer, Long, GUID> pub = reader.pub;
+        MFPubSubRouter router = reader.pubGetter.apply(pub.getV3());
+        if (reader.catToHierarchicalMapping == null) {
+            router.publish(null, pub.getV3(), new SerialData(pub.getV1(), 1000 * Data.BYTE));
+        } else {
+            for (GUID guid : reader.catToHierarchicalMapping.get(pub.getV3())) {
+                router.publish(null, guid, new SerialData(pub.getV1(), 1000 * Data.BYTE));
+            }
+        }
 //        System.out.printf("%d\t%d\t%d\t%s%n", pub.getV1(), Timeline.nowInUs(), pub.getV3().getRepresentation(), router.getName());
-
-        Iterator<String> it = (Iterator<String>) params[1];
-        double timeMultiplication = (Double) params[2];
-        if (!it.hasNext()) {
-            return;
+        try {
+            reader.scheduleNext();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
         }
-        pub = readPublicationLine(it.next(), timeMultiplication);
-        Timeline.addEvent(pub.getV2(), TraceReader::timelineRunner, pub, it, timeMultiplication, pubGetter);
     }
 
     // publicationFile: pubId pubTime pubCatId
+    // the pubGetter should be serializable for SimulationCheckpoint#save
     public static void readPublicationsForHierarchical(String publicationFile,
             HashMap<GUID, GUID[]> catToHierarchicalMapping,
             double timeMultiplication,
             Function<GUID, MFPubSubRouter> pubGetter) throws IOException {
-        Iterator<String> it = Files.lines(Paths.get(publicationFile)).iterator();
-        if (!it.hasNext()) {
-            return;
-        }
-        Tuple3<Integer, Long, GUID> pub = readPublicationLine(it.next(), timeMultiplication);
-        Timeline.addEvent(pub.getV2(), TraceReader::timelineRunnerForHierarchical, pub, it, timeMultiplication, pubGetter, catToHierarchicalMapping);
+        new PublicationReader(publicationFile, timeMultiplication, pubGetter, catToHierarchicalMapping).scheduleNext();
     }
 
-    @SuppressWarnings("unchecked")
-    private static void timelineRunnerForHierarchical(Object... params) {
-        Tuple3<Integer, Long, GUID> pub = (Tuple3<Integer, Long, GUID>) params[0];
-        Function<GUID, MFPubSubRouter> pubGetter = (Function<GUID, MFPubSubRouter>) params[3];
-        HashMap<GUID, GUID[]> catToHierarchicalMapping = (HashMap< GUID, GUID[]>) params[4];
-        MFPubSubRouter router = pubGetter.apply(pub.getV3());
-        GUID[] toPublish = catToHierarchicalMapping.get(pub.getV3());
-        for (GUID guid : toPublish) {
-            router.publish(null, guid, new SerialData(pub.getV1(), 1000 * Data.BYTE));
-        }
-
-//        System.out.printf("%d\t%d\t%d\t%s%n", pub.getV1(), Timeline.nowInUs(), pub.getV3().getRepresentation(), router.getName());
-        Iterator<String> it = (Iterator<String>) params[1];
-        double timeMultiplication = (Double) params[2];
-        if (!it.hasNext()) {
-            return;
-        }
-        pub = readPublicationLine(it.next(), timeMultiplication);
-        Timeline.addEvent(pub.getV2(), TraceReader::timelineRunnerForHierarchical, pub, it, timeMultiplication, pubGetter, catToHierarchicalMapping);
+    // the time line of the nodes, the current time line if there is no node
+    private static Timeline getTimeline(Collection<? extends Node> nodes) {
+        Iterator<? extends Node> it = nodes.iterator();
+        return it.hasNext() ? it.next().getTimeline() : Timeline.getCurrent();
     }
 
     // partitionFile: catId partition (0/1)
@@ -358,81 +406,123 @@ public class TraceReader {
         return min.stream().map(s -> new GUID(Integer.parseInt(s)));
     }
 
+    // a statistics file, reopened in the append mode when the simulation is
+    // restored (see SimulationCheckpoint#save)
+    private static final class StatisticsFile implements Serializable {
+
+        private final String file;
+        private transient PrintStream ps;
+
+        private StatisticsFile(String file, String header) throws FileNotFoundException {
+            this.file = file;
+            ps = new PrintStream(file);
+            ps.println(header);
+        }
+
+        private PrintStream get() {
+            if (ps == null) {
+                try {
+                    ps = new PrintStream(new FileOutputStream(file, true));
+                } catch (FileNotFoundException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+            return ps;
+        }
+
+        private void close() {
+            get().close();
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            if (ps != null) {
+                ps.flush();
+            }
+            out.defaultWriteObject();
+        }
+    }
+
+    private static final class RouterStatistics implements Serializable {
+
+        private final long period, end;
+        private final HashMap<MFPubSubRouter, Tuple4<StatisticsFile, Integer, Integer, Integer>> routerPs = new HashMap<>();
+
+        private RouterStatistics(long period, long end) {
+            this.period = period;
+            this.end = end;
+        }
+    }
+
     public static void setReadStatistics(long start, long end, long period, MFPubSubRouter[] routers) {
-        HashMap<MFPubSubRouter, Tuple4<PrintStream, Integer, Integer, Integer>> routerPs = new HashMap<>();
+        RouterStatistics statistics = new RouterStatistics(period, end);
         for (MFPubSubRouter router : routers) {
             try {
-                PrintStream ps = new PrintStream(router.getName() + "_stat.txt");
-                ps.println("Time\tIncomingPublication\toutgoingUnicast\toutgoingMulticast");
-                routerPs.put(router, new Tuple4<>(ps, router.getIncomingPublication(), router.getOutgoingUnicast(), router.getOutgoingMulticast()));
+                StatisticsFile ps = new StatisticsFile(router.getName() + "_stat.txt", "Time\tIncomingPublication\toutgoingUnicast\toutgoingMulticast");
+                statistics.routerPs.put(router, new Tuple4<>(ps, router.getIncomingPublication(), router.getOutgoingUnicast(), router.getOutgoingMulticast()));
             } catch (FileNotFoundException ex) {
                 Logger.getLogger(TraceReader.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
 
-        Timeline.addEvent(start, TraceReader::routerStatisticsRunner, period, end, routerPs);
+        Timeline.addEvent(start, TraceReader::routerStatisticsRunner, statistics, 0);
     }
 
-    private static void routerStatisticsRunner(Object... params) {
-        long period = (Long) params[0];
-        long end = (Long) params[1];
+    private static void routerStatisticsRunner(RouterStatistics statistics, long value) {
         long now = Timeline.nowInUs();
-        @SuppressWarnings("unchecked")
-        HashMap<MFPubSubRouter, Tuple4<PrintStream, Integer, Integer, Integer>> routerPs = (HashMap<MFPubSubRouter, Tuple4<PrintStream, Integer, Integer, Integer>>) params[2];
-        routerPs.forEach((r, t) -> {
+        statistics.routerPs.forEach((r, t) -> {
             int incomingPublication = r.getIncomingPublication(),
                     outgoingUnicast = r.getOutgoingUnicast(),
                     outgoingMulticast = r.getOutgoingMulticast();
             int origIncomingPublication = t.getV2(),
                     origOutgoingUnicast = t.getV3(),
                     origOutgoingMulticast = t.getV4();
-            t.getV1().printf("%d\t%d\t%d\t%d%n", now, incomingPublication - origIncomingPublication, outgoingUnicast - origOutgoingUnicast, outgoingMulticast - origOutgoingMulticast);
+            t.getV1().get().printf("%d\t%d\t%d\t%d%n", now, incomingPublication - origIncomingPublication, outgoingUnicast - origOutgoingUnicast, outgoingMulticast - origOutgoingMulticast);
             t.setV2(incomingPublication);
             t.setV3(outgoingUnicast);
             t.setV4(outgoingMulticast);
         });
-        if (now + period > end) {
-            routerPs.forEach((r, t) -> {
-                t.getV1().flush();
-                t.getV1().close();
-            });
+        if (now + statistics.period > statistics.end) {
+            statistics.routerPs.forEach((r, t) -> t.getV1().close());
         } else {
-            Timeline.addEvent(now + period, TraceReader::routerStatisticsRunner, params);
+            Timeline.addEvent(now + statistics.period, TraceReader::routerStatisticsRunner, statistics, 0);
         }
 
     }
 
+    private static final class LinkStatistics implements Serializable {
+
+        private final long period, end;
+        private final HashMap<Node.UnicastLink, StatisticsFile> linkPs = new HashMap<>();
+
+        private LinkStatistics(long period, long end) {
+            this.period = period;
+            this.end = end;
+        }
+    }
+
     public static void setReadStatistics(long start, long end, long period, Node.UnicastLink[] links) {
-        HashMap<Node.UnicastLink, PrintStream> linkPs = new HashMap<>();
+        LinkStatistics statistics = new LinkStatistics(period, end);
         for (Node.UnicastLink link : links) {
             try {
-                PrintStream ps = new PrintStream(link.getSource().getName() + "->" + link.getDestination().getName() + "_stat.txt");
+                StatisticsFile ps = new StatisticsFile(link.getSource().getName() + "->" + link.getDestination().getName() + "_stat.txt", "Time\tBitsSent\tBitsDiscarded");
                 System.out.println(link.getSource().getName() + "->" + link.getDestination().getName() + "_stat.txt");
-                ps.println("Time\tBitsSent\tBitsDiscarded");
-                linkPs.put(link, ps);
+                statistics.linkPs.put(link, ps);
             } catch (FileNotFoundException ex) {
                 Logger.getLogger(TraceReader.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
-        Timeline.addEvent(start, TraceReader::linkStatisticsRunner, period, end, linkPs);
+        Timeline.addEvent(start, TraceReader::linkStatisticsRunner, statistics, 0);
     }
 
-    private static void linkStatisticsRunner(Object... params) {
-        long period = (Long) params[0];
-        long end = (Long) params[1];
+    private static void linkStatisticsRunner(LinkStatistics statistics, long value) {
         long now = Timeline.nowInUs();
-        @SuppressWarnings("unchecked")
-        HashMap<Node.UnicastLink, PrintStream> linkPs = (HashMap<Node.UnicastLink, PrintStream>) params[2];
-        linkPs.forEach((l, t) -> {
-            t.printf("%d\t%d\t%d%n", now, l.getBitsSent(), l.getBitsDiscarded());
+        statistics.linkPs.forEach((l, t) -> {
+            t.get().printf("%d\t%d\t%d%n", now, l.getBitsSent(), l.getBitsDiscarded());
         });
-        if (now + period > end) {
-            linkPs.forEach((r, t) -> {
-                t.flush();
-                t.close();
-            });
+        if (now + statistics.period > statistics.end) {
+            statistics.linkPs.forEach((r, t) -> t.close());
         } else {
-            Timeline.addEvent(now + period, TraceReader::linkStatisticsRunner, params);
+            Timeline.addEvent(now + statistics.period, TraceReader::linkStatisticsRunner, statistics, 0);
         }
     }
 
@@ -1,15 +1,18 @@
 package edu.rutgers.winlab.networksimulator.network.mf.packets;
 
 import edu.rutgers.winlab.networksimulator.network.Node;
-import java.util.HashSet;
+import java.io.Serializable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
  * @author Jiachen Chen
  */
-public class BroadcastComponent {
+public class BroadcastComponent implements Serializable {
 
-    private final HashSet<Node> traversedNodes = new HashSet<>();
+    // the packet is shared by the nodes, which may run in different partitions
+    private final Set<Node> traversedNodes = ConcurrentHashMap.newKeySet();
 
     /**
      * Add a node to the traversed nodes.
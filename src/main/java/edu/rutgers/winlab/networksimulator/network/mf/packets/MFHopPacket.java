@@ -21,6 +21,7 @@ public abstract class MFHopPacket implements Data {
         this.type = type;
     }
 
+    @Override
     public int getType() {
         return type;
     }
@@ -0,0 +1,129 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.util.ArrayList;
+import java.util.Random;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author Jiachen Chen
+ */
+public class EventSchedulerTest {
+
+    public EventSchedulerTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    private static TimelineEvent event(long serial, long time) {
+        return new TimelineEvent(serial, time, objs -> {
+        });
+    }
+
+    // hold model: poll one event, add a few events after it. compare with the heap.
+    private static void compareWithHeap(EventScheduler scheduler, long seed, long maxDelay, int rounds) {
+        Random rand = new Random(seed);
+        EventScheduler heap = new HeapEventScheduler();
+        long serial = 0;
+        for (int i = 0; i < 1000; i++) {
+            TimelineEvent e = event(serial++, rand.nextInt(1000));
+            heap.add(e);
+            scheduler.add(e);
+        }
+        for (int i = 0; i < rounds; i++) {
+            assertEquals(heap.size(), scheduler.size());
+            TimelineEvent expected = heap.poll();
+            assertSame(expected, scheduler.peek());
+            assertSame(expected, scheduler.poll());
+            // bursts of simultaneous events grow the queue, empty rounds shrink it
+            int toAdd = (i / 5000) % 2 == 0 ? rand.nextInt(3) : rand.nextInt(2);
+            for (int j = 0; j < toAdd; j++) {
+                long delay = rand.nextInt(4) == 0 ? 0 : (long) (rand.nextDouble() * maxDelay);
+                TimelineEvent e = event(serial++, expected.getTimeInUs() + delay);
+                heap.add(e);
+                scheduler.add(e);
+            }
+            if (heap.size() == 0) {
+                break;
+            }
+        }
+        TimelineEvent e;
+        while ((e = heap.poll()) != null) {
+            assertSame(e, scheduler.poll());
+        }
+        assertNull(scheduler.poll());
+        assertNull(scheduler.peek());
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void testCalendarOrder() {
+        compareWithHeap(new CalendarEventScheduler(), 1, 1000, 40000);
+        compareWithHeap(new CalendarEventScheduler(), 2, 10 * Timeline.SECOND, 40000);
+        compareWithHeap(new CalendarEventScheduler(2, 1), 3, 5, 40000);
+    }
+
+    @Test
+    public void testCalendarSameTime() {
+        CalendarEventScheduler scheduler = new CalendarEventScheduler();
+        for (int i = 0; i < 10000; i++) {
+            scheduler.add(event(i, 1000));
+        }
+        assertEquals(8192, scheduler.getBucketCount());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, scheduler.poll().getSerial());
+        }
+        assertEquals(16, scheduler.getBucketCount());
+        assertNull(scheduler.poll());
+    }
+
+    @Test
+    public void testCalendarAddEarlier() {
+        CalendarEventScheduler scheduler = new CalendarEventScheduler();
+        scheduler.add(event(0, 5 * Timeline.SECOND));
+        scheduler.add(event(1, 10 * Timeline.SECOND));
+        assertEquals(0, scheduler.poll().getSerial());
+        // earlier than the current position of the calendar
+        scheduler.add(event(2, 0));
+        scheduler.add(event(3, -Timeline.SECOND));
+        ArrayList<Long> result = new ArrayList<>();
+        TimelineEvent e;
+        while ((e = scheduler.poll()) != null) {
+            result.add(e.getSerial());
+        }
+        assertEquals(3, (long) result.get(0));
+        assertEquals(2, (long) result.get(1));
+        assertEquals(1, (long) result.get(2));
+
+        scheduler.add(event(4, 1));
+        scheduler.clear();
+        assertEquals(0, scheduler.size());
+        assertNull(scheduler.peek());
+    }
+
+    @Test
+    public void testSetScheduler() {
+        EventScheduler orig = Timeline.getScheduler();
+        ArrayList<Integer> result = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Timeline.addEvent(1000 - i / 2, objs -> result.add((Integer) objs[0]), i);
+        }
+        Timeline.setScheduler(new HeapEventScheduler());
+        assertEquals(0, orig.size());
+        assertEquals(5, Timeline.getSize());
+        assertEquals(1000, Timeline.run());
+        assertEquals("[4, 2, 3, 0, 1]", result.toString());
+        Timeline.setScheduler(orig);
+    }
+}
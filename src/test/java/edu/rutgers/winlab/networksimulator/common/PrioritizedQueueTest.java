@@ -2,6 +2,7 @@ package edu.rutgers.winlab.networksimulator.common;
 
 import static edu.rutgers.winlab.networksimulator.common.Helper.assertStreamEquals;
 import java.util.ArrayList;
+import java.util.Random;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 import org.junit.AfterClass;
@@ -353,4 +354,167 @@ public class PrioritizedQueueTest {
         assertNull(pq.deQueue());
 
     }
+
+    // applies the same random operations on both queues
+    private static void assertSameBehavior(PrioritizedQueue<Integer> expected, PrioritizedQueue<Integer> queue) {
+        Random rand = new Random(0);
+        ArrayList<Integer> expectedDropped = new ArrayList<>(), dropped = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            int op = rand.nextInt(10);
+            if (op < 6) {
+                boolean prioritized = rand.nextInt(4) == 0;
+                expected.enQueue(i, prioritized, expectedDropped::add);
+                queue.enQueue(i, prioritized, dropped::add);
+            } else if (op < 9) {
+                assertEquals(expected.deQueue(), queue.deQueue());
+            } else if (rand.nextInt(100) == 0) {
+                expected.clear();
+                queue.clear();
+            }
+            assertEquals(expected.getSize(), queue.getSize());
+        }
+        assertEquals(expectedDropped, dropped);
+        assertStreamEquals(expected.stream(), queue.stream());
+    }
+
+    @Test
+    public void testRingBufferQueue() {
+        assertSameBehavior(new UnlimitedQueue<>(), new RingBufferQueue<>());
+        assertSameBehavior(new ItemLimitedQueue<>(20), new RingBufferQueue<>(20));
+
+        int[] calls = new int[1];
+        SizeLimitedQueue<Integer> expected = new SizeLimitedQueue<>(5000, v -> v % 1000);
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(5000, v -> {
+            calls[0]++;
+            return v % 1000;
+        });
+        assertSameBehavior(expected, queue);
+        assertEquals(expected.getSizeInBits(), queue.getSizeInBits());
+        // once per item
+        assertEquals(6000, calls[0], 100);
+
+        RingBufferQueue<Integer> both = new RingBufferQueue<>(2, 100, v -> v);
+        both.enQueue(10, false);
+        both.enQueue(20, false);
+        both.enQueue(30, false);
+        assertStreamEquals(Stream.of(10, 20), both.stream());
+        both.enQueue(80, true);
+        assertStreamEquals(Stream.of(80, 10), both.stream());
+        assertEquals(90, both.getSizeInBits());
+        both.clear();
+        assertEquals(0, both.getSizeInBits());
+        assertNull(both.deQueue());
+    }
+
+    // a poller serving a data per ms, a data arrives every 0.9 ms, returns the mean sojourn time in the last 5 s
+    private static double overload(PrioritizedQueue<Long> queue, long[] drops) {
+        Timeline timeline = new Timeline();
+        long[] sojourns = new long[2];
+        QueuePoller<Long> poller = new QueuePoller<>(timeline, arrival -> {
+            if (timeline.now() >= 5 * Timeline.SECOND) {
+                sojourns[0] += timeline.now() - arrival;
+                sojourns[1]++;
+            }
+            return Timeline.MS;
+        }, queue, p -> {
+        });
+        poller.setDropHandler(d -> drops[0]++);
+        EventHandler<Object> arrive = new EventHandler<Object>() {
+            @Override
+            public void handle(Object payload, long value) {
+                poller.enQueue(timeline.now(), false, d -> drops[1]++);
+                if (timeline.now() < 10 * Timeline.SECOND) {
+                    timeline.schedule(timeline.now() + 900, this, null, 0);
+                }
+            }
+        };
+        timeline.schedule(0, arrive, null, 0);
+        timeline.execute();
+        return (double) sojourns[0] / sojourns[1];
+    }
+
+    @Test
+    public void testActiveQueues() {
+        long[] drops = new long[2];
+        assertTrue(overload(new ItemLimitedQueue<>(1000), drops) > 500 * Timeline.MS);
+        assertEquals(0, drops[0]);
+
+        drops[1] = 0;
+        CoDelQueue<Long> coDel = new CoDelQueue<>(1000);
+        double coDelSojourn = overload(coDel, drops);
+        assertTrue(coDelSojourn < 50 * Timeline.MS);
+        // dropped at the head
+        assertEquals(coDel.getEarlyDropCount(), drops[0]);
+        assertEquals(0, drops[1]);
+
+        drops[0] = 0;
+        PieQueue<Long> pie = new PieQueue<>(1000);
+        double pieSojourn = overload(pie, drops);
+        assertTrue(pieSojourn < 100 * Timeline.MS);
+        // dropped on arrival
+        assertEquals(pie.getEarlyDropCount(), drops[1]);
+        assertEquals(0, drops[0]);
+        
+        drops[1] = 0;
+        RedQueue<Long> red = new RedQueue<>(1000, 50, 150, RedQueue.DEFAULT_MAX_P, RedQueue.DEFAULT_WEIGHT, Timeline.MS, 0);
+        double redSojourn = overload(red, drops);
+        assertTrue(redSojourn < 200 * Timeline.MS);
+        assertTrue(red.getAverageSize() < 150);
+        assertEquals(red.getEarlyDropCount(), drops[1]);
+
+        // prioritized data is never dropped early
+        CoDelQueue<Integer> queue = new CoDelQueue<>(2);
+        queue.enQueue(1, false);
+        queue.enQueue(2, true);
+        queue.enQueue(3, true);
+        assertStreamEquals(Stream.of(2, 3), queue.stream());
+        queue.enQueue(4, true);
+        assertStreamEquals(Stream.of(2, 3), queue.stream());
+    }
+
+    // serves the data of 3 backlogged classes (1000 bits each, class 1 has weight 2), counts the first 400 by class
+    private static int[] serveBacklogged(FairQueue.Discipline discipline) {
+        FairQueue<Integer> queue = new FairQueue<>(discipline, v -> v % 3, v -> 1000,
+                new int[]{1, 2, 1}, new long[]{1000000, 1000000, 100000}, 1000);
+        for (int i = 0; i < 3000; i++) {
+            queue.enQueue(i, false);
+        }
+        // class 2 has a smaller budget
+        assertEquals(100, queue.getClassSize(2));
+        assertEquals(2100, queue.getSize());
+        int[] counts = new int[3];
+        for (int i = 0; i < 400; i++) {
+            counts[queue.deQueue() % 3]++;
+        }
+        return counts;
+    }
+
+    @Test
+    public void testFairQueue() {
+        assertArrayEquals(new int[]{100, 200, 100}, serveBacklogged(FairQueue.Discipline.DRR));
+        assertArrayEquals(new int[]{100, 200, 100}, serveBacklogged(FairQueue.Discipline.WFQ));
+
+        for (FairQueue.Discipline discipline : FairQueue.Discipline.values()) {
+            // the control class is not starved by a burst
+            FairQueue<Integer> queue = new FairQueue<>(discipline, v -> v < 0 ? 0 : 1, v -> v < 0 ? 100 : 1000,
+                    new int[]{1, 1}, new long[]{10000, 1000000}, 1000);
+            for (int i = 0; i < 1000; i++) {
+                queue.enQueue(i, false);
+            }
+            queue.deQueue();
+            queue.enQueue(-1, false);
+            queue.enQueue(-2, true);
+            assertEquals(1001, queue.getSize());
+            ArrayList<Integer> served = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                served.add(queue.deQueue());
+            }
+            assertTrue(served.indexOf(-2) < served.indexOf(-1));
+            assertTrue(served.contains(-1));
+            assertEquals(997, queue.getSize());
+            assertEquals(997000, queue.getClassSizeInBits(1));
+            queue.clear();
+            assertNull(queue.deQueue());
+        }
+    }
 }
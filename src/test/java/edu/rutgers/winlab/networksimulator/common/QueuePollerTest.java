@@ -157,4 +157,90 @@ public class QueuePollerTest {
         assertEquals(Long.MIN_VALUE, Timeline.nowInUs());
 
     }
+
+    private static int runBatch(boolean batch, ArrayList<String> log) {
+        Timeline timeline = new Timeline();
+        QueuePoller<Long> p = new QueuePoller<>(timeline, l -> {
+            log.add(timeline.now() + ":" + l);
+            return l;
+        }, new UnlimitedQueue<>(), v -> log.add(timeline.now() + ":idle"));
+        p.setBatch(batch);
+        assertEquals(batch, p.isBatch());
+        timeline.schedule(0, objs -> {
+            p.enQueue(1000L, false);
+            p.enQueue(2000L, false);
+            p.enQueue(3000L, false);
+            p.enQueue(4000L, false);
+        });
+        timeline.schedule(2500, objs -> {
+            log.add(timeline.now() + ":event");
+            p.enQueue(500L, true);
+        });
+        // at the same time as a completion, runs first
+        timeline.schedule(6500, objs -> log.add(timeline.now() + ":event"));
+        int ret = timeline.executeUntil(20000);
+        assertEquals(20000, timeline.now());
+        assertFalse(p.isBusy());
+        return ret;
+    }
+
+    @Test
+    public void testBatch() {
+        ArrayList<String> target = new ArrayList<>(), result = new ArrayList<>();
+        assertEquals(8, runBatch(false, target));
+        assertEquals(6, runBatch(true, result));
+        assertArrayEquals(new Object[]{"0:1000", "1000:2000", "2500:event", "3000:500", "3500:3000",
+            "6500:event", "6500:4000", "10500:idle"}, target.toArray());
+        assertArrayEquals(target.toArray(), result.toArray());
+    }
+
+    private static String runWorkers(boolean batch) {
+        Timeline timeline = new Timeline();
+        StringBuilder sb = new StringBuilder();
+        QueuePoller<Long> p = new QueuePoller<>(timeline, l -> {
+            sb.append(timeline.now()).append(':').append(l).append(' ');
+            return l;
+        }, new UnlimitedQueue<>(), v -> sb.append(timeline.now()).append(":idle "));
+        p.setWorkers(2);
+        p.setBatch(batch);
+        assertEquals(2, p.getWorkers());
+        timeline.schedule(0, objs -> {
+            p.enQueue(1000L, false);
+            p.enQueue(2000L, false);
+            p.enQueue(3000L, false);
+            p.enQueue(4000L, false);
+            assertEquals(2, p.getBusyWorkers());
+            try {
+                p.setWorkers(1);
+                fail("Should not reach here! The poller is busy");
+            } catch (IllegalStateException e) {
+            }
+        });
+        timeline.schedule(5000, objs -> {
+            assertFalse(p.isWorkerBusy(0));
+            assertTrue(p.isWorkerBusy(1));
+            assertEquals(5000, p.getBusyTimeInUs(1));
+        });
+        timeline.executeUntil(10000);
+        assertFalse(p.isBusy());
+        assertEquals(4000, p.getBusyTimeInUs(0));
+        assertEquals(6000, p.getBusyTimeInUs(1));
+        assertEquals(2, p.getServed(0));
+        assertEquals(2, p.getServed(1));
+        return sb.toString();
+    }
+
+    @Test
+    public void testWorkers() {
+        assertEquals("0:1000 0:2000 1000:3000 2000:4000 6000:idle ", runWorkers(false));
+        assertEquals(runWorkers(false), runWorkers(true));
+        QueuePoller<Long> p = new QueuePoller<>(new Timeline(), l -> l, new UnlimitedQueue<>(), v -> {
+        });
+        assertEquals(1, p.getWorkers());
+        try {
+            p.setWorkers(0);
+            fail("Should not reach here! Workers should be > 0");
+        } catch (IllegalArgumentException e) {
+        }
+    }
 }
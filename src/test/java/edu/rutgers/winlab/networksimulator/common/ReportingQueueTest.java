@@ -5,6 +5,8 @@
  */
 package edu.rutgers.winlab.networksimulator.common;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Objects;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
@@ -112,4 +114,42 @@ public class ReportingQueueTest {
 
     }
 
+    @Test
+    public void testAggregated() {
+        Timeline timeline = new Timeline();
+        ArrayList<String> samples = new ArrayList<>(), crossings = new ArrayList<>();
+        ReportingQueue<Integer, UnlimitedQueue<Integer>> rq = new ReportingQueue<>("Test", new UnlimitedQueue<>(), 250,
+                (name, o) -> samples.add(String.format("%d-%d:%.1f:%d", o.getStartInUs(), o.getEndInUs(), o.getMeanSize(), o.getMaxSize())));
+        rq.setThresholdHandler(3, 1, (name, above) -> crossings.add(timeline.now() + ":" + above));
+        // size 2 in [0, 100), 1 in [100, 300), 4 in [300, 1000], 0 after
+        timeline.schedule(0, p -> {
+            rq.enQueue(1, false);
+            rq.enQueue(2, false);
+        });
+        timeline.schedule(100, p -> rq.deQueue());
+        timeline.schedule(300, p -> {
+            for (int i = 0; i < 3; i++) {
+                rq.enQueue(i, false);
+            }
+        });
+        timeline.schedule(1000, p -> rq.clear());
+        timeline.schedule(1100, p -> rq.flushSample());
+        timeline.execute();
+
+        assertEquals(Arrays.asList("0-250:1.4:2", "250-500:3.4:4", "500-750:4.0:4", "750-1000:4.0:4", "1000-1100:0.0:4"), samples);
+        assertEquals(Arrays.asList("300:true", "1000:false"), crossings);
+        ReportingQueue.Occupancy total = rq.getOccupancy();
+        assertEquals(3200.0 / 1100, total.getMeanSize(), 1e-9);
+        assertEquals(4, total.getMaxSize());
+        assertEquals(4, total.getPercentile(0.5), 1e-9);
+        assertEquals(1, total.getPercentile(0.1), 1e-9);
+        assertEquals(0, total.getPercentile(0), 1e-9);
+        try {
+            new ReportingQueue<>("Test", new UnlimitedQueue<>(), (name, size) -> {
+            }).getOccupancy();
+            fail("Should not reach here! Not aggregated");
+        } catch (IllegalStateException e) {
+        }
+    }
+
 }
@@ -0,0 +1,111 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.util.ArrayList;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author Jiachen Chen
+ */
+public class SojournQueueTest {
+
+    public SojournQueueTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Test
+    public void testSojourn() {
+        Timeline timeline = new Timeline();
+        SojournQueue<String> q = new SojournQueue<>(new ItemLimitedQueue<>(3));
+        ArrayList<String> dropped = new ArrayList<>(), retrieved = new ArrayList<>();
+        String a = "a", b = "b", c = "c", d = "d", e = "e";
+
+        timeline.schedule(0, p -> {
+            q.enQueue(a, false);
+            q.enQueue(b, false);
+            // added twice, retrieved with the earliest stamp
+            q.enQueue(a, false);
+            q.enQueue(c, false, dropped::add);
+        });
+        timeline.schedule(10, p -> retrieved.add(q.deQueue()));
+        timeline.schedule(20, p -> q.enQueue(d, true, dropped::add));
+        // evicts the second a
+        timeline.schedule(30, p -> q.enQueue(e, true, dropped::add));
+        timeline.schedule(40, p -> retrieved.add(q.deQueue()));
+        timeline.schedule(50, p -> retrieved.add(q.deQueue()));
+        timeline.schedule(60, p -> retrieved.add(q.deQueue()));
+        timeline.schedule(70, p -> assertNull(q.deQueue()));
+        timeline.executeAll();
+
+        assertArrayEquals(new Object[]{"c", "a"}, dropped.toArray());
+        assertArrayEquals(new Object[]{"a", "d", "e", "b"}, retrieved.toArray());
+        SojournQueue.Histogram h = q.getHistogram();
+        assertEquals(4, h.getCount());
+        assertEquals(60, h.getMaxInUs());
+        assertEquals(27.5, h.getMeanInUs(), 1e-9);
+        assertEquals(23.5, h.getPercentileInUs(0.5), 1e-9);
+        assertEquals(60, h.getPercentileInUs(1), 1e-9);
+        StringBuilder sb = new StringBuilder();
+        h.forEachBucket((low, high, count) -> sb.append(low).append('-').append(high).append(':').append(count).append(' '));
+        assertEquals("8-15:1 16-31:2 32-63:1 ", sb.toString());
+
+        // no stamp is left from the dropped data
+        timeline.schedule(80, p -> q.enQueue(a, false));
+        timeline.schedule(85, p -> retrieved.add(q.deQueue()));
+        timeline.executeAll();
+        assertEquals(5, h.getCount());
+        assertEquals(1, h.getBucketCount(SojournQueue.Histogram.bucket(5)));
+
+        SojournQueue.Histogram total = new SojournQueue.Histogram();
+        total.addAll(h);
+        total.addAll(h);
+        assertEquals(10, total.getCount());
+        assertEquals(h.getMeanInUs(), total.getMeanInUs(), 1e-9);
+        total.clear();
+        assertEquals(0, total.getCount());
+        assertEquals(0, total.getPercentileInUs(0.99), 1e-9);
+    }
+
+    @Test
+    public void testWrapped() {
+        Timeline timeline = new Timeline();
+        SojournQueue<String> inner = new SojournQueue<>(new ItemLimitedQueue<>(2));
+        ReportingQueue<String, SojournQueue<String>> q = new ReportingQueue<>("q", inner, (n, s) -> {
+        });
+        assertSame(inner.getHistogram(), q.getSojourn());
+        assertNull(new ItemLimitedQueue<String>(2).getSojourn());
+
+        ArrayList<String> dropped = new ArrayList<>();
+        String a = "a", b = "b", c = "c";
+        timeline.schedule(0, p -> {
+            q.enQueue(a, false);
+            q.enQueue(b, false);
+        });
+        // pushes out b
+        timeline.schedule(10, p -> q.enQueue(c, true, dropped::add));
+        timeline.schedule(20, p -> assertSame(c, q.deQueue()));
+        timeline.schedule(40, p -> assertSame(a, q.deQueue()));
+        timeline.schedule(50, p -> q.enQueue(b, false));
+        timeline.schedule(55, p -> assertSame(b, q.deQueue()));
+        timeline.executeAll();
+
+        assertArrayEquals(new Object[]{"b"}, dropped.toArray());
+        SojournQueue.Histogram h = q.getSojourn();
+        assertEquals(3, h.getCount());
+        assertEquals(40, h.getMaxInUs());
+        assertEquals(55 / 3.0, h.getMeanInUs(), 1e-9);
+    }
+}
@@ -0,0 +1,169 @@
+package edu.rutgers.winlab.networksimulator.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author Jiachen Chen
+ */
+public class SteadyStateMonitorTest {
+
+    public SteadyStateMonitorTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    // an M/M/1 queue with arrival rate 1/ms and service rate 2/ms, the mean waiting time is 500us
+    private static final class MM1 {
+
+        private final Timeline timeline;
+        private final Random rand = new Random(0);
+        private final QueuePoller<Long> poller;
+        private long served = 0;
+        private final long endInUs;
+
+        private MM1(Timeline timeline, SteadyStateMonitor monitor, long endInUs) {
+            this.timeline = timeline;
+            this.endInUs = endInUs;
+            SteadyStateMonitor.Metric waiting = monitor.addObservation("Waiting");
+            monitor.addCounter("Served", () -> served);
+            poller = new QueuePoller<>(timeline, arrival -> {
+                waiting.record(timeline.now() - arrival);
+                served++;
+                return exponential(500);
+            }, new ReportingQueue<>("Queue", new UnlimitedQueue<>(), monitor.queueSizeHandler()), p -> {
+            });
+            timeline.schedule(0, p -> arrive());
+        }
+
+        private long exponential(double meanInUs) {
+            return Math.round(-meanInUs * Math.log(1 - rand.nextDouble()));
+        }
+
+        private void arrive() {
+            poller.enQueue(timeline.now(), false);
+            long next = timeline.now() + exponential(1000);
+            if (next < endInUs) {
+                timeline.schedule(next, p -> arrive());
+            }
+        }
+    }
+
+    @Test
+    public void testStopWhenPrecise() {
+        Timeline timeline = new Timeline();
+        SteadyStateMonitor monitor = new SteadyStateMonitor(timeline, Timeline.SECOND);
+        int[] warmUps = new int[1];
+        monitor.setWarmUpInUs(5 * Timeline.SECOND);
+        monitor.setWarmUpHandler(m -> warmUps[0]++);
+        new MM1(timeline, monitor, 300 * Timeline.SECOND);
+        monitor.getMetric("Waiting").setRelativePrecision(0.05);
+        monitor.start();
+        timeline.execute();
+
+        assertTrue(monitor.isConverged());
+        assertTrue(timeline.isStopped());
+        assertTrue(timeline.size() > 0);
+        assertEquals(1, warmUps[0]);
+        assertEquals(5 * Timeline.SECOND, monitor.getWarmUpEndInUs());
+        assertTrue(timeline.now() < 100 * Timeline.SECOND);
+        SteadyStateMonitor.Metric waiting = monitor.getMetric("Waiting");
+        assertEquals((timeline.now() - monitor.getWarmUpEndInUs()) / Timeline.SECOND, waiting.getBatchCount());
+        assertTrue(waiting.getHalfWidth() <= 0.05 * waiting.getMean());
+        assertEquals(500, waiting.getMean(), 100);
+        assertEquals(1000, monitor.getMetric("Served").getMean(), 50);
+        // the queue size is added by the handler
+        assertEquals(3, monitor.metricStream().count());
+        assertEquals(0.5, monitor.getMetric("Queue").getMean(), 0.15);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        monitor.writeTable(new PrintStream(out, true));
+        String[] lines = out.toString().split("\n");
+        assertEquals("Metric\tBatches\tMean\tHalfWidth", lines[0]);
+        assertTrue(lines[1].startsWith("Waiting\t" + waiting.getBatchCount() + "\t"));
+        assertEquals("WarmUpEnd\t" + 5 * Timeline.SECOND, lines[4]);
+
+        // the rest of the run
+        timeline.execute();
+        assertFalse(timeline.isStopped());
+        assertEquals(0, timeline.size());
+    }
+
+    @Test(timeout = 10000)
+    public void testTwoMonitors() {
+        Timeline timeline = new Timeline();
+        SteadyStateMonitor monitor = new SteadyStateMonitor(timeline, Timeline.SECOND);
+        SteadyStateMonitor another = new SteadyStateMonitor(timeline, 3 * Timeline.SECOND);
+        monitor.setWarmUpInUs(5 * Timeline.SECOND);
+        another.setWarmUpInUs(0);
+        new MM1(timeline, monitor, 20 * Timeline.SECOND);
+        another.addCounter("Time", timeline::now);
+        monitor.start();
+        another.start();
+        // the monitors stop when only their events are pending
+        long end = timeline.execute();
+
+        assertEquals(0, timeline.size());
+        assertEquals(0, timeline.foregroundSize());
+        assertTrue(end <= 21 * Timeline.SECOND);
+        assertTrue(monitor.getMetric("Waiting").getBatchCount() > 0);
+        assertTrue(another.getMetric("Time").getBatchCount() > 0);
+    }
+
+    @Test
+    public void testAutoWarmUp() {
+        Timeline timeline = new Timeline();
+        SteadyStateMonitor monitor = new SteadyStateMonitor(timeline, Timeline.SECOND);
+        MM1 queue = new MM1(timeline, monitor, 60 * Timeline.SECOND);
+        // a backlog at the beginning, drained in about 5 seconds
+        timeline.schedule(0, p -> {
+            for (int i = 0; i < 5000; i++) {
+                queue.poller.enQueue(0L, false);
+            }
+        });
+        monitor.start();
+        timeline.execute();
+
+        assertFalse(monitor.isConverged());
+        assertTrue(monitor.isWarmedUp());
+        assertTrue(monitor.getWarmUpEndInUs() >= 10 * Timeline.SECOND);
+        SteadyStateMonitor.Metric served = monitor.getMetric("Served");
+        // the monitor stops with the run
+        assertEquals(0, timeline.size());
+        assertEquals(60 - monitor.getWarmUpEndInUs() / Timeline.SECOND, served.getBatchCount(), 1);
+        assertEquals(1000, served.getMean(), 100);
+
+        try {
+            served.record(1);
+            fail("Should not reach here! Served is a counter");
+        } catch (IllegalStateException e) {
+        }
+        try {
+            monitor.addLevel("Queue");
+            fail("Should not reach here! Queue already exists");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testStudentQuantile() {
+        assertEquals(2.262, SteadyStateMonitor.studentQuantile(0.95, 9), 0.005);
+        assertEquals(2.045, SteadyStateMonitor.studentQuantile(0.95, 29), 0.005);
+        assertEquals(2.576, SteadyStateMonitor.studentQuantile(0.99, 100000), 0.005);
+    }
+}
@@ -1,10 +1,19 @@
 package edu.rutgers.winlab.networksimulator.common;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
 import java.util.function.Consumer;
 import org.junit.AfterClass;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.BeforeClass;
@@ -161,4 +170,413 @@ public class TimelineTest {
         assertEquals(Long.MIN_VALUE, Timeline.run());
         assertEquals(Long.MIN_VALUE, Timeline.nowInUs());
     }
+
+    @Test
+    public void testTypedEvent() {
+        Timeline timeline = new Timeline();
+        ArrayList<String> result = new ArrayList<>();
+        EventHandler<String> handler = (s, v) -> {
+            result.add(timeline.now() + ":" + s + v);
+            if (v > 0) {
+                timeline.schedule(timeline.now(), objs -> result.add("c" + objs[0]), v);
+                timeline.schedule(timeline.now() + 10, (String p, long value) -> result.add("t" + p + value), s, v - 1);
+            }
+        };
+        timeline.schedule(100, handler, "a", 2);
+        timeline.schedule(100, objs -> result.add("c0"));
+        timeline.schedule(110, handler, "b", 0);
+        assertEquals(110, timeline.execute());
+        assertEquals("[100:a2, c0, c2, 110:b0, ta1]", result.toString());
+
+        // the executed events are reused
+        timeline.schedule(0, handler, "x", 0);
+        TimelineEvent e = timeline.getEventScheduler().peek();
+        timeline.execute();
+        timeline.schedule(0, handler, "y", 0);
+        assertSame(e, timeline.getEventScheduler().peek());
+        timeline.execute();
+    }
+
+    @Test
+    public void testFarFutureOrder() {
+        // near and far events (up to years) added while running, compared with the heap
+        Random rand = new Random(0);
+        Timeline timeline = new Timeline();
+        EventScheduler heap = new HeapEventScheduler();
+        ArrayList<Long> result = new ArrayList<>();
+        long[] delays = new long[]{10 * Timeline.MS, 3 * Timeline.SECOND, Timeline.HOUR, Timeline.DAY, 400 * Timeline.DAY, 3000 * Timeline.DAY};
+        EventHandler<ArrayList<Long>> handler = new EventHandler<ArrayList<Long>>() {
+            @Override
+            public void handle(ArrayList<Long> list, long value) {
+                list.add(value);
+                if (value < 3000) {
+                    for (int i = 0; i < 2; i++) {
+                        long time = timeline.now() + (long) (rand.nextDouble() * delays[rand.nextInt(delays.length)]);
+                        long id = value * 2 + i + 1;
+                        timeline.schedule(time, this, list, id);
+                        heap.add(new TimelineEvent(id, time, objs -> {
+                        }));
+                    }
+                }
+            }
+        };
+        timeline.schedule(0, handler, result, 0);
+        heap.add(new TimelineEvent(0, 0, objs -> {
+        }));
+        timeline.execute();
+        ArrayList<Long> expected = new ArrayList<>();
+        TimelineEvent e;
+        while ((e = heap.poll()) != null) {
+            expected.add(e.getSerial());
+        }
+        assertEquals(expected, result);
+        assertEquals(0, timeline.size());
+    }
+
+    @Test
+    public void testCancel() {
+        Timeline timeline = new Timeline();
+        ArrayList<String> result = new ArrayList<>();
+        EventHandler<String> handler = (s, v) -> result.add(timeline.now() + ":" + s);
+        TimelineEvent[] far = new TimelineEvent[1];
+        timeline.schedule(0, objs -> {
+            far[0] = timeline.scheduleCancellable(Timeline.DAY, handler, "far", 0);
+            timeline.scheduleCancellable(2 * Timeline.DAY, handler, "keep", 0);
+            TimelineEvent near = timeline.scheduleCancellable(10, handler, "near", 0);
+            timeline.schedule(5, objs2 -> assertTrue(near.cancel()));
+            assertEquals(5, timeline.size());
+        });
+        timeline.schedule(Timeline.HOUR, objs -> {
+            assertTrue(far[0].cancel());
+            assertFalse(far[0].cancel());
+        });
+        assertEquals(2 * Timeline.DAY, timeline.execute());
+        assertEquals("[" + 2 * Timeline.DAY + ":keep]", result.toString());
+        assertTrue(far[0].isCancelled());
+        assertEquals(0, timeline.size());
+    }
+
+    @Test
+    public void testBoundedRun() {
+        Timeline timeline = new Timeline();
+        ArrayList<Long> result = new ArrayList<>();
+        EventHandler<ArrayList<Long>> handler = new EventHandler<ArrayList<Long>>() {
+            @Override
+            public void handle(ArrayList<Long> list, long value) {
+                list.add(timeline.now());
+                if (value > 0) {
+                    timeline.schedule(timeline.now() + 10, this, list, value - 1);
+                }
+            }
+        };
+        timeline.schedule(0, handler, result, 9);
+        timeline.schedule(2 * Timeline.DAY, handler, result, 0);
+        assertEquals(3, timeline.executeUntil(25));
+        assertEquals(25, timeline.now());
+        assertEquals("[0, 10, 20]", result.toString());
+        try {
+            timeline.executeUntil(24);
+            fail("Should not reach here! The clock cannot go back");
+        } catch (IllegalArgumentException e) {
+        }
+        // events can be added between the slices
+        timeline.schedule(25, handler, result, 0);
+        assertEquals(2, timeline.executeEvents(2));
+        assertEquals(30, timeline.now());
+        assertEquals(0, timeline.executeUntil(30));
+        assertEquals(6, timeline.executeUntil(Timeline.DAY));
+        assertEquals(Timeline.DAY, timeline.now());
+        assertEquals(1, timeline.size());
+        try {
+            timeline.resetClock();
+            fail("Should not reach here! Cannot reset with pending events");
+        } catch (IllegalStateException e) {
+        }
+        assertEquals(2 * Timeline.DAY, timeline.executeAll());
+        assertEquals(2 * Timeline.DAY, timeline.now());
+        assertEquals(12, result.size());
+        timeline.resetClock();
+        assertEquals(Long.MIN_VALUE, timeline.now());
+    }
+
+    @Test
+    public void testProfiler() {
+        Timeline timeline = new Timeline();
+        EventProfiler profiler = new EventProfiler(1);
+        timeline.setProfiler(profiler);
+        EventHandler<Object> chain = new EventHandler<Object>() {
+            @Override
+            public void handle(Object payload, long value) {
+                if (value > 0) {
+                    timeline.schedule(timeline.now() + Timeline.MS, this, null, value - 1);
+                }
+            }
+        };
+        for (int i = 0; i < 5; i++) {
+            timeline.schedule(0, objs -> {
+            });
+        }
+        timeline.schedule(0, chain, null, 9);
+        assertEquals(9 * Timeline.MS, timeline.execute());
+        assertEquals(15, profiler.getEventCount());
+        assertEquals(9 * Timeline.MS, profiler.getSimulatedTimeInUs());
+        assertEquals(5, profiler.getPeakPending());
+        assertEquals(2, profiler.handlerStream().count());
+        assertEquals(10, profiler.handlerStream().filter(p -> p.getHandlerClass() == chain.getClass())
+                .findAny().get().getCount());
+        assertEquals(8, profiler.handlerStream().mapToLong(EventProfiler.HandlerProfile::getSampledCount).sum());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        profiler.writeTable(new PrintStream(out, true));
+        String[] lines = out.toString().split("\n");
+        assertEquals(5, lines.length);
+        assertTrue(lines[3].startsWith("Total\t15\t"));
+        assertTrue(lines[3].endsWith("1666.7"));
+        assertEquals("PeakPending\t5", lines[4]);
+        profiler.reset();
+        assertEquals(0, profiler.handlerStream().count());
+    }
+
+    @Test
+    public void testWatchdog() {
+        Timeline timeline = new Timeline();
+        EventWatchdog watchdog = new EventWatchdog(0, 100, 0);
+        watchdog.setReportStream(null);
+        timeline.setWatchdog(watchdog);
+        // each event schedules 2 events in the same ms, 2^10 events at the end
+        EventHandler<String> storm = new EventHandler<String>() {
+            @Override
+            public void handle(String payload, long value) {
+                if (value > 0) {
+                    timeline.schedule(timeline.now() + Timeline.US, this, payload, value - 1);
+                    timeline.schedule(timeline.now() + Timeline.US, this, payload, value - 1);
+                }
+            }
+        };
+        timeline.schedule(Timeline.MS, storm, "storm", 10);
+        timeline.schedule(Timeline.MS, objs -> {
+        }, 1);
+        timeline.execute();
+        assertTrue(timeline.isStopped());
+        assertTrue(watchdog.isTripped());
+        assertEquals("More than 100 events in simulated ms 1", watchdog.getReason());
+        assertTrue(timeline.now() > Timeline.MS);
+        int pending = timeline.size();
+        assertTrue(pending > 0);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        watchdog.writeReport(new PrintStream(out, true));
+        String[] lines = out.toString().split("\n");
+        assertEquals("Watchdog\tMore than 100 events in simulated ms 1", lines[0]);
+        assertEquals(String.format("Time\t%d\tPending\t%d\tExecuted\t101", timeline.now(), pending), lines[1]);
+        assertEquals("Handler\tRecent\tPending", lines[2]);
+        String name = storm.getClass().getName();
+        assertEquals(String.format("%s\t100\t%d", name.substring(name.lastIndexOf('.') + 1), pending), lines[3]);
+        assertEquals("Type\tRecent\tPending", lines[lines.length - 3]);
+        assertEquals(String.format("String\t100\t%d", pending), lines[lines.length - 2]);
+        assertEquals("Integer\t1\t0", lines[lines.length - 1]);
+
+        // the events are kept, resume without the watchdog
+        timeline.setWatchdog(null);
+        timeline.execute();
+        assertFalse(timeline.isStopped());
+        assertEquals(0, timeline.size());
+    }
+
+    @Test
+    public void testRecorder() throws IOException {
+        Path dir = Files.createTempDirectory("timeline");
+        Path file = dir.resolve("events.bin");
+        Timeline timeline = new Timeline();
+        EventHandler<Integer> chain = new EventHandler<Integer>() {
+            @Override
+            public void handle(Integer payload, long value) {
+                if (value > 0) {
+                    timeline.schedule(timeline.now() + 10, this, payload + 1, value - 1);
+                }
+            }
+        };
+        // more than one mapped region
+        int count = EventRecorder.REGION_SIZE / EventRecorder.RECORD_SIZE + 100;
+        timeline.schedule(0, chain, 0, count - 2);
+        timeline.schedule(5, objs -> {
+        }, 1000);
+        try (EventRecorder recorder = new EventRecorder(file, p -> p instanceof Integer ? (Integer) p : -1)) {
+            timeline.setRecorder(recorder);
+            timeline.execute();
+            assertEquals(count, recorder.getCount());
+        }
+        try (EventLog log = new EventLog(file)) {
+            assertEquals(count, log.size());
+            assertEquals(2, log.getHandlerCount());
+            EventLog.Entry e = log.get(1);
+            assertEquals(5, e.getTimeInUs());
+            assertEquals(1000, e.getPayloadId());
+            assertTrue(log.getHandlerName(e.getHandlerId()).startsWith(TimelineTest.class.getName()));
+            long index = log.seek(10L * (count - 50));
+            e = log.get(index);
+            assertEquals(10L * (count - 50), e.getTimeInUs());
+            assertEquals(count - 50, e.getPayloadId());
+            assertEquals(48, e.getValue());
+            assertEquals(log.size(), log.seek(Long.MAX_VALUE));
+            ArrayList<Long> times = new ArrayList<>();
+            log.forEach(0, 21, entry -> times.add(entry.getTimeInUs()));
+            assertEquals("[0, 5, 10, 20]", times.toString());
+        } finally {
+            Files.delete(file);
+            Files.delete(dir.resolve("events.bin" + EventRecorder.HANDLERS_SUFFIX));
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testRecorderNotClosed() throws IOException {
+        Path dir = Files.createTempDirectory("timeline");
+        Path file = dir.resolve("events.bin");
+        Timeline timeline = new Timeline();
+        // all the fields of the first record are 0
+        EventHandler<Integer> chain = new EventHandler<Integer>() {
+            @Override
+            public void handle(Integer payload, long value) {
+                if (payload < value) {
+                    timeline.schedule(timeline.now() + 10, this, payload + 1, value);
+                }
+            }
+        };
+        int count = EventRecorder.REGION_SIZE / EventRecorder.RECORD_SIZE + 100;
+        timeline.schedule(0, chain, 0, 0);
+        timeline.schedule(0, chain, 1, count - 1);
+        EventRecorder recorder = new EventRecorder(file, p -> p instanceof Integer ? (Integer) p : -1);
+        try {
+            timeline.setRecorder(recorder);
+            timeline.execute();
+            // read as if the process was killed
+            try (EventLog log = new EventLog(file)) {
+                assertEquals(count, log.size());
+                assertEquals(0, log.get(0).getTimeInUs());
+                assertEquals(10L * (count - 2), log.get(count - 1).getTimeInUs());
+                assertEquals(count, log.seek(Long.MAX_VALUE));
+                assertEquals(count - 1, log.seek(10L * (count - 2)));
+            }
+        } finally {
+            recorder.close();
+            Files.delete(file);
+            Files.delete(dir.resolve("events.bin" + EventRecorder.HANDLERS_SUFFIX));
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testDigestHandlers() {
+        ArrayList<String> log = new ArrayList<>();
+        // lambdas of the same class with the same time, payload and value
+        EventHandler<Integer> h1 = (payload, value) -> log.add("h1");
+        EventHandler<Integer> h2 = (payload, value) -> log.add("h2");
+        assertEquals(digest(h1), digest(h1));
+        assertTrue(digest(h1) != digest(h2));
+        assertEquals("[h1, h1, h1, h2]", log.toString());
+        assertEquals(TimelineTest.class.getName(), EventDigest.getTypeName((Consumer<Object[]>) p -> log.add("c")));
+    }
+
+    private static long digest(EventHandler<Integer> handler) {
+        Timeline timeline = new Timeline();
+        EventDigest digest = new EventDigest();
+        timeline.setDigest(digest);
+        timeline.schedule(10, handler, 1, 2);
+        timeline.execute();
+        return digest.getValue();
+    }
+
+    // chains of events with short and long delays, logs the executed events
+    private static void runChains(Timeline timeline, Object owner, ArrayList<String> log) {
+        Random rand = new Random(0);
+        EventHandler<Tuple2<Object, Integer>> chain = new EventHandler<Tuple2<Object, Integer>>() {
+            @Override
+            public void handle(Tuple2<Object, Integer> payload, long value) {
+                assertSame(owner, payload.getV1());
+                log.add(timeline.now() + ":" + payload.getV2() + ":" + value);
+                if (value > 0) {
+                    long delay = rand.nextInt(10) == 0 ? rand.nextInt(1000000) : rand.nextInt(1000);
+                    timeline.schedule(timeline.now() + delay, this, new Tuple2<>(owner, payload.getV2()), value - 1);
+                }
+            }
+        };
+        // not serializable, kept in memory
+        EventHandler<Object> opaque = (payload, value) -> log.add(timeline.now() + ":opaque:" + value);
+        for (int i = 0; i < 200; i++) {
+            timeline.schedule(rand.nextInt(100000), chain, new Tuple2<>(owner, i), 50);
+        }
+        timeline.schedule(0, p -> {
+            for (int i = 0; i < 10; i++) {
+                timeline.schedule(100000 + rand.nextInt(1000000), opaque, new HashMap<>().keySet(), i);
+            }
+        });
+        timeline.execute();
+    }
+
+    @Test
+    public void testSpill() throws IOException {
+        Object owner = new Object();
+        ArrayList<String> expected = new ArrayList<>(), result = new ArrayList<>();
+        runChains(new Timeline(), owner, expected);
+
+        Path dir = Files.createTempDirectory("timeline");
+        Timeline timeline = new Timeline();
+        try (EventSpill spill = new EventSpill(dir, 10000, EventSpill::isValue, 64)) {
+            timeline.setSpill(spill);
+            runChains(timeline, owner, result);
+            assertEquals(expected, result);
+            assertTrue(spill.getSpilledCount() > 100);
+            assertEquals(10, spill.getKeptCount());
+            assertEquals(0, spill.size());
+            assertEquals(0, spill.getRunCount());
+            assertEquals(0, spill.getReferenceCount());
+            assertEquals(0, timeline.size());
+
+            // the spilled events are counted, and moved back when removed
+            timeline.schedule(0, p -> {
+                timeline.schedule(100000, (payload, v) -> {
+                }, 1, 0);
+                assertEquals(1, spill.size());
+                assertEquals(1, timeline.size());
+                timeline.stop();
+            });
+            timeline.execute();
+            assertEquals(1, timeline.removeEvents().size());
+            assertEquals(0, spill.size());
+
+            // the cancellable events are spilled, and can be cancelled on the disk
+            ArrayList<Integer> fired = new ArrayList<>();
+            EventHandler<Integer> handler = (payload, v) -> fired.add(payload);
+            TimelineEvent[] handles = new TimelineEvent[100];
+            timeline.schedule(0, p -> {
+                for (int i = 0; i < handles.length; i++) {
+                    handles[i] = timeline.scheduleCancellable(100000 + i, handler, i, 0);
+                }
+            });
+            timeline.schedule(50000, p -> {
+                assertEquals(100, spill.size());
+                assertTrue(spill.getRunCount() > 0);
+                for (int i = 0; i < handles.length; i += 2) {
+                    handles[i].cancel();
+                }
+            });
+            timeline.execute();
+            assertEquals(50, fired.size());
+            for (int i = 0; i < fired.size(); i++) {
+                assertEquals(2 * i + 1, (int) fired.get(i));
+            }
+            assertEquals(0, spill.getReferenceCount());
+        }
+        try {
+            assertEquals(0, Files.list(dir).count());
+        } finally {
+            Files.delete(dir);
+        }
+        try {
+            EventSpill spill = new EventSpill(dir, 0);
+            fail("Should not reach here! horizon=0");
+        } catch (IllegalArgumentException e) {
+        }
+    }
 }
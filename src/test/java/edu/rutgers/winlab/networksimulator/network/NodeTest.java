@@ -5,6 +5,7 @@
  */
 package edu.rutgers.winlab.networksimulator.network;
 
+import edu.rutgers.winlab.networksimulator.common.CoDelQueue;
 import edu.rutgers.winlab.networksimulator.common.Data;
 import static edu.rutgers.winlab.networksimulator.common.Helper.assertStreamEquals;
 import edu.rutgers.winlab.networksimulator.common.ItemLimitedQueue;
@@ -221,6 +222,9 @@ public class NodeTest {
                 assertEquals(ul.getDestination(), n2);
                 assertEquals(1000, l.getBitsSent());
                 assertEquals(3000, l.getBitsDiscarded());
+                // killed on the way, when sending, and in the queue
+                assertEquals(3, l.getDrops().getPackets(DropCounter.Reason.ABORT, Data.UNTYPED));
+                assertEquals(3000, l.getDrops().getBits());
             } else {
                 fail("Should not reach here!");
             }
@@ -269,6 +273,77 @@ public class NodeTest {
             assertEquals(n1, n);
             assertEquals((Long) 2000L, b);
         });
+        assertEquals(4, n2.getDrops().getPackets(DropCounter.Reason.OVERFLOW, Data.UNTYPED));
+        assertEquals(2000, n2.getDrops().getBits(DropCounter.Reason.OVERFLOW));
+        assertEquals(0, n2.getDrops().getPackets(DropCounter.Reason.PUSH_OUT));
+    }
+
+    @Test
+    public void testActiveIncomingQueueDrops() {
+        ArrayList<Tuple4<Long, Node, Node, Integer>> result = new ArrayList<>();
+        CoDelQueue<Tuple2<Node, Data>> coDel = new CoDelQueue<>(100, 1 * Timeline.MS, 10 * Timeline.MS);
+        TestNode n1 = new TestNode("N1", new UnlimitedQueue<>(), 0, result);
+        // serves 1 data every 2ms, receives 1 data every 0.5ms
+        TestNode n2 = new TestNode("N2", coDel, 2000, result);
+        Node.linkNodes(n1, n2, 1 * Node.BW_IN_MBPS, 1 * Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+        Timeline.addEvent(0, ps -> {
+            for (int i = 0; i < 100; i++) {
+                n1.sendUnicastData(n2, new MyData(500), false);
+            }
+        });
+        Timeline.run();
+
+        // the data dropped at the head of the queue are counted as overflow
+        long dropped = coDel.getEarlyDropCount();
+        assertTrue(dropped > 0);
+        assertEquals(100, result.size() + dropped);
+        assertEquals(dropped, n2.getDrops().getPackets(DropCounter.Reason.OVERFLOW, Data.UNTYPED));
+        assertEquals(0, n2.getDrops().getPackets(DropCounter.Reason.PUSH_OUT));
+        assertStreamEquals(Stream.of(new Tuple2<>(n1, dropped * 500)), n2.bitsDiscardedStream());
+    }
+
+    @Test
+    public void testDrops() {
+        ArrayList<Tuple4<Long, Node, Node, Integer>> result = new ArrayList<>();
+        TestNode n1 = new TestNode("N1", new UnlimitedQueue<>(), 0, result);
+        TestNode n2 = new TestNode("N2", new UnlimitedQueue<>(), 0, result);
+        Node.linkNodes(n1, n2, 1 * Node.BW_IN_MBPS, 1 * Timeline.MS, new ItemLimitedQueue<>(2), new UnlimitedQueue<>());
+        Timeline.addEvent(0, ps -> {
+            n1.sendUnicastData(n2, new MyData(1000), false);
+            n1.sendUnicastData(n2, new MyData(1000), false);
+            n1.sendUnicastData(n2, new TypedData(1000, 7), false);
+            n1.sendUnicastData(n2, new MyData(500), false);
+            // pushes out the typed data
+            n1.sendUnicastData(n2, new TypedData(1000, 8), true);
+        });
+        Timeline.run();
+
+        DropCounter drops = n1.getUnicastLink(n2).getDrops();
+        assertEquals(1, drops.getPackets(DropCounter.Reason.OVERFLOW, Data.UNTYPED));
+        assertEquals(1000, drops.getBits(DropCounter.Reason.PUSH_OUT, 7));
+        assertEquals(0, drops.getPackets(DropCounter.Reason.PUSH_OUT, 8));
+        assertEquals(1500, n1.getUnicastLink(n2).getBitsDiscarded());
+        assertStreamEquals(Stream.of(
+                new Tuple4<>(DropCounter.Reason.OVERFLOW, Data.UNTYPED, 1L, 500L),
+                new Tuple4<>(DropCounter.Reason.PUSH_OUT, 7, 1L, 1000L)), drops.stream());
+        ArrayList<String> names = new ArrayList<>();
+        n1.forEachDrops((name, d) -> names.add(name + ":" + d.getPackets()));
+        assertArrayEquals(new Object[]{"N1:0", "N1->N2:2"}, names.toArray());
+    }
+
+    private static class TypedData extends MyData {
+
+        private final int type;
+
+        public TypedData(int sizeInBits, int type) {
+            super(sizeInBits);
+            this.type = type;
+        }
+
+        @Override
+        public int getType() {
+            return type;
+        }
     }
 
     private static class Satellite extends Node {
@@ -346,12 +421,17 @@ public class NodeTest {
         System.out.printf("B=%,d, BW=%,d, R=%,d%n", packetSize, satelliteLinkBw, Node.getTransmitTimeInUs(packetSize, satelliteLinkBw));
         Timeline.addEvent(satelliteLinkLatency * 2 + Node.getTransmitTimeInUs(packetSize, satelliteLinkBw) * 4 - 1, ps -> {
             System.out.printf("%,d%n", Timeline.nowInUs());
+            // the data in flight shares the destinations
+            assertEquals(1, satellite.getBroadcastChannel(broadcastChannelName).getSnapshotsInFlight());
             satellite.getBroadcastChannel(broadcastChannelName).removeNode(n5, false);
             satellite.getBroadcastChannel(broadcastChannelName).removeNode(n6, true);
             satellite.getBroadcastChannel(broadcastChannelName).removeNode(n5, false);
             satellite.getBroadcastChannel(broadcastChannelName).removeNode(n5, true);
             satellite.getBroadcastChannel(broadcastChannelName).addNode(n6);
             satellite.getBroadcastChannel(broadcastChannelName).removeNode(n6, true);
+            // the data in flight to the removed nodes are counted when they are removed
+            assertEquals(56000, satellite.getBroadcastChannel(broadcastChannelName).getDrops().getBits(DropCounter.Reason.MEMBER_REMOVED));
+            assertEquals(56000, satellite.getBroadcastChannel(broadcastChannelName).getBitsDiscarded());
         });
         Timeline.addEvent(satelliteLinkLatency * 2 + Node.getTransmitTimeInUs(packetSize, satelliteLinkBw) * 10 - 1, ps -> {
             System.out.printf("%,d%n", Timeline.nowInUs());
@@ -364,6 +444,12 @@ public class NodeTest {
         });
 
         satellite.forEachBroadcastLink((n, l) -> System.out.printf("%s D:%,d, S:%,d%n", n, l.getBitsDiscarded(), l.getBitsSent()));
+        assertEquals(152000, satellite.getBroadcastChannel(broadcastChannelName).getBitsDiscarded());
+        assertEquals(104000, satellite.getBroadcastChannel(broadcastChannelName).getBitsSent());
+        assertEquals(0, satellite.getBroadcastChannel(broadcastChannelName).getSnapshotsInFlight());
+        DropCounter drops = satellite.getBroadcastChannel(broadcastChannelName).getDrops();
+        assertEquals(96000, drops.getBits(DropCounter.Reason.ABORT));
+        assertEquals(56000, drops.getBits(DropCounter.Reason.MEMBER_REMOVED));
         satellite.broadcastLinkStream().forEach(e -> System.out.printf("%s D:%,d, S:%,d%n", e.getKey(), e.getValue().getBitsDiscarded(), e.getValue().getBitsSent()));
     }
 }
@@ -0,0 +1,92 @@
+package edu.rutgers.winlab.networksimulator.network;
+
+import edu.rutgers.winlab.networksimulator.common.CopyOnWriteMap;
+import edu.rutgers.winlab.networksimulator.common.Data;
+import edu.rutgers.winlab.networksimulator.common.Tuple2;
+import edu.rutgers.winlab.networksimulator.common.UnlimitedQueue;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Jiachen Chen
+ */
+public class SimulationCheckpointTest {
+
+    public SimulationCheckpointTest() {
+    }
+
+    // a node with a read-mostly table
+    private static class TableNode extends Node {
+
+        private final CopyOnWriteMap<String, HashSet<String>> table = new CopyOnWriteMap<>((UnaryOperator<HashSet<String>> & Serializable) HashSet::new);
+
+        public TableNode(String name) {
+            super(name, new UnlimitedQueue<>());
+        }
+
+        @Override
+        protected long handleData(Tuple2<Node, Data> t) {
+            return 0;
+        }
+    }
+
+    private static HashSet<String> set(String... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    @Test
+    public void testForkSharedTable() throws IOException {
+        Simulation simulation = new Simulation();
+        TableNode node = simulation.call(() -> new TableNode("A"));
+        node.table.put("a", set("1"));
+        node.table.put("b", set("2"));
+
+        List<Simulation> forks = SimulationCheckpoint.fork(simulation, 2);
+        TableNode f1 = (TableNode) forks.get(0).getNode(0), f2 = (TableNode) forks.get(1).getNode(0);
+        assertNotSame(f1, f2);
+        assertTrue(node.table.isShared());
+        assertTrue(f1.table.isShared());
+        assertTrue(f2.table.isShared());
+
+        // the simulation modifies the table after the fork, the forks keep the
+        // entries at the time of the fork
+        node.table.getForUpdate("a").add("3");
+        node.table.remove("b");
+        assertFalse(node.table.isShared());
+        assertEquals(set("1", "3"), node.table.get("a"));
+        assertNull(node.table.get("b"));
+        for (TableNode f : new TableNode[]{f1, f2}) {
+            assertEquals(set("1"), f.table.get("a"));
+            assertEquals(set("2"), f.table.get("b"));
+        }
+
+        // a fork modifies its own copy, the other fork and the simulation are not affected
+        f1.table.getForUpdate("b").add("4");
+        f1.table.put("c", set("5"));
+        assertFalse(f1.table.isShared());
+        assertEquals(set("2", "4"), f1.table.get("b"));
+        assertEquals(set("5"), f1.table.get("c"));
+        assertEquals(set("2"), f2.table.get("b"));
+        assertFalse(f2.table.containsKey("c"));
+        assertEquals(2, f2.table.size());
+        assertFalse(node.table.containsKey("c"));
+        assertEquals(1, node.table.size());
+
+        // the last sharer copies the entries as well
+        f2.table.getForUpdate("a").add("6");
+        assertEquals(set("1", "6"), f2.table.get("a"));
+        assertEquals(set("1"), f1.table.get("a"));
+        assertEquals(set("1", "3"), node.table.get("a"));
+    }
+}
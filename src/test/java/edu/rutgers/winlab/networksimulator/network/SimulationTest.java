@@ -0,0 +1,662 @@
+package edu.rutgers.winlab.networksimulator.network;
+
+import edu.rutgers.winlab.networksimulator.common.Data;
+import edu.rutgers.winlab.networksimulator.common.EventDigest;
+import edu.rutgers.winlab.networksimulator.common.EventHandler;
+import edu.rutgers.winlab.networksimulator.common.EventSpill;
+import edu.rutgers.winlab.networksimulator.common.EventWatchdog;
+import edu.rutgers.winlab.networksimulator.common.HeapEventScheduler;
+import edu.rutgers.winlab.networksimulator.common.PrioritizedQueue;
+import edu.rutgers.winlab.networksimulator.common.SojournQueue;
+import edu.rutgers.winlab.networksimulator.common.Timeline;
+import edu.rutgers.winlab.networksimulator.common.TimelineEvent;
+import edu.rutgers.winlab.networksimulator.common.TriConsumer;
+import edu.rutgers.winlab.networksimulator.common.Tuple2;
+import edu.rutgers.winlab.networksimulator.common.UnlimitedQueue;
+import edu.rutgers.winlab.networksimulator.network.mf.MFGNRS;
+import edu.rutgers.winlab.networksimulator.network.mf.MFRouter;
+import edu.rutgers.winlab.networksimulator.network.mf.graphpubsub.MFPubSubRouter;
+import edu.rutgers.winlab.networksimulator.network.mf.packets.GUID;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author Jiachen Chen
+ */
+public class SimulationTest {
+
+    public SimulationTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    // builds the topology of MFRouterTest in the current simulation
+    static TreeMap<String, MFRouter> createRouters() {
+        TreeMap<String, MFRouter> routers = new TreeMap<>();
+        MFGNRS gnrs = new MFGNRS("R5", new UnlimitedQueue<>());
+        routers.put("R5", gnrs);
+        for (int i = 0; i < 6; i++) {
+            if (i != 4) {
+                String name = "R" + (i + 1);
+                routers.put(name, new MFRouter(name, new UnlimitedQueue<>(), gnrs.getNa()));
+            }
+        }
+        TriConsumer<String, String, Integer> linkNodes = (r1, r2, latency)
+                -> Node.linkNodes(routers.get(r1), routers.get(r2), 100 * Node.BW_IN_MBPS, latency * Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+        linkNodes.accept("R1", "R2", 7);
+        linkNodes.accept("R1", "R3", 9);
+        linkNodes.accept("R1", "R6", 14);
+        linkNodes.accept("R2", "R3", 10);
+        linkNodes.accept("R2", "R4", 15);
+        linkNodes.accept("R3", "R4", 11);
+        linkNodes.accept("R3", "R6", 2);
+        linkNodes.accept("R4", "R5", 6);
+        linkNodes.accept("R5", "R6", 9);
+        return routers;
+    }
+
+    static String runRouting() {
+        return runRouting(Simulation::run);
+    }
+
+    // announce all the NAs at the same time, returns the fibs and the finish time
+    static String runRouting(ToLongFunction<Simulation> runner) {
+        TreeMap<String, MFRouter> routers = createRouters();
+        routers.values().forEach(router -> Timeline.addEvent(0, p -> router.announceNA()));
+        EventDigest digest = Simulation.getCurrent().startEventDigest();
+        long finish = runner.applyAsLong(Simulation.getCurrent());
+        return finish + " " + digest + "\n" + printFibs(routers);
+    }
+
+    static String printFibs(TreeMap<String, MFRouter> routers) {
+        StringBuilder sb = new StringBuilder();
+        routers.forEach((name, router) -> {
+            TreeMap<String, String> fib = new TreeMap<>();
+            router.forEachFib((na, t) -> fib.put(na.getNode().getName(), t.getV1().getName() + "/" + t.getV2()));
+            sb.append(name).append(fib).append('\n');
+        });
+        return sb.toString();
+    }
+
+    @Test
+    public void testConcurrentSimulations() throws Exception {
+        String expected = runRouting();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ArrayList<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                Simulation simulation = new Simulation();
+                results.add(executor.submit(() -> simulation.call(SimulationTest::runRouting)));
+            }
+            for (Future<String> result : results) {
+                assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(0, Timeline.getDefault().size());
+    }
+
+    @Test
+    public void testBinding() {
+        Simulation simulation = new Simulation();
+        assertSame(Simulation.getDefault(), Simulation.getCurrent());
+        assertSame(Timeline.getDefault(), Timeline.getCurrent());
+        MFRouter r1 = simulation.call(() -> {
+            assertSame(simulation, Simulation.getCurrent());
+            assertSame(simulation.getTimeline(), Timeline.getCurrent());
+            return new MFGNRS("R1", new UnlimitedQueue<>());
+        });
+        assertSame(Simulation.getDefault(), Simulation.getCurrent());
+        assertSame(simulation, r1.getSimulation());
+        assertSame(simulation.getTimeline(), r1.getTimeline());
+
+        MFRouter r2 = new MFGNRS("R2", new UnlimitedQueue<>());
+        assertSame(Simulation.getDefault(), r2.getSimulation());
+        assertNotSame(r1.getTimeline(), r2.getTimeline());
+        try {
+            Node.linkNodes(r1, r2, Node.BW_IN_MBPS, Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+            fail("Should not reach here! Nodes in different simulations cannot be linked");
+        } catch (IllegalArgumentException e) {
+        }
+
+        // the static methods of the time line operate on the running time line
+        simulation.getTimeline().schedule(10, p -> {
+            assertSame(simulation.getTimeline(), Timeline.getCurrent());
+            Timeline.addEvent(Timeline.nowInUs() + 10, p2 -> {
+            });
+        });
+        assertEquals(20, simulation.getTimeline().execute());
+        assertSame(Timeline.getDefault(), Timeline.getCurrent());
+    }
+
+    private static class GossipPacket implements Data {
+
+        private final String id;
+        private final int hops;
+
+        public GossipPacket(String id, int hops) {
+            this.id = id;
+            this.hops = hops;
+        }
+
+        @Override
+        public int getSizeInBits() {
+            return 500 * BIT;
+        }
+
+        @Override
+        public String toString() {
+            return id + "/" + hops;
+        }
+    }
+
+    // forwards the packets to random neighbors, logs the packets received
+    private static class GossipNode extends Node {
+
+        private final ArrayList<String> log = new ArrayList<>();
+        private final Random rand;
+
+        public GossipNode(String name) {
+            this(name, new UnlimitedQueue<>());
+        }
+
+        public GossipNode(String name, PrioritizedQueue<Tuple2<Node, Data>> incomingQueue) {
+            super(name, incomingQueue);
+            rand = new Random(name.hashCode());
+        }
+
+        public void start(String id, int hops) {
+            enqueueIncomingData(this, new GossipPacket(id, hops), false);
+        }
+
+        @Override
+        protected long handleData(Tuple2<Node, Data> t) {
+            GossipPacket packet = (GossipPacket) t.getV2();
+            log.add(getTimeline().now() + " " + t.getV1().getName() + " " + packet);
+            getSimulation().recordDelivery(this, packet.hops);
+            if (packet.hops > 0) {
+                List<Node> neighbors = unicastLinkStream().map(UnicastLink::getDestination)
+                        .sorted(Comparator.comparing(Node::getName)).collect(Collectors.toList());
+                for (int i = 0; i < 2; i++) {
+                    Node next = neighbors.get(rand.nextInt(neighbors.size()));
+                    GossipPacket forward = new GossipPacket(packet.id, packet.hops - 1);
+                    if (rand.nextInt(4) == 0) {
+                        // local timer
+                        getTimeline().schedule(getTimeline().now() + rand.nextInt(3) * Timeline.MS, p -> sendUnicastData(next, forward, false));
+                    } else {
+                        sendUnicastData(next, forward, false);
+                    }
+                }
+            }
+            return 10 * Timeline.US;
+        }
+    }
+
+    // a grid of gossip nodes, with some packets started at the same time. returns the logs.
+    static String runGossip(ToLongFunction<Simulation> runner) {
+        TreeMap<String, GossipNode> nodes = new TreeMap<>();
+        int size = 5;
+        GossipNode[][] grid = new GossipNode[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                grid[i][j] = new GossipNode(String.format("N%d%d", i, j));
+                nodes.put(grid[i][j].getName(), grid[i][j]);
+                if (i > 0) {
+                    Node.linkNodes(grid[i - 1][j], grid[i][j], Node.BW_IN_MBPS, (1 + (i + j) % 3) * Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+                }
+                if (j > 0) {
+                    Node.linkNodes(grid[i][j - 1], grid[i][j], Node.BW_IN_MBPS, (1 + (i * j) % 2) * Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+                }
+            }
+        }
+        Random rand = new Random(0);
+        for (int i = 0; i < 12; i++) {
+            GossipNode n = grid[rand.nextInt(size)][rand.nextInt(size)];
+            String id = "P" + i;
+            Timeline.addEvent(i / 4 * 5 * Timeline.MS, p -> n.start(id, 7));
+        }
+        EventDigest digest = Simulation.getCurrent().startEventDigest();
+        long finish = runner.applyAsLong(Simulation.getCurrent());
+        StringBuilder sb = new StringBuilder();
+        sb.append(finish).append(' ').append(digest).append(' ').append(Simulation.getCurrent().getDeliveryDigest()).append('\n');
+        nodes.forEach((name, n) -> {
+            sb.append(name).append(n.log).append('\n');
+            n.unicastLinkStream().sorted(Comparator.comparing(l -> l.getDestination().getName()))
+                    .forEach(l -> sb.append(l.getDestination().getName()).append(':').append(l.getBitsSent()).append(' '));
+            sb.append('\n');
+        });
+        return sb.toString();
+    }
+
+    @Test
+    public void testParallel() {
+        String expected = new Simulation().call(() -> runGossip(Simulation::run));
+        for (int partitions = 1; partitions <= 5; partitions++) {
+            int count = partitions;
+            assertEquals(expected, new Simulation().call(() -> runGossip(s -> s.runParallel(count))));
+        }
+        assertEquals(expected, new Simulation().call(() -> runGossip(s -> s.runParallel(3, n -> Math.abs(n.getName().hashCode()) % 3))));
+
+        // the digests differ if the events are changed
+        String digest = expected.substring(0, expected.indexOf('\n'));
+        assertTrue(digest.matches("\\d+ [0-9a-f]{16}/\\d+ [0-9a-f]{16}/\\d+"));
+        assertEquals(digest, new Simulation(new Timeline(new HeapEventScheduler())).call(() -> runGossip(Simulation::run)).substring(0, digest.length()));
+        String changed = new Simulation().call(() -> runGossip(s -> {
+            s.getTimeline().schedule(Timeline.MS, p -> {
+            });
+            return s.run();
+        }));
+        assertNotEquals(digest.split(" ")[1], changed.split(" ")[1]);
+        assertEquals(digest.split(" ")[2], changed.substring(0, changed.indexOf('\n')).split(" ")[2]);
+
+        expected = new Simulation().call(() -> runRouting(Simulation::run));
+        assertEquals(expected, new Simulation().call(() -> runRouting(s -> s.runParallel(4))));
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        String expected = new Simulation().call(() -> runRouting(Simulation::run));
+        Path file = Files.createTempFile("simulation", ".bin");
+        try {
+            // checkpoint in the middle of the flooding, with events pending
+            long[] pending = new long[1];
+            String resumed = new Simulation().call(() -> runRouting(s -> {
+                s.runUntil(10 * Timeline.MS);
+                pending[0] = s.getTimeline().size();
+                try {
+                    SimulationCheckpoint.save(s, file);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                return s.run();
+            }));
+            assertEquals(expected, resumed);
+            assertTrue(pending[0] > 0);
+
+            Simulation restored = SimulationCheckpoint.restore(file);
+            assertEquals(6, restored.getNodeCount());
+            assertEquals(10 * Timeline.MS, restored.getTimeline().now());
+            assertEquals(pending[0], restored.getTimeline().size());
+            long finish = restored.run();
+            TreeMap<String, MFRouter> routers = new TreeMap<>();
+            restored.forEachNode(n -> routers.put(n.getName(), (MFRouter) n));
+            assertSame(restored, routers.get("R1").getSimulation());
+            assertEquals(expected.substring(0, expected.indexOf(' ')) + "\n" + expected.substring(expected.indexOf('\n') + 1),
+                    finish + "\n" + printFibs(routers));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testFork() throws Exception {
+        String expected = new Simulation().call(() -> runRouting(Simulation::run));
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            String original = new Simulation().call(() -> runRouting(s -> {
+                s.runUntil(10 * Timeline.MS);
+                List<Simulation> forks;
+                try {
+                    forks = SimulationCheckpoint.fork(s, 3);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                assertEquals(3, forks.size());
+                assertNotSame(forks.get(0), forks.get(1));
+                // each branch runs on its own thread
+                List<Future<String>> branches = forks.stream().map(f -> executor.submit(() -> {
+                    long finish = f.run();
+                    TreeMap<String, MFRouter> routers = new TreeMap<>();
+                    f.forEachNode(n -> routers.put(n.getName(), (MFRouter) n));
+                    assertSame(f, routers.get("R1").getSimulation());
+                    return finish + "\n" + printFibs(routers);
+                })).collect(Collectors.toList());
+                long finish = s.run();
+                for (Future<String> b : branches) {
+                    try {
+                        assertEquals(expected.substring(0, expected.indexOf(' ')) + "\n" + expected.substring(expected.indexOf('\n') + 1), b.get());
+                    } catch (Exception ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+                return finish;
+            }));
+            assertEquals(expected, original);
+        } finally {
+            executor.shutdown();
+        }
+
+        // the RP graph is shared until modified
+        Simulation simulation = new Simulation();
+        MFPubSubRouter router = simulation.call(() -> {
+            MFGNRS gnrs = new MFGNRS("GNRS", new UnlimitedQueue<>());
+            MFPubSubRouter r = new MFPubSubRouter("R", new UnlimitedQueue<>(), gnrs.getNa(), new UnlimitedQueue<>());
+            Node.linkNodes(r, gnrs, Node.BW_IN_MBPS, Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+            gnrs.announceNA();
+            r.announceNA();
+            return r;
+        });
+        simulation.run();
+        simulation.execute(() -> router.registerRP(new GUID(1)));
+        router.addGraphRelationship(new GUID(1), new GUID(2));
+        Simulation fork = SimulationCheckpoint.fork(simulation);
+        MFPubSubRouter forked = (MFPubSubRouter) fork.nodeStream().filter(n -> n.getName().equals("R")).findAny().get();
+        assertNotSame(router, forked);
+        assertEquals(Arrays.asList(new GUID(2)), forked.getGUIDChildren(new GUID(1)).collect(Collectors.toList()));
+        forked.addGraphRelationship(new GUID(1), new GUID(3));
+        router.removeGraphRelationship(new GUID(1), new GUID(2));
+        assertEquals(0, router.getGUIDChildren(new GUID(1)).count());
+        assertEquals(2, forked.getGUIDChildren(new GUID(1)).count());
+    }
+
+    @Test
+    public void testForkChain() throws Exception {
+        // a line of routers, each with a route to the far end, is copied
+        // without recursing from a router to the next one
+        Simulation simulation = new Simulation();
+        MFRouter[] routers = simulation.call(() -> {
+            MFGNRS gnrs = new MFGNRS("GNRS", new UnlimitedQueue<>());
+            MFRouter[] ret = new MFRouter[2000];
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = new MFRouter("R" + i, new UnlimitedQueue<>(), gnrs.getNa());
+                if (i > 0) {
+                    Node.linkNodes(ret[i - 1], ret[i], Node.BW_IN_MBPS, Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+                    ret[i - 1].setFib(gnrs.getNa(), new Tuple2<>(ret[i], (long) i));
+                }
+            }
+            return ret;
+        });
+        Thread t = new Thread(null, () -> {
+            try {
+                Simulation fork = SimulationCheckpoint.fork(simulation);
+                assertEquals(routers.length + 1, fork.getNodeCount());
+                MFRouter last = (MFRouter) fork.getNode(routers.length);
+                assertEquals("R" + (routers.length - 1), last.getName());
+                assertEquals(Arrays.asList("R" + (routers.length - 2)),
+                        last.unicastLinkStream().map(l -> l.getDestination().getName()).collect(Collectors.toList()));
+                MFRouter first = (MFRouter) fork.getNode(1);
+                first.forEachFib((na, next) -> {
+                    assertSame(fork.getNode(0), na.getNode());
+                    assertSame(fork.getNode(2), next.getV1());
+                });
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }, "fork", 256 * 1024);
+        Throwable[] error = new Throwable[1];
+        t.setUncaughtExceptionHandler((th, ex) -> error[0] = ex);
+        t.start();
+        t.join();
+        assertNull(error[0]);
+    }
+
+    @Test
+    public void testWatchdog() {
+        Simulation simulation = new Simulation();
+        GossipNode[] nodes = simulation.call(() -> new GossipNode[]{new GossipNode("A"), new GossipNode("B"), new GossipNode("C")});
+        for (int i = 0; i < nodes.length; i++) {
+            Node.linkNodes(nodes[i], nodes[(i + 1) % nodes.length], 1000 * Node.BW_IN_MBPS, Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+        }
+        EventWatchdog watchdog = simulation.startWatchdog(0, 500, 60 * 1000);
+        watchdog.setReportStream(null);
+        // each packet is forwarded twice, the packets grow without bound
+        simulation.getTimeline().schedule(0, p -> nodes[0].start("P", 100));
+        simulation.run();
+        assertTrue(simulation.getTimeline().isStopped());
+        assertTrue(watchdog.getReason().startsWith("More than 500 events in simulated ms"));
+        assertEquals(simulation.nodeStream().flatMap(Node::unicastLinkStream).mapToLong(Node.UnicastLink::getBitsSent).sum(),
+                simulation.getBitsSent());
+        assertTrue(simulation.getBitsSent() > 0);
+        assertTrue(simulation.getTimeline().size() > 0);
+        assertTrue(simulation.getTimeline().now() > 0);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        watchdog.writeReport(new PrintStream(out, true));
+        List<String> lines = Arrays.asList(out.toString().split("\n"));
+        int owners = lines.indexOf("Owner\tRecent\tPending"), types = lines.indexOf("Type\tRecent\tPending");
+        assertTrue(owners > 0 && types > owners);
+        // the links and nodes, the test event has no owner
+        assertTrue(lines.subList(owners + 1, types).stream().allMatch(l -> l.matches("([ABC](->[ABC])?|-)\t.*")));
+        assertTrue(lines.get(owners + 1).contains("->"));
+        assertTrue(lines.subList(types + 1, lines.size()).stream().anyMatch(l -> l.startsWith("SimulationTest$GossipPacket\t")));
+    }
+
+    @Test
+    public void testParallelPartitions() {
+        Simulation simulation = new Simulation();
+        GossipNode[] nodes = simulation.call(() -> new GossipNode[]{new GossipNode("A"), new GossipNode("B")});
+        Node.linkNodes(nodes[0], nodes[1], Node.BW_IN_MBPS, 0, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+        try {
+            simulation.runParallel(2, n -> n == nodes[0] ? 0 : 1);
+            fail("Should not reach here! Nodes linked without delay cannot be in different partitions");
+        } catch (IllegalArgumentException e) {
+        }
+        // linked without delay, should be in the same partition
+        simulation.getTimeline().schedule(0, p -> nodes[0].start("P", 3));
+        simulation.runParallel(2);
+        assertEquals(15, nodes[0].log.size() + nodes[1].log.size());
+        assertEquals(0, nodes[0].getPartition());
+    }
+
+    @Test
+    public void testSojourn() {
+        Simulation simulation = new Simulation();
+        GossipNode[] nodes = simulation.call(() -> new GossipNode[]{
+            new GossipNode("A", new SojournQueue<>(new UnlimitedQueue<>())),
+            new GossipNode("B", new SojournQueue<>(new UnlimitedQueue<>())),
+            new GossipNode("C")});
+        for (int i = 0; i < nodes.length; i++) {
+            Node.linkNodes(nodes[i], nodes[(i + 1) % nodes.length], Node.BW_IN_MBPS, Timeline.MS,
+                    new SojournQueue<>(new UnlimitedQueue<>()), new UnlimitedQueue<>());
+        }
+        simulation.getTimeline().schedule(0, p -> nodes[0].start("P", 5));
+        simulation.run();
+
+        TreeMap<String, SojournQueue.Histogram> histograms = new TreeMap<>();
+        simulation.forEachSojourn(histograms::put);
+        assertEquals("[A, A->B, B, B->C, C->A]", histograms.keySet().toString());
+        assertEquals(histograms.size(), simulation.sojournStream().count());
+        assertSame(nodes[0].getIncomingSojourn(), histograms.get("A"));
+        assertSame(nodes[0].getUnicastLink(nodes[1]).getSojourn(), histograms.get("A->B"));
+        assertEquals(null, nodes[2].getIncomingSojourn());
+        assertEquals(null, nodes[1].getUnicastLink(nodes[0]).getSojourn());
+        // each packet handled by the node is retrieved from its incoming queue
+        assertEquals(nodes[0].log.size(), histograms.get("A").getCount());
+        assertEquals(nodes[1].log.size(), histograms.get("B").getCount());
+        // each packet received by B from A is retrieved from the link queue
+        assertEquals(nodes[1].log.stream().filter(l -> l.split(" ")[1].equals("A")).count(), histograms.get("A->B").getCount());
+        assertTrue(histograms.get("A->B").getCount() > 0);
+    }
+
+    @Test
+    public void testInFlight() throws Exception {
+        Simulation simulation = new Simulation();
+        GossipNode[] nodes = simulation.call(() -> new GossipNode[]{new GossipNode("A"), new GossipNode("B")});
+        Node.linkNodes(nodes[0], nodes[1], Node.BW_IN_MBPS, 50 * Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+        Timeline timeline = simulation.getTimeline();
+        timeline.schedule(0, p -> {
+            for (int i = 0; i < 100; i++) {
+                nodes[0].sendUnicastData(nodes[1], new GossipPacket("P" + i, 0), false);
+            }
+        });
+        simulation.runUntil(40 * Timeline.MS);
+        // 500 bits in 500 us, only the head arrival and the transmission are pending
+        assertEquals(81, nodes[0].getUnicastLink(nodes[1]).getInFlightCount());
+        assertEquals(2, timeline.size());
+
+        // the data in flight is kept in a fork
+        Simulation fork = SimulationCheckpoint.fork(simulation);
+        simulation.run();
+        assertEquals(0, nodes[0].getUnicastLink(nodes[1]).getInFlightCount());
+        assertEquals(100, nodes[1].log.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(((i + 1) * 500 + 50 * Timeline.MS) + " A P" + i + "/0", nodes[1].log.get(i));
+        }
+        GossipNode forked = (GossipNode) fork.nodeStream().filter(n -> n.getName().equals("B")).findAny().get();
+        fork.run();
+        assertEquals(nodes[1].log, forked.log);
+    }
+
+    @Test
+    public void testLinkIndex() {
+        Simulation simulation = new Simulation();
+        GossipNode[] nodes = simulation.call(() -> new GossipNode[]{new GossipNode("A"), new GossipNode("B"), new GossipNode("C")});
+        for (int i = 0; i < nodes.length; i++) {
+            assertEquals(i, nodes[i].getId());
+            assertEquals(nodes[i], simulation.getNode(i));
+        }
+        Node.linkNodes(nodes[0], nodes[1], Node.BW_IN_MBPS, Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+        Node.linkNodes(nodes[0], nodes[2], Node.BW_IN_MBPS, Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+        int toB = nodes[0].getUnicastLinkIndex(nodes[1]), toC = nodes[0].getUnicastLinkIndex(nodes[2]);
+        assertEquals(0, toB);
+        assertEquals(1, toC);
+        assertEquals(nodes[2], nodes[0].getUnicastLink(toC).getDestination());
+
+        // the index of C stays valid, the new link to B gets a new index
+        Node.disconnectNodes(nodes[0], nodes[1]);
+        assertNull(nodes[0].getUnicastLink(toB));
+        Node.linkNodes(nodes[0], nodes[1], Node.BW_IN_MBPS, Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+        assertEquals(2, nodes[0].getUnicastLinkIndex(nodes[1]));
+        assertArrayEquals(new Object[]{nodes[2], nodes[1]}, nodes[0].unicastLinkStream().map(l -> l.getDestination()).toArray());
+
+        simulation.getTimeline().schedule(0, p -> {
+            nodes[0].sendUnicastData(toC, new GossipPacket("P", 0), false);
+            nodes[0].sendUnicastData(2, new GossipPacket("Q", 0), false, Timeline.MS);
+            try {
+                nodes[0].sendUnicastData(toB, new GossipPacket("R", 0), false);
+                fail("Should not reach here!");
+            } catch (IllegalArgumentException e) {
+            }
+        });
+        simulation.run();
+        assertEquals(Arrays.asList((500 + Timeline.MS) + " A P/0"), nodes[2].log);
+        assertEquals(Arrays.asList((500 + 2 * Timeline.MS) + " A Q/0"), nodes[1].log);
+        try {
+            simulation.getNode(3);
+            fail("Should not reach here!");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    // a backlog in the link queue of A and in the incoming queue of B. returns the number of events
+    private static int runBacklog(boolean batch, ArrayList<String> log) {
+        Simulation simulation = new Simulation();
+        GossipNode[] nodes = simulation.call(() -> new GossipNode[]{new GossipNode("A"), new GossipNode("B")});
+        Node.linkNodes(nodes[0], nodes[1], Node.BW_IN_MBPS, Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+        nodes[1].setBatch(batch);
+        nodes[0].getUnicastLink(nodes[1]).setBatch(batch);
+        assertEquals(batch, nodes[1].isBatch());
+        assertEquals(batch, nodes[0].getUnicastLink(nodes[1]).isBatch());
+        simulation.getTimeline().schedule(0, p -> {
+            for (int i = 0; i < 1000; i++) {
+                nodes[1].start("L" + i, 0);
+            }
+            for (int i = 0; i < 100; i++) {
+                nodes[0].sendUnicastData(nodes[1], new GossipPacket("P" + i, 0), false);
+            }
+        });
+        int ret = simulation.runUntil(Timeline.SECOND);
+        log.addAll(nodes[1].log);
+        return ret;
+    }
+
+    @Test
+    public void testBatch() {
+        ArrayList<String> target = new ArrayList<>(), result = new ArrayList<>();
+        int events = runBacklog(false, target), batchEvents = runBacklog(true, result);
+        assertEquals(1100, target.size());
+        assertEquals(target, result);
+        assertTrue(String.format("events=%d, batch=%d", events, batchEvents), batchEvents < events / 2);
+    }
+
+    // broadcasts packets with a long delay, removes a member while they are in flight, and
+    // cancels half of the timers scheduled far ahead. returns the logs of the members.
+    private static String runBroadcast(Path spillDirectory) {
+        Simulation simulation = new Simulation();
+        GossipNode[] nodes = simulation.call(() -> new GossipNode[]{new GossipNode("A"), new GossipNode("B"), new GossipNode("C")});
+        nodes[0].createBroadcastChannel("sat", Node.BW_IN_MBPS, 50 * Timeline.MS, new UnlimitedQueue<>());
+        Node.BroadcastLink channel = nodes[0].getBroadcastChannel("sat");
+        channel.addNode(nodes[1]);
+        channel.addNode(nodes[2]);
+        Timeline timeline = simulation.getTimeline();
+        // small runs, so that the events are written to the disk
+        EventSpill spill = spillDirectory == null ? null : new EventSpill(spillDirectory, Timeline.MS, EventSpill::isValue, 4);
+        timeline.setSpill(spill);
+        GossipNode b = nodes[1];
+        EventHandler<String> timer = (id, value) -> b.log.add(timeline.now() + " timer " + id);
+        TimelineEvent[] timers = new TimelineEvent[10];
+        timeline.schedule(0, p -> {
+            for (int i = 0; i < 20; i++) {
+                nodes[0].sendBroadcastData("sat", new GossipPacket("P" + i, 0), false);
+            }
+            for (int i = 0; i < timers.length; i++) {
+                timers[i] = timeline.scheduleCancellable((100 + i) * Timeline.MS, timer, "T" + i, 0);
+            }
+        });
+        timeline.schedule(20 * Timeline.MS, p -> {
+            if (spill != null) {
+                // the timers, the head arrival and the idle event of the channel
+                assertEquals(timers.length + 2, spill.size());
+            }
+            channel.removeNode(nodes[2], true);
+            for (int i = 0; i < timers.length; i += 2) {
+                timers[i].cancel();
+            }
+        });
+        simulation.run();
+        if (spill != null) {
+            assertTrue(spill.getSpilledCount() > timers.length);
+            assertEquals(0, spill.size());
+            spill.close();
+        }
+        assertEquals(20, channel.getDrops().getPackets(DropCounter.Reason.MEMBER_REMOVED));
+        return b.log + " " + nodes[2].log;
+    }
+
+    @Test
+    public void testSpill() throws IOException {
+        String expected = runBroadcast(null);
+        assertTrue(expected.contains("timer T1") && !expected.contains("timer T0"));
+        Path dir = Files.createTempDirectory("simulation");
+        try {
+            assertEquals(expected, runBroadcast(dir));
+            assertEquals(0, Files.list(dir).count());
+        } finally {
+            Files.delete(dir);
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package edu.rutgers.winlab.networksimulator.network.mf;
 
 import edu.rutgers.winlab.networksimulator.common.Data;
+import edu.rutgers.winlab.networksimulator.common.EventLog;
+import edu.rutgers.winlab.networksimulator.common.EventProfiler;
+import edu.rutgers.winlab.networksimulator.common.EventRecorder;
 import static edu.rutgers.winlab.networksimulator.common.Helper.assertStreamEquals;
 import edu.rutgers.winlab.networksimulator.common.PrioritizedQueue;
 import edu.rutgers.winlab.networksimulator.common.RandomData;
@@ -9,6 +12,7 @@ import edu.rutgers.winlab.networksimulator.common.TriConsumer;
 import edu.rutgers.winlab.networksimulator.common.Tuple2;
 import edu.rutgers.winlab.networksimulator.common.UnlimitedQueue;
 import edu.rutgers.winlab.networksimulator.network.Node;
+import edu.rutgers.winlab.networksimulator.network.Simulation;
 import edu.rutgers.winlab.networksimulator.network.mf.graphpubsub.MFPubSubRouterTest;
 import edu.rutgers.winlab.networksimulator.network.mf.packets.GUID;
 import edu.rutgers.winlab.networksimulator.network.mf.packets.MFApplicationPacket;
@@ -16,7 +20,13 @@ import edu.rutgers.winlab.networksimulator.network.mf.packets.MFApplicationPacke
 import edu.rutgers.winlab.networksimulator.network.mf.packets.MFHopPacket;
 import edu.rutgers.winlab.networksimulator.network.mf.packets.MFHopPacketGNRSAssociate;
 import edu.rutgers.winlab.networksimulator.network.mf.packets.MFHopPacketGNRSRequest;
+import edu.rutgers.winlab.networksimulator.network.mf.packets.MFHopPacketGNRSResponse;
+import edu.rutgers.winlab.networksimulator.network.mf.packets.MFHopPacketLSA;
 import edu.rutgers.winlab.networksimulator.network.mf.packets.NA;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -775,4 +785,125 @@ public class MFRouterTest {
         Timeline.run();
 
     }
+
+    @Test
+    public void test16() {
+        LOG.log(Level.INFO, "Test profiling LSA and GNRS floods");
+        MFGNRS gnrs = new MFGNRS("GNRS", new UnlimitedQueue<>());
+        MFRouter r1 = new MFRouter("R1", new UnlimitedQueue<>(), gnrs.getNa());
+        MFRouter r2 = new MFRouter("R2", new UnlimitedQueue<>(), gnrs.getNa());
+        Node.linkNodes(r1, gnrs, 100 * Node.BW_IN_MBPS, 10 * Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+        Node.linkNodes(r2, gnrs, 100 * Node.BW_IN_MBPS, 10 * Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+        Node.linkNodes(r1, r2, 100 * Node.BW_IN_MBPS, 10 * Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+
+        EventProfiler profiler = new EventProfiler(0);
+        Timeline.getCurrent().setProfiler(profiler);
+        try {
+            for (MFRouter node : new MFRouter[]{gnrs, r1, r2}) {
+                Timeline.addEvent(0, p -> ((MFRouter) p[0]).announceNA(), node);
+            }
+            // the association is flooded as a GNRS response
+            Timeline.addEvent(Timeline.SECOND, p -> r1.registerDataConsumer(new GUID(101), true, (r, d) -> {
+            }));
+            Timeline.run();
+        } finally {
+            Timeline.getCurrent().setProfiler(null);
+        }
+
+        // the floods of the same handler are profiled separately
+        EventProfiler.HandlerProfile lsa = profiler.handlerStream()
+                .filter(p -> p.getName().startsWith("MFRouter") && p.getCategory() == MFHopPacketLSA.class).findAny().get();
+        EventProfiler.HandlerProfile gnrsFlood = profiler.handlerStream()
+                .filter(p -> p.getHandlerClass() == lsa.getHandlerClass() && p.getCategory() == MFHopPacketGNRSResponse.class)
+                .findAny().get();
+        assertTrue(lsa.getCount() > 0);
+        assertTrue(gnrsFlood.getCount() > 0);
+        assertTrue(lsa.getName().endsWith("[MFHopPacketLSA]"));
+        // the packets retrieved from the incoming queues are profiled by packet
+        assertTrue(profiler.handlerStream().anyMatch(p -> p.getCategory() == MFHopPacketGNRSAssociate.class));
+    }
+
+    @Test
+    public void test17() throws IOException {
+        LOG.log(Level.INFO, "Test cancelling reissue timers");
+        long origCacheExpire = MFRouter.durationNrsCacheExpire, origReIssue = MFRouter.durationNrsReIssue;
+        boolean origCancel = MFRouter.cancelNrsReIssue;
+        Path dir = Files.createTempDirectory("mfrouter");
+        try {
+            MFRouter.durationNrsCacheExpire = Timeline.SECOND;
+            MFRouter.durationNrsReIssue = 5 * Timeline.SECOND;
+            MFRouter.cancelNrsReIssue = false;
+            ArrayList<String> baseline = new ArrayList<>(), baselineReIssues = new ArrayList<>();
+            new Simulation().call(() -> runReIssue(dir.resolve("baseline.bin"), baseline, baselineReIssues));
+            MFRouter.cancelNrsReIssue = true;
+            ArrayList<String> cancelled = new ArrayList<>(), cancelledReIssues = new ArrayList<>();
+            new Simulation().call(() -> runReIssue(dir.resolve("cancelled.bin"), cancelled, cancelledReIssues));
+
+            // the other events are executed in the same order, with the same serials
+            assertEquals(baseline, cancelled);
+            // the timers of the resolved GUID are cancelled, the timer resumed
+            // when the GUID is pending again still fires
+            assertTrue(cancelledReIssues.size() < baselineReIssues.size());
+            assertTrue(cancelledReIssues.stream().allMatch(baselineReIssues::contains));
+            assertTrue(!cancelledReIssues.isEmpty());
+        } finally {
+            MFRouter.durationNrsCacheExpire = origCacheExpire;
+            MFRouter.durationNrsReIssue = origReIssue;
+            MFRouter.cancelNrsReIssue = origCancel;
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path f : (Iterable<Path>) files::iterator) {
+                    Files.delete(f);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    // GUID 101 is pending (no consumer) and resolved by another request three
+    // times, the reissue timers of the first time are resumed the second time,
+    // the timers of the second time are expired the third time
+    private static Void runReIssue(Path file, ArrayList<String> events, ArrayList<String> reIssues) {
+        MFGNRS gnrs = new MFGNRS("GNRS", new UnlimitedQueue<>());
+        MFRouter r1 = new MFRouter("R1", new UnlimitedQueue<>(), gnrs.getNa());
+        MFRouter r2 = new MFRouter("R2", new UnlimitedQueue<>(), gnrs.getNa());
+        Node.linkNodes(r1, gnrs, 100 * Node.BW_IN_MBPS, 100 * Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+        Node.linkNodes(r2, gnrs, 100 * Node.BW_IN_MBPS, 100 * Timeline.MS, new UnlimitedQueue<>(), new UnlimitedQueue<>());
+        for (MFRouter node : new MFRouter[]{gnrs, r1, r2}) {
+            Timeline.addEvent(0, p -> ((MFRouter) p[0]).announceNA(), node);
+        }
+        GUID guid = new GUID(101);
+        BiConsumer<MFRouter, MFApplicationPacket> dataConsumer = (r, d) -> {
+        };
+        for (int i = 0; i < 3; i++) {
+            long start = (1 + 5 * i) * Timeline.SECOND + (i == 2 ? 2 * Timeline.SECOND : 0);
+            int len = 1000 + i;
+            if (i > 0) {
+                Timeline.addEvent(start - Timeline.SECOND, p -> r2.deregisterDataConsumer(guid, false, dataConsumer));
+            }
+            Timeline.addEvent(start, p -> r1.enqueueIncomingData(r1, new MFApplicationPacketData(new GUID(100), guid, new RandomData(len * Data.BYTE)), false));
+            // the response of another request resolves the GUID
+            Timeline.addEvent(start + Timeline.SECOND, p -> r2.registerDataConsumer(guid, false, dataConsumer));
+            Timeline.addEvent(start + 2 * Timeline.SECOND, p -> r1.enqueueIncomingData(r1, new MFHopPacketGNRSRequest(guid, r1.getNa()), false));
+        }
+
+        Timeline timeline = Timeline.getCurrent();
+        try (EventRecorder recorder = new EventRecorder(file, p -> p instanceof GUID ? ((GUID) p).getRepresentation() : -1)) {
+            timeline.setRecorder(recorder);
+            timeline.execute();
+        } finally {
+            timeline.setRecorder(null);
+        }
+        try (EventLog log = new EventLog(file)) {
+            log.forEach(0, Long.MAX_VALUE, e -> {
+                String name = log.getHandlerName(e.getHandlerId());
+                String s = String.format("%d:%d:%s", e.getTimeInUs(), e.getSerial(), name);
+                if (name.startsWith(MFRouter.class.getName() + "$") && e.getPayloadId() == 101) {
+                    reIssues.add(s);
+                } else {
+                    events.add(s + ":" + e.getValue());
+                }
+            });
+        }
+        return null;
+    }
 }
@@ -28,6 +28,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 import org.junit.AfterClass;
+import static org.junit.Assert.assertEquals;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -362,4 +363,15 @@ public class MFPubSubRouterTest {
         MFRouter.durationNrsCacheExpire = duration;
     }
 
+
+    @Test
+    public void testPacketClassifier() {
+        MFPacketClassifier classifier = new MFPacketClassifier();
+        GUID g1 = new GUID(1), g2 = new GUID(2);
+        assertEquals(MFPacketClassifier.CLASS_SUBSCRIPTION, classifier.applyAsInt(new MFApplicationPacketSubscription(g1, g2)));
+        assertEquals(MFPacketClassifier.CLASS_BULK, classifier.applyAsInt(new MFApplicationPacketPublication(g1, g2, new RandomData(100))));
+        assertEquals(MFPacketClassifier.CLASS_BULK, classifier.applyAsInt(new RandomData(100)));
+        classifier.setClass(MFApplicationPacketPublication.MF_PACKET_TYPE_PUBLICATION, MFPacketClassifier.CLASS_MARK);
+        assertEquals(MFPacketClassifier.CLASS_MARK, classifier.applyAsInt(new MFApplicationPacketPublication(g1, g2, new RandomData(100))));
+    }
 }
@@ -16,20 +16,36 @@ import edu.rutgers.winlab.networksimulator.common.Tuple2;
 import edu.rutgers.winlab.networksimulator.common.Tuple3;
 import edu.rutgers.winlab.networksimulator.common.UnlimitedQueue;
 import edu.rutgers.winlab.networksimulator.network.Node;
+import edu.rutgers.winlab.networksimulator.network.Simulation;
+import edu.rutgers.winlab.networksimulator.network.SimulationCheckpoint;
 import edu.rutgers.winlab.networksimulator.network.mf.MFGNRS;
 import edu.rutgers.winlab.networksimulator.network.mf.MFRouter;
 import edu.rutgers.winlab.networksimulator.network.mf.graphpubsub.packets.MFApplicationPacketPublication;
 import edu.rutgers.winlab.networksimulator.network.mf.packets.GUID;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.junit.AfterClass;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -50,6 +66,147 @@ public class TraceReaderTest {
     public static void tearDownClass() {
     }
 
+    private static final long MIGRATE_AT = 150 * Timeline.MS;
+    private static final int MIGRATE_THRESHOLD = 5;
+
+    // a line of routers GNRS - A - B - C - D - E, the categories 1 (child)
+    // and 2 (parent) are served at B, C and D subscribe, E publishes bursts
+    // of publications to category 1. the statistics of B are written to the
+    // directory if statistics is true. the run stops the first time the RP
+    // queue of B reaches the migration threshold if stopToMigrate is true
+    private static Simulation createTrace(Path dir, boolean statistics, boolean stopToMigrate) throws IOException {
+        String rpName = dir.resolve("B").toString();
+        Path linksFile = Files.write(dir.resolve("links.txt"), Arrays.asList(
+                "A\t" + rpName + "\t5", rpName + "\tC\t5", "C\tD\t5", "D\tE\t5"));
+        Path catsFile = Files.write(dir.resolve("cats.txt"), Arrays.asList("1\tc1\t2\tc2"));
+        Path subscriptionsFile = Files.write(dir.resolve("subscriptions.txt"), Arrays.asList("C\ts1\t1\tc1", "D\ts2\t2\tc2"));
+        ArrayList<String> publications = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            publications.add(String.format("%d\t%d\t1\tc1", i, i / 20 * 40));
+        }
+        Path publicationsFile = Files.write(dir.resolve("publications.txt"), publications);
+
+        Simulation simulation = new Simulation();
+        MFGNRS gnrs = simulation.call(() -> new MFGNRS("GNRS", new UnlimitedQueue<>()));
+        Tuple1<Boolean> canMigrate = new Tuple1<>(stopToMigrate);
+        BiConsumer<String, Boolean> rpMigrationTrigger = (BiConsumer<String, Boolean> & Serializable) (q, above) -> {
+            if (above && canMigrate.getV1()) {
+                canMigrate.setV1(false);
+                Timeline.getCurrent().stop();
+            }
+        };
+        HashMap<String, MFPubSubRouter> routers = TraceReader.readNetworkTopology(gnrs, "A", linksFile.toString(),
+                name -> new UnlimitedQueue<>(), name -> {
+                    ReportingQueue<MFApplicationPacketPublication, PrioritizedQueue<MFApplicationPacketPublication>> report
+                            = new ReportingQueue<>(name, new UnlimitedQueue<>(), null);
+                    report.setThresholdHandler(MIGRATE_THRESHOLD, 1, rpMigrationTrigger);
+                    return report;
+                }, name -> new UnlimitedQueue<>(),
+                100 * Node.BW_IN_MBPS);
+        MFPubSubRouter rp = routers.get(rpName), pubRouter = routers.get("E");
+        TraceReader.putAllGUIDsOnOneRouter(rp, catsFile.toString());
+        TraceReader.readSubscriptions(routers, subscriptionsFile.toString(),
+                (BiConsumer<MFPubSubRouter, MFApplicationPacketPublication> & Serializable) (r, p) -> {
+                }, new HashMap<>());
+        simulation.execute(() -> {
+            try {
+                TraceReader.readPublications(publicationsFile.toString(), Timeline.MS,
+                        (Function<GUID, MFPubSubRouter> & Serializable) g -> pubRouter);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            if (statistics) {
+                TraceReader.setReadStatistics(0, Timeline.SECOND, 100 * Timeline.MS, new MFPubSubRouter[]{rp});
+            }
+        });
+        return simulation;
+    }
+
+    private static MFPubSubRouter getRouter(Simulation simulation, String name) {
+        return (MFPubSubRouter) simulation.nodeStream().filter(n -> n.getName().endsWith(name)).findAny().get();
+    }
+
+    // moves the RP of category 1 from B to C
+    private static void moveRP(Simulation simulation) {
+        simulation.execute(() -> getRouter(simulation, "B").moveRP(new GUID(1), getRouter(simulation, "C").getNa()));
+    }
+
+    private static void deleteAll(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path f : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(f);
+            }
+        }
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        Path dir = Files.createTempDirectory("trace");
+        try {
+            Path statFile = dir.resolve("B_stat.txt");
+            Simulation simulation = createTrace(dir, true, false);
+            simulation.runUntil(MIGRATE_AT);
+            moveRP(simulation);
+            long finish = simulation.run();
+            String expected = finish + " " + simulation.getDeliveryDigest();
+            List<String> expectedStatistics = Files.readAllLines(statFile);
+            assertEquals(1 + 11, expectedStatistics.size());
+
+            // the publications, the statistics and the migration are pending
+            // in the checkpoint, the trace and the statistics are reopened
+            simulation = createTrace(dir, true, false);
+            simulation.runUntil(MIGRATE_AT);
+            moveRP(simulation);
+            Path file = dir.resolve("simulation.bin");
+            SimulationCheckpoint.save(simulation, file);
+            Simulation restored = SimulationCheckpoint.restore(file);
+            assertEquals(MIGRATE_AT, restored.getTimeline().now());
+            finish = restored.run();
+            assertEquals(expected, finish + " " + restored.getDeliveryDigest());
+            assertTrue(restored.getDeliveryDigest().getCount() > 0);
+            assertEquals(expectedStatistics, Files.readAllLines(statFile));
+        } finally {
+            deleteAll(dir);
+        }
+    }
+
+    @Test
+    public void testFork() throws Exception {
+        Path dir = Files.createTempDirectory("trace");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // the runs without a fork, with and without the migration
+            Simulation simulation = createTrace(dir, false, true);
+            simulation.run();
+            assertTrue(simulation.getTimeline().isStopped());
+            long migrateAt = simulation.getTimeline().now();
+            moveRP(simulation);
+            long finish = simulation.run();
+            String moved = finish + " " + simulation.getDeliveryDigest();
+            simulation = createTrace(dir, false, true);
+            simulation.run();
+            finish = simulation.run();
+            String stayed = finish + " " + simulation.getDeliveryDigest();
+            assertNotEquals(moved, stayed);
+
+            // forked when the RP queue reaches the threshold, one branch migrates
+            simulation = createTrace(dir, false, true);
+            simulation.run();
+            assertEquals(migrateAt, simulation.getTimeline().now());
+            List<Simulation> forks = SimulationCheckpoint.fork(simulation, 2);
+            moveRP(forks.get(0));
+            List<Future<String>> branches = forks.stream()
+                    .map(f -> executor.submit(() -> f.run() + " " + f.getDeliveryDigest()))
+                    .collect(Collectors.toList());
+            assertEquals(moved, branches.get(0).get());
+            assertEquals(stayed, branches.get(1).get());
+            assertEquals(stayed, simulation.run() + " " + simulation.getDeliveryDigest());
+        } finally {
+            executor.shutdown();
+            deleteAll(dir);
+        }
+    }
+
 //    @Test
     public void test1() throws IOException {
         String topologyPrefix = "/root/Rocketfuel/1221/";
@@ -77,24 +234,27 @@ public class TraceReaderTest {
         Set<GUID> migrateGUIDs = TraceReader.readPartitionFile(partitionFile).collect(Collectors.toSet());
         System.out.printf("toMigrate: %d%n", migrateGUIDs.size());
 
-        BiConsumer<String, Integer> rpQueueConsumer = (q, l) -> {
-            if (canMigrate.getV1() && l > 200) {
-                System.out.printf("[%,d] Migrate!!!!!        %n", Timeline.nowInUs());
-                canMigrate.setV1(false);
-                migrateGUIDs.forEach(migrateGUID -> {
-                    originalRP.getV1().moveRP(migrateGUID, newRP.getV1().getNa());
-                });
-            }
+        // the RP queues are sampled every 100 ms instead of on each operation
+        BiConsumer<String, ReportingQueue.Occupancy> rpQueueSampler = (q, o) -> {
             try {
                 PrintStream queuePs = queuePses.get(q);
                 if (queuePs == null) {
                     queuePses.put(q, queuePs = new PrintStream("queue_" + q + ".txt"));
                 }
-                queuePs.printf("%d\t%d%n", Timeline.nowInUs(), l);
+                queuePs.printf("%d\t%.2f\t%d\t%.0f%n", o.getStartInUs(), o.getMeanSize(), o.getMaxSize(), o.getPercentile(0.99));
             } catch (IOException e) {
                 e.printStackTrace(System.err);
             }
         };
+        BiConsumer<String, Boolean> rpMigrationTrigger = (q, above) -> {
+            if (above && canMigrate.getV1()) {
+                System.out.printf("[%,d] Migrate!!!!!        %n", Timeline.nowInUs());
+                canMigrate.setV1(false);
+                migrateGUIDs.forEach(migrateGUID -> {
+                    originalRP.getV1().moveRP(migrateGUID, newRP.getV1().getNa());
+                });
+            }
+        };
 
         BiConsumer<String, Integer> routerQueueConsumer = (q, l) -> {
 //            if (writeQueue.getV1()) {
@@ -122,7 +282,8 @@ public class TraceReaderTest {
                 }, name -> {
                     PrioritizedQueue<MFApplicationPacketPublication> inner = new UnlimitedQueue<>();
 //                    return inner;
-                    ReportingQueue<MFApplicationPacketPublication, PrioritizedQueue<MFApplicationPacketPublication>> report = new ReportingQueue<>(name, inner, rpQueueConsumer);
+                    ReportingQueue<MFApplicationPacketPublication, PrioritizedQueue<MFApplicationPacketPublication>> report = new ReportingQueue<>(name, inner, 100 * Timeline.MS, rpQueueSampler);
+                    report.setThresholdHandler(201, 100, rpMigrationTrigger);
                     return report;
                 }, name -> {
                     PrioritizedQueue<Data> inner = new UnlimitedQueue<>();